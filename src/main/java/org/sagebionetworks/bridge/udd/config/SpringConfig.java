@@ -6,6 +6,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
@@ -14,6 +15,7 @@ import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.simpleemail.AmazonSimpleEmailServiceClient;
 import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.config.PropertiesConfig;
@@ -79,6 +81,71 @@ public class SpringConfig {
         return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.aux.count"));
     }
 
+    @Bean(name = "uddRequestExecutorService")
+    public ExecutorService uddRequestExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("udd.request.max.concurrency"));
+    }
+
+    @Bean(name = "ddbBatchExecutorService")
+    public ExecutorService ddbBatchExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.ddb.batch.count"));
+    }
+
+    @Bean(name = "uddRequestPlanningExecutorService")
+    public ExecutorService uddRequestPlanningExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("udd.request.max.concurrency"));
+    }
+
+    @Bean(name = "s3UploadExecutorService")
+    public ExecutorService s3UploadExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.s3.upload.count"));
+    }
+
+    @Bean(name = "zipDeflateExecutorService")
+    public ExecutorService zipDeflateExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.zip.deflate.count"));
+    }
+
+    @Bean(name = "synapseNetworkExecutorService")
+    public ExecutorService synapseNetworkExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.synapse.network.count"));
+    }
+
+    // Segment fetches get their own pool, since they're started from threads on the network pool, which block on them.
+    @Bean(name = "synapseSegmentDownloadExecutorService")
+    public ExecutorService synapseSegmentDownloadExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.synapse.segment.download.count"));
+    }
+
+    // Direct attachment fetches get their own pool, since table tasks on the network pool block on them.
+    @Bean(name = "synapseAttachmentFetchExecutorService")
+    public ExecutorService synapseAttachmentFetchExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.synapse.attachment.fetch.count"));
+    }
+
+    // CSV processing is CPU-bound, so there's no point in having more threads than cores.
+    @Bean(name = "csvProcessingExecutorService")
+    public ExecutorService csvProcessingExecutorService() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Table stats refreshes are background work, so one at a time is plenty.
+    @Bean(name = "synapseTableStatsExecutorService")
+    public ExecutorService synapseTableStatsExecutorService() {
+        return Executors.newSingleThreadExecutor();
+    }
+
+    // Poll calls are short Synapse calls that never wait on anything else.
+    @Bean(name = "synapsePollCallExecutorService")
+    public ExecutorService synapsePollCallExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.synapse.poll.call.count"));
+    }
+
+    @Bean(name = "synapsePollExecutorService")
+    public ScheduledExecutorService synapsePollExecutorService() {
+        return Executors.newScheduledThreadPool(bridgeConfig().getInt("threadpool.synapse.poll.count"));
+    }
+
     @Bean
     public DynamoDB ddbClient() {
         return new DynamoDB(new AmazonDynamoDBClient());
@@ -106,6 +173,16 @@ public class SpringConfig {
         return ddbClient().getTable(ddbPrefix() + "SynapseSurveyTables");
     }
 
+    @Bean(name = "ddbHealthDataRecordTable")
+    public Table ddbHealthDataRecordTable() {
+        return ddbClient().getTable(ddbPrefix() + "HealthDataRecord3");
+    }
+
+    @Bean(name = "ddbHealthDataRecordHealthCodeIndex")
+    public Index ddbHealthDataRecordHealthCodeIndex() {
+        return ddbHealthDataRecordTable().getIndex("healthCode-createdOn-index");
+    }
+
     @Bean(name = "ddbUploadSchemaTable")
     public Table ddbUploadSchemaTable() {
         return ddbClient().getTable(ddbPrefix() + "UploadSchema");
@@ -123,10 +200,15 @@ public class SpringConfig {
         return heartbeatLogger;
     }
 
+    @Bean
+    public AmazonS3Client s3Client() {
+        return new AmazonS3Client();
+    }
+
     @Bean
     public S3Helper s3Helper() {
         S3Helper s3Helper = new S3Helper();
-        s3Helper.setS3Client(new AmazonS3Client());
+        s3Helper.setS3Client(s3Client());
         return s3Helper;
     }
 
@@ -140,4 +222,9 @@ public class SpringConfig {
         return new AmazonSNSClient();
     }
     
+    @Bean
+    public AmazonSQSClient sqsClient() {
+        return new AmazonSQSClient();
+    }
+
 }
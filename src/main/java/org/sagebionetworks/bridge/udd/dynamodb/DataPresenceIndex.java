@@ -0,0 +1,243 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.Index;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.schema.UploadSchema;
+
+/**
+ * <p>
+ * Per-user index of which schemas a user has data for, and on which upload dates. Built from the user's health data
+ * records in DynamoDB, which are the source of the Synapse rows. Most users only have data in a few of a study's
+ * tables, so this lets us skip the Synapse queries for tables the user definitely has no rows in.
+ * </p>
+ * <p>
+ * Each user's entry is refreshed incrementally. We remember the latest record createdOn we've seen, and only query
+ * records created after that (minus an overlap, since the index is eventually consistent). Deleted records are never
+ * removed from the index, which only means we query a table that turns out to be empty. The index never drops a table
+ * the user has data in, and if the lookup fails, no tables are dropped.
+ * </p>
+ * <p>
+ * The index fails open. If any record is missing its schema ID or upload date (for example, if the DDB index doesn't
+ * project them), we can't tell which tables the user has data in, so no tables are dropped for that user. Each refresh
+ * also reads at most a fixed number of records, so the first request for a user with a long history doesn't read all
+ * of it at once. Until the refresh catches up with the user's latest record (which may take several requests), no
+ * tables are dropped. If a refresh hits the max, the next one continues from the last record it read, rather than from
+ * the overlap, so a refresh always makes progress, even if the overlap alone holds more than the max.
+ * </p>
+ * <p>
+ * Presence is tracked by schema ID, not revision, so tables whose schema has several revisions are never dropped by
+ * mistake.
+ * </p>
+ */
+@Component
+public class DataPresenceIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(DataPresenceIndex.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "data.presence.index.enabled";
+    static final String CONFIG_KEY_MAX_RECORDS_PER_REFRESH = "data.presence.index.max.records.per.refresh";
+    static final String CONFIG_KEY_MAX_USERS = "data.presence.index.max.users";
+    static final String CONFIG_KEY_REFRESH_OVERLAP_MINUTES = "data.presence.index.refresh.overlap.minutes";
+
+    private static final String ATTR_CREATED_ON = "createdOn";
+    private static final String ATTR_HEALTH_CODE = "healthCode";
+    private static final String ATTR_SCHEMA_ID = "schemaId";
+    private static final String ATTR_UPLOAD_DATE = "uploadDate";
+    private static final String RECORD_PROJECTION = "createdOn, schemaId, uploadDate";
+
+    private boolean enabled;
+    private Index ddbHealthDataRecordIndex;
+    private int maxRecordsPerRefresh;
+    private long refreshOverlapMillis;
+    private Cache<String, UserDataPresence> userPresenceCache;
+
+    /**
+     * Bridge config, used to enable the index, size the per-user cache, and set the refresh overlap and max records
+     * per refresh.
+     */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxRecordsPerRefresh = config.getInt(CONFIG_KEY_MAX_RECORDS_PER_REFRESH);
+        refreshOverlapMillis = TimeUnit.MINUTES.toMillis(config.getInt(CONFIG_KEY_REFRESH_OVERLAP_MINUTES));
+        userPresenceCache = CacheBuilder.newBuilder().maximumSize(config.getInt(CONFIG_KEY_MAX_USERS)).build();
+    }
+
+    /** HealthDataRecord healthCode-createdOn-index. */
+    @Resource(name = "ddbHealthDataRecordHealthCodeIndex")
+    public final void setDdbHealthDataRecordIndex(Index ddbHealthDataRecordIndex) {
+        this.ddbHealthDataRecordIndex = ddbHealthDataRecordIndex;
+    }
+
+    /**
+     * Filters the study's Synapse tables down to the ones the user might have data in for the given date range.
+     *
+     * @param synapseToSchemaMap
+     *         map of all Synapse table IDs in the study and their corresponding schemas
+     * @param healthCode
+     *         user's health code
+     * @param startDate
+     *         start date of the request, inclusive
+     * @param endDate
+     *         end date of the request, inclusive
+     * @return map of Synapse table IDs the user might have data in, and their schemas, never null
+     */
+    public Map<String, UploadSchema> filterTablesWithData(Map<String, UploadSchema> synapseToSchemaMap,
+            String healthCode, LocalDate startDate, LocalDate endDate) {
+        if (!enabled || synapseToSchemaMap.isEmpty()) {
+            return synapseToSchemaMap;
+        }
+
+        Set<String> schemaIdSet;
+        try {
+            schemaIdSet = getSchemaIdsWithData(healthCode, startDate, endDate);
+        } catch (ExecutionException | RuntimeException ex) {
+            // The index is only an optimization. If it fails, query all tables.
+            LOG.error("Error getting data presence for health code, querying all tables: " + ex.getMessage(), ex);
+            return synapseToSchemaMap;
+        }
+        if (schemaIdSet == null) {
+            // Presence is incomplete for this user. Query all tables.
+            return synapseToSchemaMap;
+        }
+
+        Map<String, UploadSchema> filteredMap = new HashMap<>();
+        for (Map.Entry<String, UploadSchema> oneEntry : synapseToSchemaMap.entrySet()) {
+            if (schemaIdSet.contains(oneEntry.getValue().getKey().getSchemaId())) {
+                filteredMap.put(oneEntry.getKey(), oneEntry.getValue());
+            }
+        }
+        LOG.info("Data presence index kept " + filteredMap.size() + " of " + synapseToSchemaMap.size() + " tables");
+        return filteredMap;
+    }
+
+    // Refreshes the user's presence from DDB, then gets the schema IDs with data in the date range. Returns null if
+    // the user's presence is incomplete.
+    private Set<String> getSchemaIdsWithData(String healthCode, LocalDate startDate, LocalDate endDate)
+            throws ExecutionException {
+        UserDataPresence presence = userPresenceCache.get(healthCode, UserDataPresence::new);
+        synchronized (presence) {
+            boolean caughtUp = refresh(healthCode, presence);
+            if (!caughtUp) {
+                LOG.info("Data presence index is still catching up on health code, querying all tables");
+                return null;
+            }
+            if (presence.missingAttributes) {
+                LOG.warn("Data presence index found records with no schema ID or upload date, querying all tables");
+                return null;
+            }
+            return presence.getSchemaIdsWithData(startDate, endDate);
+        }
+    }
+
+    // Adds records created since the last refresh, up to the max records per refresh. Returns true if we read all of
+    // them. Must be called while holding the presence's lock.
+    private boolean refresh(String healthCode, UserDataPresence presence) {
+        Stopwatch refreshStopwatch = Stopwatch.createStarted();
+        long createdOnAfter = presence.resumeCreatedOnAfter != null ? presence.resumeCreatedOnAfter :
+                Math.max(presence.latestCreatedOn - refreshOverlapMillis, 0);
+        long lastCreatedOn = createdOnAfter;
+        int numRecords = 0;
+        for (Item oneRecord : queryRecords(healthCode, createdOnAfter)) {
+            presence.addRecord(oneRecord);
+            if (oneRecord.isPresent(ATTR_CREATED_ON)) {
+                lastCreatedOn = oneRecord.getLong(ATTR_CREATED_ON);
+            }
+            numRecords++;
+            if (numRecords >= maxRecordsPerRefresh) {
+                break;
+            }
+        }
+        LOG.info("Refreshing data presence read " + numRecords + " records in " +
+                refreshStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+
+        if (numRecords < maxRecordsPerRefresh) {
+            presence.resumeCreatedOnAfter = null;
+            return true;
+        }
+
+        // There might be more. The next refresh continues from the last record we read. Restarting from the overlap
+        // would re-read the same page forever if the overlap holds more than the max. Records are ordered by
+        // createdOn, and the page might have ended partway through records with the same createdOn, so re-read
+        // those, unless that wouldn't make progress.
+        presence.resumeCreatedOnAfter = lastCreatedOn - 1 > createdOnAfter ? lastCreatedOn - 1 : lastCreatedOn;
+        return false;
+    }
+
+    /**
+     * Queries the user's health data records created after the given time, in epoch milliseconds, oldest first, up to
+     * the max records per refresh. Package-scoped so unit tests can mock out DDB.
+     */
+    Iterable<Item> queryRecords(String healthCode, long createdOnAfter) {
+        QuerySpec querySpec = new QuerySpec().withHashKey(ATTR_HEALTH_CODE, healthCode)
+                .withRangeKeyCondition(new RangeKeyCondition(ATTR_CREATED_ON).gt(createdOnAfter))
+                .withProjectionExpression(RECORD_PROJECTION).withScanIndexForward(true)
+                .withMaxResultSize(maxRecordsPerRefresh);
+        return ddbHealthDataRecordIndex.query(querySpec);
+    }
+
+    /** Removes all users from the index. The next request for each user rebuilds it from scratch. */
+    public void invalidateAll() {
+        userPresenceCache.invalidateAll();
+    }
+
+    // Upload dates per schema ID for a single user. Guarded by the object's lock.
+    private static class UserDataPresence {
+        private final Map<String, NavigableSet<LocalDate>> uploadDatesBySchemaId = new HashMap<>();
+        // Set if any record is missing its schema ID or upload date. Once set, this user's tables are never pruned.
+        private boolean missingAttributes = false;
+        private long latestCreatedOn = 0;
+        // If the last refresh hit the max, where the next one continues from. Null if the last refresh caught up.
+        private Long resumeCreatedOnAfter = null;
+
+        void addRecord(Item record) {
+            if (record.isPresent(ATTR_CREATED_ON)) {
+                latestCreatedOn = Math.max(latestCreatedOn, record.getLong(ATTR_CREATED_ON));
+            }
+
+            String schemaId = record.getString(ATTR_SCHEMA_ID);
+            String uploadDateStr = record.getString(ATTR_UPLOAD_DATE);
+            if (schemaId == null || uploadDateStr == null) {
+                missingAttributes = true;
+                return;
+            }
+            uploadDatesBySchemaId.computeIfAbsent(schemaId, key -> new TreeSet<>())
+                    .add(LocalDate.parse(uploadDateStr));
+        }
+
+        Set<String> getSchemaIdsWithData(LocalDate startDate, LocalDate endDate) {
+            Set<String> schemaIdSet = new HashSet<>();
+            for (Map.Entry<String, NavigableSet<LocalDate>> oneEntry : uploadDatesBySchemaId.entrySet()) {
+                LocalDate firstDateInRange = oneEntry.getValue().ceiling(startDate);
+                if (firstDateInRange != null && !firstDateInRange.isAfter(endDate)) {
+                    schemaIdSet.add(oneEntry.getKey());
+                }
+            }
+            return schemaIdSet;
+        }
+    }
+}
@@ -6,29 +6,92 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
-import com.google.common.collect.HashMultimap;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.google.common.base.Stopwatch;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /** Helper class to wrap some Dynamo DB queries we make. */
 @Component("uddDynamoHelper")
 public class DynamoHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(DynamoHelper.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_PLAN_CACHE_MAX_SIZE = "study.export.plan.cache.max.size";
+    static final String CONFIG_KEY_PLAN_CACHE_TTL_MINUTES = "study.export.plan.cache.ttl.minutes";
+    static final int BATCH_GET_MAX_ATTEMPTS = 8;
+    static final int BATCH_GET_MAX_KEYS = 100;
+
+    private static final long BATCH_GET_RETRY_BASE_MILLIS = 50;
+    private static final String SYNAPSE_MAP_PROJECTION = "schemaKey, tableId";
+
+    private ExecutorService ddbBatchExecutorService;
+    private DynamoDB ddbClient;
+
     private Table ddbStudyTable;
     private Table ddbSynapseMapTable;
     private Table ddbSynapseSurveyTablesTable;
     private Table ddbUploadSchemaTable;
     private Index ddbUploadSchemaStudyIndex;
     private DynamoQueryHelper queryHelper;
+    private LoadingCache<String, StudyExportPlan> studyExportPlanCache;
+
+    /**
+     * Bridge config, used to size the study export plan cache. Plans expire after the TTL, so schema and survey
+     * changes show up without a restart.
+     */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        studyExportPlanCache = CacheBuilder.newBuilder()
+                .maximumSize(config.getInt(CONFIG_KEY_PLAN_CACHE_MAX_SIZE))
+                .expireAfterWrite(config.getInt(CONFIG_KEY_PLAN_CACHE_TTL_MINUTES), TimeUnit.MINUTES)
+                .build(new CacheLoader<String, StudyExportPlan>() {
+                    @Override
+                    public StudyExportPlan load(String studyId) throws IOException {
+                        return loadStudyExportPlan(studyId);
+                    }
+                });
+    }
+
+    /** Executor for BatchGetItem chunks, so large key sets are fetched in parallel. */
+    @Resource(name = "ddbBatchExecutorService")
+    public final void setDdbBatchExecutorService(ExecutorService ddbBatchExecutorService) {
+        this.ddbBatchExecutorService = ddbBatchExecutorService;
+    }
+
+    /** DynamoDB client, used for BatchGetItem, which spans tables and so isn't on {@link Table}. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
 
     /** Study table. */
     @Resource(name = "ddbStudyTable")
@@ -70,6 +133,51 @@ public class DynamoHelper {
         this.ddbUploadSchemaStudyIndex = ddbUploadSchemaStudyIndex;
     }
 
+    /**
+     * Gets the export plan for the given study: study info, Synapse tables and their schemas, and survey tables.
+     * Plans are cached, so warm requests make no DynamoDB calls.
+     *
+     * @param studyId
+     *         ID of study to get the export plan for
+     * @return the study's export plan, never null
+     * @throws IOException
+     *         if loading the upload schemas fails
+     */
+    public StudyExportPlan getStudyExportPlan(String studyId) throws IOException {
+        try {
+            return studyExportPlanCache.get(studyId);
+        } catch (ExecutionException ex) {
+            // Loader only throws IOException.
+            throw (IOException) ex.getCause();
+        } catch (UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /** Removes the given study's export plan from the cache, so the next request reloads it from DynamoDB. */
+    public void invalidateStudyExportPlan(String studyId) {
+        studyExportPlanCache.invalidate(studyId);
+    }
+
+    /** Removes all study export plans from the cache. */
+    public void invalidateAllStudyExportPlans() {
+        studyExportPlanCache.invalidateAll();
+    }
+
+    // Loads the study export plan from DynamoDB. Package-scoped so unit tests can spy.
+    StudyExportPlan loadStudyExportPlan(String studyId) throws IOException {
+        Stopwatch loadStopwatch = Stopwatch.createStarted();
+        StudyExportPlan plan = new StudyExportPlan.Builder().withStudyInfo(getStudy(studyId))
+                .withSynapseToSchemaMap(getSynapseTableIdsForStudy(studyId))
+                .withSurveyTableIdSet(getSynapseSurveyTablesForStudy(studyId)).build();
+        LOG.info("Loading export plan for study " + studyId + " took " +
+                loadStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        return plan;
+    }
+
     /**
      * Gets study info for the given study ID.
      *
@@ -110,60 +218,171 @@ public class DynamoHelper {
     }
 
     /**
+     * <p>
      * Gets the Synapse table IDs associated with this study. The results are returned as a map from the Synapse table
      * IDs to the Bridge upload schemas.
+     * </p>
+     * <p>
+     * Older studies have hundreds of schema revisions, so this uses BatchGetItem instead of one GetItem per revision.
+     * We batch get the SynapseTables entries for every revision (only the attributes we need), pick the canonical
+     * revision for each Synapse table, then batch get the full schemas for just the canonical revisions. Note that we
+     * can't dedupe by schema ID before the SynapseTables lookup, because different revisions of the same schema can
+     * map to different Synapse tables.
+     * </p>
      *
      * @param studyId
      *         ID of the study to query on
      * @return map from the Synapse table IDs to the Bridge upload schema keys, may be empty, but will never be null
      */
     public Map<String, UploadSchema> getSynapseTableIdsForStudy(String studyId) throws IOException {
-        // query and iterate
-        List<UploadSchema> schemaList = new ArrayList<>();
+        // Index only contains study ID, key, and revision, which is all we need to find the Synapse tables.
+        List<UploadSchemaKey> schemaKeyList = new ArrayList<>();
         Iterable<Item> schemaItemIter = queryHelper.query(ddbUploadSchemaStudyIndex, "studyId", studyId);
         for (Item oneSchemaItem : schemaItemIter) {
-            // Index only contains study ID, key, and revision. Re-query the table to get all fields.
-            String key = oneSchemaItem.getString("key");
-            int rev = oneSchemaItem.getInt("revision");
-            Item fullSchemaItem = ddbUploadSchemaTable.getItem("key", key, "revision", rev);
+            // DDB key is "[studyId]:[schemaId]".
+            String[] keyParts = oneSchemaItem.getString("key").split(":", 2);
+            schemaKeyList.add(new UploadSchemaKey.Builder().withAppId(keyParts[0]).withSchemaId(keyParts[1])
+                    .withRevision(oneSchemaItem.getInt("revision")).build());
+        }
+        if (schemaKeyList.isEmpty()) {
+            return new HashMap<>();
+        }
 
-            UploadSchema schema = UploadSchema.fromDdbItem(fullSchemaItem);
-            schemaList.add(schema);
+        // Now query the SynapseTables table to get the Synapse table IDs for the schemas.
+        List<PrimaryKey> synapseMapKeyList = new ArrayList<>();
+        for (UploadSchemaKey oneSchemaKey : schemaKeyList) {
+            synapseMapKeyList.add(new PrimaryKey("schemaKey", oneSchemaKey.toString()));
+        }
+        List<Item> synapseMapItemList = batchGetItems(ddbSynapseMapTable.getTableName(), synapseMapKeyList,
+                SYNAPSE_MAP_PROJECTION);
+        Map<String, String> schemaKeyToSynapseTableId = new HashMap<>();
+        for (Item oneSynapseMapItem : synapseMapItemList) {
+            schemaKeyToSynapseTableId.put(oneSynapseMapItem.getString("schemaKey"),
+                    oneSynapseMapItem.getString("tableId"));
         }
 
-        // Now query the SynapseTables table to get the Synapse table IDs for the schema. We use a reverse map from
-        // Synapse table ID to upload schema, because multiple upload schemas can map to a single Synapse table. (This
-        // is due to some early day hacks in the original studies.)
-        Multimap<String, UploadSchema> synapseToSchemaMultimap = HashMultimap.create();
-        for (UploadSchema oneSchema : schemaList) {
-            Item synapseMapRecord = ddbSynapseMapTable.getItem("schemaKey", oneSchema.getKey().toString());
-            if (synapseMapRecord == null) {
+        // Dedupe the upload schemas. Multiple upload schemas can map to a single Synapse table. (This is due to some
+        // early day hacks in the original studies.) We pick the canonical schema based on which one has the highest
+        // rev.
+        Map<String, UploadSchemaKey> synapseToSchemaKeyMap = new HashMap<>();
+        for (UploadSchemaKey oneSchemaKey : schemaKeyList) {
+            String synapseTableId = schemaKeyToSynapseTableId.get(oneSchemaKey.toString());
+            if (synapseTableId == null) {
                 // This could happen if the schema was just created, but the Bridge-Exporter hasn't created the
                 // corresponding Synapse table yet. If so, there's obviously no data. Skip this one.
                 continue;
             }
 
-            String synapseTableId = synapseMapRecord.getString("tableId");
-            synapseToSchemaMultimap.put(synapseTableId, oneSchema);
+            UploadSchemaKey canonicalSchemaKey = synapseToSchemaKeyMap.get(synapseTableId);
+            if (canonicalSchemaKey == null || canonicalSchemaKey.getRevision() < oneSchemaKey.getRevision()) {
+                synapseToSchemaKeyMap.put(synapseTableId, oneSchemaKey);
+            }
+        }
+        if (synapseToSchemaKeyMap.isEmpty()) {
+            return new HashMap<>();
+        }
+
+        // Get the full schemas, only for the canonical revisions. Schema parsing needs all fields, so no projection.
+        List<PrimaryKey> schemaPrimaryKeyList = new ArrayList<>();
+        for (UploadSchemaKey oneSchemaKey : synapseToSchemaKeyMap.values()) {
+            schemaPrimaryKeyList.add(new PrimaryKey("key", oneSchemaKey.getAppId() + ":" +
+                    oneSchemaKey.getSchemaId(), "revision", oneSchemaKey.getRevision()));
+        }
+        List<Item> fullSchemaItemList = batchGetItems(ddbUploadSchemaTable.getTableName(), schemaPrimaryKeyList,
+                null);
+        Map<UploadSchemaKey, UploadSchema> schemasByKey = new HashMap<>();
+        for (Item oneFullSchemaItem : fullSchemaItemList) {
+            UploadSchema schema = UploadSchema.fromDdbItem(oneFullSchemaItem);
+            schemasByKey.put(schema.getKey(), schema);
         }
 
-        // Dedupe the upload schemas. We pick the canonical schema based on which one has the highest rev.
         Map<String, UploadSchema> synapseToSchemaMap = new HashMap<>();
-        for (String oneSynapseTableId : synapseToSchemaMultimap.keySet()) {
-            Iterable<UploadSchema> schemaIter = synapseToSchemaMultimap.get(oneSynapseTableId);
-            UploadSchema canonicalSchema = null;
-            for (UploadSchema oneSchema : schemaIter) {
-                if (canonicalSchema == null ||
-                        canonicalSchema.getKey().getRevision() < oneSchema.getKey().getRevision()) {
-                    canonicalSchema = oneSchema;
-                }
+        for (Map.Entry<String, UploadSchemaKey> oneEntry : synapseToSchemaKeyMap.entrySet()) {
+            UploadSchema schema = schemasByKey.get(oneEntry.getValue());
+            if (schema == null) {
+                // Schema was deleted between the index query and now. Nothing to export for it.
+                LOG.warn("Schema " + oneEntry.getValue() + " not found for Synapse table " + oneEntry.getKey());
+                continue;
             }
+            synapseToSchemaMap.put(oneEntry.getKey(), schema);
+        }
+        return synapseToSchemaMap;
+    }
 
-            // Because of the way this code is written, there will always be at least one schema for this table ID, so
-            // by this point, canonicalSchema won't be null.
-            synapseToSchemaMap.put(oneSynapseTableId, canonicalSchema);
+    /**
+     * Gets items from the given table with BatchGetItem. Keys are split into chunks of {@link #BATCH_GET_MAX_KEYS},
+     * which are dispatched in parallel. Missing items are skipped, so the result may be smaller than the key list.
+     * Package-scoped for unit tests.
+     */
+    List<Item> batchGetItems(String tableName, List<PrimaryKey> keyList, String projectionExpression)
+            throws IOException {
+        Stopwatch batchGetStopwatch = Stopwatch.createStarted();
+        List<Future<List<Item>>> futureList = new ArrayList<>();
+        for (List<PrimaryKey> oneKeyChunk : Lists.partition(keyList, BATCH_GET_MAX_KEYS)) {
+            TableKeysAndAttributes keysAndAttributes = new TableKeysAndAttributes(tableName)
+                    .withPrimaryKeys(oneKeyChunk.toArray(new PrimaryKey[oneKeyChunk.size()]));
+            if (projectionExpression != null) {
+                keysAndAttributes.withProjectionExpression(projectionExpression);
+            }
+            futureList.add(ddbBatchExecutorService.submit(() -> batchGetChunk(keysAndAttributes)));
         }
 
-        return synapseToSchemaMap;
+        List<Item> itemList = new ArrayList<>();
+        try {
+            for (Future<List<Item>> oneFuture : futureList) {
+                itemList.addAll(oneFuture.get());
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while batch getting items from table " + tableName, ex);
+        } finally {
+            // If one chunk failed, the others aren't needed anymore.
+            for (Future<List<Item>> oneFuture : futureList) {
+                oneFuture.cancel(true);
+            }
+        }
+
+        LOG.info("Batch getting " + keyList.size() + " keys in " + futureList.size() + " chunks from table " +
+                tableName + " took " + batchGetStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        return itemList;
+    }
+
+    // Gets a single chunk of keys, retrying unprocessed keys with exponential backoff.
+    private List<Item> batchGetChunk(TableKeysAndAttributes keysAndAttributes) throws IOException,
+            InterruptedException {
+        String tableName = keysAndAttributes.getTableName();
+        List<Item> itemList = new ArrayList<>();
+        BatchGetItemOutcome outcome = ddbClient.batchGetItem(keysAndAttributes);
+        for (int attempt = 1; ; attempt++) {
+            List<Item> outcomeItemList = outcome.getTableItems().get(tableName);
+            if (outcomeItemList != null) {
+                itemList.addAll(outcomeItemList);
+            }
+
+            Map<String, KeysAndAttributes> unprocessedKeys = outcome.getUnprocessedKeys();
+            if (unprocessedKeys == null || unprocessedKeys.isEmpty()) {
+                return itemList;
+            }
+            if (attempt >= BATCH_GET_MAX_ATTEMPTS) {
+                throw new IOException("Table " + tableName + " still has unprocessed keys after " + attempt +
+                        " attempts");
+            }
+
+            sleepBeforeRetry(attempt);
+            outcome = ddbClient.batchGetItemUnprocessed(unprocessedKeys);
+        }
+    }
+
+    /** Sleeps before retrying unprocessed keys. Package-scoped so unit tests can skip the sleep. */
+    void sleepBeforeRetry(int attempt) throws InterruptedException {
+        Thread.sleep(BATCH_GET_RETRY_BASE_MILLIS << Math.min(attempt - 1, 6));
     }
 }
@@ -0,0 +1,112 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.sagebionetworks.bridge.schema.UploadSchema;
+
+/**
+ * Everything we need from DynamoDB to export a study's data: the study info, the map from Synapse table IDs to their
+ * canonical upload schemas, each table's attachment fields, and the survey table IDs. This is the same for every user
+ * in the study, so DynamoHelper caches it. See {@link DynamoHelper#getStudyExportPlan}.
+ */
+public class StudyExportPlan {
+    private final Map<String, Set<String>> attachmentFieldNameSetsByTableId;
+    private final StudyInfo studyInfo;
+    private final Set<String> surveyTableIdSet;
+    private final Map<String, UploadSchema> synapseToSchemaMap;
+
+    /** Private constructor. To construct, use builder. */
+    private StudyExportPlan(Map<String, Set<String>> attachmentFieldNameSetsByTableId, StudyInfo studyInfo,
+            Set<String> surveyTableIdSet, Map<String, UploadSchema> synapseToSchemaMap) {
+        this.attachmentFieldNameSetsByTableId = attachmentFieldNameSetsByTableId;
+        this.studyInfo = studyInfo;
+        this.surveyTableIdSet = surveyTableIdSet;
+        this.synapseToSchemaMap = synapseToSchemaMap;
+    }
+
+    /**
+     * Names of the attachment fields in the given Synapse table's schema. Empty if the table has no attachments or
+     * isn't in this plan, never null.
+     */
+    public Set<String> getAttachmentFieldNameSet(String synapseTableId) {
+        Set<String> fieldNameSet = attachmentFieldNameSetsByTableId.get(synapseTableId);
+        return fieldNameSet != null ? fieldNameSet : ImmutableSet.of();
+    }
+
+    /** Study info. */
+    public StudyInfo getStudyInfo() {
+        return studyInfo;
+    }
+
+    /** Survey table IDs, may be empty, never null. */
+    public Set<String> getSurveyTableIdSet() {
+        return surveyTableIdSet;
+    }
+
+    /** Map from Synapse table IDs to canonical upload schemas, may be empty, never null. */
+    public Map<String, UploadSchema> getSynapseToSchemaMap() {
+        return synapseToSchemaMap;
+    }
+
+    /** StudyExportPlan builder. */
+    public static class Builder {
+        private StudyInfo studyInfo;
+        private Set<String> surveyTableIdSet;
+        private Map<String, UploadSchema> synapseToSchemaMap;
+
+        /** @see StudyExportPlan#getStudyInfo */
+        public Builder withStudyInfo(StudyInfo studyInfo) {
+            this.studyInfo = studyInfo;
+            return this;
+        }
+
+        /** @see StudyExportPlan#getSurveyTableIdSet */
+        public Builder withSurveyTableIdSet(Set<String> surveyTableIdSet) {
+            this.surveyTableIdSet = surveyTableIdSet;
+            return this;
+        }
+
+        /** @see StudyExportPlan#getSynapseToSchemaMap */
+        public Builder withSynapseToSchemaMap(Map<String, UploadSchema> synapseToSchemaMap) {
+            this.synapseToSchemaMap = synapseToSchemaMap;
+            return this;
+        }
+
+        /**
+         * Builds a StudyExportPlan, validates that all parameters are specified, and precomputes the attachment field
+         * sets from the schemas.
+         */
+        public StudyExportPlan build() {
+            if (studyInfo == null) {
+                throw new IllegalStateException("studyInfo must be specified");
+            }
+
+            if (surveyTableIdSet == null) {
+                throw new IllegalStateException("surveyTableIdSet must be specified");
+            }
+
+            if (synapseToSchemaMap == null) {
+                throw new IllegalStateException("synapseToSchemaMap must be specified");
+            }
+
+            ImmutableMap.Builder<String, Set<String>> attachmentMapBuilder = ImmutableMap.builder();
+            for (Map.Entry<String, UploadSchema> oneEntry : synapseToSchemaMap.entrySet()) {
+                ImmutableSet.Builder<String> fieldNameSetBuilder = ImmutableSet.builder();
+                for (Map.Entry<String, String> oneField : oneEntry.getValue().getFieldTypeMap().entrySet()) {
+                    if (UploadSchema.ATTACHMENT_TYPE_SET.contains(oneField.getValue())) {
+                        fieldNameSetBuilder.add(oneField.getKey());
+                    }
+                }
+                attachmentMapBuilder.put(oneEntry.getKey(), fieldNameSetBuilder.build());
+            }
+
+            // Plans are cached and shared between requests, so make everything immutable.
+            return new StudyExportPlan(attachmentMapBuilder.build(), studyInfo, ImmutableSet.copyOf(surveyTableIdSet),
+                    ImmutableMap.copyOf(synapseToSchemaMap));
+        }
+    }
+}
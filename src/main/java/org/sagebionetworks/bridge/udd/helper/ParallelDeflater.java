@@ -0,0 +1,271 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Deflates files using multiple threads, in the style of pigz. Each file is split into fixed-size blocks, and blocks
+ * are deflated in parallel on the given executor. Each block is primed with the last 32KB of the previous block as a
+ * preset dictionary, so compression ratio is close to that of a single-threaded deflate. Every block but the last is
+ * ended with a sync flush, so the compressed blocks can simply be concatenated into one raw deflate stream.
+ * </p>
+ * <p>
+ * Blocks from consecutive files share the same pipeline, so small files are compressed in parallel with each other,
+ * and large files are compressed in parallel with themselves. The number of blocks in flight is bounded, which bounds
+ * memory usage to roughly 2 * maxInFlightBlocks * blockSize.
+ * </p>
+ * <p>
+ * Compressed data is spooled to a file next to the input file, since zip local headers need the compressed size
+ * before the data. The spool file is deleted once the entry is written.
+ * </p>
+ */
+class ParallelDeflater {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelDeflater.class);
+
+    // Max deflate window. Priming with more than this doesn't help.
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+    private static final String SPOOL_FILE_SUFFIX = ".deflate";
+
+    private final ExecutorService executorService;
+    private final FileHelper fileHelper;
+    private final int blockSize;
+    private final int maxInFlightBlocks;
+
+    /**
+     * Constructs the parallel deflater.
+     *
+     * @param executorService
+     *         executor used to deflate blocks in parallel
+     * @param fileHelper
+     *         file helper, used to read input files and write spool files
+     * @param blockSize
+     *         size of each block in bytes, must be at least DICTIONARY_SIZE
+     * @param maxInFlightBlocks
+     *         max number of blocks being compressed at once
+     */
+    ParallelDeflater(ExecutorService executorService, FileHelper fileHelper, int blockSize, int maxInFlightBlocks) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("blockSize must be at least " + DICTIONARY_SIZE);
+        }
+        if (maxInFlightBlocks < 1) {
+            throw new IllegalArgumentException("maxInFlightBlocks must be positive");
+        }
+
+        this.executorService = executorService;
+        this.fileHelper = fileHelper;
+        this.blockSize = blockSize;
+        this.maxInFlightBlocks = maxInFlightBlocks;
+    }
+
+    /**
+     * Deflates each of the given files, and passes each result to the given callback, in the same order as the file
+     * list. The callback is called on the calling thread.
+     *
+     * @param fileList
+     *         files to deflate
+     * @param level
+     *         deflate level, as per {@link Deflater}
+     * @param callback
+     *         called with each file's compressed data
+     * @throws IOException
+     *         if reading the files, compressing, or the callback fails
+     */
+    void deflateFiles(List<File> fileList, int level, DeflatedFileCallback callback) throws IOException {
+        Deque<PendingBlock> pendingBlockQueue = new ArrayDeque<>();
+        List<EntryState> entryStateList = new ArrayList<>();
+        try {
+            for (File oneFile : fileList) {
+                EntryState entryState = new EntryState(oneFile, fileHelper.newFile(oneFile.getParentFile(),
+                        oneFile.getName() + SPOOL_FILE_SUFFIX));
+                entryStateList.add(entryState);
+
+                try (InputStream fileInputStream = fileHelper.getInputStream(oneFile)) {
+                    byte[] prevBlock = null;
+                    byte[] curBlock = new byte[blockSize];
+                    int curLen = ByteStreams.read(fileInputStream, curBlock, 0, blockSize);
+                    while (true) {
+                        // Read ahead, so we know whether the current block is the last one.
+                        byte[] nextBlock = null;
+                        int nextLen = 0;
+                        if (curLen == blockSize) {
+                            nextBlock = new byte[blockSize];
+                            nextLen = ByteStreams.read(fileInputStream, nextBlock, 0, blockSize);
+                        }
+                        boolean isLast = nextLen == 0;
+
+                        entryState.crc.update(curBlock, 0, curLen);
+                        entryState.size += curLen;
+
+                        // Blocks are never modified after they're read, so it's safe to hand them to other threads.
+                        byte[] block = curBlock;
+                        int blockLen = curLen;
+                        byte[] dictionary = prevBlock;
+                        Future<byte[]> future = executorService.submit(() -> deflateBlock(block, blockLen,
+                                dictionary, isLast, level));
+                        pendingBlockQueue.add(new PendingBlock(entryState, future, isLast));
+
+                        while (pendingBlockQueue.size() > maxInFlightBlocks) {
+                            drainBlock(pendingBlockQueue.remove(), callback);
+                        }
+
+                        if (isLast) {
+                            break;
+                        }
+                        prevBlock = curBlock;
+                        curBlock = nextBlock;
+                        curLen = nextLen;
+                    }
+                }
+            }
+
+            while (!pendingBlockQueue.isEmpty()) {
+                drainBlock(pendingBlockQueue.remove(), callback);
+            }
+        } finally {
+            for (PendingBlock onePendingBlock : pendingBlockQueue) {
+                onePendingBlock.future.cancel(false);
+            }
+            for (EntryState oneEntryState : entryStateList) {
+                oneEntryState.cleanup();
+            }
+        }
+    }
+
+    // Waits for the block to finish compressing and appends it to the spool. If it's the entry's last block, hands the
+    // entry to the callback.
+    private void drainBlock(PendingBlock pendingBlock, DeflatedFileCallback callback) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pendingBlock.future.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Error deflating " + pendingBlock.entryState.file.getName() + ": " +
+                    ex.getCause().getMessage(), ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted deflating " + pendingBlock.entryState.file.getName());
+        }
+
+        EntryState entryState = pendingBlock.entryState;
+        if (entryState.spoolOutputStream == null) {
+            entryState.spoolOutputStream = fileHelper.getOutputStream(entryState.spoolFile);
+        }
+        entryState.spoolOutputStream.write(compressed);
+        entryState.compressedSize += compressed.length;
+
+        if (pendingBlock.isLast) {
+            entryState.spoolOutputStream.close();
+            entryState.spoolOutputStream = null;
+            callback.accept(entryState.file, entryState.crc.getValue(), entryState.size, entryState.compressedSize,
+                    entryState.spoolFile);
+            entryState.cleanup();
+        }
+    }
+
+    /**
+     * Deflates a single block as raw deflate data. If this isn't the last block, the output ends with a sync flush, so
+     * the next block's output can be appended directly. Package-scoped for unit tests.
+     */
+    static byte[] deflateBlock(byte[] block, int blockLen, byte[] dictionary, boolean isLast, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(block, 0, blockLen);
+
+            ByteArrayOutputStream compressedOutputStream = new ByteArrayOutputStream(blockLen / 2 + 64);
+            byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+            if (isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int numBytes = deflater.deflate(buffer);
+                    compressedOutputStream.write(buffer, 0, numBytes);
+                }
+            } else {
+                // As per Deflater docs, if the buffer is filled, call deflate again to get the rest of the flush.
+                int numBytes;
+                do {
+                    numBytes = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressedOutputStream.write(buffer, 0, numBytes);
+                } while (numBytes == buffer.length);
+            }
+            return compressedOutputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Callback that receives each deflated file. */
+    @FunctionalInterface
+    interface DeflatedFileCallback {
+        /**
+         * Called with the deflated file. The spool file contains raw deflate data, and is deleted after this returns.
+         */
+        void accept(File file, long crc, long size, long compressedSize, File spoolFile) throws IOException;
+    }
+
+    // Bookkeeping for one file being deflated.
+    private class EntryState {
+        private final File file;
+        private final File spoolFile;
+        private final CRC32 crc = new CRC32();
+        private long size = 0;
+        private long compressedSize = 0;
+        private OutputStream spoolOutputStream;
+
+        EntryState(File file, File spoolFile) {
+            this.file = file;
+            this.spoolFile = spoolFile;
+        }
+
+        // Closes and deletes the spool file, if it exists. Errors are logged, since this is called during cleanup.
+        void cleanup() {
+            if (spoolOutputStream != null) {
+                try {
+                    spoolOutputStream.close();
+                } catch (IOException ex) {
+                    LOG.error("Error closing spool file " + spoolFile.getName() + ": " + ex.getMessage(), ex);
+                }
+                spoolOutputStream = null;
+            }
+            if (fileHelper.fileExists(spoolFile)) {
+                fileHelper.deleteFile(spoolFile);
+            }
+        }
+    }
+
+    // A block that's been submitted for compression.
+    private static class PendingBlock {
+        private final EntryState entryState;
+        private final Future<byte[]> future;
+        private final boolean isLast;
+
+        PendingBlock(EntryState entryState, Future<byte[]> future, boolean isLast) {
+            this.entryState = entryState;
+            this.future = future;
+            this.isLast = isLast;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+/**
+ * <p>
+ * Decides, for each zip entry, whether to deflate it or store it uncompressed. Deflating data that's already
+ * compressed (nested zips, gzips, images, audio, video) burns CPU without making the output smaller, and sometimes
+ * makes it slightly bigger.
+ * </p>
+ * <p>
+ * If the policy is content-aware, each entry is checked in order: (1) its file extension against a list of known
+ * compressed formats, (2) its first bytes against known magic numbers, and (3) a quick deflate of a sample of its
+ * content. If the sample doesn't shrink below the max ratio, the entry is stored. Otherwise, it's deflated at the
+ * configured level. If the policy isn't content-aware, everything is deflated.
+ * </p>
+ */
+public class ZipCompressionPolicy {
+    /** Policy that deflates everything at the default level, which is what zip tools do out of the box. */
+    public static final ZipCompressionPolicy DEFLATE_ALL = new ZipCompressionPolicy(false,
+            Deflater.DEFAULT_COMPRESSION, 100);
+
+    /** Size of the sample, taken from the start of the entry, used to check magic bytes and compressibility. */
+    public static final int SAMPLE_SIZE = 64 * 1024;
+
+    // Samples smaller than this aren't worth probing. Deflate has a fixed overhead that makes tiny inputs look
+    // incompressible. Package-scoped for unit tests.
+    static final int MIN_PROBE_SIZE = 4 * 1024;
+
+    private static final Set<String> COMPRESSED_EXTENSION_SET = ImmutableSet.of("7z", "aac", "avi", "bz2", "docx",
+            "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "ogg", "png",
+            "tgz", "webm", "webp", "xlsx", "xz", "zip");
+
+    private final boolean contentAware;
+    private final int deflateLevel;
+    private final int maxRatioPercent;
+
+    /**
+     * Constructs the policy.
+     *
+     * @param contentAware
+     *         true to store incompressible entries, false to deflate everything
+     * @param deflateLevel
+     *         deflate level for entries that are deflated, as per {@link Deflater}
+     * @param maxRatioPercent
+     *         if the sample's compressed size is more than this percent of its original size, the entry is stored
+     */
+    public ZipCompressionPolicy(boolean contentAware, int deflateLevel, int maxRatioPercent) {
+        this.contentAware = contentAware;
+        this.deflateLevel = deflateLevel;
+        this.maxRatioPercent = maxRatioPercent;
+    }
+
+    /** Deflate level for entries that are deflated. */
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    /** True if {@link #decide} needs a sample of the entry's content. If false, callers can pass an empty sample. */
+    public boolean isContentAware() {
+        return contentAware;
+    }
+
+    /**
+     * Decides how to compress the given entry.
+     *
+     * @param entryName
+     *         zip entry name, used to check the extension
+     * @param sample
+     *         first bytes of the entry, up to {@link #SAMPLE_SIZE}
+     * @param sampleLen
+     *         number of valid bytes in the sample
+     * @return compression decision
+     */
+    public Decision decide(String entryName, byte[] sample, int sampleLen) {
+        if (!contentAware) {
+            return new Decision(ZipEntry.DEFLATED, deflateLevel, "default");
+        }
+
+        String extension = Files.getFileExtension(entryName).toLowerCase();
+        if (COMPRESSED_EXTENSION_SET.contains(extension)) {
+            return new Decision(ZipEntry.STORED, -1, "extension");
+        }
+
+        if (hasCompressedMagicBytes(sample, sampleLen)) {
+            return new Decision(ZipEntry.STORED, -1, "magic");
+        }
+
+        if (sampleLen >= MIN_PROBE_SIZE) {
+            long compressedLen = probeCompressedSize(sample, sampleLen);
+            if (compressedLen * 100 > (long) sampleLen * maxRatioPercent) {
+                return new Decision(ZipEntry.STORED, -1, "probe");
+            }
+        }
+
+        return new Decision(ZipEntry.DEFLATED, deflateLevel, "deflate");
+    }
+
+    // Checks the start of the content for signatures of common compressed formats.
+    private static boolean hasCompressedMagicBytes(byte[] sample, int sampleLen) {
+        return startsWith(sample, sampleLen, 0, 'P', 'K', 3, 4) // zip, and zip-based formats like docx and jar
+                || startsWith(sample, sampleLen, 0, 0x1f, 0x8b) // gzip
+                || startsWith(sample, sampleLen, 0, 'B', 'Z', 'h') // bzip2
+                || startsWith(sample, sampleLen, 0, 0xfd, '7', 'z', 'X', 'Z', 0) // xz
+                || startsWith(sample, sampleLen, 0, '7', 'z', 0xbc, 0xaf, 0x27, 0x1c) // 7z
+                || startsWith(sample, sampleLen, 0, 0x89, 'P', 'N', 'G') // png
+                || startsWith(sample, sampleLen, 0, 0xff, 0xd8, 0xff) // jpeg
+                || startsWith(sample, sampleLen, 0, 'G', 'I', 'F', '8') // gif
+                || startsWith(sample, sampleLen, 0, 'O', 'g', 'g', 'S') // ogg
+                || startsWith(sample, sampleLen, 0, 'I', 'D', '3') // mp3
+                || startsWith(sample, sampleLen, 4, 'f', 't', 'y', 'p'); // mp4, m4a, mov, heic
+    }
+
+    private static boolean startsWith(byte[] sample, int sampleLen, int offset, int... signature) {
+        if (sampleLen < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((sample[offset + i] & 0xff) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Deflates the sample at the fastest level and returns the compressed size. Fast is good enough to tell
+    // compressible data from incompressible data.
+    private static long probeCompressedSize(byte[] sample, int sampleLen) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, sampleLen);
+            deflater.finish();
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+            }
+            return deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** How to compress an entry. */
+    public static class Decision {
+        private final int method;
+        private final int level;
+        private final String reason;
+
+        /** Private constructor. Decisions are made by the policy. */
+        private Decision(int method, int level, String reason) {
+            this.method = method;
+            this.level = level;
+            this.reason = reason;
+        }
+
+        /** Zip method, either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+        public int getMethod() {
+            return method;
+        }
+
+        /** Deflate level, as per {@link Deflater}. Only meaningful if the method is DEFLATED. */
+        public int getLevel() {
+            return level;
+        }
+
+        /** Why this decision was made, for logging. */
+        public String getReason() {
+            return reason;
+        }
+    }
+}
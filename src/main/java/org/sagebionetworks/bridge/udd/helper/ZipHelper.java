@@ -3,22 +3,64 @@ package org.sagebionetworks.bridge.udd.helper;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Resource;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.ByteStreams;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.FileHelper;
 
-/** This helper zips the given input files into the given target file. */
+/**
+ * This helper zips the given input files into the given target file or stream. Each file is stored or deflated
+ * according to the {@link ZipCompressionPolicy}. If parallel deflate is enabled in the config, files are compressed
+ * on multiple threads. See {@link ParallelDeflater}.
+ */
 @Component
 public class ZipHelper {
+    // package-scoped to be available in tests
+    static final String CONFIG_KEY_COMPRESSION_LEVEL = "zip.compression.level";
+    static final String CONFIG_KEY_COMPRESSION_MAX_RATIO_PERCENT = "zip.compression.max.ratio.percent";
+    static final String CONFIG_KEY_COMPRESSION_POLICY_ENABLED = "zip.compression.policy.enabled";
+    static final String CONFIG_KEY_PARALLEL_BLOCK_SIZE_BYTES = "zip.parallel.block.size.bytes";
+    static final String CONFIG_KEY_PARALLEL_ENABLED = "zip.parallel.enabled";
+    static final String CONFIG_KEY_PARALLEL_MAX_INFLIGHT_BLOCKS = "zip.parallel.max.inflight.blocks";
+
+    private ZipCompressionPolicy compressionPolicy = ZipCompressionPolicy.DEFLATE_ALL;
+    private ExecutorService deflateExecutorService;
     private FileHelper fileHelper;
+    private int parallelBlockSize;
+    private boolean parallelEnabled;
+    private int parallelMaxInFlightBlocks;
+
+    /** Bridge config, used to set up the compression policy and to determine whether to use parallel deflate. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        if (Boolean.parseBoolean(config.get(CONFIG_KEY_COMPRESSION_POLICY_ENABLED))) {
+            compressionPolicy = new ZipCompressionPolicy(true, config.getInt(CONFIG_KEY_COMPRESSION_LEVEL),
+                    config.getInt(CONFIG_KEY_COMPRESSION_MAX_RATIO_PERCENT));
+        } else {
+            compressionPolicy = ZipCompressionPolicy.DEFLATE_ALL;
+        }
+
+        parallelEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_PARALLEL_ENABLED));
+        if (parallelEnabled) {
+            parallelBlockSize = config.getInt(CONFIG_KEY_PARALLEL_BLOCK_SIZE_BYTES);
+            parallelMaxInFlightBlocks = config.getInt(CONFIG_KEY_PARALLEL_MAX_INFLIGHT_BLOCKS);
+        }
+    }
+
+    /** Executor service (thread pool) used to deflate blocks in parallel. */
+    @Resource(name = "zipDeflateExecutorService")
+    public final void setDeflateExecutorService(ExecutorService deflateExecutorService) {
+        this.deflateExecutorService = deflateExecutorService;
+    }
 
     /** File helper, used to read data from the input files and write to the output file. */
     @Autowired
@@ -37,18 +79,43 @@ public class ZipHelper {
      *         if reading from input or writing to output fails
      */
     public void zip(List<File> fromList, File to) throws IOException {
-        try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(to));
-                ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedOutputStream, Charsets.UTF_8)) {
-            for (File oneFromFile : fromList) {
-                ZipEntry oneZipEntry = new ZipEntry(oneFromFile.getName());
-                zipOutputStream.putNextEntry(oneZipEntry);
-
-                try (InputStream fromFileInputStream = fileHelper.getInputStream(oneFromFile)) {
-                    ByteStreams.copy(fromFileInputStream, zipOutputStream);
-                }
-
-                zipOutputStream.closeEntry();
-            }
+        try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(to))) {
+            zip(fromList, bufferedOutputStream);
+        }
+    }
+
+    /**
+     * Zips the list of input files and writes the result to the output stream. The output stream is flushed, but not
+     * closed, so the caller can decide whether to complete or abort whatever is behind the stream.
+     *
+     * @param fromList
+     *         list of input files
+     * @param to
+     *         output stream to write the zip file to
+     * @throws IOException
+     *         if reading from input or writing to output fails
+     */
+    public void zip(List<File> fromList, OutputStream to) throws IOException {
+        try (ZipStreamWriter zipStreamWriter = newStreamWriter(to)) {
+            zipStreamWriter.addFiles(fromList);
+        }
+    }
+
+    /**
+     * Creates a zip writer that writes to the given output stream. This allows callers to add entries incrementally,
+     * including entries streamed from sources other than local files. Closing the writer finishes the zip, but doesn't
+     * close the output stream.
+     *
+     * @param to
+     *         output stream to write the zip file to
+     * @return zip writer
+     */
+    public ZipStreamWriter newStreamWriter(OutputStream to) {
+        ParallelDeflater parallelDeflater = null;
+        if (parallelEnabled) {
+            parallelDeflater = new ParallelDeflater(deflateExecutorService, fileHelper, parallelBlockSize,
+                    parallelMaxInFlightBlocks);
         }
+        return new ZipStreamWriter(fileHelper, parallelDeflater, compressionPolicy, to);
     }
 }
@@ -0,0 +1,399 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Writes a zip archive to an output stream, one entry at a time. Entries can come from local files, can be written
+ * directly by the caller (which lets callers stream data into the zip without staging it on disk), or can be copied
+ * from another zip file as-is, without decompressing and recompressing them.
+ * </p>
+ * <p>
+ * Files are stored or deflated according to the {@link ZipCompressionPolicy}. The writer records how each entry was
+ * compressed, see {@link #getEntryRecordList}.
+ * </p>
+ * <p>
+ * This class is thread-safe. Entries are written one at a time, so a caller writing an entry holds the writer for the
+ * duration of that entry. Callers should have the entry's content on hand (generally on local disk) before writing it,
+ * so they don't block other writers. Closing the writer finishes the zip, but doesn't close the underlying output
+ * stream, so the caller can decide whether to complete or abort whatever is behind the stream.
+ * </p>
+ * <p>
+ * If writing an entry fails partway through, the zip would contain a truncated entry, so the writer is marked as
+ * failed. All further writes, including {@link #close}, throw, which signals the caller to abort the stream. Callers
+ * can also mark the writer as failed, see {@link #fail}.
+ * </p>
+ * <p>
+ * To create, use {@link ZipHelper#newStreamWriter}.
+ * </p>
+ */
+public class ZipStreamWriter implements Closeable {
+    private final FileHelper fileHelper;
+    private final ParallelDeflater parallelDeflater;
+    private final ZipCompressionPolicy compressionPolicy;
+    private final ZipArchiveOutputStream zipOutputStream;
+    private final List<EntryRecord> entryRecordList = new ArrayList<>();
+    private int entryCount = 0;
+    private boolean failed = false;
+
+    /**
+     * Package-scoped constructor. Use {@link ZipHelper#newStreamWriter}. If parallelDeflater is specified, files added
+     * with {@link #addFiles} are compressed in parallel. Otherwise, they're compressed on the calling thread.
+     */
+    ZipStreamWriter(FileHelper fileHelper, ParallelDeflater parallelDeflater, ZipCompressionPolicy compressionPolicy,
+            OutputStream outputStream) {
+        this.fileHelper = fileHelper;
+        this.parallelDeflater = parallelDeflater;
+        this.compressionPolicy = compressionPolicy;
+        this.zipOutputStream = new ZipArchiveOutputStream(new NonClosingOutputStream(outputStream));
+        this.zipOutputStream.setEncoding(Charsets.UTF_8.name());
+    }
+
+    /** Number of entries written so far. */
+    public synchronized int getEntryCount() {
+        return entryCount;
+    }
+
+    /** How each entry written so far was compressed, in the order the entries were written. */
+    public synchronized List<EntryRecord> getEntryRecordList() {
+        return ImmutableList.copyOf(entryRecordList);
+    }
+
+    /**
+     * Writes a zip entry with the given name, using the given callback to write the entry's content. The callback must
+     * not close the stream it's given. The callback runs while holding the writer, so it shouldn't block on anything
+     * other than local disk. If the callback throws, the exception is propagated, and the writer is marked as failed.
+     *
+     * @param entryName
+     *         name of the zip entry
+     * @param entryContentWriter
+     *         callback that writes the entry's content
+     * @throws IOException
+     *         if writing the entry fails
+     */
+    public void writeEntry(String entryName, EntryContentWriter entryContentWriter) throws IOException {
+        // Streamed content can't be sampled up front, so it's always deflated.
+        writeEntry(new ZipArchiveEntry(entryName), compressionPolicy.getDeflateLevel(), "streamed",
+                entryContentWriter);
+    }
+
+    // Writes the entry, then records how it was compressed. The entry's method (and for STORED entries, the size and
+    // CRC) must already be set.
+    private synchronized void writeEntry(ZipArchiveEntry entry, int level, String reason,
+            EntryContentWriter entryContentWriter) throws IOException {
+        checkNotFailed();
+        try {
+            if (entry.getMethod() != ZipEntry.STORED) {
+                zipOutputStream.setLevel(level);
+            }
+            zipOutputStream.putArchiveEntry(entry);
+            entryCount++;
+            entryContentWriter.write(new NonClosingOutputStream(zipOutputStream));
+            zipOutputStream.closeArchiveEntry();
+        } catch (IOException | RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+        recordEntry(entry, level, reason);
+    }
+
+    /**
+     * Copies all file entries from the given zip into this zip, with the given prefix prepended to each entry name.
+     * The entries' compressed bytes, CRCs, and sizes are copied as-is, so nothing is decompressed or recompressed.
+     * Directory entries are skipped, since they're implied by the file entry names.
+     *
+     * @param zipChannel
+     *         channel to read the source zip from, closed when this method returns
+     * @param entryPrefix
+     *         prefix to prepend to each entry name, generally ending in "/"
+     * @return number of entries copied
+     * @throws IOException
+     *         if reading the source zip or writing the entries fails
+     */
+    public synchronized int addRawEntriesFromZip(SeekableByteChannel zipChannel, String entryPrefix)
+            throws IOException {
+        checkNotFailed();
+        int numCopied = 0;
+        try (ZipFile sourceZipFile = new ZipFile(zipChannel)) {
+            Enumeration<ZipArchiveEntry> sourceEntries = sourceZipFile.getEntriesInPhysicalOrder();
+            while (sourceEntries.hasMoreElements()) {
+                ZipArchiveEntry oneSourceEntry = sourceEntries.nextElement();
+                if (oneSourceEntry.isDirectory()) {
+                    continue;
+                }
+
+                ZipArchiveEntry targetEntry = new ZipArchiveEntry(entryPrefix + oneSourceEntry.getName());
+                targetEntry.setMethod(oneSourceEntry.getMethod());
+                targetEntry.setCrc(oneSourceEntry.getCrc());
+                targetEntry.setSize(oneSourceEntry.getSize());
+                targetEntry.setCompressedSize(oneSourceEntry.getCompressedSize());
+                targetEntry.setTime(oneSourceEntry.getTime());
+
+                try (InputStream rawInputStream = sourceZipFile.getRawInputStream(oneSourceEntry)) {
+                    zipOutputStream.addRawArchiveEntry(targetEntry, rawInputStream);
+                } catch (IOException | RuntimeException ex) {
+                    failed = true;
+                    throw ex;
+                }
+                entryCount++;
+                recordEntry(targetEntry, -1, "raw copy");
+                numCopied++;
+            }
+        }
+        return numCopied;
+    }
+
+    /**
+     * Writes the given file as a zip entry, using the file's name as the entry name. The file is stored or deflated
+     * according to the compression policy.
+     *
+     * @param file
+     *         file to add to the zip
+     * @throws IOException
+     *         if reading the file or writing the entry fails
+     */
+    public void addFile(File file) throws IOException {
+        addFile(file, file.getName());
+    }
+
+    /**
+     * Writes the given file as a zip entry with the given name. The file is stored or deflated according to the
+     * compression policy, which sees the entry name rather than the file name. This is for files whose local name
+     * differs from the name they should have in the zip, such as downloaded attachments.
+     *
+     * @param file
+     *         file to add to the zip
+     * @param entryName
+     *         name of the zip entry
+     * @throws IOException
+     *         if reading the file or writing the entry fails
+     */
+    public void addFile(File file, String entryName) throws IOException {
+        addFile(file, entryName, decide(file, entryName));
+    }
+
+    private void addFile(File file, String entryName, ZipCompressionPolicy.Decision decision) throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
+        entry.setMethod(decision.getMethod());
+        if (decision.getMethod() == ZipEntry.STORED) {
+            // Since we're writing to a stream, STORED entries need their size and CRC in the local header. This costs
+            // an extra read of the file, which is much cheaper than deflating it.
+            CRC32 crc = new CRC32();
+            long size;
+            try (CheckedInputStream checkedInputStream = new CheckedInputStream(fileHelper.getInputStream(file), crc)) {
+                size = ByteStreams.copy(checkedInputStream, ByteStreams.nullOutputStream());
+            }
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(crc.getValue());
+        }
+
+        writeEntry(entry, decision.getLevel(), decision.getReason(), entryOutputStream -> {
+            try (InputStream fileInputStream = fileHelper.getInputStream(file)) {
+                ByteStreams.copy(fileInputStream, entryOutputStream);
+            }
+        });
+    }
+
+    // Reads a sample of the file (if the policy needs one) and asks the policy how to compress it.
+    private ZipCompressionPolicy.Decision decide(File file, String entryName) throws IOException {
+        if (!compressionPolicy.isContentAware()) {
+            return compressionPolicy.decide(entryName, new byte[0], 0);
+        }
+
+        byte[] sample = new byte[ZipCompressionPolicy.SAMPLE_SIZE];
+        int sampleLen;
+        try (InputStream fileInputStream = fileHelper.getInputStream(file)) {
+            sampleLen = ByteStreams.read(fileInputStream, sample, 0, sample.length);
+        }
+        return compressionPolicy.decide(entryName, sample, sampleLen);
+    }
+
+    /**
+     * Writes each of the given files as a zip entry. If parallel deflate is enabled, the files are compressed on
+     * multiple threads, then written to the zip in order.
+     *
+     * @param fileList
+     *         files to add to the zip
+     * @throws IOException
+     *         if reading the files or writing the entries fails
+     */
+    public void addFiles(List<File> fileList) throws IOException {
+        if (parallelDeflater == null) {
+            for (File oneFile : fileList) {
+                addFile(oneFile);
+            }
+            return;
+        }
+
+        // Stored files are written right away. The rest go to the parallel deflater as one batch.
+        Map<File, ZipCompressionPolicy.Decision> deflateDecisionMap = new HashMap<>();
+        List<File> deflateFileList = new ArrayList<>();
+        for (File oneFile : fileList) {
+            ZipCompressionPolicy.Decision decision = decide(oneFile, oneFile.getName());
+            if (decision.getMethod() == ZipEntry.STORED) {
+                addFile(oneFile, oneFile.getName(), decision);
+            } else {
+                deflateDecisionMap.put(oneFile, decision);
+                deflateFileList.add(oneFile);
+            }
+        }
+        parallelDeflater.deflateFiles(deflateFileList, compressionPolicy.getDeflateLevel(),
+                (file, crc, size, compressedSize, spoolFile) -> addDeflatedFile(file, crc, size, compressedSize,
+                        spoolFile, deflateDecisionMap.get(file)));
+    }
+
+    // Writes a file that's already been deflated by the ParallelDeflater.
+    private synchronized void addDeflatedFile(File file, long crc, long size, long compressedSize, File spoolFile,
+            ZipCompressionPolicy.Decision decision) throws IOException {
+        checkNotFailed();
+        ZipArchiveEntry entry = new ZipArchiveEntry(file.getName());
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setCrc(crc);
+        entry.setSize(size);
+        entry.setCompressedSize(compressedSize);
+
+        try (InputStream spoolInputStream = fileHelper.getInputStream(spoolFile)) {
+            zipOutputStream.addRawArchiveEntry(entry, spoolInputStream);
+        } catch (IOException | RuntimeException ex) {
+            failed = true;
+            throw ex;
+        }
+        entryCount++;
+        recordEntry(entry, decision.getLevel(), decision.getReason());
+    }
+
+    /**
+     * Marks the writer as failed, so further writes and {@link #close} throw. This is for callers that have written
+     * some of a set of entries and can't write the rest, so the zip would be inconsistent.
+     */
+    public synchronized void fail() {
+        failed = true;
+    }
+
+    // Must be called while holding the lock. Throws if an earlier entry failed partway through.
+    private void checkNotFailed() throws IOException {
+        if (failed) {
+            throw new IOException("Zip stream writer failed earlier, zip is incomplete");
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void recordEntry(ZipArchiveEntry entry, int level, String reason) {
+        entryRecordList.add(new EntryRecord(entry.getName(), entry.getMethod(), level, reason, entry.getSize(),
+                entry.getCompressedSize()));
+    }
+
+    /**
+     * Finishes the zip archive and flushes the underlying stream. The underlying stream is not closed. Throws if an
+     * entry failed partway through, since the zip is incomplete.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        checkNotFailed();
+        zipOutputStream.close();
+    }
+
+    /** Records how a single entry was compressed. */
+    public static class EntryRecord {
+        private final String entryName;
+        private final int method;
+        private final int level;
+        private final String reason;
+        private final long size;
+        private final long compressedSize;
+
+        /** Private constructor. Records are created by the writer. */
+        private EntryRecord(String entryName, int method, int level, String reason, long size, long compressedSize) {
+            this.entryName = entryName;
+            this.method = method;
+            this.level = level;
+            this.reason = reason;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+
+        /** Zip entry name. */
+        public String getEntryName() {
+            return entryName;
+        }
+
+        /** Zip method, either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}. */
+        public int getMethod() {
+            return method;
+        }
+
+        /** Deflate level, as per {@link java.util.zip.Deflater}. Only meaningful if this writer deflated the entry. */
+        public int getLevel() {
+            return level;
+        }
+
+        /** Why the entry was compressed this way, as per {@link ZipCompressionPolicy.Decision#getReason}. */
+        public String getReason() {
+            return reason;
+        }
+
+        /** Uncompressed size in bytes. */
+        public long getSize() {
+            return size;
+        }
+
+        /** Compressed size in bytes. */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /** Compressed size divided by uncompressed size. Empty entries have a ratio of 1. */
+        public double getRatio() {
+            return size > 0 ? (double) compressedSize / size : 1.0;
+        }
+    }
+
+    /** Callback used by {@link #writeEntry} to write the content of a zip entry. */
+    @FunctionalInterface
+    public interface EntryContentWriter {
+        /** Writes the entry's content to the given stream. Implementations must not close the stream. */
+        void write(OutputStream entryOutputStream) throws IOException;
+    }
+
+    // Prevents callees (and ZipArchiveOutputStream itself) from closing the stream out from under us. Close just
+    // flushes.
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
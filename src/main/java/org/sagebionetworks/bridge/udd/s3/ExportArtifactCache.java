@@ -0,0 +1,143 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.IOException;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * <p>
+ * Cache of finished export zips in the userdata bucket. If a user asks for the same data again while the cached zip
+ * is still fresh, we can sign a new URL for the existing zip instead of querying Synapse and building a new one.
+ * </p>
+ * <p>
+ * Callers describe an export with a cache key material string, which must capture everything that affects the zip's
+ * contents (study, health code, date range, tables and their revisions, zip layout). The material is hashed, so S3
+ * keys contain no identifying info. For each hash, there's a small JSON index object under
+ * {@link #INDEX_KEY_PREFIX}, which points at the zip and records when it was created.
+ * </p>
+ * <p>
+ * Freshness is a TTL, since new rows can arrive in Synapse at any time. A TTL of zero disables the cache. The TTL
+ * should be shorter than the userdata bucket's lifecycle policy. (If the zip has been deleted anyway, it's a miss.)
+ * Errors reading or writing the index are logged and treated as misses, since the cache is only an optimization.
+ * </p>
+ */
+@Component
+public class ExportArtifactCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ExportArtifactCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_TTL_MINUTES = "export.cache.ttl.minutes";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String INDEX_KEY_PREFIX = "export-cache/";
+    static final String KEY_CREATED_ON = "createdOn";
+    static final String KEY_OBJECT_KEY = "objectKey";
+
+    private AmazonS3Client s3Client;
+    private long ttlMillis;
+    private String userdataBucketName;
+
+    /** Bridge config, used to get the userdata bucket and the cache TTL. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        ttlMillis = config.getInt(CONFIG_KEY_TTL_MINUTES) * 60L * 1000L;
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** S3 client. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** True if the cache is enabled. */
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    /**
+     * Looks up a fresh cached export.
+     *
+     * @param cacheKeyMaterial
+     *         string describing everything that affects the export's contents
+     * @return S3 key of the cached zip in the userdata bucket, or null if there's no fresh cached export
+     */
+    public String get(String cacheKeyMaterial) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String indexKey = getIndexKey(cacheKeyMaterial);
+        try {
+            String indexJson;
+            try {
+                indexJson = s3Client.getObjectAsString(userdataBucketName, indexKey);
+            } catch (AmazonS3Exception ex) {
+                if (ex.getStatusCode() == 404) {
+                    return null;
+                }
+                throw ex;
+            }
+
+            JsonNode indexNode = DefaultObjectMapper.INSTANCE.readTree(indexJson);
+            String objectKey = indexNode.get(KEY_OBJECT_KEY).textValue();
+            long createdOnMillis = DateTime.parse(indexNode.get(KEY_CREATED_ON).textValue()).getMillis();
+            if (DateTimeUtils.currentTimeMillis() - createdOnMillis >= ttlMillis) {
+                return null;
+            }
+
+            if (!s3Client.doesObjectExist(userdataBucketName, objectKey)) {
+                return null;
+            }
+            return objectKey;
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error reading export cache index " + indexKey + ": " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Records a finished export in the cache.
+     *
+     * @param cacheKeyMaterial
+     *         string describing everything that affects the export's contents
+     * @param objectKey
+     *         S3 key of the export zip in the userdata bucket
+     */
+    public void put(String cacheKeyMaterial, String objectKey) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        String indexKey = getIndexKey(cacheKeyMaterial);
+        ObjectNode indexNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        indexNode.put(KEY_OBJECT_KEY, objectKey);
+        indexNode.put(KEY_CREATED_ON, new DateTime(DateTimeUtils.currentTimeMillis()).toString());
+        try {
+            s3Client.putObject(userdataBucketName, indexKey, indexNode.toString());
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error writing export cache index " + indexKey + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Index keys are a hash of the key material, so they contain no identifying info. Package-scoped for unit tests.
+    static String getIndexKey(String cacheKeyMaterial) {
+        return INDEX_KEY_PREFIX + Hashing.sha256().hashString(cacheKeyMaterial, Charsets.UTF_8).toString() + ".json";
+    }
+}
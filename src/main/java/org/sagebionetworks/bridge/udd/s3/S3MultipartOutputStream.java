@@ -0,0 +1,247 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Output stream that writes directly to an S3 object. Bytes are buffered into parts of a fixed size. Each full part is
+ * uploaded asynchronously as part of an S3 multipart upload, so the caller can keep writing (for example, compressing
+ * the next zip entry) while earlier parts are in flight. The number of parts in flight is bounded, which also bounds
+ * memory usage to roughly (maxInFlightParts + 1) * partSize.
+ * </p>
+ * <p>
+ * The multipart upload is initiated lazily, when the first part is full. If the stream is closed before that, the
+ * data is uploaded with a single PUT instead. Buffers are also allocated lazily, so opening a stream that's never
+ * written to (and then aborted) costs nothing. {@link #close} completes the upload. If the caller fails partway
+ * through, it should call {@link #abort} instead, so S3 doesn't keep the orphaned parts around.
+ * </p>
+ * <p>
+ * This class is not thread-safe. Create instances using {@link S3MultipartUploadHelper}.
+ * </p>
+ */
+public class S3MultipartOutputStream extends OutputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+    private final AmazonS3Client s3Client;
+    private final ExecutorService uploadExecutorService;
+    private final String bucket;
+    private final String key;
+    private final int partSize;
+    private final Semaphore inFlightPartSemaphore;
+
+    private final List<Future<PartETag>> partFutureList = new ArrayList<>();
+    private byte[] buffer;
+    private int bufferPos = 0;
+    private String uploadId;
+    private boolean closed = false;
+
+    /**
+     * Constructs the output stream. Package-scoped, as callers should go through {@link S3MultipartUploadHelper}.
+     *
+     * @param s3Client
+     *         S3 client
+     * @param uploadExecutorService
+     *         executor used to upload parts in parallel
+     * @param bucket
+     *         S3 bucket to write to
+     * @param key
+     *         S3 key to write to
+     * @param partSize
+     *         size of each part in bytes, S3 requires at least 5MB for all but the last part
+     * @param maxInFlightParts
+     *         max number of parts being uploaded at once, before writes start blocking
+     */
+    S3MultipartOutputStream(AmazonS3Client s3Client, ExecutorService uploadExecutorService, String bucket, String key,
+            int partSize, int maxInFlightParts) {
+        this.s3Client = s3Client;
+        this.uploadExecutorService = uploadExecutorService;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.inFlightPartSemaphore = new Semaphore(maxInFlightParts);
+    }
+
+    /** S3 multipart upload ID, or null if the multipart upload hasn't been initiated. Exposed for unit tests. */
+    String getUploadId() {
+        return uploadId;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (buffer == null) {
+            buffer = new byte[partSize];
+        } else if (bufferPos == partSize) {
+            uploadBufferAsPart();
+        }
+        buffer[bufferPos++] = (byte) b;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (buffer == null) {
+                buffer = new byte[partSize];
+            } else if (bufferPos == partSize) {
+                uploadBufferAsPart();
+            }
+
+            int numToCopy = Math.min(len, partSize - bufferPos);
+            System.arraycopy(b, off, buffer, bufferPos, numToCopy);
+            bufferPos += numToCopy;
+            off += numToCopy;
+            len -= numToCopy;
+        }
+    }
+
+    /**
+     * Uploads the remaining buffered bytes and completes the upload. If anything fails, the multipart upload is
+     * aborted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            if (uploadId == null) {
+                // Everything fits in one part. Just do a single PUT.
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(bufferPos);
+                byte[] content = buffer != null ? buffer : new byte[0];
+                s3Client.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(content, 0, bufferPos),
+                        metadata));
+            } else {
+                // Upload the last part (which is allowed to be smaller than the part size), wait for all parts, then
+                // complete.
+                if (bufferPos > 0) {
+                    uploadBufferAsPart();
+                }
+
+                List<PartETag> partETagList = new ArrayList<>();
+                for (Future<PartETag> onePartFuture : partFutureList) {
+                    partETagList.add(getPartETag(onePartFuture));
+                }
+                s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId,
+                        partETagList));
+            }
+            closed = true;
+            buffer = null;
+        } catch (IOException | RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    /**
+     * Aborts the upload, discarding any parts that have already been uploaded. Safe to call more than once, and safe to
+     * call after a failed {@link #close}. After this is called, the stream is closed.
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffer = null;
+
+        if (uploadId != null) {
+            // Cancel anything still waiting in the executor. Parts already in flight will be discarded by the abort.
+            for (Future<PartETag> onePartFuture : partFutureList) {
+                onePartFuture.cancel(false);
+            }
+
+            try {
+                s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch (RuntimeException ex) {
+                LOG.error("Error aborting multipart upload " + uploadId + " for " + bucket + "/" + key + ": " +
+                        ex.getMessage(), ex);
+            }
+        }
+    }
+
+    // Submits the current buffer as the next part, and starts a new buffer. Blocks if too many parts are in flight.
+    private void uploadBufferAsPart() throws IOException {
+        // Fail fast if an earlier part already failed, rather than waiting until close().
+        for (Future<PartETag> onePartFuture : partFutureList) {
+            if (onePartFuture.isDone()) {
+                getPartETag(onePartFuture);
+            }
+        }
+
+        if (uploadId == null) {
+            uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key))
+                    .getUploadId();
+        }
+
+        try {
+            inFlightPartSemaphore.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to upload part for " + bucket + "/" + key);
+        }
+
+        // S3 part numbers start at 1.
+        UploadPartRequest uploadPartRequest = new UploadPartRequest().withBucketName(bucket).withKey(key)
+                .withUploadId(uploadId).withPartNumber(partFutureList.size() + 1)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, bufferPos)).withPartSize(bufferPos);
+        try {
+            partFutureList.add(uploadExecutorService.submit(() -> {
+                try {
+                    return s3Client.uploadPart(uploadPartRequest).getPartETag();
+                } finally {
+                    inFlightPartSemaphore.release();
+                }
+            }));
+        } catch (RuntimeException ex) {
+            inFlightPartSemaphore.release();
+            throw ex;
+        }
+
+        // The in-flight part still holds a reference to the old buffer, so we need a new one.
+        buffer = new byte[partSize];
+        bufferPos = 0;
+    }
+
+    // Waits for the part upload to finish, and unwraps the exception if it failed.
+    private PartETag getPartETag(Future<PartETag> partFuture) throws IOException {
+        try {
+            return partFuture.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Error uploading part to " + bucket + "/" + key + ": " + ex.getCause().getMessage(),
+                    ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for part upload to " + bucket + "/" + key);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream to " + bucket + "/" + key + " is already closed");
+        }
+    }
+}
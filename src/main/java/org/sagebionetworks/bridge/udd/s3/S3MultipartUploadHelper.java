@@ -0,0 +1,58 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import java.util.concurrent.ExecutorService;
+
+import javax.annotation.Resource;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/** Helper to create streams that upload directly to S3, using S3 multipart upload. */
+@Component
+public class S3MultipartUploadHelper {
+    public static final String CONFIG_KEY_MAX_IN_FLIGHT_PARTS = "s3.multipart.max.inflight.parts";
+    public static final String CONFIG_KEY_PART_SIZE_BYTES = "s3.multipart.part.size.bytes";
+
+    private int maxInFlightParts;
+    private int partSize;
+    private AmazonS3Client s3Client;
+    private ExecutorService uploadExecutorService;
+
+    /** Bridge config, used to get the part size and the max number of parts in flight. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxInFlightParts = config.getInt(CONFIG_KEY_MAX_IN_FLIGHT_PARTS);
+        partSize = config.getInt(CONFIG_KEY_PART_SIZE_BYTES);
+    }
+
+    /** S3 client. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /** Executor service (thread pool) used to upload parts in parallel. */
+    @Resource(name = "s3UploadExecutorService")
+    public final void setUploadExecutorService(ExecutorService uploadExecutorService) {
+        this.uploadExecutorService = uploadExecutorService;
+    }
+
+    /**
+     * Opens a stream that writes to the given S3 bucket and key. The caller must either close the stream (to complete
+     * the upload) or abort it (if an error happens while writing).
+     *
+     * @param bucket
+     *         S3 bucket to write to
+     * @param key
+     *         S3 key to write to
+     * @return stream to write to
+     */
+    public S3MultipartOutputStream openStream(String bucket, String key) {
+        return new S3MultipartOutputStream(s3Client, uploadExecutorService, bucket, key, partSize, maxInFlightParts);
+    }
+}
@@ -0,0 +1,24 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Formats CSV rows into strings, using the same conventions as {@link CSVWriter}. This lets callers know exactly how
+ * many characters each row takes up in the output. A single instance re-uses its buffer across rows and is not
+ * thread-safe.
+ */
+class CsvRowFormatter {
+    private final StringWriter buffer = new StringWriter();
+    private final CSVWriter csvWriter = new CSVWriter(buffer);
+
+    /** Formats the given row, including the trailing line end. */
+    public String format(String[] row) throws IOException {
+        buffer.getBuffer().setLength(0);
+        csvWriter.writeNext(row);
+        csvWriter.flush();
+        return buffer.toString();
+    }
+}
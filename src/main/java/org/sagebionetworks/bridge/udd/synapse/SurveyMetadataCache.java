@@ -0,0 +1,355 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Two-tier cache for survey metadata tables. Survey metadata is the same for every user in a study and rarely
+ * changes, so there's no need to query Synapse for it on every request.
+ * </p>
+ * <p>
+ * Entries are keyed by Synapse table ID and validated by the table's etag. Callers get the table entity anyway (for
+ * the table name), so checking the etag costs nothing extra. If the etag has changed, the entry is a miss and is
+ * replaced when the caller puts the new download.
+ * </p>
+ * <p>
+ * The first tier is on local disk, capped at a max number of tables and evicted least recently used first. The local
+ * tier lives in a fixed dir, so it survives restarts. On first use, files left by a previous process are swept: cache
+ * files are re-indexed, oldest first, anything else (such as a half-written file) is deleted, and the tier is evicted
+ * down to its max size. Local hits open the cached file while holding the cache's lock, and copy it after releasing
+ * the lock, so eviction can't affect the copy, and the copy doesn't hold up other lookups.
+ * </p>
+ * <p>
+ * The optional second tier is in S3, shared by all nodes. A hit in either tier is a file copy. Cache errors are logged
+ * and treated as misses, since the cache is only an optimization.
+ * </p>
+ */
+@Component
+public class SurveyMetadataCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SurveyMetadataCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_LOCAL_DIR = "survey.cache.local.dir";
+    static final String CONFIG_KEY_LOCAL_MAX_ENTRIES = "survey.cache.local.max.entries";
+    static final String CONFIG_KEY_S3_ENABLED = "survey.cache.s3.enabled";
+    static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
+    static final String S3_KEY_PREFIX = "survey-cache/";
+
+    // Local cache files are named [table ID].[etag].[random].csv. They're written to a .tmp file first, then moved into
+    // place, so a file with the .csv suffix is always complete.
+    private static final String CACHE_FILE_SUFFIX = ".csv";
+    private static final String TMP_FILE_SUFFIX = ".tmp";
+
+    // Access-ordered, so iteration starts with the least recently used entry. Guarded by this.
+    private final Map<String, CachedSurvey> localEntryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private File localCacheDir;
+
+    private FileHelper fileHelper;
+    private String localCacheDirPath;
+    private int localMaxEntries;
+    private AmazonS3Client s3Client;
+    private boolean s3Enabled;
+    private String userdataBucketName;
+
+    /**
+     * Bridge config, used to get the local tier's dir and size, and whether the S3 tier is enabled and where it lives.
+     */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        localCacheDirPath = config.get(CONFIG_KEY_LOCAL_DIR);
+        localMaxEntries = config.getInt(CONFIG_KEY_LOCAL_MAX_ENTRIES);
+        s3Enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_S3_ENABLED));
+        userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
+    }
+
+    /** File helper, used to read and write the callers' survey files. */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** S3 client, used for the shared tier. */
+    @Autowired
+    public final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * Copies the cached survey metadata into the target file, if there's an entry with a matching etag.
+     *
+     * @param synapseTableId
+     *         survey metadata table ID
+     * @param etag
+     *         the table's current etag; if null, this is always a miss
+     * @param targetFile
+     *         file to copy the survey metadata to
+     * @return true if this was a hit and the target file was written, false otherwise
+     */
+    public boolean get(String synapseTableId, String etag, File targetFile) {
+        if (Strings.isNullOrEmpty(etag)) {
+            return false;
+        }
+
+        try {
+            if (getLocal(synapseTableId, etag, targetFile)) {
+                return true;
+            }
+            if (s3Enabled && getS3(synapseTableId, etag, targetFile)) {
+                putLocal(synapseTableId, etag, targetFile);
+                return true;
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error reading survey cache for table " + synapseTableId + ": " + ex.getMessage(), ex);
+            deleteQuietly(targetFile);
+        }
+        return false;
+    }
+
+    /**
+     * Adds freshly downloaded survey metadata to the cache.
+     *
+     * @param synapseTableId
+     *         survey metadata table ID
+     * @param etag
+     *         the table's etag at the time of download; if null, this does nothing
+     * @param surveyFile
+     *         downloaded survey metadata
+     */
+    public void put(String synapseTableId, String etag, File surveyFile) {
+        if (Strings.isNullOrEmpty(etag)) {
+            return;
+        }
+
+        try {
+            putLocal(synapseTableId, etag, surveyFile);
+            if (s3Enabled) {
+                try (InputStream surveyInputStream = fileHelper.getInputStream(surveyFile)) {
+                    String content = new String(ByteStreams.toByteArray(surveyInputStream), Charsets.UTF_8);
+                    s3Client.putObject(userdataBucketName, getS3Key(synapseTableId, etag), content);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error writing survey cache for table " + synapseTableId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Copies the local entry, if its etag matches.
+    private boolean getLocal(String synapseTableId, String etag, File targetFile) throws IOException {
+        if (localMaxEntries <= 0) {
+            return false;
+        }
+
+        InputStream cacheInputStream;
+        synchronized (this) {
+            // Open while holding the lock, so the entry can't be evicted halfway through.
+            getLocalCacheDir();
+            CachedSurvey cachedSurvey = localEntryMap.get(synapseTableId);
+            if (cachedSurvey == null || !cachedSurvey.etag.equals(etag)) {
+                return false;
+            }
+            try {
+                cacheInputStream = Files.newInputStream(cachedSurvey.file.toPath());
+            } catch (IOException | RuntimeException ex) {
+                localEntryMap.remove(synapseTableId);
+                deleteCacheFileQuietly(cachedSurvey.file);
+                throw ex;
+            }
+        }
+
+        // Copy outside the lock. The file is already open, so evicting the entry in the meantime doesn't affect the
+        // copy.
+        try (InputStream fromStream = cacheInputStream;
+                OutputStream toStream = fileHelper.getOutputStream(targetFile)) {
+            ByteStreams.copy(fromStream, toStream);
+        }
+        return true;
+    }
+
+    // Copies the survey file into the local tier, then replaces the table's entry.
+    private void putLocal(String synapseTableId, String etag, File surveyFile) throws IOException {
+        if (localMaxEntries <= 0) {
+            return;
+        }
+
+        // Copy outside the lock, to a temp file, then move it into place. File names are unique, in case another
+        // request is caching the same table.
+        File dir = getLocalCacheDir();
+        Path tmpPath = Files.createTempFile(dir.toPath(), synapseTableId + "." + etag + ".", TMP_FILE_SUFFIX);
+        String tmpFileName = tmpPath.getFileName().toString();
+        Path cachePath = tmpPath.resolveSibling(tmpFileName.substring(0, tmpFileName.length() -
+                TMP_FILE_SUFFIX.length()) + CACHE_FILE_SUFFIX);
+        try {
+            try (InputStream surveyInputStream = fileHelper.getInputStream(surveyFile)) {
+                Files.copy(surveyInputStream, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(tmpPath, cachePath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            deleteCacheFileQuietly(tmpPath.toFile());
+            throw ex;
+        }
+        putLocalEntry(new CachedSurvey(synapseTableId, etag, cachePath.toFile()));
+    }
+
+    // Replaces the table's local entry, then evicts least recently used entries over the limit.
+    private synchronized void putLocalEntry(CachedSurvey cachedSurvey) {
+        CachedSurvey oldCachedSurvey = localEntryMap.remove(cachedSurvey.synapseTableId);
+        if (oldCachedSurvey != null) {
+            deleteCacheFileQuietly(oldCachedSurvey.file);
+        }
+        localEntryMap.put(cachedSurvey.synapseTableId, cachedSurvey);
+        evictOverMax();
+    }
+
+    // Evicts least recently used entries until we're under the max. Must be called while holding the lock.
+    private void evictOverMax() {
+        Iterator<CachedSurvey> entryIter = localEntryMap.values().iterator();
+        while (localEntryMap.size() > localMaxEntries && entryIter.hasNext()) {
+            CachedSurvey evictedSurvey = entryIter.next();
+            entryIter.remove();
+            deleteCacheFileQuietly(evictedSurvey.file);
+        }
+    }
+
+    // Lazily sets up the local tier's dir, so nodes with the local tier disabled don't touch it. The first time, this
+    // sweeps files left by a previous process.
+    private synchronized File getLocalCacheDir() throws IOException {
+        if (localCacheDir == null) {
+            File dir = new File(localCacheDirPath);
+            Files.createDirectories(dir.toPath());
+            sweep(dir);
+            localCacheDir = dir;
+        }
+        return localCacheDir;
+    }
+
+    // Re-indexes cache files in the dir, oldest first, so the newest file for each table wins. Deletes anything else,
+    // then evicts down to the max. Must be called while holding the lock.
+    private void sweep(File dir) {
+        File[] fileArray = dir.listFiles(File::isFile);
+        if (fileArray == null || fileArray.length == 0) {
+            return;
+        }
+        Arrays.sort(fileArray, Comparator.comparingLong(File::lastModified));
+
+        int numDeleted = 0;
+        for (File oneFile : fileArray) {
+            CachedSurvey cachedSurvey = parseCacheFileName(oneFile);
+            if (cachedSurvey == null) {
+                deleteCacheFileQuietly(oneFile);
+                numDeleted++;
+                continue;
+            }
+            CachedSurvey oldCachedSurvey = localEntryMap.put(cachedSurvey.synapseTableId, cachedSurvey);
+            if (oldCachedSurvey != null) {
+                deleteCacheFileQuietly(oldCachedSurvey.file);
+                numDeleted++;
+            }
+        }
+        evictOverMax();
+        LOG.info("Swept survey cache dir " + dir.getAbsolutePath() + ", kept " + localEntryMap.size() +
+                " entries, deleted " + numDeleted + " stale or invalid files");
+    }
+
+    // Parses a cache file name, [table ID].[etag].[random].csv. Table IDs have no dots. Returns null if the file name
+    // doesn't match.
+    private static CachedSurvey parseCacheFileName(File file) {
+        String fileName = file.getName();
+        if (!fileName.endsWith(CACHE_FILE_SUFFIX)) {
+            return null;
+        }
+        String baseName = fileName.substring(0, fileName.length() - CACHE_FILE_SUFFIX.length());
+        int firstDotIdx = baseName.indexOf('.');
+        int lastDotIdx = baseName.lastIndexOf('.');
+        if (firstDotIdx <= 0 || lastDotIdx <= firstDotIdx + 1) {
+            return null;
+        }
+        return new CachedSurvey(baseName.substring(0, firstDotIdx), baseName.substring(firstDotIdx + 1,
+                lastDotIdx), file);
+    }
+
+    // Downloads the S3 entry to the target file. A missing key is a miss.
+    private boolean getS3(String synapseTableId, String etag, File targetFile) throws IOException {
+        String content;
+        try {
+            content = s3Client.getObjectAsString(userdataBucketName, getS3Key(synapseTableId, etag));
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() == 404) {
+                return false;
+            }
+            throw ex;
+        }
+
+        try (Writer targetWriter = fileHelper.getWriter(targetFile)) {
+            targetWriter.write(content);
+        }
+        return true;
+    }
+
+    // S3 keys include the etag, so a changed table never matches an old entry.
+    static String getS3Key(String synapseTableId, String etag) {
+        return S3_KEY_PREFIX + synapseTableId + "/" + etag + ".csv";
+    }
+
+    /** Number of tables in the local tier. Package-scoped for unit tests. */
+    synchronized int getLocalEntryCount() {
+        return localEntryMap.size();
+    }
+
+    private static void deleteCacheFileQuietly(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error deleting survey cache file " + file.getPath() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    private void deleteQuietly(File file) {
+        try {
+            if (fileHelper.fileExists(file)) {
+                fileHelper.deleteFile(file);
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Error deleting survey cache file " + file.getPath() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // A survey table in the local tier: the table ID, the etag it was downloaded at, and the cached file.
+    private static class CachedSurvey {
+        private final String synapseTableId;
+        private final String etag;
+        private final File file;
+
+        CachedSurvey(String synapseTableId, String etag, File file) {
+            this.synapseTableId = synapseTableId;
+            this.etag = etag;
+            this.file = file;
+        }
+    }
+}
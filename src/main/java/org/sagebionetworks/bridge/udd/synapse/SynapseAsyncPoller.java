@@ -0,0 +1,254 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import org.joda.time.DateTimeUtils;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.asynch.AsynchronousJobStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+
+/**
+ * <p>
+ * Polls all outstanding Synapse async jobs (table queries, bulk downloads) from a single scheduler, so no worker
+ * thread sits in a sleep loop while Synapse computes. Callers get a future that completes when the job's result is
+ * ready, or completes exceptionally if the job fails or times out.
+ * </p>
+ * <p>
+ * The scheduler only does the timing. The poll calls themselves are Synapse calls, which can block and retry, so
+ * they run on a separate executor. That way, one slow poll doesn't delay every other job's polls.
+ * </p>
+ * <p>
+ * The first poll happens after a short initial delay, since small jobs often finish quickly. After that, if Synapse
+ * reports progress, the next poll is scheduled for when the job is expected to finish, based on how fast it's
+ * progressed so far. Otherwise, the delay doubles each time. Either way, the delay never exceeds the poll interval.
+ * A job times out once it's been polling for longer than the timeout. This is wall-clock time, not a count of polls,
+ * since the number of polls depends on how fast the job reports progress. The last poll happens at the deadline.
+ * </p>
+ */
+@Component
+public class SynapseAsyncPoller {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseAsyncPoller.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_POLL_INITIAL_DELAY_MILLIS = "synapse.poll.initial.delay.millis";
+    static final String CONFIG_KEY_POLL_INTERVAL_MILLIS = "synapse.poll.interval.millis";
+    static final String CONFIG_KEY_POLL_TIMEOUT_MILLIS = "synapse.poll.timeout.millis";
+
+    private final AtomicInteger outstandingJobCount = new AtomicInteger();
+    private long initialDelayMillis;
+    private long maxDelayMillis;
+    private ExecutorService pollCallExecutorService;
+    private ScheduledExecutorService pollExecutorService;
+    private long timeoutMillis;
+
+    /** Bridge config. This is used to get poll delays and the timeout. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxDelayMillis = config.getInt(CONFIG_KEY_POLL_INTERVAL_MILLIS);
+        initialDelayMillis = Math.min(config.getInt(CONFIG_KEY_POLL_INITIAL_DELAY_MILLIS), maxDelayMillis);
+        timeoutMillis = config.getInt(CONFIG_KEY_POLL_TIMEOUT_MILLIS);
+    }
+
+    /** Executor that runs the poll calls. Poll calls never wait on anything else, so this is safe to bound. */
+    @Resource(name = "synapsePollCallExecutorService")
+    public final void setPollCallExecutorService(ExecutorService pollCallExecutorService) {
+        this.pollCallExecutorService = pollCallExecutorService;
+    }
+
+    /**
+     * Scheduled executor that times the polls. It only hands polls off to the poll call executor, so this only needs
+     * a thread or two.
+     */
+    @Resource(name = "synapsePollExecutorService")
+    public final void setPollExecutorService(ScheduledExecutorService pollExecutorService) {
+        this.pollExecutorService = pollExecutorService;
+    }
+
+    /** Number of jobs currently being polled. */
+    public int getOutstandingJobCount() {
+        return outstandingJobCount.get();
+    }
+
+    /**
+     * Starts polling the given async job.
+     *
+     * @param jobDescription
+     *         description of the job, used for logging and error messages
+     * @param call
+     *         call that checks the job, generally a wrapper around one of the Synapse client's async get methods
+     * @param <T>
+     *         job result type
+     * @return future that completes with the job's result
+     */
+    public <T> CompletableFuture<T> poll(String jobDescription, AsyncJobCall<T> call) {
+        long startMillis = DateTimeUtils.currentTimeMillis();
+        PollJob<T> job = new PollJob<>(jobDescription, call, startMillis, startMillis + timeoutMillis);
+        outstandingJobCount.incrementAndGet();
+        job.future.whenComplete((result, ex) -> outstandingJobCount.decrementAndGet());
+
+        job.lastDelayMillis = initialDelayMillis;
+        schedule(job, Math.min(initialDelayMillis, timeoutMillis));
+        return job.future;
+    }
+
+    // Schedules the next poll. When it's time, the scheduler hands the poll off to the poll call executor. If either
+    // executor is shut down, the job fails.
+    private <T> void schedule(PollJob<T> job, long delayMillis) {
+        try {
+            pollExecutorService.schedule(() -> {
+                try {
+                    pollCallExecutorService.execute(() -> pollOnce(job));
+                } catch (RejectedExecutionException ex) {
+                    job.future.completeExceptionally(ex);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            job.future.completeExceptionally(ex);
+        }
+    }
+
+    // Checks the job once, and either completes the future or schedules the next poll.
+    private <T> void pollOnce(PollJob<T> job) {
+        if (job.future.isDone()) {
+            // Caller cancelled the job. Stop polling.
+            return;
+        }
+
+        job.tries++;
+        PollResult<T> result;
+        try {
+            result = job.call.poll();
+        } catch (SynapseException | RuntimeException ex) {
+            job.future.completeExceptionally(ex);
+            return;
+        }
+
+        if (result.isReady()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Synapse async call " + job.description + " completed after " + job.tries + " tries, " +
+                        (DateTimeUtils.currentTimeMillis() - job.startMillis) + " ms");
+            }
+            job.future.complete(result.getResult());
+            return;
+        }
+
+        long remainingMillis = job.deadlineMillis - DateTimeUtils.currentTimeMillis();
+        if (remainingMillis <= 0) {
+            job.future.completeExceptionally(new AsyncTimeoutException("Synapse async call timed out after " +
+                    job.tries + " tries: " + job.description));
+            return;
+        }
+
+        // Don't sleep past the deadline. The last poll happens at the deadline.
+        job.lastDelayMillis = getNextDelayMillis(job, result.getJobStatus());
+        schedule(job, Math.min(job.lastDelayMillis, remainingMillis));
+    }
+
+    /**
+     * If Synapse reports progress, estimate how long until the job is done. Otherwise, back off exponentially. Either
+     * way, clamp to the initial delay and the poll interval. Package-scoped for unit tests.
+     */
+    long getNextDelayMillis(PollJob<?> job, AsynchronousJobStatus jobStatus) {
+        long delayMillis;
+        Long progressCurrent = jobStatus != null ? jobStatus.getProgressCurrent() : null;
+        Long progressTotal = jobStatus != null ? jobStatus.getProgressTotal() : null;
+        if (progressCurrent != null && progressTotal != null && progressCurrent > 0 &&
+                progressCurrent < progressTotal) {
+            long elapsedMillis = DateTimeUtils.currentTimeMillis() - job.startMillis;
+            delayMillis = elapsedMillis * (progressTotal - progressCurrent) / progressCurrent;
+        } else {
+            // Start from 1ms if the initial delay is zero, so the backoff still grows.
+            delayMillis = Math.max(job.lastDelayMillis * 2, 1);
+        }
+        return Math.max(initialDelayMillis, Math.min(delayMillis, maxDelayMillis));
+    }
+
+    /**
+     * Checks an async job once. Implementations should return {@link PollResult#notReady} if the job isn't done, and
+     * should throw if the job failed.
+     *
+     * @param <T>
+     *         job result type
+     */
+    @FunctionalInterface
+    public interface AsyncJobCall<T> {
+        PollResult<T> poll() throws SynapseException;
+    }
+
+    /**
+     * Result of a single poll: either the job's result, or the job's status if it's not ready yet.
+     *
+     * @param <T>
+     *         job result type
+     */
+    public static class PollResult<T> {
+        private final T result;
+        private final AsynchronousJobStatus jobStatus;
+        private final boolean ready;
+
+        /** Private constructor. Use {@link #ready} or {@link #notReady}. */
+        private PollResult(T result, AsynchronousJobStatus jobStatus, boolean ready) {
+            this.result = result;
+            this.jobStatus = jobStatus;
+            this.ready = ready;
+        }
+
+        /** The job is done, with the given result. */
+        public static <T> PollResult<T> ready(T result) {
+            return new PollResult<>(result, null, true);
+        }
+
+        /** The job isn't done. Job status may be null if Synapse didn't return one. */
+        public static <T> PollResult<T> notReady(AsynchronousJobStatus jobStatus) {
+            return new PollResult<>(null, jobStatus, false);
+        }
+
+        /** True if the job is done. */
+        public boolean isReady() {
+            return ready;
+        }
+
+        /** Job result, if the job is done. */
+        public T getResult() {
+            return result;
+        }
+
+        /** Job status, if the job isn't done. May be null. */
+        public AsynchronousJobStatus getJobStatus() {
+            return jobStatus;
+        }
+    }
+
+    // Bookkeeping for a single job. Polls for a given job never overlap, so this doesn't need to be synchronized.
+    static class PollJob<T> {
+        private final String description;
+        private final AsyncJobCall<T> call;
+        private final long startMillis;
+        private final long deadlineMillis;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private int tries = 0;
+        private long lastDelayMillis = 0;
+
+        PollJob(String description, AsyncJobCall<T> call, long startMillis, long deadlineMillis) {
+            this.description = description;
+            this.call = call;
+            this.startMillis = startMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Strings;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.sagebionetworks.repo.model.file.FileDownloadSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Node-local cache of attachment contents, keyed by file handle ID. File handles are immutable, so an entry never
+ * goes stale. Users often re-export overlapping date ranges, and without the cache, every export bulk downloads the
+ * same attachments again.
+ * </p>
+ * <p>
+ * Each attachment is cached as a zip with a single entry, copied raw from the Synapse bulk download zip (without
+ * decompressing it). On a hit, the cached zip is hard linked into the task's temp dir (or copied, if the temp dir is
+ * on a different file system), and the task treats it like one more bulk download zip. Since attachments are
+ * flattened into the master zip as raw entries, the cached bytes go into the export without being recompressed. A
+ * hard link also means evicting an entry can't pull the file out from under an export that's using it. Copies are
+ * made outside the cache's lock, from a stream opened while holding it, so eviction can't affect them either.
+ * </p>
+ * <p>
+ * The cache lives in a fixed dir, is capped at a max number of bytes on disk, and is evicted least recently used
+ * first. On first use, files left by a previous process are swept: valid cache files are re-indexed, oldest first,
+ * anything else is deleted, and the cache is evicted down to its max size. Hit, miss, and bytes saved counts are kept
+ * for the life of the process. Cache errors are logged and treated as misses, since the cache is only an
+ * optimization.
+ * </p>
+ */
+@Component
+public class SynapseAttachmentCache {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseAttachmentCache.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_DIR = "attachment.cache.dir";
+    static final String CONFIG_KEY_ENABLED = "attachment.cache.enabled";
+    static final String CONFIG_KEY_MAX_MB = "attachment.cache.max.mb";
+
+    // Access-ordered, so iteration starts with the least recently used entry. Guarded by this.
+    private final Map<String, CachedAttachment> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+    private File cacheDir;
+    private long cachedBytes;
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private String cacheDirPath;
+    private boolean enabled;
+    private FileHelper fileHelper;
+    private long maxBytes;
+
+    /** Bridge config, used to enable the cache and get its dir and max size. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        cacheDirPath = config.get(CONFIG_KEY_DIR);
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxBytes = config.getInt(CONFIG_KEY_MAX_MB) * 1024L * 1024L;
+    }
+
+    /** File helper, used to delete cache files. */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** True if the cache is enabled. */
+    public boolean isEnabled() {
+        return enabled && maxBytes > 0 && !Strings.isNullOrEmpty(cacheDirPath);
+    }
+
+    /**
+     * Links the cached attachment's zip into the target file, if the file handle is cached.
+     *
+     * @param fileHandleId
+     *         attachment's file handle ID
+     * @param targetFile
+     *         file to link the cached zip to
+     * @return the attachment's entry name in the linked zip, or null if this was a miss
+     */
+    public String get(String fileHandleId, File targetFile) {
+        CachedAttachment cachedAttachment;
+        InputStream copyInputStream = null;
+        synchronized (this) {
+            // Link (or open, if we can't link) while holding the lock, so the entry can't be evicted halfway through.
+            cachedAttachment = getCacheDirQuietly() != null ? entryMap.get(fileHandleId) : null;
+            if (cachedAttachment != null) {
+                try {
+                    if (!tryLink(cachedAttachment.file, targetFile)) {
+                        copyInputStream = Files.newInputStream(cachedAttachment.file.toPath());
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    LOG.warn("Error reading attachment cache for file handle " + fileHandleId + ": " +
+                            ex.getMessage(), ex);
+                    removeEntry(fileHandleId);
+                    cachedAttachment = null;
+                }
+            }
+        }
+
+        if (copyInputStream != null) {
+            // Copy outside the lock, so large copies don't hold up other lookups. The file is already open, so
+            // evicting the entry in the meantime doesn't affect the copy.
+            try (InputStream cacheInputStream = copyInputStream) {
+                Files.copy(cacheInputStream, targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException ex) {
+                LOG.warn("Error copying attachment cache for file handle " + fileHandleId + ": " + ex.getMessage(),
+                        ex);
+                synchronized (this) {
+                    if (entryMap.get(fileHandleId) == cachedAttachment) {
+                        removeEntry(fileHandleId);
+                    }
+                }
+                cachedAttachment = null;
+            }
+        }
+
+        if (cachedAttachment == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        bytesSaved.addAndGet(cachedAttachment.size);
+        return cachedAttachment.zipEntryName;
+    }
+
+    /**
+     * Adds the attachments in a freshly downloaded bulk download zip to the cache. Attachments that are already
+     * cached, or that failed to download, are skipped.
+     *
+     * @param bulkDownloadFile
+     *         bulk download zip
+     * @param fileSummaryList
+     *         the bulk download's file summaries, which map file handle IDs to zip entries
+     */
+    public void putFromBulkDownload(File bulkDownloadFile, List<FileDownloadSummary> fileSummaryList) {
+        if (fileSummaryList == null || fileSummaryList.isEmpty()) {
+            return;
+        }
+
+        int numAdded = 0;
+        try (ZipFile bulkDownloadZip = new ZipFile(bulkDownloadFile)) {
+            File dir = getCacheDir();
+            for (FileDownloadSummary oneFileSummary : fileSummaryList) {
+                String fileHandleId = oneFileSummary.getFileHandleId();
+                String zipEntryName = oneFileSummary.getZipEntryName();
+                if (Strings.isNullOrEmpty(fileHandleId) || Strings.isNullOrEmpty(zipEntryName) ||
+                        containsEntry(fileHandleId)) {
+                    continue;
+                }
+                ZipArchiveEntry sourceEntry = bulkDownloadZip.getEntry(zipEntryName);
+                if (sourceEntry == null) {
+                    continue;
+                }
+
+                // Copy the entry outside the lock. File names are unique, in case another task is caching the same
+                // file handle.
+                File cacheFile = Files.createTempFile(dir.toPath(), fileHandleId + "-", ".zip").toFile();
+                try (ZipArchiveOutputStream cacheZipOutputStream = new ZipArchiveOutputStream(cacheFile);
+                        InputStream rawInputStream = bulkDownloadZip.getRawInputStream(sourceEntry)) {
+                    ZipArchiveEntry cacheEntry = new ZipArchiveEntry(zipEntryName);
+                    cacheEntry.setMethod(sourceEntry.getMethod());
+                    cacheEntry.setCrc(sourceEntry.getCrc());
+                    cacheEntry.setSize(sourceEntry.getSize());
+                    cacheEntry.setCompressedSize(sourceEntry.getCompressedSize());
+                    cacheEntry.setTime(sourceEntry.getTime());
+                    cacheZipOutputStream.addRawArchiveEntry(cacheEntry, rawInputStream);
+                }
+                putEntry(fileHandleId, new CachedAttachment(cacheFile, zipEntryName, sourceEntry.getSize(),
+                        cacheFile.length()));
+                numAdded++;
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error writing attachment cache from file " + bulkDownloadFile.getAbsolutePath() + ": " +
+                    ex.getMessage(), ex);
+        }
+
+        if (numAdded > 0) {
+            LOG.info("Added " + numAdded + " attachments to attachment cache, " + getEntryCount() + " entries, " +
+                    getCachedBytes() + " bytes, " + hitCount.get() + " hits, " + missCount.get() + " misses, " +
+                    bytesSaved.get() + " bytes saved");
+        }
+    }
+
+    // Lazily sets up the cache dir, so nodes with the cache disabled don't touch it. The first time, this sweeps files
+    // left by a previous process.
+    private synchronized File getCacheDir() throws IOException {
+        if (cacheDir == null) {
+            File dir = new File(cacheDirPath);
+            Files.createDirectories(dir.toPath());
+            sweep(dir);
+            cacheDir = dir;
+        }
+        return cacheDir;
+    }
+
+    // Same as getCacheDir, but logs errors and returns null. Must be called while holding the lock.
+    private File getCacheDirQuietly() {
+        try {
+            return getCacheDir();
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Error setting up attachment cache dir " + cacheDirPath + ": " + ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    // Re-indexes valid cache files in the dir, oldest first, deletes anything else, then evicts down to the max size.
+    // Must be called while holding the lock.
+    private void sweep(File dir) {
+        File[] fileArray = dir.listFiles(File::isFile);
+        if (fileArray == null || fileArray.length == 0) {
+            return;
+        }
+        Arrays.sort(fileArray, Comparator.comparingLong(File::lastModified));
+
+        int numDeleted = 0;
+        for (File oneFile : fileArray) {
+            String fileHandleId = getFileHandleId(oneFile);
+            CachedAttachment cachedAttachment = fileHandleId != null ? readCacheFile(oneFile) : null;
+            if (cachedAttachment == null || entryMap.containsKey(fileHandleId)) {
+                deleteQuietly(oneFile);
+                numDeleted++;
+                continue;
+            }
+            entryMap.put(fileHandleId, cachedAttachment);
+            cachedBytes += cachedAttachment.diskSize;
+        }
+        evictOverMax();
+        LOG.info("Swept attachment cache dir " + dir.getAbsolutePath() + ", kept " + entryMap.size() +
+                " entries, " + cachedBytes + " bytes, deleted " + numDeleted + " invalid files");
+    }
+
+    // Cache file names are the file handle ID, a dash, a random number, and ".zip". Returns null if the file name
+    // doesn't match.
+    private static String getFileHandleId(File file) {
+        String fileName = file.getName();
+        int dashIdx = fileName.lastIndexOf('-');
+        if (!fileName.endsWith(".zip") || dashIdx <= 0) {
+            return null;
+        }
+        return fileName.substring(0, dashIdx);
+    }
+
+    // Reads a cache file's single entry. Returns null if the file isn't a zip with a single entry.
+    private static CachedAttachment readCacheFile(File file) {
+        try (ZipFile cacheZip = new ZipFile(file)) {
+            List<ZipArchiveEntry> entryList = Collections.list(cacheZip.getEntries());
+            if (entryList.size() != 1) {
+                return null;
+            }
+            ZipArchiveEntry entry = entryList.get(0);
+            return new CachedAttachment(file, entry.getName(), entry.getSize(), file.length());
+        } catch (IOException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    // Checks for an entry without counting it as a use.
+    private synchronized boolean containsEntry(String fileHandleId) {
+        return entryMap.containsKey(fileHandleId);
+    }
+
+    // Adds the entry, then evicts least recently used entries until we're under the max size. If another task cached
+    // the same file handle first, this entry's file is deleted instead.
+    private synchronized void putEntry(String fileHandleId, CachedAttachment cachedAttachment) {
+        if (entryMap.containsKey(fileHandleId)) {
+            deleteQuietly(cachedAttachment.file);
+            return;
+        }
+        entryMap.put(fileHandleId, cachedAttachment);
+        cachedBytes += cachedAttachment.diskSize;
+        evictOverMax();
+    }
+
+    // Evicts least recently used entries until we're under the max size. Must be called while holding the lock.
+    private void evictOverMax() {
+        Iterator<CachedAttachment> entryIter = entryMap.values().iterator();
+        while (cachedBytes > maxBytes && entryIter.hasNext()) {
+            CachedAttachment evictedAttachment = entryIter.next();
+            entryIter.remove();
+            cachedBytes -= evictedAttachment.diskSize;
+            deleteQuietly(evictedAttachment.file);
+        }
+    }
+
+    // Must be called while holding the lock.
+    private void removeEntry(String fileHandleId) {
+        CachedAttachment removedAttachment = entryMap.remove(fileHandleId);
+        if (removedAttachment != null) {
+            cachedBytes -= removedAttachment.diskSize;
+            deleteQuietly(removedAttachment.file);
+        }
+    }
+
+    // Hard links the file. Returns false if hard links aren't supported (or the target is on a different file system,
+    // or already exists), in which case the caller copies instead.
+    private static boolean tryLink(File fromFile, File toFile) {
+        try {
+            Files.createLink(toFile.toPath(), fromFile.toPath());
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    private void deleteQuietly(File file) {
+        try {
+            if (fileHelper.fileExists(file)) {
+                fileHelper.deleteFile(file);
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Error deleting attachment cache file " + file.getPath() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Number of attachment bytes (uncompressed) that were served from the cache instead of Synapse. */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /** Number of lookups that found the file handle in the cache. */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** Number of lookups that didn't find the file handle in the cache. */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** Fraction of lookups that were hits, or 0 if there haven't been any lookups. */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total > 0 ? (double) hits / total : 0.0;
+    }
+
+    /** Number of bytes on disk used by cached attachments. */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    /** Number of attachments in the cache. */
+    public synchronized int getEntryCount() {
+        return entryMap.size();
+    }
+
+    // A cached attachment: its single-entry zip, the entry's name, the attachment's size, and the zip's size on disk.
+    private static class CachedAttachment {
+        private final File file;
+        private final String zipEntryName;
+        private final long size;
+        private final long diskSize;
+
+        CachedAttachment(File file, String zipEntryName, long size, long diskSize) {
+            this.file = file;
+            this.zipEntryName = zipEntryName;
+            this.size = size;
+            this.diskSize = diskSize;
+        }
+    }
+}
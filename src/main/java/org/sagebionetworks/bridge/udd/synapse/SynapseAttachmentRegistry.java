@@ -0,0 +1,139 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>
+ * Registry of attachments for a single export, shared by all of its table tasks. Different tables (for example,
+ * multiple revisions of a schema) can reference the same file handles, and without the registry, each table would
+ * download and zip the same attachment.
+ * </p>
+ * <p>
+ * Each task claims its file handles before downloading them. The first task to claim a file handle owns it, and is
+ * the only task that downloads it. Once the owner is done downloading, it publishes each attachment's replacement
+ * (the attachment's entry name in the master zip, or an error message). Every other task that references the file
+ * handle waits for the owner's replacement and writes it to its own CSV, so every CSV points at the same zip entry.
+ * This only makes sense if attachments are flattened into the master zip.
+ * </p>
+ * <p>
+ * Owners publish after downloading, whether or not the download succeeded, and before waiting for anyone else's
+ * attachments. So waiting on the registry can't deadlock, even on a bounded thread pool.
+ * </p>
+ * <p>
+ * Since other tables' CSVs can point at an owner's attachments as soon as they're published, an owner that fails
+ * afterwards hands its bulk download zips to the registry instead of deleting them, so they still make it into the
+ * master zip.
+ * </p>
+ */
+public class SynapseAttachmentRegistry {
+    // Guarded by this.
+    private final Map<String, CompletableFuture<String>> replacementFutureById = new HashMap<>();
+    private final Map<File, String> orphanedZipToPrefixMap = new LinkedHashMap<>();
+    private int claimCount;
+    private int sharedCount;
+
+    /**
+     * Claims the file handles that haven't been claimed by another task yet. The caller must download the claimed
+     * file handles, then call {@link #publish}.
+     *
+     * @param fileHandleIdSet
+     *         file handles referenced by the caller's table
+     * @return the file handles the caller now owns
+     */
+    public synchronized Set<String> claim(Set<String> fileHandleIdSet) {
+        Set<String> claimedFileHandleIdSet = new TreeSet<>();
+        for (String oneFileHandleId : fileHandleIdSet) {
+            if (!replacementFutureById.containsKey(oneFileHandleId)) {
+                replacementFutureById.put(oneFileHandleId, new CompletableFuture<>());
+                claimedFileHandleIdSet.add(oneFileHandleId);
+            }
+        }
+        claimCount += claimedFileHandleIdSet.size();
+        sharedCount += fileHandleIdSet.size() - claimedFileHandleIdSet.size();
+        return claimedFileHandleIdSet;
+    }
+
+    /**
+     * Publishes replacements for file handles the caller claimed. Claimed file handles with no replacement are
+     * published as errors, so this should be called even if the download failed.
+     *
+     * @param claimedFileHandleIdSet
+     *         file handles the caller claimed
+     * @param replacementById
+     *         map from file handle ID to zip entry name (including the attachment entry prefix) or error message
+     */
+    public void publish(Set<String> claimedFileHandleIdSet, Map<String, String> replacementById) {
+        for (String oneFileHandleId : claimedFileHandleIdSet) {
+            getReplacementFuture(oneFileHandleId).complete(replacementById.get(oneFileHandleId));
+        }
+    }
+
+    /**
+     * Gets the replacements for file handles claimed by other tasks. The future completes once every owner has
+     * published. File handles that failed to download aren't in the map.
+     *
+     * @param fileHandleIdSet
+     *         file handles claimed by other tasks
+     * @return future of the map from file handle ID to zip entry name or error message
+     */
+    public CompletableFuture<Map<String, String>> getReplacements(Set<String> fileHandleIdSet) {
+        Map<String, CompletableFuture<String>> futureById = new HashMap<>();
+        for (String oneFileHandleId : fileHandleIdSet) {
+            futureById.put(oneFileHandleId, getReplacementFuture(oneFileHandleId));
+        }
+
+        return CompletableFuture.allOf(futureById.values().toArray(new CompletableFuture[futureById.size()]))
+                .thenApply(ignored -> {
+                    Map<String, String> replacementById = new HashMap<>();
+                    for (Map.Entry<String, CompletableFuture<String>> oneEntry : futureById.entrySet()) {
+                        String replacement = oneEntry.getValue().join();
+                        if (replacement != null) {
+                            replacementById.put(oneEntry.getKey(), replacement);
+                        }
+                    }
+                    return replacementById;
+                });
+    }
+
+    // Claim should have created the future. If it didn't, we create one, so the caller doesn't crash.
+    private synchronized CompletableFuture<String> getReplacementFuture(String fileHandleId) {
+        return replacementFutureById.computeIfAbsent(fileHandleId, key -> new CompletableFuture<>());
+    }
+
+    /**
+     * Called by an owner that failed after publishing. The zips are flattened into the master zip, even though the
+     * owner's CSV isn't included.
+     *
+     * @param bulkDownloadFileList
+     *         owner's bulk download zips
+     * @param attachmentEntryPrefix
+     *         owner's attachment entry prefix
+     */
+    public synchronized void addOrphanedZips(List<File> bulkDownloadFileList, String attachmentEntryPrefix) {
+        for (File oneBulkDownloadFile : bulkDownloadFileList) {
+            orphanedZipToPrefixMap.put(oneBulkDownloadFile, attachmentEntryPrefix);
+        }
+    }
+
+    /** Bulk download zips from failed owners, mapped to their attachment entry prefix. */
+    public synchronized Map<File, String> getOrphanedZipToPrefixMap() {
+        return new LinkedHashMap<>(orphanedZipToPrefixMap);
+    }
+
+    /** Number of unique file handles claimed, which is the number of attachments downloaded. */
+    public synchronized int getClaimCount() {
+        return claimCount;
+    }
+
+    /** Number of file handle references that were already claimed by another table, and weren't downloaded again. */
+    public synchronized int getSharedCount() {
+        return sharedCount;
+    }
+}
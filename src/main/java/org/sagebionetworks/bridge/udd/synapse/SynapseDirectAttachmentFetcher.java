@@ -0,0 +1,325 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Resource;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import org.sagebionetworks.client.exceptions.SynapseClientException;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.file.FileDownloadSummary;
+import org.sagebionetworks.repo.model.file.FileResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
+
+/**
+ * <p>
+ * Fetches a table's attachments directly, instead of having Synapse bulk download them. A bulk download is an async
+ * job: Synapse zips the attachments server-side, we poll until it's done, download the zip, and copy its entries into
+ * the master zip. For a table with a few dozen attachments, the job round trip dominates.
+ * </p>
+ * <p>
+ * Instead, this gets the file handles' pre-signed URLs in batches (a synchronous call), downloads the attachments in
+ * parallel to spool files, and once they're all downloaded, writes them into the master zip. Staging the table's
+ * attachments first means a fetch that fails partway through leaves nothing in the zip. Downloads go through the
+ * segmented downloader, so they retry and resume the same way. Per-table parallelism is capped by config, and
+ * node-wide parallelism by the size of the fetch executor.
+ * </p>
+ * <p>
+ * Tables are fetched directly only if they have no more than the max number of attachments. Bigger tables still use
+ * bulk download, which batches better.
+ * </p>
+ */
+@Component
+public class SynapseDirectAttachmentFetcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseDirectAttachmentFetcher.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "synapse.attachment.direct.enabled";
+    static final String CONFIG_KEY_MAX_ATTACHMENTS = "synapse.attachment.direct.max.count";
+    static final String CONFIG_KEY_PARALLEL_FETCHES = "synapse.attachment.direct.parallel";
+
+    private boolean enabled;
+    private ExecutorService fetchExecutorService;
+    private FileHelper fileHelper;
+    private int maxAttachments;
+    private int parallelFetches;
+    private SynapseSegmentedDownloader segmentedDownloader;
+    private SynapseHelper synapseHelper;
+
+    /** Bridge config, used to enable direct fetch, and get the max attachments per table and parallelism. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxAttachments = config.getInt(CONFIG_KEY_MAX_ATTACHMENTS);
+        parallelFetches = config.getInt(CONFIG_KEY_PARALLEL_FETCHES);
+    }
+
+    /**
+     * Executor for attachment fetches. Fetches never wait on anything else, so callers on other pools can safely
+     * block on them.
+     */
+    @Resource(name = "synapseAttachmentFetchExecutorService")
+    public final void setFetchExecutorService(ExecutorService fetchExecutorService) {
+        this.fetchExecutorService = fetchExecutorService;
+    }
+
+    /** File helper, used to create and delete the spool files that attachments are downloaded to. */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** Segmented downloader, used to download each attachment from its pre-signed URL. */
+    @Autowired
+    public final void setSegmentedDownloader(SynapseSegmentedDownloader segmentedDownloader) {
+        this.segmentedDownloader = segmentedDownloader;
+    }
+
+    /** Synapse helper, used to get pre-signed URLs. */
+    @Autowired
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /** True if direct fetch is enabled. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** True if a table with the given number of attachments should have them fetched directly. */
+    public boolean shouldFetchDirect(int numAttachments) {
+        return enabled && numAttachments > 0 && numAttachments <= maxAttachments;
+    }
+
+    /**
+     * Fetches the attachments and writes them into the zip. Each attachment's entry name is its file handle ID and
+     * file name (minus any directories), under the entry prefix. Attachments that fail to download are logged and
+     * skipped. If this throws, none of the attachments are in the zip, unless writing to the zip failed partway
+     * through, in which case the zip writer is marked as failed.
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdSet
+     *         file handle IDs to fetch
+     * @param tempDir
+     *         temp dir to spool attachments to, before they're written into the zip
+     * @param zipStreamWriter
+     *         zip to write attachments into
+     * @param entryPrefix
+     *         prefix for the attachments' entry names in the zip
+     * @return file summaries, like a bulk download's, with entry names relative to the entry prefix, or failure
+     *         messages if Synapse refused the file handle; attachments that failed to download have neither
+     * @throws IOException
+     *         if interrupted while waiting for the fetches, or if writing to the zip fails
+     * @throws SynapseException
+     *         if getting the pre-signed URLs fails
+     */
+    public List<FileDownloadSummary> fetch(String synapseTableId, Set<String> fileHandleIdSet, File tempDir,
+            ZipStreamWriter zipStreamWriter, String entryPrefix) throws IOException, SynapseException {
+        Stopwatch fetchStopwatch = Stopwatch.createStarted();
+
+        // Get URLs. IDs are sorted, so batches are deterministic.
+        Map<String, FileResult> fileResultById = new HashMap<>();
+        for (List<String> oneBatch : Iterables.partition(new TreeSet<>(fileHandleIdSet),
+                SynapseHelper.MAX_FILE_HANDLE_URL_BATCH_SIZE)) {
+            for (FileResult oneFileResult : synapseHelper.getFileHandleUrlBatch(synapseTableId, oneBatch)) {
+                fileResultById.put(oneFileResult.getFileHandleId(), oneFileResult);
+            }
+        }
+
+        List<FileDownloadSummary> fileSummaryList = new ArrayList<>();
+        Queue<FileResult> fetchQueue = new ConcurrentLinkedQueue<>();
+        for (String oneFileHandleId : new TreeSet<>(fileHandleIdSet)) {
+            FileResult fileResult = fileResultById.get(oneFileHandleId);
+            if (fileResult == null || fileResult.getFailureCode() != null ||
+                    Strings.isNullOrEmpty(fileResult.getPreSignedURL())) {
+                FileDownloadSummary fileSummary = new FileDownloadSummary();
+                fileSummary.setFileHandleId(oneFileHandleId);
+                fileSummary.setFailureMessage("Error downloading attachment: " + (fileResult != null &&
+                        fileResult.getFailureCode() != null ? fileResult.getFailureCode().name() : "no URL"));
+                fileSummaryList.add(fileSummary);
+            } else {
+                fetchQueue.add(fileResult);
+            }
+        }
+
+        // Fetch, up to the parallel limit at a time. The calling thread fetches too, so a parallel limit of 1 never
+        // touches the executor.
+        int numToFetch = fetchQueue.size();
+        Queue<FetchedAttachment> fetchedQueue = new ConcurrentLinkedQueue<>();
+        Runnable worker = () -> {
+            FileResult fileResult;
+            while ((fileResult = fetchQueue.poll()) != null) {
+                fetchedQueue.add(fetchOne(synapseTableId, fileResult, tempDir));
+            }
+        };
+        List<Future<?>> workerFutureList = new ArrayList<>();
+        try {
+            for (int i = 1; i < Math.min(parallelFetches, numToFetch); i++) {
+                try {
+                    workerFutureList.add(fetchExecutorService.submit(worker));
+                } catch (RejectedExecutionException ex) {
+                    // The calling thread fetches whatever the executor doesn't.
+                    break;
+                }
+            }
+            worker.run();
+
+            for (Future<?> oneWorkerFuture : workerFutureList) {
+                try {
+                    oneWorkerFuture.get();
+                } catch (ExecutionException ex) {
+                    throw new IOException("Error fetching attachments: " + ex.getMessage(), ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted fetching attachments");
+                }
+            }
+
+            // Everything is downloaded. Write to the zip in file handle ID order, so the zip is deterministic.
+            List<FetchedAttachment> fetchedList = new ArrayList<>(fetchedQueue);
+            fetchedList.sort(Comparator.comparing(fetched -> fetched.fileSummary.getFileHandleId()));
+            boolean wroteAny = false;
+            try {
+                for (FetchedAttachment oneFetched : fetchedList) {
+                    if (oneFetched.spoolFile != null) {
+                        zipStreamWriter.addFile(oneFetched.spoolFile, entryPrefix +
+                                oneFetched.fileSummary.getZipEntryName());
+                        wroteAny = true;
+                    }
+                    fileSummaryList.add(oneFetched.fileSummary);
+                }
+            } catch (IOException | RuntimeException ex) {
+                if (wroteAny) {
+                    // Some of this table's attachments are in the zip, but the caller won't know which.
+                    zipStreamWriter.fail();
+                }
+                throw ex;
+            }
+        } finally {
+            // Stop any workers still running, then delete the spool files.
+            for (Future<?> oneWorkerFuture : workerFutureList) {
+                oneWorkerFuture.cancel(true);
+            }
+            for (FetchedAttachment oneFetched : fetchedQueue) {
+                deleteSpoolFile(oneFetched.spoolFile);
+            }
+        }
+
+        LOG.info("Directly fetching " + numToFetch + " of " + fileHandleIdSet.size() +
+                " attachments for synapse table " + synapseTableId + " took " +
+                fetchStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        return fileSummaryList;
+    }
+
+    // Downloads a single attachment to a spool file. Never throws. Instead, failures are logged, and the result has no
+    // spool file, and its summary has no entry name, so the CSV marks the attachment as an error.
+    private FetchedAttachment fetchOne(String synapseTableId, FileResult fileResult, File tempDir) {
+        String fileHandleId = fileResult.getFileHandleId();
+        String fileName = fileResult.getFileHandle() != null ? fileResult.getFileHandle().getFileName() : null;
+        // Like bulk download zips, include the file handle ID, so attachments with the same name don't collide.
+        String zipEntryName = fileHandleId + "/" + sanitizeFileName(fileName, fileHandleId);
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId(fileHandleId);
+        File spoolFile = fileHelper.newFile(tempDir, "attachment-" + fileHandleId);
+        try {
+            // The first round uses the URL we already have. Retry rounds need a fresh one, in case it expired.
+            boolean[] resolved = { false };
+            segmentedDownloader.download(() -> {
+                if (!resolved[0]) {
+                    resolved[0] = true;
+                    return new URL(fileResult.getPreSignedURL());
+                }
+                return resolveUrl(synapseTableId, fileHandleId);
+            }, spoolFile);
+
+            fileSummary.setZipEntryName(zipEntryName);
+            return new FetchedAttachment(fileSummary, spoolFile);
+        } catch (IOException | SynapseException | RuntimeException ex) {
+            LOG.error("Error fetching attachment " + fileHandleId + " for synapse table " + synapseTableId + ": " +
+                    ex.getMessage(), ex);
+            deleteSpoolFile(spoolFile);
+            return new FetchedAttachment(fileSummary, null);
+        }
+    }
+
+    /**
+     * Strips directories from the file name, since it comes from the uploader, and could otherwise escape the
+     * attachment's directory when the zip is extracted. Falls back to the file handle ID if there's nothing left.
+     * Package-scoped to be available in unit tests.
+     */
+    static String sanitizeFileName(String fileName, String fileHandleId) {
+        if (Strings.isNullOrEmpty(fileName)) {
+            return fileHandleId;
+        }
+        String baseName = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        if (baseName.isEmpty() || baseName.equals(".") || baseName.equals("..")) {
+            return fileHandleId;
+        }
+        return baseName;
+    }
+
+    // Deletes the spool file, if it exists. Never throws.
+    private void deleteSpoolFile(File spoolFile) {
+        if (spoolFile == null) {
+            return;
+        }
+        try {
+            if (fileHelper.fileExists(spoolFile)) {
+                fileHelper.deleteFile(spoolFile);
+            }
+        } catch (RuntimeException ex) {
+            LOG.warn("Error deleting spool file " + spoolFile.getPath() + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Gets a fresh pre-signed URL for a single file handle.
+    private URL resolveUrl(String synapseTableId, String fileHandleId) throws IOException, SynapseException {
+        List<FileResult> fileResultList = synapseHelper.getFileHandleUrlBatch(synapseTableId,
+                ImmutableList.of(fileHandleId));
+        if (fileResultList.isEmpty() || Strings.isNullOrEmpty(fileResultList.get(0).getPreSignedURL())) {
+            throw new SynapseClientException("No pre-signed URL for file handle " + fileHandleId);
+        }
+        return new URL(fileResultList.get(0).getPreSignedURL());
+    }
+
+    // A downloaded attachment, waiting to be written into the zip. Spool file is null if the download failed.
+    private static class FetchedAttachment {
+        private final FileDownloadSummary fileSummary;
+        private final File spoolFile;
+
+        FetchedAttachment(FileDownloadSummary fileSummary, File spoolFile) {
+            this.fileSummary = fileSummary;
+            this.spoolFile = spoolFile;
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Range;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
 
 /**
@@ -14,10 +19,16 @@ import org.sagebionetworks.repo.model.file.FileDownloadSummary;
  */
 public class SynapseDownloadFromTableContext {
     private File csvFile;
+    private String csvEntryName;
     private SynapseTableColumnInfo columnInfo;
     private final Set<String> fileHandleIdSet = new HashSet<>();
-    private File bulkDownloadFile;
-    private List<FileDownloadSummary> fileSummaryList;
+    private final List<Range<Long>> attachmentRowSpanList = new ArrayList<>();
+    private final Map<File, List<FileDownloadSummary>> fileSummaryListByBulkDownloadFile = new LinkedHashMap<>();
+    private final List<FileDownloadSummary> directFileSummaryList = new ArrayList<>();
+    private final Set<String> claimedFileHandleIdSet = new HashSet<>();
+    private final Set<String> sharedFileHandleIdSet = new HashSet<>();
+    private final Map<String, String> sharedReplacementMap = new HashMap<>();
+    private char[] editedCsvChars;
     private File editedCsvFile;
 
     /** Downloaded CSV from Synapse. */
@@ -25,9 +36,12 @@ public class SynapseDownloadFromTableContext {
         return csvFile;
     }
 
-    /** The absolute path of the CSV file, used for logging. */
-    public String getCsvFilePath() {
-        return csvFile.getAbsolutePath();
+    /**
+     * Name of the CSV, used for logging. This is the absolute path of the CSV file, or the zip entry name if the CSV is
+     * being streamed.
+     */
+    public String getCsvName() {
+        return csvFile != null ? csvFile.getAbsolutePath() : csvEntryName;
     }
 
     /** @see #getCsvFile */
@@ -35,6 +49,16 @@ public class SynapseDownloadFromTableContext {
         this.csvFile = csvFile;
     }
 
+    /** Name of the zip entry the CSV is streamed to. Null if the CSV isn't being streamed. */
+    public String getCsvEntryName() {
+        return csvEntryName;
+    }
+
+    /** @see #getCsvEntryName */
+    public void setCsvEntryName(String csvEntryName) {
+        this.csvEntryName = csvEntryName;
+    }
+
     /** Info about Synapse table columns, notably the health code column and the file handle columns (if any). */
     public SynapseTableColumnInfo getColumnInfo() {
         return columnInfo;
@@ -50,32 +74,105 @@ public class SynapseDownloadFromTableContext {
         return fileHandleIdSet;
     }
 
-    /** Called by extractFileHandleIdsFromCsv() as it finds file handle IDs in the CSV. */
+    /** Called by scrubRows() as it finds file handle IDs in the CSV. */
     public void addFileHandleIds(String... fileHandleIds) {
         Collections.addAll(fileHandleIdSet, fileHandleIds);
     }
 
-    /** Zip file of Synapse bulk file download. */
-    public File getBulkDownloadFile() {
-        return bulkDownloadFile;
+    /**
+     * Character spans in the edited CSV file of rows that contain file handle IDs, in file order. Each span is
+     * [start, end), where end includes the row's line end.
+     */
+    public List<Range<Long>> getAttachmentRowSpanList() {
+        return attachmentRowSpanList;
+    }
+
+    /** Called by scrubRows() as it writes rows containing file handle IDs. */
+    public void addAttachmentRowSpan(long start, long end) {
+        attachmentRowSpanList.add(Range.closedOpen(start, end));
+    }
+
+    /** Zip files of Synapse bulk file downloads, one per chunk that downloaded successfully, in chunk order. */
+    public List<File> getBulkDownloadFileList() {
+        return new ArrayList<>(fileSummaryListByBulkDownloadFile.keySet());
+    }
+
+    /** File summary lists from Synapse bulk file download API, keyed by the bulk download zip they describe. */
+    public Map<File, List<FileDownloadSummary>> getFileSummaryListByBulkDownloadFile() {
+        return fileSummaryListByBulkDownloadFile;
+    }
+
+    /** Called as each bulk download chunk is downloaded. */
+    public void addBulkDownload(File bulkDownloadFile, List<FileDownloadSummary> fileSummaryList) {
+        fileSummaryListByBulkDownloadFile.put(bulkDownloadFile, fileSummaryList != null ? fileSummaryList :
+                Collections.emptyList());
+    }
+
+    /**
+     * File summaries for attachments that were fetched directly into the master zip, instead of being bulk
+     * downloaded. Zip entry names are relative to the attachment entry prefix.
+     */
+    public List<FileDownloadSummary> getDirectFileSummaryList() {
+        return directFileSummaryList;
+    }
+
+    /** Called when attachments are fetched directly. */
+    public void addDirectDownload(List<FileDownloadSummary> fileSummaryList) {
+        directFileSummaryList.addAll(fileSummaryList);
+    }
+
+    /**
+     * File handle IDs this task claimed in the attachment registry. This task downloads these and publishes their
+     * replacements to the registry.
+     */
+    public Set<String> getClaimedFileHandleIdSet() {
+        return claimedFileHandleIdSet;
+    }
+
+    /**
+     * File handle IDs that other tasks already claimed in the attachment registry. This task doesn't download these,
+     * and gets their replacements from the registry instead.
+     */
+    public Set<String> getSharedFileHandleIdSet() {
+        return sharedFileHandleIdSet;
+    }
+
+    /** Called when the task claims file handles in the attachment registry. */
+    public void addAttachmentClaim(Set<String> claimedFileHandleIds, Set<String> sharedFileHandleIds) {
+        claimedFileHandleIdSet.addAll(claimedFileHandleIds);
+        sharedFileHandleIdSet.addAll(sharedFileHandleIds);
+    }
+
+    /**
+     * Replacements (zip entry name or error message) for shared file handles, keyed by file handle ID, as published by
+     * the tasks that own them.
+     */
+    public Map<String, String> getSharedReplacementMap() {
+        return sharedReplacementMap;
     }
 
-    /** @see #getBulkDownloadFile */
-    public void setBulkDownloadFile(File bulkDownloadFile) {
-        this.bulkDownloadFile = bulkDownloadFile;
+    /** Called when the owners of shared file handles have published their replacements. */
+    public void addSharedReplacements(Map<String, String> replacementById) {
+        sharedReplacementMap.putAll(replacementById);
     }
 
-    /** File summary list from Synapse bulk file download API. */
-    public List<FileDownloadSummary> getFileSummaryList() {
-        return fileSummaryList;
+    /**
+     * In-memory copy of the CSV with health codes stripped out, if it fit in the buffer. Otherwise, this is null, and
+     * the CSV is in {@link #getEditedCsvFile}.
+     */
+    public char[] getEditedCsvChars() {
+        return editedCsvChars;
     }
 
-    /** @see #getFileSummaryList */
-    public void setFileSummaryList(List<FileDownloadSummary> fileSummaryList) {
-        this.fileSummaryList = fileSummaryList;
+    /** @see #getEditedCsvChars */
+    public void setEditedCsvChars(char[] editedCsvChars) {
+        this.editedCsvChars = editedCsvChars;
     }
 
-    /** CSV file with health codes stripped out and file handle IDs replaced with zip entry names. */
+    /**
+     * Spool file with health codes stripped out. Rows with file handle IDs are re-written with zip entry names when
+     * this is copied back into the CSV file.
+     */
     public File getEditedCsvFile() {
         return editedCsvFile;
     }
@@ -6,6 +6,7 @@ import com.google.common.base.Strings;
 import org.joda.time.LocalDate;
 
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
 
 /** Necessary args for downloading user data (query result CSV and attached file handles) from a Synapse table. */
 public class SynapseDownloadFromTableParameters {
@@ -15,16 +16,26 @@ public class SynapseDownloadFromTableParameters {
     private final LocalDate endDate;
     private final File tempDir;
     private final UploadSchema schema;
+    private final ZipStreamWriter zipStreamWriter;
+    private final String attachmentEntryPrefix;
+    private final ZipStreamWriter attachmentZipStreamWriter;
+    private final SynapseAttachmentRegistry attachmentRegistry;
 
     /** Private constructor. To build, use builder. */
     private SynapseDownloadFromTableParameters(String synapseTableId, String healthCode, LocalDate startDate,
-            LocalDate endDate, File tempDir, UploadSchema schema) {
+            LocalDate endDate, File tempDir, UploadSchema schema, ZipStreamWriter zipStreamWriter,
+            String attachmentEntryPrefix, ZipStreamWriter attachmentZipStreamWriter,
+            SynapseAttachmentRegistry attachmentRegistry) {
         this.synapseTableId = synapseTableId;
         this.healthCode = healthCode;
         this.startDate = startDate;
         this.endDate = endDate;
         this.tempDir = tempDir;
         this.schema = schema;
+        this.zipStreamWriter = zipStreamWriter;
+        this.attachmentEntryPrefix = attachmentEntryPrefix;
+        this.attachmentZipStreamWriter = attachmentZipStreamWriter;
+        this.attachmentRegistry = attachmentRegistry;
     }
 
     /** ID of the Synapse table to query against. */
@@ -57,6 +68,41 @@ public class SynapseDownloadFromTableParameters {
         return schema;
     }
 
+    /**
+     * Zip writer to stream the CSV into. If specified, the CSV is read directly from Synapse and written into the zip,
+     * without being downloaded to a temp file. May be null, in which case the CSV is downloaded to the temp dir.
+     */
+    public ZipStreamWriter getZipStreamWriter() {
+        return zipStreamWriter;
+    }
+
+    /**
+     * Prefix that the bulk download's entries will have once they're flattened into the master zip, for example
+     * "my-schema-v1/". Attachment paths in the CSV are rewritten to include this prefix. May be null, in which case the
+     * bulk download zip is included in the master zip as-is, and the CSV refers to entries inside that zip.
+     */
+    public String getAttachmentEntryPrefix() {
+        return attachmentEntryPrefix;
+    }
+
+    /**
+     * Zip writer to fetch attachments directly into. If specified, small sets of attachments may be downloaded and
+     * written into the zip under the attachment entry prefix, instead of being bulk downloaded. May be null, in which
+     * case attachments are always bulk downloaded.
+     */
+    public ZipStreamWriter getAttachmentZipStreamWriter() {
+        return attachmentZipStreamWriter;
+    }
+
+    /**
+     * Registry of attachments for the whole export, shared by all of its table tasks. If specified, attachments that
+     * another table already references are downloaded once, and the CSV points at the other table's zip entry. May be
+     * null, in which case every table downloads all of its attachments.
+     */
+    public SynapseAttachmentRegistry getAttachmentRegistry() {
+        return attachmentRegistry;
+    }
+
     /** Parameter class builder. */
     public static class Builder {
         private String synapseTableId;
@@ -65,6 +111,10 @@ public class SynapseDownloadFromTableParameters {
         private LocalDate endDate;
         private File tempDir;
         private UploadSchema schema;
+        private ZipStreamWriter zipStreamWriter;
+        private String attachmentEntryPrefix;
+        private ZipStreamWriter attachmentZipStreamWriter;
+        private SynapseAttachmentRegistry attachmentRegistry;
 
         /** @see SynapseDownloadFromTableParameters#getSynapseTableId */
         public Builder withSynapseTableId(String synapseTableId) {
@@ -102,6 +152,30 @@ public class SynapseDownloadFromTableParameters {
             return this;
         }
 
+        /** @see SynapseDownloadFromTableParameters#getZipStreamWriter */
+        public Builder withZipStreamWriter(ZipStreamWriter zipStreamWriter) {
+            this.zipStreamWriter = zipStreamWriter;
+            return this;
+        }
+
+        /** @see SynapseDownloadFromTableParameters#getAttachmentEntryPrefix */
+        public Builder withAttachmentEntryPrefix(String attachmentEntryPrefix) {
+            this.attachmentEntryPrefix = attachmentEntryPrefix;
+            return this;
+        }
+
+        /** @see SynapseDownloadFromTableParameters#getAttachmentZipStreamWriter */
+        public Builder withAttachmentZipStreamWriter(ZipStreamWriter attachmentZipStreamWriter) {
+            this.attachmentZipStreamWriter = attachmentZipStreamWriter;
+            return this;
+        }
+
+        /** @see SynapseDownloadFromTableParameters#getAttachmentRegistry */
+        public Builder withAttachmentRegistry(SynapseAttachmentRegistry attachmentRegistry) {
+            this.attachmentRegistry = attachmentRegistry;
+            return this;
+        }
+
         /** Builds the parameters object and validates parameters. */
         public SynapseDownloadFromTableParameters build() {
             if (Strings.isNullOrEmpty(synapseTableId)) {
@@ -132,8 +206,18 @@ public class SynapseDownloadFromTableParameters {
                 throw new IllegalStateException("schema must be specified");
             }
 
+            if (attachmentZipStreamWriter != null && attachmentEntryPrefix == null) {
+                throw new IllegalStateException("attachmentEntryPrefix must be specified if " +
+                        "attachmentZipStreamWriter is specified");
+            }
+
+            if (attachmentRegistry != null && attachmentEntryPrefix == null) {
+                throw new IllegalStateException("attachmentEntryPrefix must be specified if attachmentRegistry is " +
+                        "specified");
+            }
+
             return new SynapseDownloadFromTableParameters(synapseTableId, healthCode, startDate, endDate, tempDir,
-                    schema);
+                    schema, zipStreamWriter, attachmentEntryPrefix, attachmentZipStreamWriter, attachmentRegistry);
         }
     }
 }
@@ -1,16 +1,27 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.util.List;
 
-/** Contains results from the SynapseDownloadFromTableResult. Namely, the CSV file and the bulk download zip file. */
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Contains results from the SynapseDownloadFromTableResult. Namely, the CSV file (or the name of the zip entry the CSV
+ * was streamed to) and the bulk download zip files.
+ */
 public class SynapseDownloadFromTableResult {
     private final File csvFile;
-    private final File bulkDownloadFile;
+    private final String streamedCsvEntryName;
+    private final List<File> bulkDownloadFileList;
+    private final String attachmentEntryPrefix;
 
     /** Private constructor. To construct, use Builder. */
-    private SynapseDownloadFromTableResult(File csvFile, File bulkDownloadFile) {
+    private SynapseDownloadFromTableResult(File csvFile, String streamedCsvEntryName, List<File> bulkDownloadFileList,
+            String attachmentEntryPrefix) {
         this.csvFile = csvFile;
-        this.bulkDownloadFile = bulkDownloadFile;
+        this.streamedCsvEntryName = streamedCsvEntryName;
+        this.bulkDownloadFileList = bulkDownloadFileList;
+        this.attachmentEntryPrefix = attachmentEntryPrefix;
     }
 
     /** CSV file of query against the Synapse table. May be null if the table contained no data for the query. */
@@ -19,17 +30,35 @@ public class SynapseDownloadFromTableResult {
     }
 
     /**
-     * Bulk download zip file of all file handles associated with the CSV. May be null if there are no file handles
-     * associated with the CSV.
+     * Name of the zip entry the CSV was streamed to, if the task was run in streaming mode. May be null if the table
+     * contained no data for the query, or if the task wasn't run in streaming mode.
+     */
+    public String getStreamedCsvEntryName() {
+        return streamedCsvEntryName;
+    }
+
+    /**
+     * Bulk download zip files of the file handles associated with the CSV. Large sets of file handles are bulk
+     * downloaded in chunks, one zip per chunk. Empty if there are no file handles associated with the CSV. Never null.
      */
-    public File getBulkDownloadFile() {
-        return bulkDownloadFile;
+    public List<File> getBulkDownloadFileList() {
+        return bulkDownloadFileList;
+    }
+
+    /**
+     * Prefix the CSV's attachment paths were written with. If specified, the bulk download's entries should be copied
+     * into the master zip under this prefix, rather than including the bulk download zip as-is. May be null.
+     */
+    public String getAttachmentEntryPrefix() {
+        return attachmentEntryPrefix;
     }
 
     /** Builder for the SynapseDownloadFromTableResult. */
     public static class Builder {
         private File csvFile;
-        private File bulkDownloadFile;
+        private String streamedCsvEntryName;
+        private List<File> bulkDownloadFileList;
+        private String attachmentEntryPrefix;
 
         /** @see SynapseDownloadFromTableResult#getCsvFile */
         public Builder withCsvFile(File csvFile) {
@@ -37,16 +66,31 @@ public class SynapseDownloadFromTableResult {
             return this;
         }
 
-        /** @see SynapseDownloadFromTableResult#getBulkDownloadFile */
-        public Builder withBulkDownloadFile(File bulkDownloadFile) {
-            this.bulkDownloadFile = bulkDownloadFile;
+        /** @see SynapseDownloadFromTableResult#getStreamedCsvEntryName */
+        public Builder withStreamedCsvEntryName(String streamedCsvEntryName) {
+            this.streamedCsvEntryName = streamedCsvEntryName;
+            return this;
+        }
+
+        /** @see SynapseDownloadFromTableResult#getBulkDownloadFileList */
+        public Builder withBulkDownloadFileList(List<File> bulkDownloadFileList) {
+            this.bulkDownloadFileList = bulkDownloadFileList;
+            return this;
+        }
+
+        /** @see SynapseDownloadFromTableResult#getAttachmentEntryPrefix */
+        public Builder withAttachmentEntryPrefix(String attachmentEntryPrefix) {
+            this.attachmentEntryPrefix = attachmentEntryPrefix;
             return this;
         }
 
         /** Builds the SynapseDownloadFromTableResult. */
         public SynapseDownloadFromTableResult build() {
-            // No need to validate, since either field can be null.
-            return new SynapseDownloadFromTableResult(csvFile, bulkDownloadFile);
+            // No need to validate, since any field can be null. Bulk download file list defaults to empty.
+            List<File> bulkDownloadFileListCopy = bulkDownloadFileList != null ?
+                    ImmutableList.copyOf(bulkDownloadFileList) : ImmutableList.of();
+            return new SynapseDownloadFromTableResult(csvFile, streamedCsvEntryName, bulkDownloadFileListCopy,
+                    attachmentEntryPrefix);
         }
     }
 }
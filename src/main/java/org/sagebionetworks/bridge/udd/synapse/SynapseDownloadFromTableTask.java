@@ -1,20 +1,42 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 
 import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.base.Charsets;
 import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Range;
+import com.google.common.collect.Sets;
+import com.google.common.io.CharStreams;
+import org.joda.time.LocalDate;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
@@ -25,16 +47,31 @@ import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
 
 /**
+ * <p>
  * A one-shot asynchronous task to query a Synapse table and download the CSV. This task returns the struct of files
  * downloaded. This includes the CSV (if the query pulls data from the table) and a ZIP with the attached file handles
- * (if there are any).
+ * (if there are any). If a zip writer is specified in the params, the CSV is streamed into the zip instead of being
+ * returned as a file. The streamed CSV is buffered in memory until it's ready to be written to the zip, and only
+ * spills to disk if it's bigger than the max buffer size. If a query batcher is set, the query is batched with other users' queries for the same table,
+ * and the CSV is always returned as a file. Likewise, if the shard planner splits the date range, the shards are
+ * queried in parallel and concatenated into a file.
+ * </p>
+ * <p>
+ * The task is made of stages: query, download (or stream) the CSV, scrub the CSV, bulk download attachments, and
+ * edit the CSV. {@link #call} runs the stages one after another on the calling thread. {@link #executeAsync} runs
+ * them as a graph of futures instead, so Synapse async waits don't hold a thread, network stages run on a network
+ * executor, and CSV processing runs on a CPU executor. This lets one table's CSV rewrite overlap another table's bulk
+ * download.
+ * </p>
  */
 public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFromTableResult> {
     private static final Logger LOG = LoggerFactory.getLogger(SynapseDownloadFromTableTask.class);
 
     private static final String COL_HEALTH_CODE = "healthCode";
+    private static final int COPY_BUFFER_SIZE = 8192;
     private static final String ERROR_DOWNLOADING_ATTACHMENT = "Unknown error downloading attachment";
     private static final String QUERY_TEMPLATE =
             "SELECT * FROM %s WHERE healthCode = '%s' AND uploadDate >= '%s' AND uploadDate <= '%s'";
@@ -45,7 +82,13 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
 
     // Helpers and config objects. Originates from Spring configs and is passed in through setters using a similar
     // pattern.
+    private SynapseAttachmentCache attachmentCache;
+    private int bulkDownloadChunkSize;
+    private SynapseDirectAttachmentFetcher directAttachmentFetcher;
     private FileHelper fileHelper;
+    private int maxCsvBufferChars;
+    private SynapseQueryBatcher queryBatcher;
+    private SynapseQueryShardPlanner shardPlanner;
     private SynapseHelper synapseHelper;
 
     /**
@@ -58,6 +101,31 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         this.params = params;
     }
 
+    /**
+     * Attachment cache. Optional. If set, cached attachments are linked into the temp dir instead of being bulk
+     * downloaded, and attachments that are bulk downloaded are added to the cache. Each cached attachment becomes its
+     * own zip, so this should only be set if attachments are flattened into the master zip.
+     */
+    public final void setAttachmentCache(SynapseAttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
+    /**
+     * Max number of file handles per bulk download request. Larger sets of file handles are split into chunks, which
+     * are bulk downloaded in parallel, one zip per chunk. Zero or negative means no limit, which is the default.
+     */
+    public final void setBulkDownloadChunkSize(int bulkDownloadChunkSize) {
+        this.bulkDownloadChunkSize = bulkDownloadChunkSize;
+    }
+
+    /**
+     * Direct attachment fetcher. Optional. If set, and the params have an attachment zip writer, tables with few
+     * enough attachments have them fetched directly into the master zip instead of bulk downloaded.
+     */
+    public final void setDirectAttachmentFetcher(SynapseDirectAttachmentFetcher directAttachmentFetcher) {
+        this.directAttachmentFetcher = directAttachmentFetcher;
+    }
+
     /**
      * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
      * system.
@@ -66,6 +134,31 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         this.fileHelper = fileHelper;
     }
 
+    /**
+     * Max size, in chars, of a streamed CSV to keep in memory. Streamed CSVs bigger than this are spilled to a spool
+     * file. Zero or negative means streamed CSVs always spill, which is the default. CSVs that were downloaded to a
+     * file always spill, since they're already on disk.
+     */
+    public final void setMaxCsvBufferChars(int maxCsvBufferChars) {
+        this.maxCsvBufferChars = maxCsvBufferChars;
+    }
+
+    /**
+     * Query batcher. Optional. If set, the table is queried in a batch with other users, and the batcher writes this
+     * user's rows to the CSV file.
+     */
+    public final void setQueryBatcher(SynapseQueryBatcher queryBatcher) {
+        this.queryBatcher = queryBatcher;
+    }
+
+    /**
+     * Shard planner. Optional. If set, large queries are split into date range shards, and all query times are
+     * reported back to the planner.
+     */
+    public final void setShardPlanner(SynapseQueryShardPlanner shardPlanner) {
+        this.shardPlanner = shardPlanner;
+    }
+
     /** Synapse helper, used to download CSV and bulk file download from Synapse. */
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
@@ -80,57 +173,313 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
     @Override
     public SynapseDownloadFromTableResult call() throws AsyncTaskExecutionException {
         try {
-            downloadCsv();
-            if (filterNoDataCsvFiles()) {
+            boolean noData;
+            if (queryBatcher != null) {
+                queryBatched();
+                noData = spoolCsv();
+            } else {
+                List<Range<LocalDate>> shardList = planShards();
+                if (shardList.size() > 1) {
+                    concatShards(join(queryShardsAsync(shardList)));
+                    noData = spoolCsv();
+                } else {
+                    String csvFileHandleId = queryCsvFileHandle();
+                    if (params.getZipStreamWriter() != null) {
+                        noData = streamCsv(csvFileHandleId);
+                    } else {
+                        downloadCsv(csvFileHandleId);
+                        noData = spoolCsv();
+                    }
+                }
+            }
+            if (noData) {
                 // return an empty result, to signify no data
                 return new SynapseDownloadFromTableResult.Builder().build();
             }
-            getColumnInfoFromCsv();
 
-            if (ctx.getColumnInfo().getFileHandleColumnIndexSet().isEmpty()) {
-                LOG.info("No file handles columns in file " + ctx.getCsvFilePath() +
-                        ". Skipping extracting and downloading file handles.");
+            if (needsBulkDownload()) {
+                fetchAttachments();
+            }
+
+            return finishCsv();
+        } catch (AsyncTaskExecutionException | RuntimeException ex) {
+            // Cleanup files. No need to leave garbage behind.
+            cleanupFiles();
+            throw ex;
+        }
+    }
+
+    /**
+     * <p>
+     * Executes the task as a graph of stages, and returns immediately. Waiting for Synapse to finish the query and
+     * bulk download doesn't hold any thread. Downloading the CSV, streaming the CSV, and downloading the bulk download
+     * run on the network executor. Scrubbing and editing the CSV run on the CPU executor. Stages for a single table
+     * still run one at a time, so the task context never needs locking.
+     * </p>
+     * <p>
+     * The returned future behaves like a Future from an ExecutorService: get() returns the same result as
+     * {@link #call}, or throws an ExecutionException wrapping the same exception. Files are cleaned up before the
+     * future completes exceptionally.
+     * </p>
+     *
+     * @param networkExecutor
+     *         executor for stages that wait on the network
+     * @param cpuExecutor
+     *         executor for CPU-bound CSV processing
+     * @return future of the list of files downloaded
+     */
+    public CompletableFuture<SynapseDownloadFromTableResult> executeAsync(Executor networkExecutor,
+            Executor cpuExecutor) {
+        CompletableFuture<Boolean> noDataFuture;
+        if (queryBatcher != null) {
+            noDataFuture = queryBatchedAsync().thenApplyAsync(unchecked(ignored -> spoolCsv()), cpuExecutor);
+            return finishAsync(noDataFuture, networkExecutor, cpuExecutor);
+        }
+
+        List<Range<LocalDate>> shardList = planShards();
+        if (shardList.size() > 1) {
+            // Like the single query, start the shard queries on the network executor.
+            noDataFuture = CompletableFuture.supplyAsync(() -> queryShardsAsync(shardList), networkExecutor)
+                    .thenCompose(future -> future).thenApplyAsync(unchecked(csvFileHandleIdList -> {
+                        concatShards(csvFileHandleIdList);
+                        return null;
+                    }), networkExecutor).thenApplyAsync(unchecked(ignored -> spoolCsv()), cpuExecutor);
+            return finishAsync(noDataFuture, networkExecutor, cpuExecutor);
+        }
+
+        // Starting the query is a Synapse call, so don't do it on the caller's thread.
+        CompletableFuture<String> queryFuture = CompletableFuture.supplyAsync(this::queryCsvFileHandleAsync,
+                networkExecutor).thenCompose(future -> future);
+
+        if (params.getZipStreamWriter() != null) {
+            noDataFuture = queryFuture.thenApplyAsync(unchecked(this::streamCsv), networkExecutor);
+        } else {
+            noDataFuture = queryFuture.thenApplyAsync(unchecked(csvFileHandleId -> {
+                downloadCsv(csvFileHandleId);
+                return null;
+            }), networkExecutor).thenApplyAsync(unchecked(ignored -> spoolCsv()), cpuExecutor);
+        }
+        return finishAsync(noDataFuture, networkExecutor, cpuExecutor);
+    }
+
+    // Rest of the async stage graph, after the CSV has been spooled or streamed: bulk download, then edit the CSV.
+    private CompletableFuture<SynapseDownloadFromTableResult> finishAsync(CompletableFuture<Boolean> noDataFuture,
+            Executor networkExecutor, Executor cpuExecutor) {
+        return noDataFuture.thenComposeAsync(noData -> {
+            if (noData) {
+                // return an empty result, to signify no data
+                return CompletableFuture.completedFuture(new SynapseDownloadFromTableResult.Builder().build());
+            }
+
+            CompletableFuture<Void> bulkDownloadFuture;
+            if (needsBulkDownload()) {
+                bulkDownloadFuture = fetchAttachmentsAsync(networkExecutor);
             } else {
-                extractFileHandleIdsFromCsv();
+                bulkDownloadFuture = CompletableFuture.completedFuture(null);
+            }
+            return bulkDownloadFuture.thenApplyAsync(unchecked(ignored -> finishCsv()), cpuExecutor);
+        }, networkExecutor).whenComplete((result, ex) -> {
+            if (ex != null) {
+                // Cleanup files. No need to leave garbage behind.
+                cleanupFiles();
+            }
+        });
+    }
 
-                if (ctx.getFileHandleIdSet().isEmpty()) {
-                    // This is rare but possible.
-                    LOG.info("No file handles to download for file " + ctx.getCsvFilePath() +
-                            ". Skipping downloading file handles.");
-                } else {
-                    bulkDownloadFileHandles();
+    /** Queries the Synapse table based on the params and returns the file handle ID of the resulting CSV. */
+    private String queryCsvFileHandle() throws AsyncTaskExecutionException {
+        String synapseTableId = params.getSynapseTableId();
+        Stopwatch queryStopwatch = Stopwatch.createStarted();
+        try {
+            return synapseHelper.generateFileHandleFromTableQuery(getQuery(params.getStartDate(),
+                    params.getEndDate()), synapseTableId, params.getHealthCode(),
+                    getQueryTimeRecorder(params.getStartDate(), params.getEndDate()));
+        } catch (AsyncTimeoutException | SynapseException ex) {
+            throw new AsyncTaskExecutionException("Error querying synapse table " + synapseTableId + ": " +
+                    ex.getMessage(), ex);
+        } finally {
+            logQueryTime(queryStopwatch);
+        }
+    }
+
+    /** Async version of {@link #queryCsvFileHandle}. Failures complete the future with the same exception. */
+    private CompletableFuture<String> queryCsvFileHandleAsync() {
+        String synapseTableId = params.getSynapseTableId();
+        Stopwatch queryStopwatch = Stopwatch.createStarted();
+        return synapseHelper.generateFileHandleFromTableQueryAsync(getQuery(params.getStartDate(),
+                params.getEndDate()), synapseTableId, params.getHealthCode(), getQueryTimeRecorder(
+                params.getStartDate(), params.getEndDate())).handle((csvFileHandleId, ex) -> {
+            logQueryTime(queryStopwatch);
+            if (ex != null) {
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                throw new CompletionException(new AsyncTaskExecutionException("Error querying synapse table " +
+                        synapseTableId + ": " + cause.getMessage(), cause));
+            }
+            return csvFileHandleId;
+        });
+    }
+
+    /**
+     * Batched version of {@link #queryCsvFileHandle} and {@link #downloadCsv}. Waits for the batcher to write this
+     * user's rows to the CSV file.
+     */
+    private void queryBatched() throws AsyncTaskExecutionException {
+        join(queryBatchedAsync());
+    }
+
+    /**
+     * Async version of {@link #queryBatched}. This writes to {@link SynapseDownloadFromTableContext#setCsvFile} up
+     * front, so the file is cleaned up even if the batch fails partway through writing it.
+     */
+    private CompletableFuture<Void> queryBatchedAsync() {
+        String synapseTableId = params.getSynapseTableId();
+        File csvFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() + ".csv");
+        ctx.setCsvFile(csvFile);
+
+        Stopwatch queryStopwatch = Stopwatch.createStarted();
+        return queryBatcher.queryUserCsv(synapseTableId, params.getHealthCode(), params.getStartDate(),
+                params.getEndDate(), csvFile).handle((ignored, ex) -> {
+            logQueryTime(queryStopwatch);
+            if (ex != null) {
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                throw new CompletionException(new AsyncTaskExecutionException("Error querying synapse table " +
+                        synapseTableId + " in batch: " + cause.getMessage(), cause));
+            }
+            return null;
+        });
+    }
+
+    // Splits the date range into shards, if there's a shard planner. Otherwise, the whole range is one shard.
+    private List<Range<LocalDate>> planShards() {
+        if (shardPlanner == null) {
+            return ImmutableList.of(Range.closed(params.getStartDate(), params.getEndDate()));
+        }
+        return shardPlanner.planShards(params.getSynapseTableId(), params.getStartDate(), params.getEndDate());
+    }
+
+    /**
+     * Queries each shard's date range in parallel. The returned future completes with the CSV file handle IDs, in
+     * shard order, or completes exceptionally with the first shard's error.
+     */
+    private CompletableFuture<List<String>> queryShardsAsync(List<Range<LocalDate>> shardList) {
+        String synapseTableId = params.getSynapseTableId();
+        List<CompletableFuture<String>> shardFutureList = new ArrayList<>();
+        for (Range<LocalDate> oneShard : shardList) {
+            LocalDate shardStart = oneShard.lowerEndpoint();
+            LocalDate shardEnd = oneShard.upperEndpoint();
+            Stopwatch shardStopwatch = Stopwatch.createStarted();
+            CompletableFuture<String> queryFuture = synapseHelper.generateFileHandleFromTableQueryAsync(getQuery(
+                    shardStart, shardEnd), synapseTableId, params.getHealthCode(), getQueryTimeRecorder(shardStart,
+                    shardEnd));
+            shardFutureList.add(queryFuture.handle((csvFileHandleId, ex) -> {
+                shardStopwatch.stop();
+                LOG.info("Querying synapse table " + synapseTableId + " from " + shardStart + " to " + shardEnd +
+                        " took " + shardStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+                if (ex != null) {
+                    Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                    throw new CompletionException(new AsyncTaskExecutionException("Error querying synapse table " +
+                            synapseTableId + " from " + shardStart + " to " + shardEnd + ": " + cause.getMessage(),
+                            cause));
+                }
+                return csvFileHandleId;
+            }));
+        }
+
+        return CompletableFuture.allOf(shardFutureList.toArray(new CompletableFuture[shardFutureList.size()]))
+                .thenApply(ignored -> shardFutureList.stream().map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * Sharded version of {@link #downloadCsv}. Streams each shard's CSV, in order, into a single CSV file with one
+     * header row. This writes to {@link SynapseDownloadFromTableContext#setCsvFile} before writing the file, so a
+     * partial file is cleaned up on failure.
+     */
+    private void concatShards(List<String> csvFileHandleIdList) throws AsyncTaskExecutionException {
+        String synapseTableId = params.getSynapseTableId();
+        File csvFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() + ".csv");
+        ctx.setCsvFile(csvFile);
+
+        Stopwatch concatStopwatch = Stopwatch.createStarted();
+        try (Writer csvFileWriter = fileHelper.getWriter(csvFile)) {
+            CsvRowFormatter rowFormatter = new CsvRowFormatter();
+            boolean wroteHeader = false;
+            for (String oneCsvFileHandleId : csvFileHandleIdList) {
+                try (CSVReader shardReader = new CSVReader(new BufferedReader(new InputStreamReader(
+                        synapseHelper.openFileHandleStream(oneCsvFileHandleId), Charsets.UTF_8)))) {
+                    String[] headerRow = shardReader.readNext();
+                    if (headerRow == null) {
+                        continue;
+                    }
+                    if (!wroteHeader) {
+                        csvFileWriter.write(rowFormatter.format(headerRow));
+                        wroteHeader = true;
+                    }
+
+                    String[] row;
+                    while ((row = shardReader.readNext()) != null) {
+                        csvFileWriter.write(rowFormatter.format(row));
+                    }
                 }
             }
+        } catch (IOException | SynapseException ex) {
+            throw new AsyncTaskExecutionException("Error downloading synapse table " + synapseTableId +
+                    " shards to file " + ctx.getCsvName() + ": " + ex.getMessage(), ex);
+        } finally {
+            concatStopwatch.stop();
+            LOG.info("Downloading " + csvFileHandleIdList.size() + " shards from synapse table " + synapseTableId +
+                    " to file " + ctx.getCsvName() + " took " + concatStopwatch.elapsed(TimeUnit.MILLISECONDS) +
+                    " ms");
+        }
+    }
 
-            editCsv();
+    // Listener that reports the query's Synapse job time to the shard planner, or null if there's no shard planner.
+    // This is the time from getting the query permit until the job completes, so time spent waiting for a permit
+    // isn't mistaken for query cost.
+    private LongConsumer getQueryTimeRecorder(LocalDate startDate, LocalDate endDate) {
+        if (shardPlanner == null) {
+            return null;
+        }
+        return jobMillis -> shardPlanner.recordQueryTime(params.getSynapseTableId(), startDate, endDate, jobMillis);
+    }
 
-            return new SynapseDownloadFromTableResult.Builder().withCsvFile(ctx.getCsvFile())
-                    .withBulkDownloadFile(ctx.getBulkDownloadFile()).build();
-        } catch (AsyncTaskExecutionException | RuntimeException ex) {
-            // Cleanup files. No need to leave garbage behind.
-            cleanupFiles();
+    // Generates the Synapse query for the given date range from the params.
+    private String getQuery(LocalDate startDate, LocalDate endDate) {
+        return String.format(QUERY_TEMPLATE, params.getSynapseTableId(), params.getHealthCode(), startDate, endDate);
+    }
+
+    // Waits for a stage, and rethrows AsyncTaskExecutionExceptions as-is.
+    private static <T> T join(CompletableFuture<T> future) throws AsyncTaskExecutionException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof AsyncTaskExecutionException) {
+                throw (AsyncTaskExecutionException) ex.getCause();
+            }
             throw ex;
         }
     }
 
+    private void logQueryTime(Stopwatch queryStopwatch) {
+        queryStopwatch.stop();
+        LOG.info("Querying synapse table " + params.getSynapseTableId() + " took " +
+                queryStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+    }
+
     /**
-     * Queries a Synapse table based on the params and downloads the result as a CSV. This method reads all params
-     * (except schema) from {@link SynapseDownloadFromTableParameters} to generate the query and writes the resulting
-     * CSV to {@link SynapseDownloadFromTableContext#setCsvFile}.
+     * Downloads the query results as a CSV. This method reads from {@link SynapseDownloadFromTableParameters} and
+     * writes the resulting CSV to {@link SynapseDownloadFromTableContext#setCsvFile}.
      */
-    private void downloadCsv() throws AsyncTaskExecutionException {
+    private void downloadCsv(String csvFileHandleId) throws AsyncTaskExecutionException {
         String synapseTableId = params.getSynapseTableId();
         File csvFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() + ".csv");
         String csvFilePath = csvFile.getAbsolutePath();
 
         Stopwatch downloadCsvStopwatch = Stopwatch.createStarted();
         try {
-            String query = String.format(QUERY_TEMPLATE, synapseTableId, params.getHealthCode(), params.getStartDate(),
-                    params.getEndDate());
-            String csvFileHandleId = synapseHelper.generateFileHandleFromTableQuery(query, synapseTableId);
             synapseHelper.downloadFileHandle(csvFileHandleId, csvFile);
             ctx.setCsvFile(csvFile);
-        } catch (AsyncTimeoutException | SynapseException ex) {
+        } catch (SynapseException ex) {
             throw new AsyncTaskExecutionException("Error downloading synapse table " + synapseTableId + " to file " +
                     csvFilePath + ": " + ex.getMessage(), ex);
         } finally {
@@ -142,198 +491,636 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
 
     /**
      * <p>
-     * Sometimes, a Synapse table contains no data for the given user and time range. This method counts the lines in
-     * the file to determine if that is the case. If there aren't at least 2 lines (header row plus at least one data
-     * row), we filter out the file. (The actual filtering is done by the caller. We simply return true if we should
-     * filter.)
+     * Streaming version of {@link #downloadCsv} and {@link #spoolCsv}. This reads the query's CSV directly from the
+     * file handle's temporary URL, without downloading it to a temp file.
+     * </p>
+     * <p>
+     * The scrubbed CSV is buffered in memory (or spilled to the spool file, if it's too big), and {@link #editCsv}
+     * writes the zip entry later. This keeps the network read outside the zip writer, which is shared by all tables, so a slow or failed read from Synapse
+     * doesn't hold up other tables or leave a truncated entry in the zip. Tables with file handle columns also need
+     * the bulk download results before the file handle IDs can be rewritten.
+     * </p>
+     * <p>
+     * This method reads from {@link SynapseDownloadFromTableParameters} and writes the results to
+     * {@link SynapseDownloadFromTableContext#setCsvEntryName}, plus all the outputs of {@link #scrubRows}.
+     * </p>
+     *
+     * @return true if there's no user data
+     */
+    private boolean streamCsv(String csvFileHandleId) throws AsyncTaskExecutionException {
+        String synapseTableId = params.getSynapseTableId();
+        String csvEntryName = params.getSchema().getKey().toString() + ".csv";
+        ctx.setCsvEntryName(csvEntryName);
+
+        boolean noData = false;
+        Stopwatch streamCsvStopwatch = Stopwatch.createStarted();
+        try (CSVReader csvReader = new CSVReader(new BufferedReader(new InputStreamReader(
+                synapseHelper.openFileHandleStream(csvFileHandleId), Charsets.UTF_8)))) {
+            // Peek the header and first row, so we don't write anything if there's no data.
+            String[] headerRow = csvReader.readNext();
+            String[] firstRow = headerRow != null ? csvReader.readNext() : null;
+            if (firstRow == null) {
+                noData = true;
+            } else {
+                ctx.setColumnInfo(getColumnInfoFromHeader(headerRow));
+                spillRows(csvReader, headerRow, firstRow, maxCsvBufferChars);
+            }
+        } catch (IOException | SynapseException ex) {
+            throw new AsyncTaskExecutionException("Error streaming synapse table " + synapseTableId + " to zip entry " +
+                    csvEntryName + ": " + ex.getMessage(), ex);
+        } finally {
+            streamCsvStopwatch.stop();
+            LOG.info("Streaming from synapse table " + synapseTableId + " to zip entry " + csvEntryName + " took " +
+                    streamCsvStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+
+        if (noData) {
+            LOG.info("No user data found for synapse table " + synapseTableId + ". Short-circuiting.");
+            ctx.setCsvEntryName(null);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * <p>
+     * Single streaming pass over the downloaded CSV, which scrubs the rows into a spool file (see {@link #scrubRows}).
      * </p>
      * <p>
-     * This method reads from {@link SynapseDownloadFromTableContext#getCsvFile} and doesn't write anything back to
-     * the context.
+     * Sometimes, a Synapse table contains no data for the given user and time range. If there isn't at least one row
+     * after the header row, we return true, to signal the caller to short-circuit.
+     * </p>
+     * <p>
+     * This method reads from {@link SynapseDownloadFromTableContext#getCsvFile}.
      * </p>
      *
      * @return true if the file should be filtered because there's no user data
      */
-    private boolean filterNoDataCsvFiles() throws AsyncTaskExecutionException {
-        int numLines = 0;
-        try (BufferedReader csvFileReader = fileHelper.getReader(ctx.getCsvFile())) {
-            while (csvFileReader.readLine() != null) {
-                numLines++;
-                if (numLines >= 2) {
-                    // We only need to read 2 lines (1 header, 1 user data). Now that we've read 2 lines, we can
-                    // short-circuit
-                    return false;
-                }
+    private boolean spoolCsv() throws AsyncTaskExecutionException {
+        boolean noData = false;
+        Stopwatch spoolCsvStopwatch = Stopwatch.createStarted();
+        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(ctx.getCsvFile()))) {
+            // Get the header row and the first row. If either is missing, there's no data.
+            String[] headerRow = csvFileReader.readNext();
+            String[] firstRow = headerRow != null ? csvFileReader.readNext() : null;
+            if (firstRow == null) {
+                noData = true;
+            } else {
+                ctx.setColumnInfo(getColumnInfoFromHeader(headerRow));
+                spillRows(csvFileReader, headerRow, firstRow, 0);
             }
         } catch (IOException ex) {
-            throw new AsyncTaskExecutionException("Error counting lines for file " + ctx.getCsvFilePath() + ": " +
+            throw new AsyncTaskExecutionException("Error spooling file " + ctx.getCsvName() + ": " +
                     ex.getMessage(), ex);
+        } finally {
+            spoolCsvStopwatch.stop();
+            LOG.info("Spooling file " + ctx.getCsvName() + " took " +
+                    spoolCsvStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
 
-        // If we make it this far, it's because we didn't read 2 lines. So there's no user data.
-        LOG.info("No user data found for file " + ctx.getCsvFilePath() + ". Short-circuiting.");
+        if (noData) {
+            // If we make it this far, it's because we didn't read any rows after the header. So there's no user data.
+            LOG.info("No user data found for file " + ctx.getCsvName() + ". Short-circuiting.");
 
-        // cleanup files, since there's no data to keep around anyway
-        cleanupFiles();
+            // cleanup files, since there's no data to keep around anyway
+            cleanupFiles();
+            return true;
+        }
 
-        return true;
+        return false;
     }
 
     /**
-     * Get file handle column indexes. This will tell us if we need to download file handles and inject the paths
-     * into the CSV. This method reads from {@link SynapseDownloadFromTableParameters#getSchema} and
-     * {@link SynapseDownloadFromTableContext#getCsvFile} and writes the results to
-     * {@link SynapseDownloadFromTableContext#setColumnInfo}.
+     * Scrubs the rows into memory, up to the given number of chars. If the CSV is bigger than that, everything is
+     * spilled to the spool file instead. This writes to {@link SynapseDownloadFromTableContext#setEditedCsvChars} or
+     * {@link SynapseDownloadFromTableContext#setEditedCsvFile}, plus all the outputs of {@link #scrubRows}.
      */
-    private void getColumnInfoFromCsv() throws AsyncTaskExecutionException {
-        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(ctx.getCsvFile()))) {
-            // Get first row, the header row. Because of our previous check, we know this row must exist.
-            String[] headerRow = csvFileReader.readNext();
-
-            // Iterate through the headers. Identify relevant fields.
-            SynapseTableColumnInfo.Builder colInfoBuilder = new SynapseTableColumnInfo.Builder();
-            Map<String, String> fieldTypeMap = params.getSchema().getFieldTypeMap();
-            for (int i = 0; i < headerRow.length; i++) {
-                String oneFieldName = headerRow[i];
-                if (COL_HEALTH_CODE.equals(oneFieldName)) {
-                    // Health code. Definitely not file handle ID.
-                    colInfoBuilder.withHealthCodeColumnIndex(i);
-                } else {
-                    String bridgeType = fieldTypeMap.get(oneFieldName);
-                    if (bridgeType != null && UploadSchema.ATTACHMENT_TYPE_SET.contains(bridgeType)) {
-                        colInfoBuilder.addFileHandleColumnIndex(i);
-                    }
-                }
+    private void spillRows(CSVReader csvReader, String[] headerRow, String[] firstRow, int maxBufferChars)
+            throws IOException {
+        try (SpillingWriter spillingWriter = new SpillingWriter(maxBufferChars)) {
+            scrubRows(csvReader, headerRow, firstRow, spillingWriter);
+            if (ctx.getEditedCsvFile() == null) {
+                ctx.setEditedCsvChars(spillingWriter.buffer.toCharArray());
             }
-            ctx.setColumnInfo(colInfoBuilder.build());
-        } catch (IOException ex) {
-            throw new AsyncTaskExecutionException("Error getting column indices from headers from file " +
-                    ctx.getCsvFilePath() + ": " + ex.getMessage(), ex);
         }
     }
 
     /**
-     * This method extracts file handle IDs from the CSV file. This method reads from
-     * {@link SynapseDownloadFromTableContext#getCsvFile} and {@link SynapseDownloadFromTableContext#getColumnInfo} and
-     * writes the results to {@link SynapseDownloadFromTableContext#addFileHandleIds}.
+     * <p>
+     * Writes the header row, the first row, and the rest of the rows from the reader to the writer. As it goes, this
+     * clears health codes and collects file handle IDs. Rows that contain file handle IDs are written as-is (minus
+     * health code) and their character spans are recorded, so that {@link #editCsv} only needs to re-parse those rows,
+     * rather than the whole file.
+     * </p>
+     * <p>
+     * This method reads from {@link SynapseDownloadFromTableContext#getColumnInfo} and writes the results to
+     * {@link SynapseDownloadFromTableContext#addFileHandleIds} and
+     * {@link SynapseDownloadFromTableContext#addAttachmentRowSpan}.
+     * </p>
      */
-    private void extractFileHandleIdsFromCsv() throws AsyncTaskExecutionException {
+    private void scrubRows(CSVReader csvReader, String[] headerRow, String[] firstRow, Writer writer)
+            throws IOException {
+        int healthCodeIdx = ctx.getColumnInfo().getHealthCodeColumnIndex();
         Set<Integer> fileHandleColIdxSet = ctx.getColumnInfo().getFileHandleColumnIndexSet();
 
-        Stopwatch extractFileHandlesStopwatch = Stopwatch.createStarted();
-        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(ctx.getCsvFile()))) {
-            // Skip header row. We've already processed it.
-            csvFileReader.readNext();
+        // Each row is formatted to a string first, so we can keep track of character offsets in the output.
+        CsvRowFormatter rowFormatter = new CsvRowFormatter();
+        long offset = writeString(writer, rowFormatter.format(headerRow), 0);
 
-            // Iterate through the rows. Using the col idx set, identify file handle IDs.
-            String[] row;
-            while ((row = csvFileReader.readNext()) != null) {
-                for (int oneFileHandleColIdx : fileHandleColIdxSet) {
-                    String fileHandleId = row[oneFileHandleColIdx];
-                    if (!Strings.isNullOrEmpty(fileHandleId)) {
-                        ctx.addFileHandleIds(fileHandleId);
-                    }
+        // Iterate through the rows.
+        String[] row = firstRow;
+        while (row != null) {
+            // Clear health code.
+            row[healthCodeIdx] = null;
+
+            // Using the col idx set, identify file handle IDs.
+            boolean hasFileHandle = false;
+            for (int oneFileHandleColIdx : fileHandleColIdxSet) {
+                String fileHandleId = row[oneFileHandleColIdx];
+                if (!Strings.isNullOrEmpty(fileHandleId)) {
+                    ctx.addFileHandleIds(fileHandleId);
+                    hasFileHandle = true;
                 }
             }
-        } catch (IOException ex) {
-            throw new AsyncTaskExecutionException("Error extracting file handle IDs from file "
-                    + ctx.getCsvFilePath() + ": " + ex.getMessage(), ex);
+
+            // Write row, and remember the span if it needs to be re-written later.
+            long rowStart = offset;
+            offset = writeString(writer, rowFormatter.format(row), offset);
+            if (hasFileHandle) {
+                ctx.addAttachmentRowSpan(rowStart, offset);
+            }
+
+            row = csvReader.readNext();
+        }
+    }
+
+    /**
+     * Get file handle column indexes from the header row. This will tell us if we need to download file handles and
+     * inject the paths into the CSV. This method reads from {@link SynapseDownloadFromTableParameters#getSchema}.
+     */
+    private SynapseTableColumnInfo getColumnInfoFromHeader(String[] headerRow) {
+        // Iterate through the headers. Identify relevant fields.
+        SynapseTableColumnInfo.Builder colInfoBuilder = new SynapseTableColumnInfo.Builder();
+        Map<String, String> fieldTypeMap = params.getSchema().getFieldTypeMap();
+        for (int i = 0; i < headerRow.length; i++) {
+            String oneFieldName = headerRow[i];
+            if (COL_HEALTH_CODE.equals(oneFieldName)) {
+                // Health code. Definitely not file handle ID.
+                colInfoBuilder.withHealthCodeColumnIndex(i);
+            } else {
+                String bridgeType = fieldTypeMap.get(oneFieldName);
+                if (bridgeType != null && UploadSchema.ATTACHMENT_TYPE_SET.contains(bridgeType)) {
+                    colInfoBuilder.addFileHandleColumnIndex(i);
+                }
+            }
+        }
+        return colInfoBuilder.build();
+    }
+
+    /**
+     * Returns true if there are file handles to bulk download. This method reads from
+     * {@link SynapseDownloadFromTableContext#getColumnInfo} and
+     * {@link SynapseDownloadFromTableContext#getFileHandleIdSet}.
+     */
+    private boolean needsBulkDownload() {
+        if (ctx.getColumnInfo().getFileHandleColumnIndexSet().isEmpty()) {
+            LOG.info("No file handles columns in file " + ctx.getCsvName() +
+                    ". Skipping extracting and downloading file handles.");
+            return false;
+        } else if (ctx.getFileHandleIdSet().isEmpty()) {
+            // This is rare but possible.
+            LOG.info("No file handles to download for file " + ctx.getCsvName() +
+                    ". Skipping downloading file handles.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Downloads this task's attachments, then publishes them to the attachment registry (if there is one), whether or
+     * not the download succeeded, then waits for attachments that other tasks own. Publishing before waiting means
+     * tasks can't deadlock waiting on each other.
+     */
+    private void fetchAttachments() throws AsyncTaskExecutionException {
+        try {
+            bulkDownloadFileHandles();
         } finally {
-            extractFileHandlesStopwatch.stop();
-            LOG.info("Extracting file handle IDs from file " + ctx.getCsvFilePath() + " took " +
-                    extractFileHandlesStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            publishAttachments();
+        }
+        join(getSharedReplacementsAsync());
+    }
+
+    /** Async version of {@link #fetchAttachments}. Waiting for other tasks' attachments doesn't hold a thread. */
+    private CompletableFuture<Void> fetchAttachmentsAsync(Executor networkExecutor) {
+        CompletableFuture<Void> bulkDownloadFuture;
+        try {
+            bulkDownloadFuture = bulkDownloadFileHandlesAsync(networkExecutor);
+        } catch (RuntimeException ex) {
+            bulkDownloadFuture = new CompletableFuture<>();
+            bulkDownloadFuture.completeExceptionally(ex);
+        }
+        return bulkDownloadFuture.whenComplete((ignored, ex) -> publishAttachments())
+                .thenCompose(ignored -> getSharedReplacementsAsync());
+    }
+
+    /**
+     * Claims this task's file handles in the attachment registry, and records which ones are owned by other tasks in
+     * {@link SynapseDownloadFromTableContext#addAttachmentClaim}. Returns the file handle IDs this task needs to
+     * download, which is all of them if there's no attachment registry.
+     */
+    private Set<String> claimAttachments() {
+        Set<String> fileHandleIdSet = ctx.getFileHandleIdSet();
+        SynapseAttachmentRegistry attachmentRegistry = params.getAttachmentRegistry();
+        if (attachmentRegistry == null) {
+            return fileHandleIdSet;
+        }
+
+        Set<String> claimedFileHandleIdSet = attachmentRegistry.claim(fileHandleIdSet);
+        ctx.addAttachmentClaim(claimedFileHandleIdSet, Sets.difference(fileHandleIdSet, claimedFileHandleIdSet));
+        int numShared = fileHandleIdSet.size() - claimedFileHandleIdSet.size();
+        if (numShared > 0) {
+            LOG.info(numShared + " of " + fileHandleIdSet.size() + " attachments for synapse table " +
+                    params.getSynapseTableId() + " are shared with other tables in this export");
+        }
+        return claimedFileHandleIdSet;
+    }
+
+    /**
+     * Publishes the replacements for the file handles this task claimed to the attachment registry. Claimed file
+     * handles that didn't download are published as errors.
+     */
+    private void publishAttachments() {
+        SynapseAttachmentRegistry attachmentRegistry = params.getAttachmentRegistry();
+        if (attachmentRegistry != null && !ctx.getClaimedFileHandleIdSet().isEmpty()) {
+            attachmentRegistry.publish(ctx.getClaimedFileHandleIdSet(), getFileHandleIdToReplacementMap());
         }
     }
 
     /**
+     * Gets the replacements for file handles owned by other tasks from the attachment registry, and writes them to
+     * {@link SynapseDownloadFromTableContext#addSharedReplacements}. The future completes once every owner has
+     * published.
+     */
+    private CompletableFuture<Void> getSharedReplacementsAsync() {
+        SynapseAttachmentRegistry attachmentRegistry = params.getAttachmentRegistry();
+        if (attachmentRegistry == null || ctx.getSharedFileHandleIdSet().isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return attachmentRegistry.getReplacements(ctx.getSharedFileHandleIdSet())
+                .thenAccept(ctx::addSharedReplacements);
+    }
+
+    /**
+     * <p>
      * This method takes the set of file handle IDs and bulk downloads them from Synapse (using the bulk download API).
+     * Large sets are split into chunks (see {@link #setBulkDownloadChunkSize}). All chunks are started at once, so
+     * Synapse zips them in parallel (subject to job admission), and each chunk's zip is downloaded in chunk order as
+     * it's ready. If only some chunks fail, the task continues, and the failed chunks' attachments are marked as
+     * errors in the CSV. If every chunk fails, the task fails. Attachments owned by other tasks in the attachment
+     * registry (if set) are skipped. Attachments in the attachment cache (if set) are linked
+     * instead of downloaded, and if they all are, there's no bulk download at all. If there are few enough remaining
+     * attachments, they're fetched directly instead (see {@link SynapseDirectAttachmentFetcher}).
+     * </p>
+     * <p>
      * This method reads from {@link SynapseDownloadFromTableParameters#getTempDir} to determine download location,
-     * {@link SynapseDownloadFromTableParameters#getSchema} to generate the zip file name,
+     * {@link SynapseDownloadFromTableParameters#getSchema} to generate the zip file names,
      * {@link SynapseDownloadFromTableParameters#getSynapseTableId}, and
      * {@link SynapseDownloadFromTableContext#getFileHandleIdSet}, and writes the results to
-     * {@link SynapseDownloadFromTableContext#setFileSummaryList} and
-     * {@link SynapseDownloadFromTableContext#setBulkDownloadFile}.
+     * {@link SynapseDownloadFromTableContext#addBulkDownload}.
+     * </p>
      */
     private void bulkDownloadFileHandles() throws AsyncTaskExecutionException {
-        // download file handles
-        File bulkDownloadFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() +
-                ".zip");
-        String bulkDownloadFilePath = bulkDownloadFile.getAbsolutePath();
+        Set<String> fileHandleIdSet = linkCachedAttachments(claimAttachments());
+        if (fileHandleIdSet.isEmpty()) {
+            return;
+        }
+        if (shouldFetchDirect(fileHandleIdSet)) {
+            fetchDirect(fileHandleIdSet);
+            return;
+        }
+
+        List<Set<String>> chunkList = chunkFileHandleIds(fileHandleIdSet);
+        int numChunks = chunkList.size();
+        List<Stopwatch> stopwatchList = new ArrayList<>();
+        List<CompletableFuture<BulkFileDownloadResponse>> responseFutureList = new ArrayList<>();
+        for (Set<String> oneChunk : chunkList) {
+            stopwatchList.add(Stopwatch.createStarted());
+            responseFutureList.add(synapseHelper.generateBulkDownloadFileHandleAsync(params.getSynapseTableId(),
+                    oneChunk, params.getHealthCode()));
+        }
+
+        List<BulkDownloadChunk> downloadedChunkList = new ArrayList<>();
+        for (int i = 0; i < numChunks; i++) {
+            BulkFileDownloadResponse bulkDownloadResponse = null;
+            Throwable error = null;
+            try {
+                bulkDownloadResponse = responseFutureList.get(i).join();
+            } catch (CompletionException ex) {
+                error = ex.getCause();
+            }
+            downloadedChunkList.add(downloadChunk(newBulkDownloadFile(i, numChunks), bulkDownloadResponse, error,
+                    stopwatchList.get(i)));
+        }
+        addDownloadedChunks(downloadedChunkList);
+    }
+
+    /**
+     * Async version of {@link #bulkDownloadFileHandles}. Waiting for Synapse to generate the bulk downloads doesn't
+     * hold a thread. Downloading each chunk runs on the network executor as soon as that chunk is ready.
+     */
+    private CompletableFuture<Void> bulkDownloadFileHandlesAsync(Executor networkExecutor) {
+        Set<String> fileHandleIdSet = linkCachedAttachments(claimAttachments());
+        if (fileHandleIdSet.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (shouldFetchDirect(fileHandleIdSet)) {
+            return CompletableFuture.completedFuture(fileHandleIdSet).thenApplyAsync(unchecked(idSet -> {
+                fetchDirect(idSet);
+                return null;
+            }), networkExecutor);
+        }
+
+        List<Set<String>> chunkList = chunkFileHandleIds(fileHandleIdSet);
+        int numChunks = chunkList.size();
+        List<CompletableFuture<BulkDownloadChunk>> chunkFutureList = new ArrayList<>();
+        for (int i = 0; i < numChunks; i++) {
+            File bulkDownloadFile = newBulkDownloadFile(i, numChunks);
+            Stopwatch bulkDownloadStopwatch = Stopwatch.createStarted();
+            chunkFutureList.add(synapseHelper.generateBulkDownloadFileHandleAsync(params.getSynapseTableId(),
+                    chunkList.get(i), params.getHealthCode()).handleAsync((bulkDownloadResponse, ex) -> {
+                Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+                return downloadChunk(bulkDownloadFile, bulkDownloadResponse, cause, bulkDownloadStopwatch);
+            }, networkExecutor));
+        }
+
+        return CompletableFuture.allOf(chunkFutureList.toArray(new CompletableFuture[numChunks]))
+                .thenApply(unchecked(ignored -> {
+                    addDownloadedChunks(chunkFutureList.stream().map(CompletableFuture::join)
+                            .collect(Collectors.toList()));
+                    return null;
+                }));
+    }
 
-        Stopwatch bulkDownloadStopwatch = Stopwatch.createStarted();
-        BulkFileDownloadResponse bulkDownloadResponse;
+    /**
+     * Links attachments that are in the attachment cache into the temp dir, and adds each one to
+     * {@link SynapseDownloadFromTableContext#addBulkDownload} as its own zip. Returns the file handle IDs that still
+     * need to be bulk downloaded, which is all of them if there's no attachment cache.
+     */
+    private Set<String> linkCachedAttachments(Set<String> fileHandleIdSet) {
+        if (attachmentCache == null) {
+            return fileHandleIdSet;
+        }
+
+        // IDs are sorted, so the cached zips are added in a deterministic order.
+        String schemaKeyStr = params.getSchema().getKey().toString();
+        Set<String> missingFileHandleIdSet = new TreeSet<>();
+        for (String oneFileHandleId : new TreeSet<>(fileHandleIdSet)) {
+            File cachedFile = fileHelper.newFile(params.getTempDir(), schemaKeyStr + "-cached-" + oneFileHandleId +
+                    ".zip");
+            String zipEntryName = attachmentCache.get(oneFileHandleId, cachedFile);
+            if (zipEntryName == null) {
+                missingFileHandleIdSet.add(oneFileHandleId);
+                continue;
+            }
+
+            FileDownloadSummary fileSummary = new FileDownloadSummary();
+            fileSummary.setFileHandleId(oneFileHandleId);
+            fileSummary.setZipEntryName(zipEntryName);
+            ctx.addBulkDownload(cachedFile, ImmutableList.of(fileSummary));
+        }
+
+        int numCached = fileHandleIdSet.size() - missingFileHandleIdSet.size();
+        if (numCached > 0) {
+            LOG.info("Found " + numCached + " of " + fileHandleIdSet.size() +
+                    " attachments in the attachment cache for synapse table " + params.getSynapseTableId());
+        }
+        return missingFileHandleIdSet;
+    }
+
+    // True if the attachments should be fetched directly into the master zip instead of bulk downloaded.
+    private boolean shouldFetchDirect(Set<String> fileHandleIdSet) {
+        return directAttachmentFetcher != null && params.getAttachmentZipStreamWriter() != null &&
+                directAttachmentFetcher.shouldFetchDirect(fileHandleIdSet.size());
+    }
+
+    /**
+     * Fetches the attachments directly into the master zip, and adds their file summaries to
+     * {@link SynapseDownloadFromTableContext#addDirectDownload}. Attachments that fail individually are marked as
+     * errors in the CSV. If the fetch fails outright, the task fails, unless there were cached attachments to salvage.
+     */
+    private void fetchDirect(Set<String> fileHandleIdSet) throws AsyncTaskExecutionException {
         try {
-            bulkDownloadResponse = synapseHelper.generateBulkDownloadFileHandle(params.getSynapseTableId(),
-                    ctx.getFileHandleIdSet());
-            ctx.setFileSummaryList(bulkDownloadResponse.getFileSummary());
+            ctx.addDirectDownload(directAttachmentFetcher.fetch(params.getSynapseTableId(), fileHandleIdSet,
+                    params.getTempDir(), params.getAttachmentZipStreamWriter(), params.getAttachmentEntryPrefix()));
+        } catch (IOException | SynapseException | RuntimeException ex) {
+            if (ctx.getBulkDownloadFileList().isEmpty()) {
+                throw new AsyncTaskExecutionException("Error fetching attachments for synapse table " +
+                        params.getSynapseTableId() + ": " + ex.getMessage(), ex);
+            }
+            LOG.warn("Error fetching attachments for synapse table " + params.getSynapseTableId() + ": " +
+                    ex.getMessage() + ". Their attachments are marked as errors in the CSV.", ex);
+        }
+    }
 
-            String bulkDownloadFileHandleId = bulkDownloadResponse.getResultZipFileHandleId();
-            synapseHelper.downloadFileHandle(bulkDownloadFileHandleId, bulkDownloadFile);
-            ctx.setBulkDownloadFile(bulkDownloadFile);
-        } catch (AsyncTimeoutException | SynapseException ex) {
-            throw new AsyncTaskExecutionException("Error bulk downloading file handles to file " +
-                    bulkDownloadFilePath + ": " + ex.getMessage(), ex);
+    // Splits the file handle IDs into chunks. IDs are sorted, so chunks are deterministic.
+    private List<Set<String>> chunkFileHandleIds(Set<String> fileHandleIdSet) {
+        Set<String> sortedFileHandleIdSet = new TreeSet<>(fileHandleIdSet);
+        if (bulkDownloadChunkSize <= 0 || sortedFileHandleIdSet.size() <= bulkDownloadChunkSize) {
+            return ImmutableList.of(sortedFileHandleIdSet);
+        }
+
+        List<Set<String>> chunkList = new ArrayList<>();
+        for (List<String> oneChunk : Iterables.partition(sortedFileHandleIdSet, bulkDownloadChunkSize)) {
+            chunkList.add(ImmutableSet.copyOf(oneChunk));
+        }
+        return chunkList;
+    }
+
+    /**
+     * Downloads the zip for a single chunk, unless Synapse failed to generate it. Never throws. Instead, failures are
+     * logged and returned in the chunk, and any partially downloaded zip is deleted, so the other chunks can continue.
+     */
+    private BulkDownloadChunk downloadChunk(File bulkDownloadFile, BulkFileDownloadResponse bulkDownloadResponse,
+            Throwable error, Stopwatch bulkDownloadStopwatch) {
+        try {
+            if (error == null) {
+                try {
+                    synapseHelper.downloadFileHandle(bulkDownloadResponse.getResultZipFileHandleId(),
+                            bulkDownloadFile);
+                    if (attachmentCache != null) {
+                        attachmentCache.putFromBulkDownload(bulkDownloadFile, bulkDownloadResponse.getFileSummary());
+                    }
+                    return new BulkDownloadChunk(bulkDownloadFile, bulkDownloadResponse.getFileSummary(), null);
+                } catch (SynapseException | RuntimeException ex) {
+                    error = ex;
+                }
+            }
+
+            LOG.error("Error bulk downloading file handles to file " + bulkDownloadFile.getAbsolutePath() + ": " +
+                    error.getMessage(), error);
+            if (fileHelper.fileExists(bulkDownloadFile)) {
+                fileHelper.deleteFile(bulkDownloadFile);
+            }
+            return new BulkDownloadChunk(bulkDownloadFile, null, error);
         } finally {
-            bulkDownloadStopwatch.stop();
-            LOG.info("Bulk downloading file handles to file " + bulkDownloadFilePath + " took " +
-                    bulkDownloadStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            logBulkDownloadTime(bulkDownloadFile, bulkDownloadStopwatch);
+        }
+    }
+
+    /**
+     * Adds the successful chunks to {@link SynapseDownloadFromTableContext#addBulkDownload}. Throws if every chunk
+     * failed and there were no cached attachments, since then there's nothing to salvage.
+     */
+    private void addDownloadedChunks(List<BulkDownloadChunk> chunkList) throws AsyncTaskExecutionException {
+        boolean hasCachedAttachments = !ctx.getBulkDownloadFileList().isEmpty();
+        BulkDownloadChunk firstFailedChunk = null;
+        int numFailed = 0;
+        for (BulkDownloadChunk oneChunk : chunkList) {
+            if (oneChunk.error != null) {
+                if (firstFailedChunk == null) {
+                    firstFailedChunk = oneChunk;
+                }
+                numFailed++;
+            } else {
+                ctx.addBulkDownload(oneChunk.bulkDownloadFile, oneChunk.fileSummaryList);
+            }
+        }
+
+        if (numFailed == chunkList.size() && !hasCachedAttachments) {
+            throw newBulkDownloadException(firstFailedChunk.bulkDownloadFile, firstFailedChunk.error);
+        } else if (numFailed > 0) {
+            LOG.warn(numFailed + " of " + chunkList.size() + " bulk download chunks failed for synapse table " +
+                    params.getSynapseTableId() + ". Their attachments are marked as errors in the CSV.");
+        }
+    }
+
+    // Chunks are numbered from 1 in the file name, but only if there's more than one.
+    private File newBulkDownloadFile(int chunkIdx, int numChunks) {
+        String schemaKeyStr = params.getSchema().getKey().toString();
+        String fileName = numChunks > 1 ? schemaKeyStr + "-" + (chunkIdx + 1) + ".zip" : schemaKeyStr + ".zip";
+        return fileHelper.newFile(params.getTempDir(), fileName);
+    }
+
+    private static AsyncTaskExecutionException newBulkDownloadException(File bulkDownloadFile, Throwable cause) {
+        return new AsyncTaskExecutionException("Error bulk downloading file handles to file " +
+                bulkDownloadFile.getAbsolutePath() + ": " + cause.getMessage(), cause);
+    }
+
+    private static void logBulkDownloadTime(File bulkDownloadFile, Stopwatch bulkDownloadStopwatch) {
+        bulkDownloadStopwatch.stop();
+        LOG.info("Bulk downloading file handles to file " + bulkDownloadFile.getAbsolutePath() + " took " +
+                bulkDownloadStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+    }
+
+    /**
+     * Last stage. Edits the CSV, if there's anything to edit, and builds the result. This reads from
+     * {@link SynapseDownloadFromTableContext}.
+     */
+    private SynapseDownloadFromTableResult finishCsv() throws AsyncTaskExecutionException {
+        if (ctx.getEditedCsvChars() != null || ctx.getEditedCsvFile() != null) {
+            editCsv();
         }
+
+        return new SynapseDownloadFromTableResult.Builder().withCsvFile(ctx.getCsvFile())
+                .withStreamedCsvEntryName(ctx.getCsvEntryName()).withBulkDownloadFileList(ctx.getBulkDownloadFileList())
+                .withAttachmentEntryPrefix(params.getAttachmentEntryPrefix()).build();
     }
 
     /**
      * <p>
-     * We need to make edits to the CSV: (1) Replace the file handle IDs with zip entry names. (2) Remove health
-     * codes, since those aren't supposed to be exposed to users. This method reads from
-     * {@link SynapseDownloadFromTableParameters#getTempDir} to determine where to write the edited CSV and from
-     * {@link SynapseDownloadFromTableParameters#getSchema} to generate the edited CSV file name. It also reads from
-     * {@link SynapseDownloadFromTableContext#getFileSummaryList},
-     * {@link SynapseDownloadFromTableContext#getColumnInfo}, {@link SynapseDownloadFromTableContext#getCsvFile}, and
-     * writes the results to {@link SynapseDownloadFromTableContext#setEditedCsvFile}.
+     * Second stage of the CSV edit. {@link #scrubRows} has already removed health codes, so all that's left is to
+     * replace the file handle IDs with zip entry names. The in-memory CSV or spool is copied character-for-character,
+     * and only the rows recorded in {@link SynapseDownloadFromTableContext#getAttachmentRowSpanList} are re-parsed and
+     * re-written. If we're not streaming and there are no rows with file handle IDs, the spool is simply renamed into
+     * place.
+     * </p>
+     * <p>
+     * This method reads from {@link SynapseDownloadFromTableContext#getFileSummaryList},
+     * {@link SynapseDownloadFromTableContext#getColumnInfo},
+     * {@link SynapseDownloadFromTableContext#getAttachmentRowSpanList}, and
+     * {@link SynapseDownloadFromTableContext#getEditedCsvChars} or
+     * {@link SynapseDownloadFromTableContext#getEditedCsvFile}, and writes the results to
+     * {@link SynapseDownloadFromTableContext#getCsvFile} or to the zip entry
+     * {@link SynapseDownloadFromTableContext#getCsvEntryName}, if streaming.
      * </p>
      * <p>
      * This method is package-scoped, to allow unit tests to inject an exception here.
      * </p>
      */
     void editCsv() throws AsyncTaskExecutionException {
-        // Convert file summary in bulk download response into a map from file handle ID to zip entry name.
-        Map<String, String> fileHandleIdToReplacement = new HashMap<>();
-        List<FileDownloadSummary> fileSummaryList = ctx.getFileSummaryList();
-        if (fileSummaryList != null) {
-            for (FileDownloadSummary oneFileSummary : fileSummaryList) {
-                String fileHandleId = oneFileSummary.getFileHandleId();
-                if (!Strings.isNullOrEmpty(fileHandleId)) {
-                    String zipEntryName = oneFileSummary.getZipEntryName();
-                    String failureMessage = oneFileSummary.getFailureMessage();
-
-                    if (!Strings.isNullOrEmpty(zipEntryName)) {
-                        // replace file handle ID with zip entry name
-                        fileHandleIdToReplacement.put(fileHandleId, zipEntryName);
-                    } else if (!Strings.isNullOrEmpty(failureMessage)) {
-                        // replace file handle ID with error message
-                        fileHandleIdToReplacement.put(fileHandleId, failureMessage);
-                    }
+        File editedCsvFile = ctx.getEditedCsvFile();
+        // Batched queries are spooled from a file even when streaming, and have no zip entry. Their CSV stays a file.
+        ZipStreamWriter zipStreamWriter = ctx.getCsvEntryName() != null ? params.getZipStreamWriter() : null;
+
+        if (zipStreamWriter == null && ctx.getAttachmentRowSpanList().isEmpty()) {
+            // No attachments to rewrite. Rename editedCsvFile into csvFile, replacing the original csvFile.
+            try {
+                fileHelper.moveFiles(editedCsvFile, ctx.getCsvFile());
+            } catch (IOException ex) {
+                throw new AsyncTaskExecutionException("Error moving (replacing) file from " +
+                        editedCsvFile.getAbsolutePath() +
+                        " to " + ctx.getCsvName() + ": " + ex.getMessage(), ex);
+            }
+            return;
+        }
+
+        Stopwatch editCsvStopwatch = Stopwatch.createStarted();
+        try {
+            if (zipStreamWriter != null) {
+                zipStreamWriter.writeEntry(ctx.getCsvEntryName(), entryOutputStream -> {
+                    Writer entryWriter = new BufferedWriter(new OutputStreamWriter(entryOutputStream,
+                            Charsets.UTF_8));
+                    spliceAttachmentRows(entryWriter);
+                    entryWriter.flush();
+                });
+            } else {
+                try (Writer csvFileWriter = fileHelper.getWriter(ctx.getCsvFile())) {
+                    spliceAttachmentRows(csvFileWriter);
                 }
             }
+        } catch (IOException ex) {
+            throw new AsyncTaskExecutionException("Error updating attachment file paths in file " +
+                    ctx.getCsvName() + ": " + ex.getMessage(), ex);
+        } finally {
+            editCsvStopwatch.stop();
+            LOG.info("Updating attachment file paths in file " + ctx.getCsvName() + " took " +
+                    editCsvStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
 
-        int healthCodeIdx = ctx.getColumnInfo().getHealthCodeColumnIndex();
+        // The in-memory CSV or spool is no longer needed.
+        ctx.setEditedCsvChars(null);
+        if (editedCsvFile != null) {
+            fileHelper.deleteFile(editedCsvFile);
+        }
+    }
+
+    /**
+     * Copies the in-memory CSV or spool to the writer, re-writing only the rows with file handle IDs. File handle IDs are replaced
+     * with zip entry names (or error messages, if the file handle failed to download).
+     */
+    private void spliceAttachmentRows(Writer writer) throws IOException {
+        Map<String, String> fileHandleIdToReplacement = getFileHandleIdToReplacementMap();
         Set<Integer> fileHandleColIdxSet = ctx.getColumnInfo().getFileHandleColumnIndexSet();
-        File editedCsvFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() +
-                "-edited.csv");
-        String editedCsvFilePath = editedCsvFile.getAbsolutePath();
-        ctx.setEditedCsvFile(editedCsvFile);
 
-        Stopwatch editCsvStopwatch = Stopwatch.createStarted();
-        try (CSVReader csvFileReader = new CSVReader(fileHelper.getReader(ctx.getCsvFile()));
-                CSVWriter modifiedCsvFileWriter = new CSVWriter(fileHelper.getWriter(editedCsvFile))) {
-            // Copy headers.
-            modifiedCsvFileWriter.writeNext(csvFileReader.readNext());
+        char[] editedCsvChars = ctx.getEditedCsvChars();
+        try (Reader editedCsvFileReader = editedCsvChars != null ? new CharArrayReader(editedCsvChars) :
+                fileHelper.getReader(ctx.getEditedCsvFile())) {
+            CsvRowFormatter rowFormatter = new CsvRowFormatter();
+            long offset = 0;
+            for (Range<Long> oneRowSpan : ctx.getAttachmentRowSpanList()) {
+                // Copy everything up to this row unchanged.
+                long rowStart = oneRowSpan.lowerEndpoint();
+                copyChars(editedCsvFileReader, writer, rowStart - offset);
+
+                // Read and parse just this row.
+                char[] rowChars = new char[(int) (oneRowSpan.upperEndpoint() - rowStart)];
+                readChars(editedCsvFileReader, rowChars);
+                offset = oneRowSpan.upperEndpoint();
 
-            // Iterate through the rows, replacing the file handle IDs with zip entry names.
-            String[] row;
-            while ((row = csvFileReader.readNext()) != null) {
-                // Clear health code.
-                row[healthCodeIdx] = null;
+                String[] row;
+                try (CSVReader rowReader = new CSVReader(new CharArrayReader(rowChars))) {
+                    row = rowReader.readNext();
+                }
 
                 // Replace file handle IDs with zip entry names (if known)
                 for (int oneFileHandleColIdx : fileHandleColIdxSet) {
@@ -351,24 +1138,92 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
                     }
                 }
 
-                // Write modified row to modifiedCsvFileWriter
-                modifiedCsvFileWriter.writeNext(row);
+                writer.write(rowFormatter.format(row));
             }
-        } catch (IOException ex) {
-            throw new AsyncTaskExecutionException("Error updating attachment file paths in file " +
-                    editedCsvFilePath + ": " + ex.getMessage(), ex);
-        } finally {
-            editCsvStopwatch.stop();
-            LOG.info("Updating attachment file paths in file " + editedCsvFilePath + " took " +
-                    editCsvStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+
+            // Copy the rest of the spool.
+            CharStreams.copy(editedCsvFileReader, writer);
         }
+    }
 
-        // rename editedCsvFile into csvFile, replacing the original csvFile
-        try {
-            fileHelper.moveFiles(editedCsvFile, ctx.getCsvFile());
-        } catch (IOException ex) {
-            throw new AsyncTaskExecutionException("Error moving (replacing) file from " + editedCsvFilePath +
-                    " to " + ctx.getCsvFilePath() + ": " + ex.getMessage(), ex);
+    /**
+     * Convert file summaries in bulk download responses into a map from file handle ID to zip entry name (or failure
+     * message, if the file handle failed to download). If the bulk downloads' entries will be flattened into the
+     * master zip, the zip entry name includes the attachment entry prefix, so the CSV points at the flattened entry.
+     * Otherwise, if there's more than one bulk download zip, the zip entry name is prefixed with the zip's name, so
+     * the user knows which zip to look in. Directly fetched attachments are already in the master zip, under the
+     * attachment entry prefix. Attachments owned by other tasks use the replacements those tasks published.
+     */
+    private Map<String, String> getFileHandleIdToReplacementMap() {
+        Map<File, List<FileDownloadSummary>> fileSummaryListByBulkDownloadFile =
+                ctx.getFileSummaryListByBulkDownloadFile();
+        Map<String, String> fileHandleIdToReplacement = new HashMap<>(ctx.getSharedReplacementMap());
+        putReplacements(fileHandleIdToReplacement, Strings.nullToEmpty(params.getAttachmentEntryPrefix()),
+                ctx.getDirectFileSummaryList());
+        for (Map.Entry<File, List<FileDownloadSummary>> oneBulkDownload :
+                fileSummaryListByBulkDownloadFile.entrySet()) {
+            String entryPrefix;
+            if (params.getAttachmentEntryPrefix() != null) {
+                entryPrefix = params.getAttachmentEntryPrefix();
+            } else if (fileSummaryListByBulkDownloadFile.size() > 1) {
+                entryPrefix = oneBulkDownload.getKey().getName() + "/";
+            } else {
+                entryPrefix = "";
+            }
+            putReplacements(fileHandleIdToReplacement, entryPrefix, oneBulkDownload.getValue());
+        }
+        return fileHandleIdToReplacement;
+    }
+
+    // Adds each file summary's zip entry name (with the entry prefix) or failure message to the replacement map.
+    private static void putReplacements(Map<String, String> fileHandleIdToReplacement, String entryPrefix,
+            List<FileDownloadSummary> fileSummaryList) {
+        for (FileDownloadSummary oneFileSummary : fileSummaryList) {
+            String fileHandleId = oneFileSummary.getFileHandleId();
+            if (!Strings.isNullOrEmpty(fileHandleId)) {
+                String zipEntryName = oneFileSummary.getZipEntryName();
+                String failureMessage = oneFileSummary.getFailureMessage();
+
+                if (!Strings.isNullOrEmpty(zipEntryName)) {
+                    // replace file handle ID with zip entry name
+                    fileHandleIdToReplacement.put(fileHandleId, entryPrefix + zipEntryName);
+                } else if (!Strings.isNullOrEmpty(failureMessage)) {
+                    // replace file handle ID with error message
+                    fileHandleIdToReplacement.put(fileHandleId, failureMessage);
+                }
+            }
+        }
+    }
+
+    /** Writes the string to the writer and returns the new character offset. */
+    private static long writeString(Writer writer, String str, long offset) throws IOException {
+        writer.write(str);
+        return offset + str.length();
+    }
+
+    /** Copies exactly the specified number of characters from the reader to the writer. */
+    private static void copyChars(Reader reader, Writer writer, long numChars) throws IOException {
+        char[] buffer = new char[COPY_BUFFER_SIZE];
+        long remaining = numChars;
+        while (remaining > 0) {
+            int numRead = reader.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (numRead < 0) {
+                throw new EOFException("Unexpected end of spool, " + remaining + " chars remaining");
+            }
+            writer.write(buffer, 0, numRead);
+            remaining -= numRead;
+        }
+    }
+
+    /** Fills the given buffer from the reader. */
+    private static void readChars(Reader reader, char[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int numRead = reader.read(buffer, offset, buffer.length - offset);
+            if (numRead < 0) {
+                throw new EOFException("Unexpected end of spool, " + (buffer.length - offset) + " chars remaining");
+            }
+            offset += numRead;
         }
     }
 
@@ -377,8 +1232,10 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
      * This is called when an error is thrown or if there's no data to download. We'll need to delete all intermediate
      * files to ensure we leave the file system in the state we started it in. The specific intemediate files in
      * question are {@link SynapseDownloadFromTableContext#getCsvFile},
-     * {@link SynapseDownloadFromTableContext#getBulkDownloadFile},
-     * {@link SynapseDownloadFromTableContext#getEditedCsvFile}, if any/all exist.
+     * {@link SynapseDownloadFromTableContext#getBulkDownloadFileList},
+     * {@link SynapseDownloadFromTableContext#getEditedCsvFile}, if any/all exist. The in-memory CSV, if any, is
+     * dropped. If this task published attachments
+     * to the attachment registry, its bulk download zips are handed to the registry instead of deleted.
      * </p>
      * <p>
      * This is package-scoped to enable unit tests.
@@ -387,8 +1244,16 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
     void cleanupFiles() {
         List<File> filesToDelete = new ArrayList<>();
         filesToDelete.add(ctx.getCsvFile());
-        filesToDelete.add(ctx.getBulkDownloadFile());
         filesToDelete.add(ctx.getEditedCsvFile());
+        ctx.setEditedCsvChars(null);
+
+        SynapseAttachmentRegistry attachmentRegistry = params.getAttachmentRegistry();
+        if (attachmentRegistry != null && !ctx.getClaimedFileHandleIdSet().isEmpty()) {
+            // Our attachments were already published, and other tables' CSVs may point at them.
+            attachmentRegistry.addOrphanedZips(ctx.getBulkDownloadFileList(), params.getAttachmentEntryPrefix());
+        } else {
+            filesToDelete.addAll(ctx.getBulkDownloadFileList());
+        }
 
         for (File oneFileToDelete : filesToDelete) {
             if (oneFileToDelete == null || !fileHelper.fileExists(oneFileToDelete)) {
@@ -399,6 +1264,86 @@ public class SynapseDownloadFromTableTask implements Callable<SynapseDownloadFro
         }
     }
 
+    /**
+     * Writer for the scrubbed CSV. Buffers in memory until the buffer would go over the max size, then creates the
+     * spool file, copies the buffer into it, and writes everything after that to the spool file. The spool file is set
+     * in the context as soon as it's created, so {@link #cleanupFiles} can find it if scrubbing fails.
+     */
+    private class SpillingWriter extends Writer {
+        private final int maxBufferChars;
+        private CharArrayWriter buffer = new CharArrayWriter();
+        private Writer spoolFileWriter;
+
+        SpillingWriter(int maxBufferChars) {
+            this.maxBufferChars = maxBufferChars;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (spoolFileWriter == null && (long) buffer.size() + len > maxBufferChars) {
+                File editedCsvFile = fileHelper.newFile(params.getTempDir(), params.getSchema().getKey().toString() +
+                        "-edited.csv");
+                ctx.setEditedCsvFile(editedCsvFile);
+                spoolFileWriter = fileHelper.getWriter(editedCsvFile);
+                buffer.writeTo(spoolFileWriter);
+                buffer = null;
+            }
+
+            if (spoolFileWriter != null) {
+                spoolFileWriter.write(cbuf, off, len);
+            } else {
+                buffer.write(cbuf, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (spoolFileWriter != null) {
+                spoolFileWriter.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spoolFileWriter != null) {
+                spoolFileWriter.close();
+            }
+        }
+    }
+
+    /** A bulk download chunk's zip and file summaries, or the error if the chunk failed. */
+    private static class BulkDownloadChunk {
+        private final File bulkDownloadFile;
+        private final Throwable error;
+        private final List<FileDownloadSummary> fileSummaryList;
+
+        BulkDownloadChunk(File bulkDownloadFile, List<FileDownloadSummary> fileSummaryList, Throwable error) {
+            this.bulkDownloadFile = bulkDownloadFile;
+            this.error = error;
+            this.fileSummaryList = fileSummaryList;
+        }
+    }
+
+    /**
+     * Adapts a stage that throws AsyncTaskExecutionException to a Function that CompletableFuture can use. The
+     * exception is wrapped in a CompletionException, which CompletableFuture unwraps in get().
+     */
+    private static <T, R> Function<T, R> unchecked(Stage<T, R> stage) {
+        return input -> {
+            try {
+                return stage.apply(input);
+            } catch (AsyncTaskExecutionException ex) {
+                throw new CompletionException(ex);
+            }
+        };
+    }
+
+    /** A single stage of the task, which takes the previous stage's output. */
+    @FunctionalInterface
+    private interface Stage<T, R> {
+        R apply(T input) throws AsyncTaskExecutionException;
+    }
+
     /** Returns the params. Package-scoped to support tests for {@link SynapsePackager}. */
     SynapseDownloadFromTableParameters getParameters() {
         return params;
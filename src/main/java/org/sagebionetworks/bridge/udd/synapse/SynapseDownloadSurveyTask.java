@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Stopwatch;
@@ -15,7 +16,7 @@ import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
 
 /**
  * This one-shot asynchronous task downloads a survey metadata table from Synapse. The survey metadata is downloaded in
- * CSV format.
+ * CSV format. If the survey metadata cache has the table at its current etag, this copies the cached file instead.
  */
 public class SynapseDownloadSurveyTask implements Callable<File> {
     private static final Logger LOG = LoggerFactory.getLogger(SynapseDownloadSurveyTask.class);
@@ -26,6 +27,8 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
     // Helpers and config objects. Originates from Spring configs and is passed in through setters using a similar
     // pattern.
     private FileHelper fileHelper;
+    private SurveyMetadataCache surveyMetadataCache;
+    private SynapseSurveyPrefetch surveyPrefetch;
     private SynapseHelper synapseHelper;
 
     /**
@@ -46,6 +49,19 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
         this.fileHelper = fileHelper;
     }
 
+    /** Survey metadata cache, so we don't query Synapse for unchanged survey tables. */
+    public final void setSurveyMetadataCache(SurveyMetadataCache surveyMetadataCache) {
+        this.surveyMetadataCache = surveyMetadataCache;
+    }
+
+    /**
+     * Survey prefetch this task belongs to, if any. The task checks in with the prefetch before starting and after
+     * finishing, so a discarded prefetch can skip the task and clean up after it.
+     */
+    public final void setSurveyPrefetch(SynapseSurveyPrefetch surveyPrefetch) {
+        this.surveyPrefetch = surveyPrefetch;
+    }
+
     /** Synapse helper, used to download survey metadata from Synapse. */
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
@@ -58,14 +74,42 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
      */
     @Override
     public File call() throws AsyncTimeoutException, SynapseException {
+        if (surveyPrefetch == null) {
+            return downloadSurvey();
+        }
+
+        if (!surveyPrefetch.taskStarted()) {
+            throw new CancellationException("Survey prefetch was discarded before downloading table " +
+                    params.getSynapseTableId());
+        }
+        File surveyFile = null;
+        try {
+            surveyFile = downloadSurvey();
+            return surveyFile;
+        } finally {
+            surveyPrefetch.taskFinished(surveyFile);
+        }
+    }
+
+    // Downloads the survey, or copies it from the cache.
+    private File downloadSurvey() throws AsyncTimeoutException, SynapseException {
         String synapseTableId = params.getSynapseTableId();
 
-        // get table name
+        // get table name and etag
         TableEntity table = synapseHelper.getTable(synapseTableId);
+        String etag = table.getEtag();
 
-        // download table
+        // check cache
         File surveyFile = fileHelper.newFile(params.getTempDir(), table.getName() + ".csv");
         String surveyFilePath = surveyFile.getAbsolutePath();
+        Stopwatch cacheStopwatch = Stopwatch.createStarted();
+        if (surveyMetadataCache.get(synapseTableId, etag, surveyFile)) {
+            LOG.info("Copying cached survey from table " + synapseTableId + " to file " + surveyFilePath + " took " +
+                    cacheStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            return surveyFile;
+        }
+
+        // download table
         Stopwatch downloadSurveyStopwatch = Stopwatch.createStarted();
         try {
             // We want the whole survey table.
@@ -85,9 +129,15 @@ public class SynapseDownloadSurveyTask implements Callable<File> {
                     downloadSurveyStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
         }
 
+        surveyMetadataCache.put(synapseTableId, etag, surveyFile);
         return surveyFile;
     }
 
+    /** Returns the survey prefetch. Package-scoped to support tests for {@link SynapsePackager}. */
+    SynapseSurveyPrefetch getSurveyPrefetch() {
+        return surveyPrefetch;
+    }
+
     /** Returns the params. Package-scoped to support tests for {@link SynapsePackager}. */
     SynapseDownloadSurveyParameters getParameters() {
         return params;
@@ -1,50 +1,79 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import javax.annotation.Resource;
 
+import com.google.common.base.Stopwatch;
 import com.jcabi.aspects.RetryOnFailure;
 import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseClientException;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+import org.sagebionetworks.repo.model.file.BatchFileRequest;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadRequest;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
 import org.sagebionetworks.repo.model.file.FileHandleAssociateType;
 import org.sagebionetworks.repo.model.file.FileHandleAssociation;
+import org.sagebionetworks.repo.model.file.FileResult;
 import org.sagebionetworks.repo.model.table.DownloadFromTableResult;
 import org.sagebionetworks.repo.model.table.TableEntity;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
-import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.synapse.SynapseAsyncPoller.PollResult;
 
 /** Helper class to Synapse, which wraps Synapse async call patterns.. */
 @Component("uddSynapseHelper")
 public class SynapseHelper {
-    private static final Logger LOG = LoggerFactory.getLogger(SynapseHelper.class);
+    /** Max number of file handles Synapse accepts in a single {@link #getFileHandleUrlBatch} call. */
+    public static final int MAX_FILE_HANDLE_URL_BATCH_SIZE = 100;
 
-    // Package-scoped to be available in unit tests
-    static final String CONFIG_KEY_POLL_INTERVAL_MILLIS = "synapse.poll.interval.millis";
-    static final String CONFIG_KEY_POLL_MAX_TRIES = "synapse.poll.max.tries";
-
-    private int pollIntervalMillis;
-    private int pollMaxTries;
+    private SynapseAsyncPoller asyncPoller;
+    private SynapseJobAdmission jobAdmission;
+    private ExecutorService networkExecutorService;
     private SynapseClient synapseClient;
+    private SynapseSegmentedDownloader segmentedDownloader;
+
+    /** Poller that tracks all outstanding Synapse async jobs. */
+    @Autowired
+    public final void setAsyncPoller(SynapseAsyncPoller asyncPoller) {
+        this.asyncPoller = asyncPoller;
+    }
+
+    /** Admission control, which limits how many Synapse async jobs are in flight. */
+    @Autowired
+    public final void setJobAdmission(SynapseJobAdmission jobAdmission) {
+        this.jobAdmission = jobAdmission;
+    }
+
+    /**
+     * Executor for starting async jobs that had to wait for a permit. Starting a job makes blocking Synapse calls, so
+     * this keeps them off whichever thread released the permit.
+     */
+    @Resource(name = "synapseNetworkExecutorService")
+    public final void setNetworkExecutorService(ExecutorService networkExecutorService) {
+        this.networkExecutorService = networkExecutorService;
+    }
 
-    /** Bridge config. This is used to get poll intervals and retry timeouts. */
+    /** Segmented downloader, used for file handle downloads if enabled. */
     @Autowired
-    @Qualifier("uddConfigProperties")
-    public final void setConfig(Config config) {
-        pollIntervalMillis = config.getInt(CONFIG_KEY_POLL_INTERVAL_MILLIS);
-        pollMaxTries = config.getInt(CONFIG_KEY_POLL_MAX_TRIES);
+    public final void setSegmentedDownloader(SynapseSegmentedDownloader segmentedDownloader) {
+        this.segmentedDownloader = segmentedDownloader;
     }
 
     /** Synapse client. */
@@ -59,6 +88,9 @@ public class SynapseHelper {
      * Synapse calls go through the helper, instead of forcing callers to sometimes use the helper and sometimes use
      * the client. This also enables retry logic.
      *
+     * If segmented downloads are enabled, the file is fetched as parallel range segments, and retries only fetch the
+     * missing segments. Otherwise, the client downloads it in one piece, and retries start over from the beginning.
+     *
      * @param fileHandleId
      *         file handle ID to download
      * @param targetFile
@@ -66,15 +98,57 @@ public class SynapseHelper {
      * @throws SynapseException
      *         if calling Synapse fails
      */
+    public void downloadFileHandle(String fileHandleId, File targetFile) throws SynapseException {
+        if (segmentedDownloader.isEnabled()) {
+            try {
+                segmentedDownloader.download(() -> getFileHandleTemporaryUrl(fileHandleId), targetFile);
+            } catch (IOException ex) {
+                throw new SynapseClientException("Error downloading file handle " + fileHandleId + ": " +
+                        ex.getMessage(), ex);
+            }
+        } else {
+            downloadFromFileHandleTemporaryUrl(fileHandleId, targetFile);
+        }
+    }
+
+    // Helper method which wraps the client's download, so it can be retried.
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
-    public void downloadFileHandle(String fileHandleId, File targetFile) throws SynapseException {
+    private void downloadFromFileHandleTemporaryUrl(String fileHandleId, File targetFile) throws SynapseException {
         synapseClient.downloadFromFileHandleTemporaryUrl(fileHandleId, targetFile);
     }
 
+    // Helper method which resolves the file handle's temporary URL, with retries. The segmented downloader calls this
+    // once per round, since temporary URLs expire.
+    @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS,
+            types = { IOException.class, SynapseException.class }, randomize = false)
+    private URL getFileHandleTemporaryUrl(String fileHandleId) throws IOException, SynapseException {
+        return synapseClient.getFileHandleTemporaryUrl(fileHandleId);
+    }
+
     /**
-     * Bulk downloads the specified file handles for the specified table. This returns a BulkFileDownloadResponse,
-     * which contains a file handle ID that must then be downloaded separately.
+     * Opens a stream to read the given file handle directly from its temporary URL, without downloading it to a local
+     * file first. The caller is responsible for closing the stream. Only opening the stream is retried. Failures while
+     * reading are the caller's responsibility.
+     *
+     * @param fileHandleId
+     *         file handle ID to read
+     * @return stream of the file handle's contents
+     * @throws IOException
+     *         if opening the connection fails
+     * @throws SynapseException
+     *         if calling Synapse fails
+     */
+    @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS,
+            types = { IOException.class, SynapseException.class }, randomize = false)
+    public InputStream openFileHandleStream(String fileHandleId) throws IOException, SynapseException {
+        URL temporaryUrl = synapseClient.getFileHandleTemporaryUrl(fileHandleId);
+        return temporaryUrl.openStream();
+    }
+
+    /**
+     * Bulk downloads the specified file handles for the specified table, with no admission key. This returns a
+     * BulkFileDownloadResponse, which contains a file handle ID that must then be downloaded separately.
      *
      * @param synapseTableId
      *         Synapse table associated with the file handles
@@ -88,25 +162,96 @@ public class SynapseHelper {
      */
     public BulkFileDownloadResponse generateBulkDownloadFileHandle(String synapseTableId, Set<String> fileHandleIdSet)
             throws AsyncTimeoutException, SynapseException {
-        // Need to create file handle association objects as part of the request.
+        return generateBulkDownloadFileHandle(synapseTableId, fileHandleIdSet, null);
+    }
+
+    /**
+     * Bulk downloads the specified file handles for the specified table. This returns a BulkFileDownloadResponse,
+     * which contains a file handle ID that must then be downloaded separately. This blocks until a bulk download
+     * permit is available. See {@link SynapseJobAdmission}.
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdSet
+     *         file handle IDs to download
+     * @param admissionKey
+     *         key to share admission turns by, generally the user's health code
+     * @return bulk download API response
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public BulkFileDownloadResponse generateBulkDownloadFileHandle(String synapseTableId, Set<String> fileHandleIdSet,
+            String admissionKey) throws AsyncTimeoutException, SynapseException {
+        return waitForAsync(generateBulkDownloadFileHandleAsync(synapseTableId, fileHandleIdSet, admissionKey));
+    }
+
+    /**
+     * Async version of {@link #generateBulkDownloadFileHandle}. This returns immediately. The bulk download is kicked
+     * off once a bulk download permit is available, and the returned future completes when Synapse finishes, or
+     * completes exceptionally with an AsyncTimeoutException or SynapseException.
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdSet
+     *         file handle IDs to download
+     * @param admissionKey
+     *         key to share admission turns by, generally the user's health code
+     * @return future of the bulk download API response
+     */
+    public CompletableFuture<BulkFileDownloadResponse> generateBulkDownloadFileHandleAsync(String synapseTableId,
+            Set<String> fileHandleIdSet, String admissionKey) {
+        BulkFileDownloadRequest request = new BulkFileDownloadRequest();
+        request.setRequestedFiles(makeFileHandleAssociationList(synapseTableId, fileHandleIdSet));
+
+        return runWithPermit(SynapseJobAdmission.JobType.BULK_DOWNLOAD, admissionKey, null, () -> {
+            // Kick off async call.
+            String asyncJobToken = startBulkFileDownload(request);
+
+            // Poll Synapse until results are ready.
+            return asyncPoller.poll("bulk download for table " + synapseTableId,
+                    () -> getBulkFileDownloadResults(asyncJobToken));
+        });
+    }
+
+    /**
+     * Gets the file handles and pre-signed URLs for the specified file handles in the specified table. Unlike bulk
+     * download, this is a synchronous call, so there's no async job to wait for. Synapse limits how many file handles
+     * can be requested at once (see {@link #MAX_FILE_HANDLE_URL_BATCH_SIZE}).
+     *
+     * @param synapseTableId
+     *         Synapse table associated with the file handles
+     * @param fileHandleIdCollection
+     *         file handle IDs to get URLs for
+     * @return one result per file handle, with either the file handle and URL, or a failure code
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
+            randomize = false)
+    public List<FileResult> getFileHandleUrlBatch(String synapseTableId, Collection<String> fileHandleIdCollection)
+            throws SynapseException {
+        BatchFileRequest request = new BatchFileRequest();
+        request.setRequestedFiles(makeFileHandleAssociationList(synapseTableId, fileHandleIdCollection));
+        request.setIncludeFileHandles(true);
+        request.setIncludePreSignedURLs(true);
+        request.setIncludePreviewPreSignedURLs(false);
+        return synapseClient.getFileHandleAndUrlBatch(request).getRequestedFiles();
+    }
+
+    // Synapse needs file handle associations to check that the caller can download the file handles.
+    private static List<FileHandleAssociation> makeFileHandleAssociationList(String synapseTableId,
+            Collection<String> fileHandleIdCollection) {
         List<FileHandleAssociation> fhaList = new ArrayList<>();
-        for (String oneFileHandleId : fileHandleIdSet) {
+        for (String oneFileHandleId : fileHandleIdCollection) {
             FileHandleAssociation fha = new FileHandleAssociation();
             fha.setAssociateObjectId(synapseTableId);
             fha.setAssociateObjectType(FileHandleAssociateType.TableEntity);
             fha.setFileHandleId(oneFileHandleId);
             fhaList.add(fha);
         }
-
-        // create request
-        BulkFileDownloadRequest request = new BulkFileDownloadRequest();
-        request.setRequestedFiles(fhaList);
-
-        // Kick off async call.
-        String asyncJobToken = startBulkFileDownload(request);
-
-        // Poll Synapse until results are ready.
-        return pollAsync(() -> getBulkFileDownloadResults(asyncJobToken));
+        return fhaList;
     }
 
     /** Wrapper around SynapseClient.startBulkFileDownload to enable retries. */
@@ -119,17 +264,18 @@ public class SynapseHelper {
     /** Wrapper around SynapseClient.startBulkFileDownload to enable retries. */
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
-    private BulkFileDownloadResponse getBulkFileDownloadResults(String asyncJobToken) throws SynapseException {
+    private PollResult<BulkFileDownloadResponse> getBulkFileDownloadResults(String asyncJobToken)
+            throws SynapseException {
         try {
-            return synapseClient.getBulkFileDownloadResults(asyncJobToken);
+            return PollResult.ready(synapseClient.getBulkFileDownloadResults(asyncJobToken));
         } catch (SynapseResultNotReadyException ex) {
-            // catch this and return null so we don't retry on "not ready"
-            return null;
+            // catch this so we don't retry on "not ready"
+            return PollResult.notReady(ex.getJobStatus());
         }
     }
 
     /**
-     * Queries a Synapse table and returns the results as a CSV file handle.
+     * Queries a Synapse table and returns the results as a CSV file handle, with no admission key.
      *
      * @param query
      *         query to run
@@ -143,12 +289,82 @@ public class SynapseHelper {
      */
     public String generateFileHandleFromTableQuery(String query, String synapseTableId) throws AsyncTimeoutException,
             SynapseException {
-        // Kick off async call.
-        String asyncJobToken = downloadCsvFromTableAsyncStart(query, synapseTableId);
+        return generateFileHandleFromTableQuery(query, synapseTableId, null);
+    }
+
+    /**
+     * Queries a Synapse table and returns the results as a CSV file handle. This blocks until a query permit is
+     * available. See {@link SynapseJobAdmission}.
+     *
+     * @param query
+     *         query to run
+     * @param synapseTableId
+     *         table to query against
+     * @param admissionKey
+     *         key to share admission turns by, generally the user's health code
+     * @return file handle ID of the results in CSV form
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
+     */
+    public String generateFileHandleFromTableQuery(String query, String synapseTableId, String admissionKey)
+            throws AsyncTimeoutException, SynapseException {
+        return generateFileHandleFromTableQuery(query, synapseTableId, admissionKey, null);
+    }
+
+    /**
+     * Queries a Synapse table and returns the results as a CSV file handle, and reports how long the Synapse job
+     * took. See {@link #generateFileHandleFromTableQueryAsync(String, String, String, LongConsumer)}.
+     */
+    public String generateFileHandleFromTableQuery(String query, String synapseTableId, String admissionKey,
+            LongConsumer jobMillisListener) throws AsyncTimeoutException, SynapseException {
+        return waitForAsync(generateFileHandleFromTableQueryAsync(query, synapseTableId, admissionKey,
+                jobMillisListener));
+    }
+
+    /**
+     * Async version of {@link #generateFileHandleFromTableQuery}. This returns immediately. The query is kicked off
+     * once a query permit is available, and the returned future completes when Synapse finishes, or completes
+     * exceptionally with an AsyncTimeoutException or SynapseException.
+     *
+     * @param query
+     *         query to run
+     * @param synapseTableId
+     *         table to query against
+     * @param admissionKey
+     *         key to share admission turns by, generally the user's health code
+     * @return future of the file handle ID of the results in CSV form
+     */
+    public CompletableFuture<String> generateFileHandleFromTableQueryAsync(String query, String synapseTableId,
+            String admissionKey) {
+        return generateFileHandleFromTableQueryAsync(query, synapseTableId, admissionKey, null);
+    }
+
+    /**
+     * Async version of {@link #generateFileHandleFromTableQuery}, which also reports how long the Synapse job took.
+     * The time starts when the query gets its permit, so time spent waiting for a permit isn't counted.
+     *
+     * @param query
+     *         query to run
+     * @param synapseTableId
+     *         table to query against
+     * @param admissionKey
+     *         key to share admission turns by, generally the user's health code
+     * @param jobMillisListener
+     *         called with the job's milliseconds when the job completes, successfully or not; may be null
+     * @return future of the file handle ID of the results in CSV form
+     */
+    public CompletableFuture<String> generateFileHandleFromTableQueryAsync(String query, String synapseTableId,
+            String admissionKey, LongConsumer jobMillisListener) {
+        return runWithPermit(SynapseJobAdmission.JobType.QUERY, admissionKey, jobMillisListener, () -> {
+            // Kick off async call.
+            String asyncJobToken = downloadCsvFromTableAsyncStart(query, synapseTableId);
 
-        // Poll Synapse until results are ready.
-        DownloadFromTableResult result = pollAsync(() -> downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId));
-        return result.getResultsFileHandleId();
+            // Poll Synapse until results are ready.
+            return asyncPoller.poll("query on table " + synapseTableId,
+                    () -> downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId));
+        }).thenApply(DownloadFromTableResult::getResultsFileHandleId);
     }
 
     /** Wrapper around SynapseClient.downloadCsvFromTableAsyncStart to enable retries. */
@@ -162,13 +378,13 @@ public class SynapseHelper {
     /** Wrapper around SynapseClient.downloadCsvFromTableAsyncGet to enable retries. */
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
-    private DownloadFromTableResult downloadCsvFromTableAsyncGet(String asyncJobToken, String synapseTableId)
-            throws SynapseException {
+    private PollResult<DownloadFromTableResult> downloadCsvFromTableAsyncGet(String asyncJobToken,
+            String synapseTableId) throws SynapseException {
         try {
-            return synapseClient.downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId);
+            return PollResult.ready(synapseClient.downloadCsvFromTableAsyncGet(asyncJobToken, synapseTableId));
         } catch (SynapseResultNotReadyException ex) {
-            // catch this and return null so we don't retry on "not ready"
-            return null;
+            // catch this so we don't retry on "not ready"
+            return PollResult.notReady(ex.getJobStatus());
         }
     }
 
@@ -189,49 +405,103 @@ public class SynapseHelper {
     }
 
     /**
-     * Polls the Synapse async call in a loop, according to the poll interval and max tries config.
-     *
-     * @param callable
-     *         Synapse async call
-     * @param <T>
-     *         Synapse async call return type
-     * @return async result
-     * @throws AsyncTimeoutException
-     *         if the async call to Synapse times out, according to the config settings
-     * @throws SynapseException
-     *         if the Synapse call fails
+     * Waits for a permit, then starts the job. The permit is held until the job completes, successfully or not. If
+     * the permit is immediately available, the job is started on the calling thread. Otherwise, the permit is granted
+     * on whichever thread released it (generally a poll thread), so the job is started on the network executor. If
+     * there's a job millis listener, it's called with the time from getting the permit until the job completes.
      */
-    private <T> T pollAsync(SynapseCallable<T> callable) throws AsyncTimeoutException, SynapseException {
-        T result = null;
-        for (int tries = 0; tries < pollMaxTries; tries++) {
-            if (pollIntervalMillis > 0) {
-                try {
-                    Thread.sleep(pollIntervalMillis);
-                } catch (InterruptedException ex) {
-                    LOG.warn("Interrupted while sleeping: " + ex.getMessage(), ex);
-                }
+    private <T> CompletableFuture<T> runWithPermit(SynapseJobAdmission.JobType jobType, String admissionKey,
+            LongConsumer jobMillisListener, AsyncJobStarter<T> jobStarter) {
+        CompletableFuture<SynapseJobAdmission.Permit> permitFuture = jobAdmission.acquire(jobType, admissionKey);
+        if (permitFuture.isDone()) {
+            return permitFuture.thenCompose(permit -> startWithPermit(permit, jobMillisListener, jobStarter));
+        }
+
+        CompletableFuture<T> resultFuture = new CompletableFuture<>();
+        permitFuture.whenComplete((permit, permitEx) -> {
+            if (permitEx != null) {
+                resultFuture.completeExceptionally(permitEx);
+                return;
             }
 
-            result = callable.call();
-            if (result != null) {
-                // If this returns, we have a result, we can break out of our poll loop.
-                break;
+            try {
+                networkExecutorService.execute(() -> startWithPermit(permit, jobMillisListener, jobStarter)
+                        .whenComplete((result, ex) -> {
+                            if (ex != null) {
+                                resultFuture.completeExceptionally(ex);
+                            } else {
+                                resultFuture.complete(result);
+                            }
+                        }));
+            } catch (RejectedExecutionException ex) {
+                // The job never started, so give the permit back.
+                permit.release();
+                resultFuture.completeExceptionally(ex);
             }
+        });
+        return resultFuture;
+    }
+
+    // Starts the job while holding the permit, and releases the permit when the job completes.
+    private static <T> CompletableFuture<T> startWithPermit(SynapseJobAdmission.Permit permit,
+            LongConsumer jobMillisListener, AsyncJobStarter<T> jobStarter) {
+        Stopwatch jobStopwatch = Stopwatch.createStarted();
+        CompletableFuture<T> jobFuture;
+        try {
+            jobFuture = jobStarter.start();
+        } catch (SynapseException | RuntimeException ex) {
+            jobFuture = new CompletableFuture<>();
+            jobFuture.completeExceptionally(ex);
         }
-        if (result == null) {
-            throw new AsyncTimeoutException("Synapse async call timed out");
-        }
-        return result;
+        return jobFuture.whenComplete((result, ex) -> {
+            try {
+                if (jobMillisListener != null) {
+                    jobMillisListener.accept(jobStopwatch.elapsed(TimeUnit.MILLISECONDS));
+                }
+            } finally {
+                permit.release();
+            }
+        });
+    }
+
+    /** Starts a Synapse async job and returns the future from the poller. */
+    @FunctionalInterface
+    private interface AsyncJobStarter<T> {
+        CompletableFuture<T> start() throws SynapseException;
     }
 
     /**
-     * Sub-interface of Callable which represents a Synapse async call. This is used to limit the exception being
-     * thrown, so we don't have to catch Exception everywhere. This is used only for pollAsync().
+     * Blocks until the given Synapse async future completes, and unwraps its exception. This is for callers that need
+     * the result synchronously. The polling itself still happens on the async poller.
      *
+     * @param future
+     *         future from one of the async methods
      * @param <T>
-     *         return type of the Synapse async call
+     *         Synapse async call return type
+     * @return async result
+     * @throws AsyncTimeoutException
+     *         if the async call to Synapse times out, according to the config settings
+     * @throws SynapseException
+     *         if the Synapse call fails
      */
-    private interface SynapseCallable<T> extends Callable<T> {
-        T call() throws SynapseException;
+    private static <T> T waitForAsync(CompletableFuture<T> future) throws AsyncTimeoutException, SynapseException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof AsyncTimeoutException) {
+                throw (AsyncTimeoutException) cause;
+            } else if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        } catch (InterruptedException ex) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new AsyncTimeoutException("Interrupted while waiting for Synapse async call", ex);
+        }
     }
 }
@@ -0,0 +1,184 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Strings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * <p>
+ * Node-wide admission control for Synapse async jobs. Synapse only has a handful of workers for table queries, so
+ * there's no point in having more than a few jobs in flight at once. Query jobs and bulk download jobs have separate
+ * permit budgets, since they run on different Synapse workers.
+ * </p>
+ * <p>
+ * When there are no free permits, callers wait in a queue for their admission key (generally the user's health code).
+ * Freed permits are handed out round-robin across keys, so a user with 60 tables gets one job admitted per turn, and
+ * doesn't push everyone else's jobs behind theirs.
+ * </p>
+ * <p>
+ * Acquiring a permit returns a future, so async callers don't hold a thread while they wait. A waiter's future is
+ * completed on the thread that releases the permit.
+ * </p>
+ */
+@Component
+public class SynapseJobAdmission {
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_BULK_DOWNLOAD_PERMITS = "synapse.admission.bulk.download.permits";
+    static final String CONFIG_KEY_QUERY_PERMITS = "synapse.admission.query.permits";
+
+    /** Types of Synapse async jobs. Each type has its own permit budget. */
+    public enum JobType {
+        BULK_DOWNLOAD,
+        QUERY,
+    }
+
+    private final Map<JobType, PermitPool> poolMap = new EnumMap<>(JobType.class);
+
+    /** Bridge config. This is used to get the permit budgets. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        poolMap.put(JobType.BULK_DOWNLOAD, new PermitPool(config.getInt(CONFIG_KEY_BULK_DOWNLOAD_PERMITS)));
+        poolMap.put(JobType.QUERY, new PermitPool(config.getInt(CONFIG_KEY_QUERY_PERMITS)));
+    }
+
+    /**
+     * Acquires a permit for the given job type. The returned future completes when a permit is available. The caller
+     * must release the permit when the job is done. Cancelling the future gives up the caller's place in the queue.
+     *
+     * @param jobType
+     *         type of Synapse job
+     * @param admissionKey
+     *         key to share turns by, generally the user's health code; null is treated as its own key
+     * @return future of the permit
+     */
+    public CompletableFuture<Permit> acquire(JobType jobType, String admissionKey) {
+        return poolMap.get(jobType).acquire(Strings.nullToEmpty(admissionKey));
+    }
+
+    /** Number of free permits for the given job type. */
+    public int getAvailablePermits(JobType jobType) {
+        return poolMap.get(jobType).getAvailablePermits();
+    }
+
+    /** Number of callers waiting for a permit for the given job type. */
+    public int getWaitingCount(JobType jobType) {
+        return poolMap.get(jobType).getWaitingCount();
+    }
+
+    /** A permit to run one Synapse job. Releasing more than once is a no-op. */
+    public static class Permit {
+        private final PermitPool pool;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(PermitPool pool) {
+            this.pool = pool;
+        }
+
+        /** Returns the permit, handing it to the next waiter, if there is one. */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                pool.release();
+            }
+        }
+    }
+
+    // Permits and wait queues for a single job type.
+    private static class PermitPool {
+        // Insertion order is the round-robin order. A key that's served moves to the back.
+        private final Map<String, Deque<CompletableFuture<Permit>>> waiterQueueMap = new LinkedHashMap<>();
+        private int availablePermits;
+
+        PermitPool(int numPermits) {
+            if (numPermits < 1) {
+                throw new IllegalArgumentException("numPermits must be positive");
+            }
+            this.availablePermits = numPermits;
+        }
+
+        CompletableFuture<Permit> acquire(String admissionKey) {
+            CompletableFuture<Permit> future = new CompletableFuture<>();
+            synchronized (this) {
+                if (availablePermits > 0) {
+                    availablePermits--;
+                } else {
+                    waiterQueueMap.computeIfAbsent(admissionKey, key -> new ArrayDeque<>()).add(future);
+                    return future;
+                }
+            }
+            future.complete(new Permit(this));
+            return future;
+        }
+
+        void release() {
+            while (true) {
+                CompletableFuture<Permit> nextWaiter;
+                synchronized (this) {
+                    nextWaiter = pollNextWaiter();
+                    if (nextWaiter == null) {
+                        availablePermits++;
+                        return;
+                    }
+                }
+
+                // Complete outside the lock, since this runs the waiter's callbacks. If the waiter was cancelled in the
+                // meantime, pass the permit on to the next one.
+                if (nextWaiter.complete(new Permit(this))) {
+                    return;
+                }
+            }
+        }
+
+        // Takes the first live waiter from the key at the front of the rotation, then moves that key to the back.
+        // Cancelled waiters and empty queues are dropped along the way. Must be called while holding the lock.
+        private CompletableFuture<Permit> pollNextWaiter() {
+            Iterator<Map.Entry<String, Deque<CompletableFuture<Permit>>>> entryIter =
+                    waiterQueueMap.entrySet().iterator();
+            while (entryIter.hasNext()) {
+                Map.Entry<String, Deque<CompletableFuture<Permit>>> entry = entryIter.next();
+                Deque<CompletableFuture<Permit>> waiterQueue = entry.getValue();
+                CompletableFuture<Permit> waiter;
+                do {
+                    waiter = waiterQueue.poll();
+                } while (waiter != null && waiter.isDone());
+
+                entryIter.remove();
+                if (waiter != null) {
+                    if (!waiterQueue.isEmpty()) {
+                        waiterQueueMap.put(entry.getKey(), waiterQueue);
+                    }
+                    return waiter;
+                }
+            }
+            return null;
+        }
+
+        synchronized int getAvailablePermits() {
+            return availablePermits;
+        }
+
+        synchronized int getWaitingCount() {
+            int count = 0;
+            for (Deque<CompletableFuture<Permit>> oneWaiterQueue : waiterQueueMap.values()) {
+                for (CompletableFuture<Permit> oneWaiter : oneWaiterQueue) {
+                    if (!oneWaiter.isDone()) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+}
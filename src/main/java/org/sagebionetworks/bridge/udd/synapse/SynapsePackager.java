@@ -4,15 +4,21 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
 import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
 
 import javax.annotation.Resource;
 
@@ -31,7 +37,11 @@ import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
+import org.sagebionetworks.bridge.udd.s3.ExportArtifactCache;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.s3.S3MultipartOutputStream;
+import org.sagebionetworks.bridge.udd.s3.S3MultipartUploadHelper;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
 
 /**
@@ -44,21 +54,49 @@ public class SynapsePackager {
     private static final Logger LOG = LoggerFactory.getLogger(SynapsePackager.class);
 
     // package-scoped to be available in tests
+    static final String CONFIG_KEY_BULK_DOWNLOAD_CHUNK_SIZE = "synapse.bulk.download.chunk.size";
+    static final String CONFIG_KEY_DEDUPE_ATTACHMENTS = "zip.dedupe.attachments";
     static final String CONFIG_KEY_EXPIRATION_HOURS = "s3.url.expiration.hours";
+    static final String CONFIG_KEY_FLATTEN_ATTACHMENTS = "zip.flatten.attachments";
+    static final String CONFIG_KEY_STAGE_GRAPH = "synapse.stage.graph.enabled";
+    static final String CONFIG_KEY_STREAM_CSV = "synapse.stream.csv";
+    static final String CONFIG_KEY_STREAM_CSV_MAX_BUFFER_CHARS = "synapse.stream.csv.max.buffer.chars";
     static final String CONFIG_KEY_USERDATA_BUCKET = "userdata.bucket";
     static final String ERROR_LOG_FILE_NAME = "error.log";
     static final String METADATA_ERROR_LOG_FILE_NAME = "metadata-error.log";
 
     private static final Joiner LINE_JOINER = Joiner.on('\n');
 
+    private SynapseAttachmentCache attachmentCache;
     private ExecutorService auxiliaryExecutorService;
+    private int bulkDownloadChunkSize;
+    private ExecutorService csvProcessingExecutorService;
+    private boolean dedupeAttachments;
+    private SynapseDirectAttachmentFetcher directAttachmentFetcher;
+    private ExportArtifactCache exportArtifactCache;
     private FileHelper fileHelper;
+    private boolean flattenAttachments;
+    private ExecutorService networkExecutorService;
+    private SynapseQueryBatcher queryBatcher;
     private S3Helper s3Helper;
+    private S3MultipartUploadHelper s3MultipartUploadHelper;
+    private SynapseQueryShardPlanner shardPlanner;
+    private boolean stageGraph;
+    private boolean streamCsv;
+    private int streamCsvMaxBufferChars;
+    private SurveyMetadataCache surveyMetadataCache;
     private SynapseHelper synapseHelper;
+    private SynapseTableStatsStore tableStatsStore;
     private int urlExpirationHours;
     private String userdataBucketName;
     private ZipHelper zipHelper;
 
+    /** Attachment cache, passed to table tasks if it's enabled and attachments are flattened. */
+    @Autowired
+    public final void setAttachmentCache(SynapseAttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
     /**
      * Auxiliary executor service (thread pool), used secondary thread tasks. (As opposed to listener executor service.
      */
@@ -67,14 +105,42 @@ public class SynapsePackager {
         this.auxiliaryExecutorService = auxiliaryExecutorService;
     }
 
-    /** Bridge config, used to get the S3 upload bucket and pre-signed URL expiration. */
+    /**
+     * Bridge config, used to get the S3 upload bucket, pre-signed URL expiration, whether to stream CSVs directly
+     * into the zip, whether to flatten attachment bulk downloads into the zip, whether to dedupe attachments across
+     * tables, whether to run table tasks as stage graphs, and how many file handles to bulk download per chunk.
+     */
     @Autowired
     @Qualifier("uddConfigProperties")
     public final void setConfig(Config config) {
+        bulkDownloadChunkSize = config.getInt(CONFIG_KEY_BULK_DOWNLOAD_CHUNK_SIZE);
+        dedupeAttachments = Boolean.parseBoolean(config.get(CONFIG_KEY_DEDUPE_ATTACHMENTS));
+        flattenAttachments = Boolean.parseBoolean(config.get(CONFIG_KEY_FLATTEN_ATTACHMENTS));
+        stageGraph = Boolean.parseBoolean(config.get(CONFIG_KEY_STAGE_GRAPH));
+        streamCsv = Boolean.parseBoolean(config.get(CONFIG_KEY_STREAM_CSV));
+        streamCsvMaxBufferChars = config.getInt(CONFIG_KEY_STREAM_CSV_MAX_BUFFER_CHARS);
         urlExpirationHours = config.getInt(CONFIG_KEY_EXPIRATION_HOURS);
         userdataBucketName = config.get(CONFIG_KEY_USERDATA_BUCKET);
     }
 
+    /** Executor for CPU-bound CSV processing, used when table tasks run as stage graphs. */
+    @Resource(name = "csvProcessingExecutorService")
+    public final void setCsvProcessingExecutorService(ExecutorService csvProcessingExecutorService) {
+        this.csvProcessingExecutorService = csvProcessingExecutorService;
+    }
+
+    /** Direct attachment fetcher, passed to table tasks if it's enabled and attachments are flattened. */
+    @Autowired
+    public final void setDirectAttachmentFetcher(SynapseDirectAttachmentFetcher directAttachmentFetcher) {
+        this.directAttachmentFetcher = directAttachmentFetcher;
+    }
+
+    /** Cache of finished export zips, used to skip Synapse when the same export was recently built. */
+    @Autowired
+    public final void setExportArtifactCache(ExportArtifactCache exportArtifactCache) {
+        this.exportArtifactCache = exportArtifactCache;
+    }
+
     /**
      * Wrapper class around the file system. Used by unit tests to test the functionality without hitting the real file
      * system.
@@ -84,31 +150,102 @@ public class SynapsePackager {
         this.fileHelper = fileHelper;
     }
 
-    /** S3 Helper, used to upload to S3 and create a pre-signed URL. */
+    /** Executor for Synapse downloads, used when table tasks run as stage graphs. */
+    @Resource(name = "synapseNetworkExecutorService")
+    public final void setNetworkExecutorService(ExecutorService networkExecutorService) {
+        this.networkExecutorService = networkExecutorService;
+    }
+
+    /** Query batcher, passed to table tasks if batching is enabled. */
+    @Autowired
+    public final void setQueryBatcher(SynapseQueryBatcher queryBatcher) {
+        this.queryBatcher = queryBatcher;
+    }
+
+    /** S3 Helper, used to create a pre-signed URL. */
     @Autowired
     public final void setS3Helper(S3Helper s3Helper) {
         this.s3Helper = s3Helper;
     }
 
+    /** S3 multipart upload helper, used to stream the master zip file to S3. */
+    @Autowired
+    public final void setS3MultipartUploadHelper(S3MultipartUploadHelper s3MultipartUploadHelper) {
+        this.s3MultipartUploadHelper = s3MultipartUploadHelper;
+    }
+
+    /** Shard planner, passed to table tasks so large queries are split by date range. */
+    @Autowired
+    public final void setShardPlanner(SynapseQueryShardPlanner shardPlanner) {
+        this.shardPlanner = shardPlanner;
+    }
+
+    /** Survey metadata cache, passed to survey tasks so unchanged survey tables aren't re-downloaded. */
+    @Autowired
+    public final void setSurveyMetadataCache(SurveyMetadataCache surveyMetadataCache) {
+        this.surveyMetadataCache = surveyMetadataCache;
+    }
+
     /** Synapse helper. */
     @Autowired
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
     }
 
+    /** Table stats store, used to skip tables that can't have data in the requested date range. */
+    @Autowired
+    public final void setTableStatsStore(SynapseTableStatsStore tableStatsStore) {
+        this.tableStatsStore = tableStatsStore;
+    }
+
     /** Zip helper. */
     @Autowired
     public final void setZipHelper(ZipHelper zipHelper) {
         this.zipHelper = zipHelper;
     }
 
+    /**
+     * Downloads data from Synapse tables, uploads them to S3, and generates a pre-signed URL for the data. This checks
+     * the export cache, and only starts the survey downloads on a miss. See
+     * {@link #packageSynapseData(Map, String, BridgeUddRequest, SynapseSurveyPrefetch)}.
+     *
+     * @param synapseToSchemaMap
+     *         map from Synapse table IDs to schemas, used to enumerate Synapse tables and determine file names
+     * @param healthCode
+     *         user health code to filter on
+     * @param request
+     *         user data download request, used to determine start and end dates for requested data
+     * @param surveyTableIdSet
+     *         set of survey table IDs, which need to be downloaded in their entirety
+     * @return pre-signed URL and expiration time
+     */
+    public PresignedUrlInfo packageSynapseData(Map<String, UploadSchema> synapseToSchemaMap, String healthCode,
+            BridgeUddRequest request, Set<String> surveyTableIdSet) throws IOException {
+        String cacheKeyMaterial = getCacheKeyMaterial(synapseToSchemaMap, healthCode, request, surveyTableIdSet);
+        PresignedUrlInfo cachedPresignedUrlInfo = getCachedExport(cacheKeyMaterial);
+        if (cachedPresignedUrlInfo != null) {
+            return cachedPresignedUrlInfo;
+        }
+        return packageSynapseData(synapseToSchemaMap, healthCode, request, prefetchSurveys(surveyTableIdSet),
+                cacheKeyMaterial);
+    }
+
     /**
      * <p>
-     * Downloads data from Synapse tables, uploads them to S3, and generates a pre-signed URL for the data.
+     * Downloads data from Synapse tables, uploads them to S3, and generates a pre-signed URL for the data. Survey
+     * metadata comes from the given prefetch, which was started before the health code was known.
      * </p>
      * <p>
      * Schema map and survey table ID set are guaranteed by the DynamoHelper to be non-null.
      * </p>
+     * <p>
+     * If the same export was recently built without errors, this signs a new URL for the cached zip instead. See
+     * {@link ExportArtifactCache}. Callers that want to skip the survey downloads on a cache hit should call
+     * {@link #getCachedExport} first.
+     * </p>
+     * <p>
+     * The survey prefetch is always discarded when this returns, including on cache hits and when there's no data.
+     * </p>
      *
      * @param synapseToSchemaMap
      *         map from Synapse table IDs to schemas, used to enumerate Synapse tables and determine file names
@@ -116,47 +253,213 @@ public class SynapsePackager {
      *         user health code to filter on
      * @param request
      *         user data download request, used to determine start and end dates for requested data
-     * @param surveyTableIdSet
-     *         set of survey table IDs, which need to be downloaded in their entirety
+     * @param surveyPrefetch
+     *         survey metadata downloads, started by {@link #prefetchSurveys}
      * @return pre-signed URL and expiration time
      */
     public PresignedUrlInfo packageSynapseData(Map<String, UploadSchema> synapseToSchemaMap, String healthCode,
-            BridgeUddRequest request, Set<String> surveyTableIdSet) throws IOException {
+            BridgeUddRequest request, SynapseSurveyPrefetch surveyPrefetch) throws IOException {
+        String cacheKeyMaterial = getCacheKeyMaterial(synapseToSchemaMap, healthCode, request,
+                surveyPrefetch.getSurveyTableIdSet());
+        PresignedUrlInfo cachedPresignedUrlInfo;
+        try {
+            cachedPresignedUrlInfo = getCachedExport(cacheKeyMaterial);
+        } catch (RuntimeException ex) {
+            surveyPrefetch.discard();
+            throw ex;
+        }
+        if (cachedPresignedUrlInfo != null) {
+            surveyPrefetch.discard();
+            return cachedPresignedUrlInfo;
+        }
+        return packageSynapseData(synapseToSchemaMap, healthCode, request, surveyPrefetch, cacheKeyMaterial);
+    }
+
+    /**
+     * <p>
+     * Downloads data from Synapse tables, uploads them to S3, and generates a pre-signed URL for the data. This doesn't
+     * check the export cache. The caller is expected to have already checked it with {@link #getCachedExport}, using
+     * the same cache key material. If the export finishes without errors, it's cached under that key material.
+     * </p>
+     * <p>
+     * The survey prefetch is always discarded when this returns, including when there's no data.
+     * </p>
+     *
+     * @param synapseToSchemaMap
+     *         map from Synapse table IDs to schemas, used to enumerate Synapse tables and determine file names
+     * @param healthCode
+     *         user health code to filter on
+     * @param request
+     *         user data download request, used to determine start and end dates for requested data
+     * @param surveyPrefetch
+     *         survey metadata downloads, started by {@link #prefetchSurveys}
+     * @param cacheKeyMaterial
+     *         export cache key material, from {@link #getCacheKeyMaterial}
+     * @return pre-signed URL and expiration time
+     */
+    public PresignedUrlInfo packageSynapseData(Map<String, UploadSchema> synapseToSchemaMap, String healthCode,
+            BridgeUddRequest request, SynapseSurveyPrefetch surveyPrefetch, String cacheKeyMaterial)
+            throws IOException {
+        try {
+            return packageSynapseDataWithPrefetch(synapseToSchemaMap, healthCode, request, surveyPrefetch,
+                    cacheKeyMaterial);
+        } finally {
+            surveyPrefetch.discard();
+        }
+    }
+
+    /**
+     * Looks up a recent export in the export cache, and if there is one, signs a new URL for it. This is cheap (no
+     * Synapse calls), so callers should check before starting survey downloads or Synapse queries.
+     *
+     * @param cacheKeyMaterial
+     *         export cache key material, from {@link #getCacheKeyMaterial}
+     * @return pre-signed URL and expiration time, or null if there's no cached export
+     */
+    public PresignedUrlInfo getCachedExport(String cacheKeyMaterial) {
+        String cachedObjectKey = exportArtifactCache.get(cacheKeyMaterial);
+        if (cachedObjectKey == null) {
+            return null;
+        }
+        LOG.info("Using cached export " + cachedObjectKey);
+        return generatePresignedUrlInfo(cachedObjectKey);
+    }
+
+    private PresignedUrlInfo packageSynapseDataWithPrefetch(Map<String, UploadSchema> synapseToSchemaMap,
+            String healthCode, BridgeUddRequest request, SynapseSurveyPrefetch surveyPrefetch,
+            String cacheKeyMaterial) throws IOException {
         List<File> allFileList = new ArrayList<>();
-        File masterZipFile = null;
+        Map<File, String> flattenedZipToPrefixMap = new HashMap<>();
         File tmpDir = fileHelper.createTempDir();
+
+        // Open the zip to S3 up front, so tasks can stream CSVs into it. This is cheap, since nothing is sent to S3
+        // until we write to it. Filename is "userdata-[startDate]-to-[endDate]-[random guid].zip". This allows the
+        // filename to be unique, user-friendly, and contain no identifying info.
+        String masterZipFileName = "userdata-" + request.getStartDate() + "-to-" + request.getEndDate() + "-" +
+                UUID.randomUUID().toString() + ".zip";
+        S3MultipartOutputStream s3OutputStream = s3MultipartUploadHelper.openStream(userdataBucketName,
+                masterZipFileName);
+        ZipStreamWriter zipStreamWriter = zipHelper.newStreamWriter(s3OutputStream);
+
+        // One registry per export, shared by all tables. Shared attachments are a single flattened entry, so this only
+        // makes sense if attachments are flattened.
+        SynapseAttachmentRegistry attachmentRegistry = dedupeAttachments && flattenAttachments ?
+                new SynapseAttachmentRegistry() : null;
+        boolean uploaded = false;
         try {
-            // create and execute Synapse downloads asynchronously
+            // create and execute Synapse downloads asynchronously (surveys are already running)
             List<Future<SynapseDownloadFromTableResult>> queryFutureList = initAsyncQueryTasks(synapseToSchemaMap,
-                    healthCode, request, tmpDir);
-            List<Future<File>> surveyFutureList = initAsyncSurveyTasks(surveyTableIdSet, tmpDir);
+                    healthCode, request, tmpDir, zipStreamWriter, attachmentRegistry);
 
-            // wait for async tasks - We need to wait for all tasks and gather up all files before we check whether we
-            // have no query results. Otherwise, we won't know to clean up these files, and we'll leave garbage on our
-            // file system.
-            List<File> queryFileList = waitForAsyncQueryTasks(tmpDir, queryFutureList);
+            // wait for async query tasks - We need to wait for all query tasks and gather up all files before we check
+            // whether we have no query results. Otherwise, we won't know to clean up these files, and we'll leave
+            // garbage on our file system. Survey files are cleaned up by the survey prefetch, so if there's no data,
+            // we don't wait for the surveys.
+            List<File> queryFileList = waitForAsyncQueryTasks(tmpDir, queryFutureList, flattenedZipToPrefixMap);
             allFileList.addAll(queryFileList);
-            List<File> surveyFileList = waitForAsyncSurveyTasks(tmpDir, surveyFutureList);
-            allFileList.addAll(surveyFileList);
+            if (attachmentRegistry != null) {
+                // Tables that failed after sharing their attachments leave their zips with the registry, since other
+                // tables' CSVs may point into them.
+                Map<File, String> orphanedZipToPrefixMap = attachmentRegistry.getOrphanedZipToPrefixMap();
+                allFileList.addAll(orphanedZipToPrefixMap.keySet());
+                flattenedZipToPrefixMap.putAll(orphanedZipToPrefixMap);
+                LOG.info("Downloaded " + attachmentRegistry.getClaimCount() + " unique attachments, skipped " +
+                        attachmentRegistry.getSharedCount() + " attachments shared between tables");
+            }
 
-            if (queryFileList.isEmpty()) {
+            if (queryFileList.isEmpty() && zipStreamWriter.getEntryCount() == 0) {
                 // There are no files to send, meaning there is no user data to send. Return null, to signal that there
                 // is no pre-signed URL to send.
                 return null;
             }
 
-            // Zip up all upload files. Filename is "userdata-[startDate]-to-[endDate]-[random guid].zip". This allows
-            // the filename to be unique, user-friendly, and contain no identifying info.
-            String masterZipFileName = "userdata-" + request.getStartDate() + "-to-" + request.getEndDate() + "-" +
-                    UUID.randomUUID().toString() + ".zip";
-            masterZipFile = fileHelper.newFile(tmpDir, masterZipFileName);
-            zipFiles(allFileList, masterZipFile);
+            List<File> surveyFileList = waitForAsyncSurveyTasks(tmpDir, surveyPrefetch.getFutureList());
+            allFileList.addAll(surveyFileList);
 
-            uploadToS3(masterZipFile);
+            // Zip up the rest of the files and finish the upload.
+            zipAndUploadToS3(allFileList, flattenedZipToPrefixMap, zipStreamWriter, s3OutputStream);
+            uploaded = true;
+
+            // Only cache complete exports. If anything failed, the next request should try again.
+            if (!hasErrorLog(allFileList)) {
+                exportArtifactCache.put(cacheKeyMaterial, masterZipFileName);
+            }
             return generatePresignedUrlInfo(masterZipFileName);
         } finally {
-            cleanupFiles(allFileList, masterZipFile, tmpDir);
+            if (!uploaded) {
+                // Discard anything already sent to S3. This is a no-op if we never wrote anything.
+                s3OutputStream.abort();
+            }
+            cleanupFiles(allFileList, tmpDir);
+        }
+    }
+
+    /**
+     * Starts downloading survey metadata into a temp dir of its own. This doesn't need the user's health code, so it
+     * can start as soon as the study's survey tables are known. The caller must pass the prefetch to
+     * {@link #packageSynapseData(Map, String, BridgeUddRequest, SynapseSurveyPrefetch)}, or discard it.
+     *
+     * @param surveyTableIdSet
+     *         set of survey table IDs, which need to be downloaded in their entirety
+     * @return the survey prefetch
+     */
+    public SynapseSurveyPrefetch prefetchSurveys(Set<String> surveyTableIdSet) {
+        SynapseSurveyPrefetch surveyPrefetch = new SynapseSurveyPrefetch(fileHelper, surveyTableIdSet,
+                fileHelper.createTempDir());
+        try {
+            initAsyncSurveyTasks(surveyPrefetch);
+        } catch (RuntimeException ex) {
+            // Skip the tasks that did start, and clean up the temp dir.
+            surveyPrefetch.discard();
+            throw ex;
         }
+        return surveyPrefetch;
+    }
+
+    /**
+     * <p>
+     * Describes everything that affects the export's contents, for the export cache: study, health code, date range,
+     * tables and their schema revisions, survey tables, and zip layout settings. Sets are sorted, so the same export
+     * always gets the same string.
+     * </p>
+     * <p>
+     * Callers that skip tables the user has no data in should pass all of the study's tables, so the cache can be
+     * checked before looking up which tables have data.
+     * </p>
+     *
+     * @param synapseToSchemaMap
+     *         map from Synapse table IDs to schemas
+     * @param healthCode
+     *         user health code
+     * @param request
+     *         user data download request
+     * @param surveyTableIdSet
+     *         set of survey table IDs
+     * @return cache key material, to pass to {@link #getCachedExport} and
+     *         {@link #packageSynapseData(Map, String, BridgeUddRequest, SynapseSurveyPrefetch, String)}
+     */
+    public String getCacheKeyMaterial(Map<String, UploadSchema> synapseToSchemaMap, String healthCode,
+            BridgeUddRequest request, Set<String> surveyTableIdSet) {
+        SortedSet<String> tableSet = new TreeSet<>();
+        for (Map.Entry<String, UploadSchema> oneSynapseToSchemaEntry : synapseToSchemaMap.entrySet()) {
+            tableSet.add(oneSynapseToSchemaEntry.getKey() + "=" + oneSynapseToSchemaEntry.getValue().getKey());
+        }
+        return "study=" + request.getStudyId() + "\nhealthCode=" + healthCode + "\nstartDate=" +
+                request.getStartDate() + "\nendDate=" + request.getEndDate() + "\nflattenAttachments=" +
+                flattenAttachments + "\ndedupeAttachments=" + dedupeAttachments + "\ndirectAttachments=" +
+                directAttachmentFetcher.isEnabled() + "\ntables=" + tableSet + "\nsurveyTables=" +
+                new TreeSet<>(surveyTableIdSet);
+    }
+
+    // True if any of the files is an error log, meaning some tables or surveys failed to download.
+    private static boolean hasErrorLog(List<File> fileList) {
+        for (File oneFile : fileList) {
+            String fileName = oneFile.getName();
+            if (ERROR_LOG_FILE_NAME.equals(fileName) || METADATA_ERROR_LOG_FILE_NAME.equals(fileName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -165,6 +468,10 @@ public class SynapsePackager {
      * CSV and the bulk download for attached file handles.
      * </p>
      * <p>
+     * If stage graphs are enabled, each task runs as a graph of stages on the network and CSV processing executors,
+     * so different tables' stages overlap. Otherwise, each task runs start to finish on an auxiliary thread.
+     * </p>
+     * <p>
      * This is made package-scoped so unit tests can hook into it.
      * </p>
      *
@@ -176,56 +483,99 @@ public class SynapsePackager {
      *         Bridge UDD request, used to get the start and end date
      * @param tmpDir
      *         temp directory that files should be downloaded to
+     * @param zipStreamWriter
+     *         master zip writer, which tasks stream CSVs into (if CSV streaming is enabled) and fetch attachments
+     *         directly into (if direct attachment fetch is enabled)
+     * @param attachmentRegistry
+     *         registry that dedupes attachments across tables, or null if attachments aren't deduped
      * @return list of Futures for the async tasks
      */
     List<Future<SynapseDownloadFromTableResult>> initAsyncQueryTasks(Map<String, UploadSchema> synapseToSchemaMap,
-            String healthCode, BridgeUddRequest request, File tmpDir) {
+            String healthCode, BridgeUddRequest request, File tmpDir, ZipStreamWriter zipStreamWriter,
+            SynapseAttachmentRegistry attachmentRegistry) {
         List<Future<SynapseDownloadFromTableResult>> taskFutureList = new ArrayList<>();
+
+        int numSkippedTables = 0;
+        long estimatedRowCount = 0;
         for (Map.Entry<String, UploadSchema> oneSynapseToSchemaEntry : synapseToSchemaMap.entrySet()) {
-            // create params
+            // Skip tables whose upload dates can't overlap the request.
             String synapseTableId = oneSynapseToSchemaEntry.getKey();
+            SynapseTableStats tableStats = tableStatsStore.getStats(synapseTableId);
+            if (tableStats != null) {
+                if (!tableStats.mightHaveData(request.getStartDate(), request.getEndDate())) {
+                    numSkippedTables++;
+                    continue;
+                }
+                estimatedRowCount += tableStats.getRowCount();
+            }
+
+            // create params
             UploadSchema schema = oneSynapseToSchemaEntry.getValue();
+            String attachmentEntryPrefix = flattenAttachments ? schema.getKey().toString() + "/" : null;
+            // Directly fetched attachments are written straight into the master zip, which only makes sense if
+            // they're flattened.
+            boolean fetchAttachmentsDirect = directAttachmentFetcher.isEnabled() && attachmentEntryPrefix != null;
             SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
                     .withSynapseTableId(synapseTableId).withHealthCode(healthCode)
                     .withStartDate(request.getStartDate()) .withEndDate(request.getEndDate()).withTempDir(tmpDir)
-                    .withSchema(schema).build();
+                    .withSchema(schema).withZipStreamWriter(streamCsv ? zipStreamWriter : null)
+                    .withAttachmentEntryPrefix(attachmentEntryPrefix)
+                    .withAttachmentZipStreamWriter(fetchAttachmentsDirect ? zipStreamWriter : null)
+                    .withAttachmentRegistry(attachmentRegistry).build();
 
             // kick off async task
             SynapseDownloadFromTableTask task = new SynapseDownloadFromTableTask(param);
             task.setFileHelper(fileHelper);
             task.setSynapseHelper(synapseHelper);
-            Future<SynapseDownloadFromTableResult> taskFuture = auxiliaryExecutorService.submit(task);
+            if (queryBatcher.isEnabled()) {
+                task.setQueryBatcher(queryBatcher);
+            }
+            if (attachmentCache.isEnabled() && attachmentEntryPrefix != null) {
+                // Cached attachments are their own zips, which only makes sense if they're flattened.
+                task.setAttachmentCache(attachmentCache);
+            }
+            if (fetchAttachmentsDirect) {
+                task.setDirectAttachmentFetcher(directAttachmentFetcher);
+            }
+            task.setBulkDownloadChunkSize(bulkDownloadChunkSize);
+            task.setMaxCsvBufferChars(streamCsvMaxBufferChars);
+            task.setShardPlanner(shardPlanner);
+            Future<SynapseDownloadFromTableResult> taskFuture;
+            if (stageGraph) {
+                taskFuture = task.executeAsync(networkExecutorService, csvProcessingExecutorService);
+            } else {
+                taskFuture = auxiliaryExecutorService.submit(task);
+            }
             taskFutureList.add(taskFuture);
         }
 
+        // Row count is for all users, so this is an upper bound on how much the tables we query have to scan.
+        LOG.info("Querying " + taskFutureList.size() + " tables, skipped " + numSkippedTables +
+                " tables outside the date range, tables with stats have " + estimatedRowCount + " rows");
         return taskFutureList;
     }
 
     /**
-     * Kicks off async tasks to download survey metadata from Synapse.
+     * Kicks off async tasks to download survey metadata from Synapse, and adds their futures to the prefetch.
      *
-     * @param surveyTableIdSet
-     *         set of survey metadata table IDs to download
-     * @param tmpDir
-     *         temp dir to download tables to
-     * @return list of Futures for the async tasks
+     * @param surveyPrefetch
+     *         survey prefetch, which has the survey metadata table IDs to download and the temp dir to download them to
      */
-    private List<Future<File>> initAsyncSurveyTasks(Set<String> surveyTableIdSet, File tmpDir) {
-        List<Future<File>> futureList = new ArrayList<>();
-        for (String oneTableId : surveyTableIdSet) {
+    private void initAsyncSurveyTasks(SynapseSurveyPrefetch surveyPrefetch) {
+        for (String oneTableId : surveyPrefetch.getSurveyTableIdSet()) {
             // create params
             SynapseDownloadSurveyParameters param = new SynapseDownloadSurveyParameters.Builder()
-                    .withSynapseTableId(oneTableId).withTempDir(tmpDir).build();
+                    .withSynapseTableId(oneTableId).withTempDir(surveyPrefetch.getTempDir()).build();
 
             // kick off async task
             SynapseDownloadSurveyTask task = new SynapseDownloadSurveyTask(param);
             task.setFileHelper(fileHelper);
+            task.setSurveyMetadataCache(surveyMetadataCache);
+            task.setSurveyPrefetch(surveyPrefetch);
             task.setSynapseHelper(synapseHelper);
             Future<File> future = auxiliaryExecutorService.submit(task);
-            futureList.add(future);
+            surveyPrefetch.addFuture(future);
         }
-
-        return futureList;
     }
 
     /**
@@ -236,12 +586,15 @@ public class SynapsePackager {
      *         temp directory files should be downloaded to and error log should be written to
      * @param taskFutureList
      *         list of Futures for async tasks that should be waited on
+     * @param flattenedZipToPrefixMap
+     *         map to be filled in with bulk download zips whose entries should be flattened into the master zip, and
+     *         the entry prefix for each
      * @return list of all files downloaded, plus error log
      * @throws IOException
      *         if writing the error log fails
      */
-    private List<File> waitForAsyncQueryTasks(File tmpDir, List<Future<SynapseDownloadFromTableResult>> taskFutureList)
-            throws IOException {
+    private List<File> waitForAsyncQueryTasks(File tmpDir, List<Future<SynapseDownloadFromTableResult>> taskFutureList,
+            Map<File, String> flattenedZipToPrefixMap) throws IOException {
         // join on threads until they're all done
         List<File> allFileList = new ArrayList<>();
         List<String> errorList = new ArrayList<>();
@@ -253,8 +606,11 @@ public class SynapsePackager {
                     allFileList.add(taskResult.getCsvFile());
                 }
 
-                if (taskResult.getBulkDownloadFile() != null) {
-                    allFileList.add(taskResult.getBulkDownloadFile());
+                for (File oneBulkDownloadFile : taskResult.getBulkDownloadFileList()) {
+                    allFileList.add(oneBulkDownloadFile);
+                    if (taskResult.getAttachmentEntryPrefix() != null) {
+                        flattenedZipToPrefixMap.put(oneBulkDownloadFile, taskResult.getAttachmentEntryPrefix());
+                    }
                 }
             } catch (ExecutionException | InterruptedException ex) {
                 String errorMsg = "Error downloading CSV: " + ex.getMessage();
@@ -341,42 +697,78 @@ public class SynapsePackager {
     }
 
     /**
-     * Helper method that calls through to ZipHelper. This also adds timing metrics and logging.
+     * Adds the remaining files to the zip and completes the S3 upload. The zip goes directly into an S3 multipart
+     * upload. Parts are uploaded in parallel while later files are still being compressed, and the master zip never
+     * touches local disk. Bulk download zips that are being flattened have their entries copied into the master zip
+     * as-is, without being decompressed and recompressed. This also adds timing metrics and logging.
      *
      * @param allFileList
-     *         list of files to zip up
-     * @param masterZipFile
-     *         file to zip to
+     *         list of files to add to the zip
+     * @param flattenedZipToPrefixMap
+     *         bulk download zips whose entries should be copied into the master zip, and the entry prefix for each
+     * @param zipStreamWriter
+     *         zip writer, which may already contain streamed entries
+     * @param s3OutputStream
+     *         S3 stream underlying the zip writer
      * @throws IOException
-     *         if zipping the files fails
+     *         if zipping or uploading the files fails
      */
-    private void zipFiles(List<File> allFileList, File masterZipFile) throws IOException {
+    private void zipAndUploadToS3(List<File> allFileList, Map<File, String> flattenedZipToPrefixMap,
+            ZipStreamWriter zipStreamWriter, S3MultipartOutputStream s3OutputStream) throws IOException {
         Stopwatch zipStopwatch = Stopwatch.createStarted();
         try {
-            zipHelper.zip(allFileList, masterZipFile);
+            // Files are added in one batch, so they can be compressed in parallel if that's enabled.
+            List<File> fileToCompressList = new ArrayList<>();
+            for (File oneFile : allFileList) {
+                String entryPrefix = flattenedZipToPrefixMap.get(oneFile);
+                if (entryPrefix != null) {
+                    try (SeekableByteChannel zipChannel = openZipChannel(oneFile)) {
+                        zipStreamWriter.addRawEntriesFromZip(zipChannel, entryPrefix);
+                    }
+                } else {
+                    fileToCompressList.add(oneFile);
+                }
+            }
+            zipStreamWriter.addFiles(fileToCompressList);
+            zipStreamWriter.close();
+            s3OutputStream.close();
         } finally {
             zipStopwatch.stop();
-            LOG.info("Zipping to file " + masterZipFile.getAbsolutePath() + " took " +
-                    zipStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            LOG.info("Zipping and uploading to S3 took " + zipStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+        logCompressionStats(zipStreamWriter.getEntryRecordList());
+    }
+
+    // Logs how each zip entry was compressed, plus a summary, so we can tell whether the compression policy is paying
+    // off.
+    private static void logCompressionStats(List<ZipStreamWriter.EntryRecord> entryRecordList) {
+        int numStored = 0;
+        long totalSize = 0;
+        long totalCompressedSize = 0;
+        for (ZipStreamWriter.EntryRecord oneRecord : entryRecordList) {
+            if (oneRecord.getMethod() == ZipEntry.STORED) {
+                numStored++;
+            }
+            totalSize += oneRecord.getSize();
+            totalCompressedSize += oneRecord.getCompressedSize();
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Zip entry " + oneRecord.getEntryName() + ": method=" + oneRecord.getMethod() + ", level=" +
+                        oneRecord.getLevel() + ", reason=" + oneRecord.getReason() + ", size=" + oneRecord.getSize() +
+                        ", ratio=" + String.format("%.3f", oneRecord.getRatio()));
+            }
         }
+        LOG.info("Zipped " + entryRecordList.size() + " entries (" + numStored + " stored), " + totalSize +
+                " bytes into " + totalCompressedSize + " bytes");
     }
 
     /**
-     * Helper method that calls through to the S3Helper. This also adds timing metrics and logging.
-     *
-     * @param masterZipFile
-     *         zip file to upload to S3
+     * Opens a channel to read the given zip file. Reading a zip's entries without decompressing them requires random
+     * access to its central directory, which FileHelper doesn't provide. This is package-scoped so unit tests can
+     * read from in-memory files instead.
      */
-    private void uploadToS3(File masterZipFile) {
-        // upload to S3
-        Stopwatch uploadToS3Stopwatch = Stopwatch.createStarted();
-        try {
-            s3Helper.writeFileToS3(userdataBucketName, masterZipFile.getName(), masterZipFile);
-        } finally {
-            uploadToS3Stopwatch.stop();
-            LOG.info("Uploading file " + masterZipFile.getAbsolutePath() + " to S3 took " +
-                    uploadToS3Stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
-        }
+    SeekableByteChannel openZipChannel(File zipFile) throws IOException {
+        return Files.newByteChannel(zipFile.toPath());
     }
 
     /**
@@ -404,18 +796,15 @@ public class SynapsePackager {
      *
      * @param allFileList
      *         list of files returned by the async tasks
-     * @param masterZipFile
-     *         master zip file, zip of the files returned by the async tasks
      * @param tmpDir
      *         temp dir containing all these files, obviously deleted last
      */
-    void cleanupFiles(List<File> allFileList, File masterZipFile, File tmpDir) {
+    void cleanupFiles(List<File> allFileList, File tmpDir) {
         // cleanup files
         List<File> filesToDelete = new ArrayList<>();
         if (allFileList != null) {
             filesToDelete.addAll(allFileList);
         }
-        filesToDelete.add(masterZipFile);
 
         for (File oneFileToDelete : filesToDelete) {
             if (oneFileToDelete == null || !fileHelper.fileExists(oneFileToDelete)) {
@@ -0,0 +1,355 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Resource;
+
+import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.Closer;
+import org.joda.time.LocalDate;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Batches table queries from different requests. During a burst of requests for the same study, each request queries
+ * the same tables, one Synapse job per user per table. With batching, queries for the same table that arrive within a
+ * short window are combined into one query with healthCode IN (...) over the union of their date ranges. The result
+ * CSV is streamed once and split locally into a CSV per caller, with only the caller's own rows in the caller's exact
+ * date range.
+ * </p>
+ * <p>
+ * A batch is sent when its window closes, or as soon as it has the max number of health codes, to keep the query
+ * short. If the batched query fails, every caller in the batch fails.
+ * </p>
+ */
+@Component
+public class SynapseQueryBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseQueryBatcher.class);
+
+    // Package-scoped to be available in unit tests
+    static final String ADMISSION_KEY_PREFIX = "batch-";
+    static final String CONFIG_KEY_ENABLED = "synapse.query.batch.enabled";
+    static final String CONFIG_KEY_MAX_HEALTH_CODES = "synapse.query.batch.max.health.codes";
+    static final String CONFIG_KEY_WINDOW_MILLIS = "synapse.query.batch.window.millis";
+    static final String QUERY_TEMPLATE =
+            "SELECT * FROM %s WHERE healthCode IN (%s) AND uploadDate >= '%s' AND uploadDate <= '%s'";
+
+    private static final String COL_HEALTH_CODE = "healthCode";
+    private static final String COL_UPLOAD_DATE = "uploadDate";
+
+    // Batches that are still collecting callers, by Synapse table ID. Guarded by this.
+    private final Map<String, Batch> pendingBatchMap = new HashMap<>();
+
+    private boolean enabled;
+    private FileHelper fileHelper;
+    private int maxHealthCodes;
+    private ExecutorService networkExecutorService;
+    private ScheduledExecutorService scheduledExecutorService;
+    private SynapseHelper synapseHelper;
+    private long windowMillis;
+
+    /** Bridge config, used to enable batching, and get the batch window and max batch size. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxHealthCodes = config.getInt(CONFIG_KEY_MAX_HEALTH_CODES);
+        windowMillis = config.getInt(CONFIG_KEY_WINDOW_MILLIS);
+    }
+
+    /** File helper, used to write each caller's CSV. */
+    @Autowired
+    public final void setFileHelper(FileHelper fileHelper) {
+        this.fileHelper = fileHelper;
+    }
+
+    /** Executor for reading and splitting the batched CSV. */
+    @Resource(name = "synapseNetworkExecutorService")
+    public final void setNetworkExecutorService(ExecutorService networkExecutorService) {
+        this.networkExecutorService = networkExecutorService;
+    }
+
+    /**
+     * Scheduler for closing batch windows. This only kicks off the batched query, which is cheap, so this shares the
+     * Synapse poll scheduler.
+     */
+    @Resource(name = "synapsePollExecutorService")
+    public final void setScheduledExecutorService(ScheduledExecutorService scheduledExecutorService) {
+        this.scheduledExecutorService = scheduledExecutorService;
+    }
+
+    /** Synapse helper, used to run the batched query and read its results. */
+    @Autowired
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /** True if table queries should be batched. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queries the table for the given user and date range, as part of a batch. When the returned future completes,
+     * the target file contains the query results as a CSV: the header row (if Synapse returned one), then the user's
+     * rows in the date range.
+     *
+     * @param synapseTableId
+     *         table to query
+     * @param healthCode
+     *         user's health code
+     * @param startDate
+     *         start of the upload date range, inclusive
+     * @param endDate
+     *         end of the upload date range, inclusive
+     * @param targetFile
+     *         file to write the user's CSV to
+     * @return future that completes when the target file is written, or completes exceptionally with an
+     *         AsyncTimeoutException, IOException, or SynapseException
+     */
+    public CompletableFuture<Void> queryUserCsv(String synapseTableId, String healthCode, LocalDate startDate,
+            LocalDate endDate, File targetFile) {
+        Member member = new Member(healthCode, startDate, endDate, targetFile);
+        Batch newBatch = null;
+        Batch fullBatch = null;
+        synchronized (this) {
+            Batch batch = pendingBatchMap.get(synapseTableId);
+            if (batch == null) {
+                batch = new Batch(synapseTableId);
+                pendingBatchMap.put(synapseTableId, batch);
+                newBatch = batch;
+            }
+            batch.addMember(member);
+
+            if (batch.getHealthCodeCount() >= maxHealthCodes) {
+                // Batch is full. Send it now.
+                pendingBatchMap.remove(synapseTableId);
+                fullBatch = batch;
+            }
+        }
+
+        if (fullBatch != null) {
+            sendBatch(fullBatch);
+        } else if (newBatch != null) {
+            Batch batchToSchedule = newBatch;
+            try {
+                scheduledExecutorService.schedule(() -> sendBatchIfPending(batchToSchedule), windowMillis,
+                        TimeUnit.MILLISECONDS);
+            } catch (RuntimeException ex) {
+                LOG.error("Error scheduling batch for table " + synapseTableId + ", sending now: " +
+                        ex.getMessage(), ex);
+                sendBatchIfPending(batchToSchedule);
+            }
+        }
+        return member.future;
+    }
+
+    // Sends the batch when its window closes, unless it already filled up and was sent.
+    private void sendBatchIfPending(Batch batch) {
+        synchronized (this) {
+            if (pendingBatchMap.get(batch.synapseTableId) != batch) {
+                return;
+            }
+            pendingBatchMap.remove(batch.synapseTableId);
+        }
+        sendBatch(batch);
+    }
+
+    // Starts the batched query. Splitting the results runs on the network executor.
+    private void sendBatch(Batch batch) {
+        String synapseTableId = batch.synapseTableId;
+        LOG.info("Querying synapse table " + synapseTableId + " for a batch of " + batch.memberList.size() +
+                " requests and " + batch.getHealthCodeCount() + " health codes");
+
+        Stopwatch batchStopwatch = Stopwatch.createStarted();
+        CompletableFuture<Void> batchFuture;
+        try {
+            batchFuture = synapseHelper.generateFileHandleFromTableQueryAsync(batch.getQuery(), synapseTableId,
+                    ADMISSION_KEY_PREFIX + synapseTableId).thenAcceptAsync(csvFileHandleId -> {
+                try {
+                    splitCsv(batch, csvFileHandleId);
+                } catch (IOException | SynapseException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, networkExecutorService);
+        } catch (RuntimeException ex) {
+            batchFuture = new CompletableFuture<>();
+            batchFuture.completeExceptionally(ex);
+        }
+
+        batchFuture.whenComplete((ignored, ex) -> {
+            LOG.info("Batched query on synapse table " + synapseTableId + " took " +
+                    batchStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            if (ex != null) {
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                for (Member oneMember : batch.memberList) {
+                    oneMember.future.completeExceptionally(cause);
+                }
+            } else {
+                for (Member oneMember : batch.memberList) {
+                    oneMember.future.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the batched CSV and writes each row to the CSVs of the members with that health code and whose date
+     * range contains the row's upload date. Package-scoped for unit tests.
+     */
+    void splitCsv(Batch batch, String csvFileHandleId) throws IOException, SynapseException {
+        Map<String, List<Member>> membersByHealthCode = batch.getMembersByHealthCode();
+        Map<Member, Writer> writerByMember = new LinkedHashMap<>();
+
+        int numRows = 0;
+        try (Closer closer = Closer.create()) {
+            // Create every member's file, even if the member has no rows.
+            for (Member oneMember : batch.memberList) {
+                writerByMember.put(oneMember, closer.register(fileHelper.getWriter(oneMember.targetFile)));
+            }
+
+            CSVReader csvReader = closer.register(new CSVReader(new BufferedReader(new InputStreamReader(
+                    synapseHelper.openFileHandleStream(csvFileHandleId), Charsets.UTF_8))));
+            String[] headerRow = csvReader.readNext();
+            if (headerRow == null) {
+                return;
+            }
+
+            int healthCodeIdx = indexOf(headerRow, COL_HEALTH_CODE);
+            int uploadDateIdx = indexOf(headerRow, COL_UPLOAD_DATE);
+            if (healthCodeIdx < 0 || uploadDateIdx < 0) {
+                throw new IOException("Batched query on synapse table " + batch.synapseTableId +
+                        " is missing the healthCode or uploadDate column");
+            }
+
+            CsvRowFormatter rowFormatter = new CsvRowFormatter();
+            String headerStr = rowFormatter.format(headerRow);
+            for (Writer oneWriter : writerByMember.values()) {
+                oneWriter.write(headerStr);
+            }
+
+            String[] row;
+            while ((row = csvReader.readNext()) != null) {
+                List<Member> rowMemberList = membersByHealthCode.get(row[healthCodeIdx]);
+                if (rowMemberList == null) {
+                    continue;
+                }
+
+                // Format the row once, and only if some member wants it.
+                String rowStr = null;
+                for (Member oneMember : rowMemberList) {
+                    if (oneMember.containsUploadDate(row[uploadDateIdx])) {
+                        if (rowStr == null) {
+                            rowStr = rowFormatter.format(row);
+                            numRows++;
+                        }
+                        writerByMember.get(oneMember).write(rowStr);
+                    }
+                }
+            }
+        } finally {
+            LOG.info("Split " + numRows + " rows from batched query on synapse table " + batch.synapseTableId +
+                    " into " + batch.memberList.size() + " CSVs");
+        }
+    }
+
+    private static int indexOf(String[] headerRow, String columnName) {
+        for (int i = 0; i < headerRow.length; i++) {
+            if (columnName.equals(headerRow[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Queries for the same table that are sent as one Synapse query. Members are guarded by the batcher's lock. */
+    static class Batch {
+        private final List<Member> memberList = new ArrayList<>();
+        private final String synapseTableId;
+
+        Batch(String synapseTableId) {
+            this.synapseTableId = synapseTableId;
+        }
+
+        void addMember(Member member) {
+            memberList.add(member);
+        }
+
+        int getHealthCodeCount() {
+            return getMembersByHealthCode().size();
+        }
+
+        Map<String, List<Member>> getMembersByHealthCode() {
+            return memberList.stream().collect(Collectors.groupingBy(member -> member.healthCode,
+                    LinkedHashMap::new, Collectors.toList()));
+        }
+
+        // Query for all members' health codes, over the union of their date ranges.
+        String getQuery() {
+            LocalDate startDate = null;
+            LocalDate endDate = null;
+            for (Member oneMember : memberList) {
+                if (startDate == null || oneMember.startDate.isBefore(startDate)) {
+                    startDate = oneMember.startDate;
+                }
+                if (endDate == null || oneMember.endDate.isAfter(endDate)) {
+                    endDate = oneMember.endDate;
+                }
+            }
+
+            String healthCodeList = getMembersByHealthCode().keySet().stream()
+                    .map(healthCode -> "'" + healthCode + "'").collect(Collectors.joining(", "));
+            return String.format(QUERY_TEMPLATE, synapseTableId, healthCodeList, startDate, endDate);
+        }
+    }
+
+    /** A single caller's query. */
+    static class Member {
+        private final LocalDate endDate;
+        private final String endDateStr;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final String healthCode;
+        private final LocalDate startDate;
+        private final String startDateStr;
+        private final File targetFile;
+
+        Member(String healthCode, LocalDate startDate, LocalDate endDate, File targetFile) {
+            this.endDate = endDate;
+            this.endDateStr = endDate.toString();
+            this.healthCode = healthCode;
+            this.startDate = startDate;
+            this.startDateStr = startDate.toString();
+            this.targetFile = targetFile;
+        }
+
+        // Upload dates are yyyy-MM-dd, so they compare the same way as strings, same as in the Synapse query.
+        boolean containsUploadDate(String uploadDate) {
+            return uploadDate != null && uploadDate.compareTo(startDateStr) >= 0 &&
+                    uploadDate.compareTo(endDateStr) <= 0;
+        }
+    }
+}
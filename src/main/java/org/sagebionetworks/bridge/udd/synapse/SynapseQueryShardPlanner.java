@@ -0,0 +1,148 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * <p>
+ * Splits a table query's upload date range into shards, when history says a single query over the whole range would
+ * take long enough to risk timing out. Each shard is queried separately (and in parallel), and the table task
+ * concatenates the results.
+ * </p>
+ * <p>
+ * A query's cost is modeled as a fixed per-job overhead (Synapse job setup, CSV generation, etc), plus a per-day cost.
+ * The overhead comes from config. The per-day cost is tracked per table as a moving average, updated from every query
+ * (sharded or not) that the table tasks run. Query time only counts the Synapse job, from when it gets its admission
+ * permit until it completes, so time spent waiting for a permit doesn't make a table look slower than it is. Tables
+ * we've never queried are never sharded.
+ * </p>
+ * <p>
+ * Every shard pays the overhead, so sharding only divides the per-day part. Shards are sized so each one is expected
+ * to take about the target time, up to the max number of shards, and never shorter than the min number of days.
+ * </p>
+ */
+@Component
+public class SynapseQueryShardPlanner {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseQueryShardPlanner.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "synapse.query.shard.enabled";
+    static final String CONFIG_KEY_MAX_SHARDS = "synapse.query.shard.max.count";
+    static final String CONFIG_KEY_MIN_SHARD_DAYS = "synapse.query.shard.min.days";
+    static final String CONFIG_KEY_OVERHEAD_MILLIS = "synapse.query.shard.overhead.millis";
+    static final String CONFIG_KEY_TARGET_MILLIS = "synapse.query.shard.target.millis";
+
+    // Weight of the newest observation in the moving average.
+    private static final double COST_SMOOTHING = 0.3;
+
+    private final Map<String, Double> millisPerDayByTableId = new ConcurrentHashMap<>();
+
+    private boolean enabled;
+    private int maxShards;
+    private int minShardDays;
+    private long overheadMillis;
+    private long targetMillis;
+
+    /** Bridge config, used to enable sharding, and get the per-job overhead, target query time, and shard limits. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxShards = config.getInt(CONFIG_KEY_MAX_SHARDS);
+        minShardDays = config.getInt(CONFIG_KEY_MIN_SHARD_DAYS);
+        overheadMillis = config.getInt(CONFIG_KEY_OVERHEAD_MILLIS);
+        targetMillis = config.getInt(CONFIG_KEY_TARGET_MILLIS);
+    }
+
+    /**
+     * Splits the date range into consecutive shards, in date order. Returns the whole range as a single shard if
+     * sharding is disabled, if we have no history for the table, if the query is expected to be fast enough, or if
+     * the overhead alone is over the target, in which case sharding can't help.
+     *
+     * @param synapseTableId
+     *         table to query
+     * @param startDate
+     *         start of the upload date range, inclusive
+     * @param endDate
+     *         end of the upload date range, inclusive
+     * @return list of closed date ranges, never empty
+     */
+    public List<Range<LocalDate>> planShards(String synapseTableId, LocalDate startDate, LocalDate endDate) {
+        Range<LocalDate> wholeRange = Range.closed(startDate, endDate);
+        Double millisPerDay = millisPerDayByTableId.get(synapseTableId);
+        if (!enabled || millisPerDay == null) {
+            return ImmutableList.of(wholeRange);
+        }
+
+        int numDays = getNumDays(startDate, endDate);
+        double perDayMillis = millisPerDay * numDays;
+        double estimatedMillis = overheadMillis + perDayMillis;
+        long shardBudgetMillis = targetMillis - overheadMillis;
+        if (estimatedMillis <= targetMillis || shardBudgetMillis <= 0) {
+            return ImmutableList.of(wholeRange);
+        }
+
+        // Each shard pays the overhead, so only the per-day part is split.
+        int numShards = (int) Math.min(Math.ceil(perDayMillis / shardBudgetMillis),
+                Math.min(maxShards, numDays / Math.max(minShardDays, 1)));
+        if (numShards <= 1) {
+            return ImmutableList.of(wholeRange);
+        }
+
+        // Spread the days evenly. The last shard may be shorter.
+        int shardDays = (numDays + numShards - 1) / numShards;
+        ImmutableList.Builder<Range<LocalDate>> shardListBuilder = ImmutableList.builder();
+        for (LocalDate shardStart = startDate; !shardStart.isAfter(endDate);
+                shardStart = shardStart.plusDays(shardDays)) {
+            LocalDate shardEnd = shardStart.plusDays(shardDays - 1);
+            if (shardEnd.isAfter(endDate)) {
+                shardEnd = endDate;
+            }
+            shardListBuilder.add(Range.closed(shardStart, shardEnd));
+        }
+        List<Range<LocalDate>> shardList = shardListBuilder.build();
+
+        LOG.info("Sharding query on synapse table " + synapseTableId + " into " + shardList.size() +
+                " shards, estimated " + (long) estimatedMillis + " ms for " + numDays + " days");
+        return shardList;
+    }
+
+    /**
+     * Records how long a query over the given date range took. This should be the Synapse job time, not counting time
+     * spent waiting for an admission permit. Queries that timed out should be recorded too, with the time until the
+     * timeout, so the next request for the table is sharded.
+     *
+     * @param synapseTableId
+     *         table that was queried
+     * @param startDate
+     *         start of the query's upload date range, inclusive
+     * @param endDate
+     *         end of the query's upload date range, inclusive
+     * @param elapsedMillis
+     *         how long the query took
+     */
+    public void recordQueryTime(String synapseTableId, LocalDate startDate, LocalDate endDate, long elapsedMillis) {
+        double observedMillisPerDay = (double) Math.max(elapsedMillis - overheadMillis, 0) /
+                getNumDays(startDate, endDate);
+        millisPerDayByTableId.merge(synapseTableId, observedMillisPerDay, (oldMillisPerDay, newMillisPerDay) ->
+                COST_SMOOTHING * newMillisPerDay + (1 - COST_SMOOTHING) * oldMillisPerDay);
+    }
+
+    // Number of days in the range, inclusive on both ends, and at least 1.
+    private static int getNumDays(LocalDate startDate, LocalDate endDate) {
+        return Math.max(Days.daysBetween(startDate, endDate).getDays() + 1, 1);
+    }
+}
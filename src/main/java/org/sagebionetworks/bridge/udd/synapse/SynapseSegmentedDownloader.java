@@ -0,0 +1,345 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Resource;
+
+import com.google.common.base.Stopwatch;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+
+/**
+ * <p>
+ * Downloads a file handle from its temporary URL as HTTP range segments. The first request fetches the first segment
+ * and tells us the file's size. The file is then preallocated, and the remaining segments are fetched in parallel and
+ * written in place with positional writes. Small files take a single request, same as a plain download.
+ * </p>
+ * <p>
+ * Each segment remembers how many bytes it has written. If any segments fail, the downloader re-resolves the URL
+ * (temporary URLs expire) and fetches only the missing bytes, for up to the max number of rounds. So a connection
+ * drop near the end of a multi-GB bulk download zip costs one segment's remainder, not the whole file.
+ * </p>
+ * <p>
+ * If the server ignores the range and sends the whole file, there's nothing to resume, so a failed transfer is
+ * retried from the start, up to the same max number of rounds.
+ * </p>
+ */
+@Component
+public class SynapseSegmentedDownloader {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseSegmentedDownloader.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_ENABLED = "synapse.download.segmented.enabled";
+    static final String CONFIG_KEY_MAX_ROUNDS = "synapse.download.max.rounds";
+    static final String CONFIG_KEY_PARALLEL_SEGMENTS = "synapse.download.parallel.segments";
+    static final String CONFIG_KEY_SEGMENT_SIZE_BYTES = "synapse.download.segment.size.bytes";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+
+    private boolean enabled;
+    private int maxRounds;
+    private int parallelSegments;
+    private ExecutorService segmentExecutorService;
+    private long segmentSize;
+
+    /** Bridge config, used to enable segmented downloads, and get the segment size, parallelism, and max rounds. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        maxRounds = config.getInt(CONFIG_KEY_MAX_ROUNDS);
+        parallelSegments = config.getInt(CONFIG_KEY_PARALLEL_SEGMENTS);
+        segmentSize = config.getInt(CONFIG_KEY_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * Executor for segment fetches. Segment fetches never wait on anything else, so callers on other pools can safely
+     * block on them.
+     */
+    @Resource(name = "synapseSegmentDownloadExecutorService")
+    public final void setSegmentExecutorService(ExecutorService segmentExecutorService) {
+        this.segmentExecutorService = segmentExecutorService;
+    }
+
+    /** True if file handles should be downloaded in segments. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Downloads the URL to the target file. If the download fails, the partial file is deleted.
+     *
+     * @param urlResolver
+     *         resolves the URL to download, called once per round
+     * @param targetFile
+     *         local file to download to
+     * @throws IOException
+     *         if the download still has missing bytes after the max number of rounds
+     * @throws SynapseException
+     *         if resolving the URL fails
+     */
+    public void download(UrlResolver urlResolver, File targetFile) throws IOException, SynapseException {
+        Stopwatch downloadStopwatch = Stopwatch.createStarted();
+        boolean success = false;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(targetFile, "rw")) {
+            randomAccessFile.setLength(0);
+            FileChannel fileChannel = randomAccessFile.getChannel();
+
+            // The first segment doubles as the size probe. If this fails before we know the size, there's nothing
+            // to resume.
+            URL url = urlResolver.resolve();
+            Segment firstSegment = new Segment(0, segmentSize - 1);
+            IOException lastError = null;
+            try {
+                fetchSegment(url, fileChannel, firstSegment);
+            } catch (IOException ex) {
+                if (firstSegment.totalSize == null) {
+                    throw ex;
+                }
+                lastError = ex;
+            }
+
+            long totalSize = firstSegment.totalSize;
+            if (totalSize < 0) {
+                // Server ignored the range and sent the whole file. If it failed partway through, retry the whole
+                // file.
+                for (int round = 2; lastError != null; round++) {
+                    if (round > maxRounds) {
+                        throw new IOException("Download of file " + targetFile.getAbsolutePath() +
+                                " is still incomplete after " + maxRounds + " rounds", lastError);
+                    }
+                    LOG.warn("Retrying whole file " + targetFile.getAbsolutePath() + ", round " + round + ": " +
+                            lastError.getMessage());
+                    lastError = fetchWholeFile(urlResolver.resolve(), randomAccessFile);
+                }
+                success = true;
+                return;
+            }
+
+            // Preallocate, then split the rest of the file into segments.
+            randomAccessFile.setLength(totalSize);
+            List<Segment> segmentList = new ArrayList<>();
+            segmentList.add(firstSegment);
+            for (long start = segmentSize; start < totalSize; start += segmentSize) {
+                segmentList.add(new Segment(start, Math.min(start + segmentSize, totalSize) - 1));
+            }
+
+            for (int round = 1; round <= maxRounds; round++) {
+                List<Segment> missingSegmentList = new ArrayList<>();
+                for (Segment oneSegment : segmentList) {
+                    if (!oneSegment.isComplete()) {
+                        missingSegmentList.add(oneSegment);
+                    }
+                }
+                if (missingSegmentList.isEmpty()) {
+                    break;
+                }
+
+                if (lastError != null) {
+                    // Re-resolve, in case the failures were because the URL expired.
+                    LOG.warn("Retrying " + missingSegmentList.size() + " segments of file " +
+                            targetFile.getAbsolutePath() + ", round " + round + ": " + lastError.getMessage());
+                    url = urlResolver.resolve();
+                }
+                IOException roundError = fetchSegments(url, fileChannel, missingSegmentList);
+                if (roundError != null) {
+                    lastError = roundError;
+                }
+            }
+
+            long missingBytes = 0;
+            for (Segment oneSegment : segmentList) {
+                missingBytes += oneSegment.getRemainingBytes();
+            }
+            if (missingBytes > 0) {
+                throw new IOException("Download of file " + targetFile.getAbsolutePath() + " is still missing " +
+                        missingBytes + " bytes after " + maxRounds + " rounds", lastError);
+            }
+
+            LOG.info("Downloaded " + totalSize + " bytes in " + segmentList.size() + " segments to file " +
+                    targetFile.getAbsolutePath() + " in " + downloadStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            success = true;
+        } finally {
+            if (!success && targetFile.exists() && !targetFile.delete()) {
+                LOG.error("Error deleting partial download " + targetFile.getAbsolutePath());
+            }
+        }
+    }
+
+    // Truncates the file and fetches it in one request, whether or not the server honors the range. Returns the error,
+    // if any, so the caller can retry.
+    private IOException fetchWholeFile(URL url, RandomAccessFile randomAccessFile) throws IOException {
+        randomAccessFile.setLength(0);
+        try {
+            fetchSegment(url, randomAccessFile.getChannel(), new Segment(0, Long.MAX_VALUE - 1));
+            return null;
+        } catch (IOException ex) {
+            return ex;
+        }
+    }
+
+    // Fetches the segments, up to the parallel limit at a time. The calling thread fetches too, so a parallel limit
+    // of 1 never touches the executor. Errors are logged and the last one is returned, so the caller can retry.
+    private IOException fetchSegments(URL url, FileChannel fileChannel, List<Segment> segmentList)
+            throws IOException {
+        Queue<Segment> segmentQueue = new ConcurrentLinkedQueue<>(segmentList);
+        AtomicReference<IOException> lastError = new AtomicReference<>();
+        Runnable worker = () -> {
+            Segment segment;
+            while ((segment = segmentQueue.poll()) != null) {
+                try {
+                    fetchSegment(url, fileChannel, segment);
+                } catch (IOException ex) {
+                    LOG.warn("Error fetching bytes " + segment.nextOffset + "-" + segment.endOffset + ": " +
+                            ex.getMessage());
+                    lastError.set(ex);
+                }
+            }
+        };
+
+        int numWorkers = Math.min(parallelSegments, segmentList.size());
+        List<Future<?>> workerFutureList = new ArrayList<>();
+        for (int i = 1; i < numWorkers; i++) {
+            workerFutureList.add(segmentExecutorService.submit(worker));
+        }
+        worker.run();
+
+        for (Future<?> oneWorkerFuture : workerFutureList) {
+            try {
+                oneWorkerFuture.get();
+            } catch (ExecutionException ex) {
+                throw new IOException("Error fetching segments: " + ex.getMessage(), ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted fetching segments");
+            }
+        }
+        return lastError.get();
+    }
+
+    /**
+     * Fetches the rest of the segment, from its next offset, and writes it in place. Records the file's total size in
+     * the segment, or -1 if the server ignored the range and sent the whole file. Package-scoped for unit tests.
+     */
+    void fetchSegment(URL url, FileChannel fileChannel, Segment segment) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Range", "bytes=" + segment.nextOffset + "-" + segment.endOffset);
+        try {
+            int status = connection.getResponseCode();
+            boolean wholeFile = false;
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                long totalSize = parseTotalSize(connection.getHeaderField("Content-Range"));
+                segment.totalSize = totalSize;
+                segment.endOffset = Math.min(segment.endOffset, totalSize - 1);
+            } else if (status == HttpURLConnection.HTTP_OK && segment.nextOffset == 0) {
+                segment.totalSize = -1L;
+                wholeFile = true;
+            } else if (status == 416 && segment.nextOffset == 0) {
+                // Range not satisfiable on the first byte means the file is empty.
+                segment.totalSize = 0L;
+                segment.endOffset = -1;
+                return;
+            } else {
+                throw new IOException("Unexpected HTTP status " + status + " fetching bytes " + segment.nextOffset +
+                        "-" + segment.endOffset);
+            }
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream inputStream = connection.getInputStream()) {
+                int numRead;
+                while ((numRead = inputStream.read(buffer)) > 0) {
+                    if (!wholeFile && numRead > segment.getRemainingBytes()) {
+                        throw new IOException("Server sent more than the requested range");
+                    }
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, numRead);
+                    while (byteBuffer.hasRemaining()) {
+                        segment.nextOffset += fileChannel.write(byteBuffer, segment.nextOffset);
+                    }
+                }
+            }
+
+            if (wholeFile) {
+                long contentLength = connection.getContentLengthLong();
+                if (contentLength >= 0 && segment.nextOffset != contentLength) {
+                    throw new EOFException("Connection closed after " + segment.nextOffset + " of " +
+                            contentLength + " bytes");
+                }
+                segment.endOffset = segment.nextOffset - 1;
+            } else if (!segment.isComplete()) {
+                throw new EOFException("Connection closed with " + segment.getRemainingBytes() +
+                        " bytes remaining");
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // Parses the total size from a Content-Range header, like "bytes 0-99/1234".
+    private static long parseTotalSize(String contentRange) throws IOException {
+        int slashIdx = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        if (slashIdx < 0) {
+            throw new IOException("Missing or invalid Content-Range: " + contentRange);
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slashIdx + 1).trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Unknown total size in Content-Range: " + contentRange, ex);
+        }
+    }
+
+    /** Resolves the URL to download. Called again before each retry round, since temporary URLs expire. */
+    @FunctionalInterface
+    public interface UrlResolver {
+        URL resolve() throws IOException, SynapseException;
+    }
+
+    /**
+     * A byte range of the file, inclusive on both ends, and how far into it we've written. Each segment is only
+     * fetched by one thread at a time.
+     */
+    static class Segment {
+        private long endOffset;
+        private long nextOffset;
+        private Long totalSize;
+
+        Segment(long startOffset, long endOffset) {
+            this.endOffset = endOffset;
+            this.nextOffset = startOffset;
+        }
+
+        long getRemainingBytes() {
+            return endOffset + 1 - nextOffset;
+        }
+
+        boolean isComplete() {
+            return nextOffset > endOffset;
+        }
+    }
+}
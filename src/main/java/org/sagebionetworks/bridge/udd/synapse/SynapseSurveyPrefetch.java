@@ -0,0 +1,124 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.file.FileHelper;
+
+/**
+ * <p>
+ * Survey metadata downloads for a request, started speculatively before the account lookup finishes. Survey metadata
+ * doesn't depend on the user, so there's no reason to wait for the health code. Created by
+ * {@link SynapsePackager#prefetchSurveys}.
+ * </p>
+ * <p>
+ * Survey files are downloaded into the prefetch's own temp dir. Once the request no longer needs them (the account
+ * lookup failed, there's no data, or the zip is done), call {@link #discard}. Survey tasks that haven't started yet
+ * are skipped. Tasks already running are allowed to finish, and the last one to finish cleans up the temp dir. Discard
+ * is idempotent.
+ * </p>
+ */
+public class SynapseSurveyPrefetch {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseSurveyPrefetch.class);
+
+    private final FileHelper fileHelper;
+    private final List<Future<File>> futureList = new ArrayList<>();
+    private final Set<String> surveyTableIdSet;
+    private final File tmpDir;
+
+    // Task bookkeeping. Guarded by this.
+    private boolean discarded = false;
+    private final List<File> downloadedFileList = new ArrayList<>();
+    private int runningTaskCount = 0;
+
+    /** Package-scoped constructor. Use {@link SynapsePackager#prefetchSurveys}. */
+    SynapseSurveyPrefetch(FileHelper fileHelper, Set<String> surveyTableIdSet, File tmpDir) {
+        this.fileHelper = fileHelper;
+        this.surveyTableIdSet = surveyTableIdSet;
+        this.tmpDir = tmpDir;
+    }
+
+    /** Survey table IDs being downloaded. */
+    public Set<String> getSurveyTableIdSet() {
+        return surveyTableIdSet;
+    }
+
+    /** Temp dir survey files are downloaded to. */
+    File getTempDir() {
+        return tmpDir;
+    }
+
+    /** Futures for the survey tasks, one per survey table. */
+    synchronized List<Future<File>> getFutureList() {
+        return ImmutableList.copyOf(futureList);
+    }
+
+    /** Adds the future for a survey task. Called by the packager while starting the tasks. */
+    synchronized void addFuture(Future<File> future) {
+        futureList.add(future);
+    }
+
+    /**
+     * Called by a survey task before it starts downloading.
+     *
+     * @return true if the task should run, false if the prefetch was discarded and the task should be skipped
+     */
+    synchronized boolean taskStarted() {
+        if (discarded) {
+            return false;
+        }
+        runningTaskCount++;
+        return true;
+    }
+
+    /**
+     * Called by a survey task when it's done.
+     *
+     * @param surveyFile
+     *         the downloaded file, or null if the task failed
+     */
+    synchronized void taskFinished(File surveyFile) {
+        if (surveyFile != null) {
+            downloadedFileList.add(surveyFile);
+        }
+        runningTaskCount--;
+        if (discarded && runningTaskCount == 0) {
+            cleanup();
+        }
+    }
+
+    /**
+     * Discards the prefetch. Tasks that haven't started are skipped. Downloaded files and the temp dir are deleted
+     * once all running tasks finish.
+     */
+    public synchronized void discard() {
+        if (discarded) {
+            return;
+        }
+        discarded = true;
+        if (runningTaskCount == 0) {
+            cleanup();
+        }
+    }
+
+    // Deletes downloaded files that are still around (the packager may have already cleaned up some), then the dir.
+    private void cleanup() {
+        try {
+            for (File oneFile : downloadedFileList) {
+                if (fileHelper.fileExists(oneFile)) {
+                    fileHelper.deleteFile(oneFile);
+                }
+            }
+            fileHelper.deleteDir(tmpDir);
+        } catch (RuntimeException ex) {
+            LOG.error("Error cleaning up survey prefetch dir " + tmpDir.getPath() + ": " + ex.getMessage(), ex);
+        }
+    }
+}
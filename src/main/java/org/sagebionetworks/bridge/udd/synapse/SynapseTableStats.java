@@ -0,0 +1,140 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+/**
+ * Upload date range and row count of a Synapse table, as of when the stats were computed. Used to skip tables that
+ * can't have data for a request, and to estimate how much a request will cost. Stats may be hours old, so they're only
+ * used to skip a table for ranges that ended before the stats were computed.
+ */
+public class SynapseTableStats {
+    private final boolean active;
+    private final long computedOnMillis;
+    private final LocalDate maxUploadDate;
+    private final LocalDate minUploadDate;
+    private final long rowCount;
+
+    /** Private constructor. To construct, use Builder. */
+    private SynapseTableStats(boolean active, long computedOnMillis, LocalDate maxUploadDate,
+            LocalDate minUploadDate, long rowCount) {
+        this.active = active;
+        this.computedOnMillis = computedOnMillis;
+        this.maxUploadDate = maxUploadDate;
+        this.minUploadDate = minUploadDate;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * True if the table had recent rows when the stats were computed. Active tables may have gotten rows after the
+     * max upload date since then, so they're never skipped.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /** When the stats were computed, in epoch milliseconds. */
+    public long getComputedOnMillis() {
+        return computedOnMillis;
+    }
+
+    /** Latest upload date in the table. Null if the table is empty. */
+    public LocalDate getMaxUploadDate() {
+        return maxUploadDate;
+    }
+
+    /** Earliest upload date in the table. Null if the table is empty. */
+    public LocalDate getMinUploadDate() {
+        return minUploadDate;
+    }
+
+    /** Number of rows in the table, for all users. */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * <p>
+     * Returns false if the table can't have rows in the given upload date range, true otherwise. The stats are a
+     * snapshot, and rows can be added after it with any upload date (for example, redrives and backfills), so the
+     * table is only skipped if the stats were computed after the range ended and the table's latest row is before the
+     * range. Active tables, empty tables, and stats computed before the range ended are never skipped.
+     * </p>
+     * <p>
+     * The min upload date is never used to skip a table, since backfills can add rows before it.
+     * </p>
+     *
+     * @param startDate
+     *         start of the range, inclusive
+     * @param endDate
+     *         end of the range, inclusive
+     * @return false if the table can be skipped
+     */
+    public boolean mightHaveData(LocalDate startDate, LocalDate endDate) {
+        if (active || rowCount == 0 || maxUploadDate == null) {
+            return true;
+        }
+
+        // Upload dates are in the uploader's local time, which can be up to a day off from UTC. To be sure the stats
+        // were computed after the end date, they must be from at least two days after it, UTC.
+        long rangeEndMillis = endDate.plusDays(2).toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis();
+        if (computedOnMillis < rangeEndMillis) {
+            return true;
+        }
+        return !maxUploadDate.isBefore(startDate);
+    }
+
+    /** Builder for SynapseTableStats. */
+    public static class Builder {
+        private boolean active;
+        private Long computedOnMillis;
+        private LocalDate maxUploadDate;
+        private LocalDate minUploadDate;
+        private Long rowCount;
+
+        /** @see SynapseTableStats#isActive */
+        public Builder withActive(boolean active) {
+            this.active = active;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getComputedOnMillis */
+        public Builder withComputedOnMillis(long computedOnMillis) {
+            this.computedOnMillis = computedOnMillis;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getMaxUploadDate */
+        public Builder withMaxUploadDate(LocalDate maxUploadDate) {
+            this.maxUploadDate = maxUploadDate;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getMinUploadDate */
+        public Builder withMinUploadDate(LocalDate minUploadDate) {
+            this.minUploadDate = minUploadDate;
+            return this;
+        }
+
+        /** @see SynapseTableStats#getRowCount */
+        public Builder withRowCount(long rowCount) {
+            this.rowCount = rowCount;
+            return this;
+        }
+
+        /** Builds and validates a SynapseTableStats. */
+        public SynapseTableStats build() {
+            if (computedOnMillis == null) {
+                throw new IllegalStateException("computedOnMillis must be specified");
+            }
+            if (rowCount == null || rowCount < 0) {
+                throw new IllegalStateException("rowCount must be specified and non-negative");
+            }
+            if (minUploadDate != null && maxUploadDate != null && minUploadDate.isAfter(maxUploadDate)) {
+                throw new IllegalStateException("minUploadDate can't be after maxUploadDate");
+            }
+
+            return new SynapseTableStats(active, computedOnMillis, maxUploadDate, minUploadDate, rowCount);
+        }
+    }
+}
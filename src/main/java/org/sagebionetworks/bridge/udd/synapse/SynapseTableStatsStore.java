@@ -0,0 +1,160 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Resource;
+
+import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+
+/**
+ * <p>
+ * In-memory store of per-table stats (upload date range and row count). Retired schema revisions have tables whose
+ * rows all predate a typical request, and the packager uses these stats to skip them.
+ * </p>
+ * <p>
+ * Stats are refreshed in the background. Getting stats for a table that has none yet, or whose stats are older than
+ * the refresh interval, returns what we have (possibly null) and queues a refresh. So requests never wait for stats,
+ * and the first request for a table queries it as usual. Refresh queries go through query admission under a single
+ * key, so they take turns with users instead of crowding them out.
+ * </p>
+ */
+@Component
+public class SynapseTableStatsStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseTableStatsStore.class);
+
+    // Package-scoped to be available in unit tests
+    static final String ADMISSION_KEY = "synapse-table-stats";
+    static final String CONFIG_KEY_ACTIVE_DAYS = "synapse.table.stats.active.days";
+    static final String CONFIG_KEY_ENABLED = "synapse.table.stats.enabled";
+    static final String CONFIG_KEY_REFRESH_MINUTES = "synapse.table.stats.refresh.minutes";
+    static final String QUERY_TEMPLATE = "SELECT MIN(uploadDate), MAX(uploadDate), COUNT(*) FROM %s";
+
+    private final Set<String> refreshingTableIdSet = ConcurrentHashMap.newKeySet();
+    private final Map<String, SynapseTableStats> statsByTableId = new ConcurrentHashMap<>();
+
+    private int activeDays;
+    private boolean enabled;
+    private long refreshIntervalMillis;
+    private ExecutorService statsExecutorService;
+    private SynapseHelper synapseHelper;
+
+    /** Bridge config, used to enable stats, and get the refresh interval and what counts as an active table. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        activeDays = config.getInt(CONFIG_KEY_ACTIVE_DAYS);
+        enabled = Boolean.parseBoolean(config.get(CONFIG_KEY_ENABLED));
+        refreshIntervalMillis = TimeUnit.MINUTES.toMillis(config.getInt(CONFIG_KEY_REFRESH_MINUTES));
+    }
+
+    /** Executor for background stats refreshes. */
+    @Resource(name = "synapseTableStatsExecutorService")
+    public final void setStatsExecutorService(ExecutorService statsExecutorService) {
+        this.statsExecutorService = statsExecutorService;
+    }
+
+    /** Synapse helper, used to query the stats. */
+    @Autowired
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /**
+     * Gets the stats for the given table, and queues a refresh if they're missing or stale. Never blocks on Synapse.
+     *
+     * @param synapseTableId
+     *         table to get stats for
+     * @return the table's stats, or null if they haven't been computed yet or stats are disabled
+     */
+    public SynapseTableStats getStats(String synapseTableId) {
+        if (!enabled) {
+            return null;
+        }
+
+        SynapseTableStats stats = statsByTableId.get(synapseTableId);
+        if (stats == null ||
+                DateTimeUtils.currentTimeMillis() - stats.getComputedOnMillis() >= refreshIntervalMillis) {
+            queueRefresh(synapseTableId);
+        }
+        return stats;
+    }
+
+    // Queues a refresh, unless one is already queued or running for this table.
+    private void queueRefresh(String synapseTableId) {
+        if (!refreshingTableIdSet.add(synapseTableId)) {
+            return;
+        }
+
+        try {
+            statsExecutorService.execute(() -> {
+                try {
+                    statsByTableId.put(synapseTableId, computeStats(synapseTableId));
+                } catch (AsyncTimeoutException | IOException | SynapseException | RuntimeException ex) {
+                    // Keep the old stats, if any. We'll try again on the next request.
+                    LOG.error("Error computing stats for table " + synapseTableId + ": " + ex.getMessage(), ex);
+                } finally {
+                    refreshingTableIdSet.remove(synapseTableId);
+                }
+            });
+        } catch (RuntimeException ex) {
+            refreshingTableIdSet.remove(synapseTableId);
+            LOG.error("Error queueing stats refresh for table " + synapseTableId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Queries Synapse for the table's stats. Package-scoped for unit tests. */
+    SynapseTableStats computeStats(String synapseTableId) throws AsyncTimeoutException, IOException,
+            SynapseException {
+        Stopwatch statsStopwatch = Stopwatch.createStarted();
+        long computedOnMillis = DateTimeUtils.currentTimeMillis();
+        String fileHandleId = synapseHelper.generateFileHandleFromTableQuery(String.format(QUERY_TEMPLATE,
+                synapseTableId), synapseTableId, ADMISSION_KEY);
+
+        // Result is a header row and a single row of MIN, MAX, and COUNT. MIN and MAX are blank if the table is empty.
+        String[] row;
+        try (InputStream csvStream = synapseHelper.openFileHandleStream(fileHandleId);
+                CSVReader csvReader = new CSVReader(new BufferedReader(new InputStreamReader(csvStream,
+                        Charsets.UTF_8)))) {
+            csvReader.readNext();
+            row = csvReader.readNext();
+        }
+        if (row == null || row.length < 3) {
+            throw new IOException("Unexpected stats result for table " + synapseTableId);
+        }
+
+        LocalDate minUploadDate = Strings.isNullOrEmpty(row[0]) ? null : LocalDate.parse(row[0]);
+        LocalDate maxUploadDate = Strings.isNullOrEmpty(row[1]) ? null : LocalDate.parse(row[1]);
+        long rowCount = Strings.isNullOrEmpty(row[2]) ? 0 : Long.parseLong(row[2]);
+        LocalDate activeCutoff = new LocalDate(computedOnMillis).minusDays(activeDays);
+        boolean active = maxUploadDate == null || !maxUploadDate.isBefore(activeCutoff);
+
+        SynapseTableStats stats = new SynapseTableStats.Builder().withActive(active)
+                .withComputedOnMillis(computedOnMillis).withMaxUploadDate(maxUploadDate)
+                .withMinUploadDate(minUploadDate).withRowCount(rowCount).build();
+        LOG.info("Computing stats for table " + synapseTableId + " took " +
+                statsStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms: uploadDate " + minUploadDate + " to " +
+                maxUploadDate + ", " + rowCount + " rows");
+        return stats;
+    }
+}
@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.udd.worker;
 import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -17,35 +18,57 @@ import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
-import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
-import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.DataPresenceIndex;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyExportPlan;
 import org.sagebionetworks.bridge.udd.dynamodb.StudyInfo;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.helper.SnsHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
 import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
+import org.sagebionetworks.bridge.udd.synapse.SynapseSurveyPrefetch;
 
 /** SQS callback. Called by the PollSqsWorker. This handles a UDD request. */
 @Component
 public class BridgeUddProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeUddProcessor.class);
 
-    private BridgeHelper bridgeHelper;
-    private DynamoHelper dynamoHelper;
+    private DataPresenceIndex dataPresenceIndex;
     private SnsHelper snsHelper;
     private SesHelper sesHelper;
+    private BridgeUddRequestCoalescer requestCoalescer;
+    private BridgeUddRequestPipeline requestPipeline;
+    private BridgeUddRequestPlanner requestPlanner;
+    private BridgeUddRequestRequeuer requestRequeuer;
     private SynapsePackager synapsePackager;
 
-    /** Bridge helper, used to call Bridge server to get account info, such as email address and health code. */
+    /** Data presence index, used to skip Synapse tables the user has no data in. */
     @Autowired
-    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
-        this.bridgeHelper = bridgeHelper;
+    public final void setDataPresenceIndex(DataPresenceIndex dataPresenceIndex) {
+        this.dataPresenceIndex = dataPresenceIndex;
     }
 
-    /** Dynamo DB helper, used to get study info and uploads. */
+    /** Request coalescer, used to drop duplicates of requests that are already in flight. */
     @Autowired
-    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
-        this.dynamoHelper = dynamoHelper;
+    public final void setRequestCoalescer(BridgeUddRequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /** Request pipeline, used to run several requests at once. */
+    @Autowired
+    public final void setRequestPipeline(BridgeUddRequestPipeline requestPipeline) {
+        this.requestPipeline = requestPipeline;
+    }
+
+    /** Request planner, used to look up the account and study at the same time. */
+    @Autowired
+    public final void setRequestPlanner(BridgeUddRequestPlanner requestPlanner) {
+        this.requestPlanner = requestPlanner;
+    }
+
+    /** Request requeuer, used to retry requests that fail after they're handed off to the pipeline. */
+    @Autowired
+    public final void setRequestRequeuer(BridgeUddRequestRequeuer requestRequeuer) {
+        this.requestRequeuer = requestRequeuer;
     }
 
     /** SES helper, used to email the pre-signed URL to the requesting user. */
@@ -66,6 +89,13 @@ public class BridgeUddProcessor {
         this.synapsePackager = synapsePackager;
     }
 
+    /**
+     * Parses the request and submits it to the request pipeline. Parse errors are thrown right away. Whether other
+     * errors are thrown depends on whether the pipeline runs the request inline. If it doesn't, failed requests are
+     * re-enqueued. See {@link BridgeUddRequestPipeline}. If an identical request is already in flight, this request
+     * attaches to it and returns right away, without waiting for a pipeline slot. See
+     * {@link BridgeUddRequestCoalescer}.
+     */
     public void process(JsonNode body) throws IOException, PollSqsWorkerBadRequestException {
         BridgeUddRequest request;
         try {
@@ -74,6 +104,31 @@ public class BridgeUddProcessor {
             throw new PollSqsWorkerBadRequestException("Error parsing request: " + ex.getMessage(), ex);
         }
 
+        String requestDescription = "userId=" + request.getUserId() + ", study=" + request.getStudyId() +
+                ", startDate=" + request.getStartDate() + ",endDate=" + request.getEndDate();
+        CompletableFuture<Void> inFlightFuture = requestCoalescer.start(request);
+        if (inFlightFuture == null) {
+            // The in-flight request will send the user their data.
+            return;
+        }
+
+        try {
+            requestPipeline.submit(requestDescription, () -> {
+                try {
+                    processRequest(request);
+                } finally {
+                    requestCoalescer.finish(request, inFlightFuture);
+                }
+            }, ex -> requestRequeuer.requeue(request));
+        } catch (IOException | PollSqsWorkerBadRequestException | RuntimeException ex) {
+            // Either the request was never handed off, or it ran inline and failed. Either way, it's done.
+            requestCoalescer.finish(request, inFlightFuture);
+            throw ex;
+        }
+    }
+
+    // Handles a single UDD request end to end.
+    private void processRequest(BridgeUddRequest request) throws IOException, PollSqsWorkerBadRequestException {
         String userId = request.getUserId();
         String studyId = request.getStudyId();
         String startDateStr = request.getStartDate().toString();
@@ -83,20 +138,22 @@ public class BridgeUddProcessor {
 
         Stopwatch requestStopwatch = Stopwatch.createStarted();
         try {
-            // We need the study, because accounts and data are partitioned on study.
-            StudyInfo studyInfo = dynamoHelper.getStudy(studyId);
-
-            AccountInfo accountInfo = bridgeHelper.getAccountInfo(studyId, userId);
+            // We need the study, because accounts and data are partitioned on study. The planner looks up the study
+            // and the account at the same time.
+            BridgeUddRequestPlan requestPlan = requestPlanner.plan(request);
+            StudyExportPlan studyExportPlan = requestPlan.getStudyExportPlan();
+            StudyInfo studyInfo = studyExportPlan.getStudyInfo();
+            AccountInfo accountInfo = requestPlan.getAccountInfo();
             String healthCode = accountInfo.getHealthCode();
-            if (healthCode == null) {
-                throw new PollSqsWorkerBadRequestException("Health code not found for account " +
-                        accountInfo.getUserId());
-            }
 
-            Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy(studyId);
-            Set<String> surveyTableIdSet = dynamoHelper.getSynapseSurveyTablesForStudy(studyId);
-            PresignedUrlInfo presignedUrlInfo = synapsePackager.packageSynapseData(synapseToSchemaMap,
-                    healthCode, request, surveyTableIdSet);
+            // Check the export cache before starting any Synapse work. The cache key covers all of the study's
+            // tables, so this doesn't need the data presence index either.
+            String cacheKeyMaterial = synapsePackager.getCacheKeyMaterial(studyExportPlan.getSynapseToSchemaMap(),
+                    healthCode, request, studyExportPlan.getSurveyTableIdSet());
+            PresignedUrlInfo presignedUrlInfo = synapsePackager.getCachedExport(cacheKeyMaterial);
+            if (presignedUrlInfo == null) {
+                presignedUrlInfo = exportSynapseData(studyExportPlan, healthCode, request, cacheKeyMaterial);
+            }
 
             if (presignedUrlInfo == null) {
                 LOG.info("No data for request for account " + accountInfo.getUserId() + ", study=" + studyId
@@ -126,4 +183,26 @@ public class BridgeUddProcessor {
                     ", startDate=" + startDateStr + ",endDate=" + endDateStr);
         }
     }
+
+    // Runs the export, after an export cache miss. Survey downloads don't depend on which tables the user has data in,
+    // so they start first, and run while the data presence index is checked.
+    private PresignedUrlInfo exportSynapseData(StudyExportPlan studyExportPlan, String healthCode,
+            BridgeUddRequest request, String cacheKeyMaterial) throws IOException {
+        Set<String> surveyTableIdSet = studyExportPlan.getSurveyTableIdSet();
+        SynapseSurveyPrefetch surveyPrefetch = synapsePackager.prefetchSurveys(surveyTableIdSet);
+
+        // Only query the tables the user has data in.
+        Map<String, UploadSchema> synapseToSchemaMap;
+        try {
+            synapseToSchemaMap = dataPresenceIndex.filterTablesWithData(studyExportPlan.getSynapseToSchemaMap(),
+                    healthCode, request.getStartDate(), request.getEndDate());
+        } catch (RuntimeException ex) {
+            surveyPrefetch.discard();
+            throw ex;
+        }
+
+        // The packager discards the survey prefetch when it's done.
+        return synapsePackager.packageSynapseData(synapseToSchemaMap, healthCode, request, surveyPrefetch,
+                cacheKeyMaterial);
+    }
 }
@@ -1,5 +1,7 @@
 package org.sagebionetworks.bridge.udd.worker;
 
+import java.util.Objects;
+
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
@@ -17,13 +19,16 @@ public class BridgeUddRequest {
     private final String userId;
     private final LocalDate startDate;
     private final LocalDate endDate;
+    private final int retryCount;
 
     /** Private constructor. To construct, use builder. */
-    private BridgeUddRequest(String studyId, String userId, LocalDate startDate, LocalDate endDate) {
+    private BridgeUddRequest(String studyId, String userId, LocalDate startDate, LocalDate endDate,
+            int retryCount) {
         this.studyId = studyId;
         this.userId = userId;
         this.startDate = startDate;
         this.endDate = endDate;
+        this.retryCount = retryCount;
     }
 
     /** ID of the study to get user data from. */
@@ -48,12 +53,41 @@ public class BridgeUddRequest {
         return endDate;
     }
 
+    /**
+     * Number of times this request has been re-enqueued after failing. Zero for requests from Bridge. Not part of
+     * equals, since a retry asks for the same data.
+     */
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /** Two requests are equal if they ask for the same user's data for the same dates. */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        BridgeUddRequest that = (BridgeUddRequest) o;
+        return Objects.equals(studyId, that.studyId) && Objects.equals(userId, that.userId) &&
+                Objects.equals(startDate, that.startDate) && Objects.equals(endDate, that.endDate);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(studyId, userId, startDate, endDate);
+    }
+
     /** Bridge-UDD request builder. */
     public static class Builder {
         private String studyId;
         private String userId;
         private LocalDate startDate;
         private LocalDate endDate;
+        private int retryCount;
 
         /** @see BridgeUddRequest#getStudyId */
         public Builder withStudyId(String studyId) {
@@ -81,6 +115,12 @@ public class BridgeUddRequest {
             return this;
         }
 
+        /** @see BridgeUddRequest#getRetryCount */
+        public Builder withRetryCount(int retryCount) {
+            this.retryCount = retryCount;
+            return this;
+        }
+
         /**
          * Builds a BridgeUddRequest and validates that all fields are specified and that start date isn't after end
          * date.
@@ -106,7 +146,11 @@ public class BridgeUddRequest {
                 throw new IllegalStateException("startDate can't be after endDate");
             }
 
-            return new BridgeUddRequest(studyId, userId, startDate, endDate);
+            if (retryCount < 0) {
+                throw new IllegalStateException("retryCount can't be negative");
+            }
+
+            return new BridgeUddRequest(studyId, userId, startDate, endDate, retryCount);
         }
     }
 }
@@ -0,0 +1,79 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>
+ * Registry of in-flight requests. Users often tap "request my data" several times, which sends us several identical
+ * requests. Rather than have each one plan and run the full Synapse fan-out, the first request is started, and
+ * duplicates that arrive while it's in flight attach to it and are done. The in-flight request sends the user their
+ * data, and if it fails, it's retried (see {@link BridgeUddRequestRequeuer}).
+ * </p>
+ * <p>
+ * Requests are registered before they're submitted to the {@link BridgeUddRequestPipeline}, so attaching never blocks
+ * and never takes a pipeline slot. A request is only shared while it's in flight. Once it finishes, it's removed from
+ * the registry, so a later request runs again.
+ * </p>
+ */
+@Component
+public class BridgeUddRequestCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeUddRequestCoalescer.class);
+
+    private final ConcurrentMap<BridgeUddRequest, CompletableFuture<Void>> inFlightRequestMap =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger attachedDuplicateCount = new AtomicInteger();
+
+    /** Number of requests currently in flight. */
+    public int getInFlightCount() {
+        return inFlightRequestMap.size();
+    }
+
+    /** Number of duplicate requests attached to requests that are still in flight. */
+    public int getAttachedDuplicateCount() {
+        return attachedDuplicateCount.get();
+    }
+
+    /**
+     * Registers the request as in flight, or if an identical request is already in flight, attaches to it. This never
+     * blocks. If the request attached, there's nothing left to do for it.
+     *
+     * @param request
+     *         request to register, used as the registry key
+     * @return the request's in-flight future, which the caller must pass to {@link #finish} once the request is done,
+     *         whether or not it succeeds, or null if the request attached to an in-flight request
+     */
+    public CompletableFuture<Void> start(BridgeUddRequest request) {
+        CompletableFuture<Void> newFuture = new CompletableFuture<>();
+        CompletableFuture<Void> existingFuture = inFlightRequestMap.putIfAbsent(request, newFuture);
+        if (existingFuture == null) {
+            return newFuture;
+        }
+
+        LOG.info("Attaching duplicate request for userId=" + request.getUserId() + ", study=" +
+                request.getStudyId() + ", startDate=" + request.getStartDate() + ",endDate=" +
+                request.getEndDate() + " to in-flight request");
+        attachedDuplicateCount.incrementAndGet();
+        existingFuture.whenComplete((result, ex) -> attachedDuplicateCount.decrementAndGet());
+        return null;
+    }
+
+    /**
+     * Marks the request as done, and removes it from the registry. This is safe to call more than once.
+     *
+     * @param request
+     *         request to finish
+     * @param inFlightFuture
+     *         the request's in-flight future, from {@link #start}
+     */
+    public void finish(BridgeUddRequest request, CompletableFuture<Void> inFlightFuture) {
+        inFlightRequestMap.remove(request, inFlightFuture);
+        inFlightFuture.complete(null);
+    }
+}
@@ -0,0 +1,211 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Resource;
+
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+/**
+ * <p>
+ * Bounded pipeline of in-flight UDD requests. Most of a request's wall-clock time is spent waiting on Synapse, SES,
+ * and DynamoDB, so running several requests at once keeps the node's CPU and network busy.
+ * </p>
+ * <p>
+ * {@link #submit} is called from the SQS poll thread. It blocks until the pipeline has room for another request,
+ * which keeps the poll thread from pulling more messages than the node can handle. The pipeline has room when (a)
+ * fewer than the max number of requests are in flight, and (b) the node isn't saturated, meaning the auxiliary
+ * executor's queue isn't backed up and there's enough free temp disk. Saturation only holds back new requests while
+ * other requests are in flight. Otherwise, nothing would ever free up.
+ * </p>
+ * <p>
+ * Each request runs on its own request thread. (Each request also gets its own temp directory from the
+ * SynapsePackager.) A request that fails is logged and doesn't affect the others. Once a request is handed off, its
+ * SQS message is done, so SQS won't redeliver it. Instead, the caller's failure handler is called, which re-enqueues
+ * the request (see {@link BridgeUddRequestRequeuer}). Bad requests aren't retried. If max concurrency is 1, requests
+ * run inline on the calling thread and errors propagate to the caller, as before.
+ * </p>
+ */
+@Component
+public class BridgeUddRequestPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeUddRequestPipeline.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_BACKPRESSURE_SLEEP_MILLIS = "udd.request.backpressure.sleep.millis";
+    static final String CONFIG_KEY_MAX_AUX_QUEUE_SIZE = "udd.request.max.aux.queue.size";
+    static final String CONFIG_KEY_MAX_CONCURRENCY = "udd.request.max.concurrency";
+    static final String CONFIG_KEY_MIN_FREE_TEMP_DISK_MB = "udd.request.min.free.temp.disk.mb";
+
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private ExecutorService auxiliaryExecutorService;
+    private long backpressureSleepMillis;
+    private Semaphore inFlightSemaphore;
+    private int maxAuxQueueSize;
+    private int maxConcurrency;
+    private long minFreeTempDiskBytes;
+    private ExecutorService requestExecutorService;
+
+    /**
+     * Auxiliary executor, shared by all requests to run Synapse table tasks. If its queue is backed up, new requests
+     * wait.
+     */
+    @Resource(name = "auxiliaryExecutorService")
+    public final void setAuxiliaryExecutorService(ExecutorService auxiliaryExecutorService) {
+        this.auxiliaryExecutorService = auxiliaryExecutorService;
+    }
+
+    /** Bridge config. This is used to get the max concurrency and saturation thresholds. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        backpressureSleepMillis = config.getInt(CONFIG_KEY_BACKPRESSURE_SLEEP_MILLIS);
+        maxAuxQueueSize = config.getInt(CONFIG_KEY_MAX_AUX_QUEUE_SIZE);
+        maxConcurrency = config.getInt(CONFIG_KEY_MAX_CONCURRENCY);
+        minFreeTempDiskBytes = config.getInt(CONFIG_KEY_MIN_FREE_TEMP_DISK_MB) * BYTES_PER_MB;
+        inFlightSemaphore = new Semaphore(maxConcurrency);
+    }
+
+    /** Executor that runs the requests. This should have at least max concurrency threads. */
+    @Resource(name = "uddRequestExecutorService")
+    public final void setRequestExecutorService(ExecutorService requestExecutorService) {
+        this.requestExecutorService = requestExecutorService;
+    }
+
+    /** Number of requests currently in flight. */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /** Submits a request with no failure handler. See {@link #submit(String, RequestTask, FailureHandler)}. */
+    public void submit(String requestDescription, RequestTask requestTask) throws IOException,
+            PollSqsWorkerBadRequestException {
+        submit(requestDescription, requestTask, ex -> {});
+    }
+
+    /**
+     * Submits a request to the pipeline. Blocks until there's room for the request. If max concurrency is 1, this
+     * runs the request inline and propagates its errors. Otherwise, this returns as soon as the request is handed off,
+     * and if the request fails (other than as a bad request), the failure handler is called on the request thread.
+     *
+     * @param requestDescription
+     *         description of the request, used for logging
+     * @param requestTask
+     *         task that processes the request
+     * @param failureHandler
+     *         called if the request is handed off and fails
+     * @throws IOException
+     *         if the request is run inline and fails
+     * @throws PollSqsWorkerBadRequestException
+     *         if the request is run inline and is a bad request
+     */
+    public void submit(String requestDescription, RequestTask requestTask, FailureHandler failureHandler)
+            throws IOException, PollSqsWorkerBadRequestException {
+        if (maxConcurrency <= 1) {
+            requestTask.run();
+            return;
+        }
+
+        try {
+            waitForCapacity();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to submit request " + requestDescription, ex);
+        }
+
+        inFlightCount.incrementAndGet();
+        try {
+            requestExecutorService.execute(() -> runIsolated(requestDescription, requestTask, failureHandler));
+        } catch (RejectedExecutionException ex) {
+            inFlightCount.decrementAndGet();
+            inFlightSemaphore.release();
+            throw ex;
+        }
+    }
+
+    // Takes an in-flight slot, then waits for the node to be unsaturated.
+    private void waitForCapacity() throws InterruptedException {
+        inFlightSemaphore.acquire();
+
+        Stopwatch waitStopwatch = null;
+        while (inFlightCount.get() > 0 && isSaturated()) {
+            if (waitStopwatch == null) {
+                waitStopwatch = Stopwatch.createStarted();
+                LOG.info("Node is saturated with " + inFlightCount.get() + " requests in flight, holding back new " +
+                        "requests");
+            }
+            Thread.sleep(backpressureSleepMillis);
+        }
+
+        if (waitStopwatch != null) {
+            LOG.info("Held back new requests for " + waitStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        }
+    }
+
+    /**
+     * True if the auxiliary executor's queue is backed up or temp disk is running low. Package-scoped for unit tests.
+     */
+    boolean isSaturated() {
+        if (auxiliaryExecutorService instanceof ThreadPoolExecutor) {
+            int auxQueueSize = ((ThreadPoolExecutor) auxiliaryExecutorService).getQueue().size();
+            if (auxQueueSize >= maxAuxQueueSize) {
+                return true;
+            }
+        }
+        return getFreeTempDiskBytes() < minFreeTempDiskBytes;
+    }
+
+    /** Free space on the temp disk, where requests' temp directories live. Package-scoped so unit tests can mock. */
+    long getFreeTempDiskBytes() {
+        return new File(System.getProperty("java.io.tmpdir")).getUsableSpace();
+    }
+
+    // Runs a request on a request thread. Errors are logged and handed to the failure handler, so they don't affect
+    // other requests.
+    private void runIsolated(String requestDescription, RequestTask requestTask, FailureHandler failureHandler) {
+        try {
+            requestTask.run();
+        } catch (PollSqsWorkerBadRequestException ex) {
+            LOG.warn("Bad request " + requestDescription + ": " + ex.getMessage(), ex);
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Error processing request " + requestDescription + ": " + ex.getMessage(), ex);
+            try {
+                failureHandler.onFailure(ex);
+            } catch (RuntimeException handlerEx) {
+                LOG.error("Error handling failed request " + requestDescription + ": " + handlerEx.getMessage(),
+                        handlerEx);
+            }
+        } finally {
+            inFlightCount.decrementAndGet();
+            inFlightSemaphore.release();
+        }
+    }
+
+    /** Processes a single request. */
+    @FunctionalInterface
+    public interface RequestTask {
+        void run() throws IOException, PollSqsWorkerBadRequestException;
+    }
+
+    /** Handles a request that was handed off and failed. */
+    @FunctionalInterface
+    public interface FailureHandler {
+        void onFailure(Exception ex);
+    }
+}
@@ -0,0 +1,60 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyExportPlan;
+
+/**
+ * Everything a UDD request needs before the packager can query Synapse: the requesting account and the study's export
+ * plan. Built by {@link BridgeUddRequestPlanner}.
+ */
+public class BridgeUddRequestPlan {
+    private final AccountInfo accountInfo;
+    private final StudyExportPlan studyExportPlan;
+
+    /** Private constructor. To construct, use builder. */
+    private BridgeUddRequestPlan(AccountInfo accountInfo, StudyExportPlan studyExportPlan) {
+        this.accountInfo = accountInfo;
+        this.studyExportPlan = studyExportPlan;
+    }
+
+    /** Requesting account. Guaranteed to have a health code. */
+    public AccountInfo getAccountInfo() {
+        return accountInfo;
+    }
+
+    /** Study info, Synapse tables, and survey tables for the request's study. */
+    public StudyExportPlan getStudyExportPlan() {
+        return studyExportPlan;
+    }
+
+    /** BridgeUddRequestPlan builder. */
+    public static class Builder {
+        private AccountInfo accountInfo;
+        private StudyExportPlan studyExportPlan;
+
+        /** @see BridgeUddRequestPlan#getAccountInfo */
+        public Builder withAccountInfo(AccountInfo accountInfo) {
+            this.accountInfo = accountInfo;
+            return this;
+        }
+
+        /** @see BridgeUddRequestPlan#getStudyExportPlan */
+        public Builder withStudyExportPlan(StudyExportPlan studyExportPlan) {
+            this.studyExportPlan = studyExportPlan;
+            return this;
+        }
+
+        /** Builds a BridgeUddRequestPlan and validates that all parameters are specified. */
+        public BridgeUddRequestPlan build() {
+            if (accountInfo == null) {
+                throw new IllegalStateException("accountInfo must be specified");
+            }
+
+            if (studyExportPlan == null) {
+                throw new IllegalStateException("studyExportPlan must be specified");
+            }
+
+            return new BridgeUddRequestPlan(accountInfo, studyExportPlan);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Resource;
+
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
+import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyExportPlan;
+
+/**
+ * <p>
+ * Runs a request's metadata lookups concurrently. The study export plan is loaded on the planning executor while the
+ * account is looked up on the calling thread, so planning takes as long as the slower of the two lookups, not both.
+ * </p>
+ * <p>
+ * Planning doesn't start any Synapse work. The processor checks the export cache first, and only starts the survey
+ * downloads on a miss.
+ * </p>
+ */
+@Component
+public class BridgeUddRequestPlanner {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeUddRequestPlanner.class);
+
+    private BridgeHelper bridgeHelper;
+    private DynamoHelper dynamoHelper;
+    private ExecutorService planningExecutorService;
+
+    /** Bridge helper, used to call Bridge server to get account info, such as email address and health code. */
+    @Autowired
+    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
+        this.bridgeHelper = bridgeHelper;
+    }
+
+    /** Dynamo DB helper, used to get the study export plan. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /**
+     * Executor for the study export plan lookup. This must not be the DynamoDB batch executor, since the lookup waits
+     * on batch tasks.
+     */
+    @Resource(name = "uddRequestPlanningExecutorService")
+    public final void setPlanningExecutorService(ExecutorService planningExecutorService) {
+        this.planningExecutorService = planningExecutorService;
+    }
+
+    /**
+     * Looks up the account and study export plan.
+     *
+     * @param request
+     *         UDD request to plan
+     * @return the request plan
+     * @throws IOException
+     *         if the account or export plan lookup fails
+     * @throws PollSqsWorkerBadRequestException
+     *         if the account doesn't exist or has no health code
+     */
+    public BridgeUddRequestPlan plan(BridgeUddRequest request) throws IOException,
+            PollSqsWorkerBadRequestException {
+        String studyId = request.getStudyId();
+        Stopwatch planStopwatch = Stopwatch.createStarted();
+
+        CompletableFuture<StudyExportPlan> studyExportPlanFuture = CompletableFuture.supplyAsync(() -> {
+            try {
+                return dynamoHelper.getStudyExportPlan(studyId);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, planningExecutorService);
+
+        AccountInfo accountInfo = bridgeHelper.getAccountInfo(studyId, request.getUserId());
+        if (accountInfo.getHealthCode() == null) {
+            throw new PollSqsWorkerBadRequestException("Health code not found for account " +
+                    accountInfo.getUserId());
+        }
+
+        StudyExportPlan studyExportPlan = join(studyExportPlanFuture);
+        LOG.info("Planning request for study " + studyId + " took " + planStopwatch.elapsed(TimeUnit.MILLISECONDS) +
+                " ms");
+        return new BridgeUddRequestPlan.Builder().withAccountInfo(accountInfo).withStudyExportPlan(studyExportPlan)
+                .build();
+    }
+
+    // Waits for the future, unwrapping the lookup's own exception.
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * <p>
+ * Re-enqueues failed requests to the UDD request queue. When the request pipeline runs requests on its own threads,
+ * the SQS message is deleted as soon as the request is handed off, so SQS never redelivers a failed request. Instead,
+ * the pipeline calls this to send the request back to the queue, after a delay.
+ * </p>
+ * <p>
+ * Each re-enqueued request carries its retry count, so a request that keeps failing is dropped after the max number
+ * of retries, like a message that exceeds the queue's max receive count.
+ * </p>
+ */
+@Component
+public class BridgeUddRequestRequeuer {
+    private static final Logger LOG = LoggerFactory.getLogger(BridgeUddRequestRequeuer.class);
+
+    // Package-scoped to be available in unit tests
+    static final String CONFIG_KEY_MAX_RETRIES = "udd.request.max.retries";
+    static final String CONFIG_KEY_QUEUE_URL = "sqs.queue.url";
+    static final String CONFIG_KEY_REQUEUE_DELAY_SECONDS = "udd.request.requeue.delay.seconds";
+
+    private int maxRetries;
+    private String queueUrl;
+    private int requeueDelaySeconds;
+    private AmazonSQSClient sqsClient;
+
+    /** Bridge config, used to get the queue URL, the max retries, and the requeue delay. */
+    @Autowired
+    @Qualifier("uddConfigProperties")
+    public final void setConfig(Config config) {
+        maxRetries = config.getInt(CONFIG_KEY_MAX_RETRIES);
+        queueUrl = config.get(CONFIG_KEY_QUEUE_URL);
+        requeueDelaySeconds = config.getInt(CONFIG_KEY_REQUEUE_DELAY_SECONDS);
+    }
+
+    /** SQS client, used to send the request back to the queue. */
+    @Autowired
+    public final void setSqsClient(AmazonSQSClient sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    /**
+     * Sends a failed request back to the queue, with its retry count incremented. Requests that are out of retries,
+     * or that can't be sent, are logged and dropped. This never throws.
+     *
+     * @param request
+     *         request that failed
+     * @return true if the request was re-enqueued
+     */
+    public boolean requeue(BridgeUddRequest request) {
+        String requestDescription = "userId=" + request.getUserId() + ", study=" + request.getStudyId() +
+                ", startDate=" + request.getStartDate() + ",endDate=" + request.getEndDate();
+        if (request.getRetryCount() >= maxRetries) {
+            LOG.error("Request failed " + (request.getRetryCount() + 1) + " times, dropping request " +
+                    requestDescription);
+            return false;
+        }
+
+        BridgeUddRequest retryRequest = new BridgeUddRequest.Builder().withStudyId(request.getStudyId())
+                .withUserId(request.getUserId()).withStartDate(request.getStartDate())
+                .withEndDate(request.getEndDate()).withRetryCount(request.getRetryCount() + 1).build();
+        try {
+            String messageBody = DefaultObjectMapper.INSTANCE.writeValueAsString(retryRequest);
+            sqsClient.sendMessage(new SendMessageRequest(queueUrl, messageBody).withDelaySeconds(
+                    requeueDelaySeconds));
+        } catch (AmazonClientException | JsonProcessingException ex) {
+            LOG.error("Error re-enqueuing request " + requestDescription + ": " + ex.getMessage(), ex);
+            return false;
+        }
+
+        LOG.info("Re-enqueued request " + requestDescription + ", retry " + retryRequest.getRetryCount() + " of " +
+                maxRetries);
+        return true;
+    }
+}
@@ -0,0 +1,270 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Index;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class DataPresenceIndexTest {
+    private static final String HEALTH_CODE = "test-health-code";
+    private static final LocalDate START_DATE = LocalDate.parse("2015-03-09");
+    private static final LocalDate END_DATE = LocalDate.parse("2015-03-31");
+    private static final int MAX_RECORDS_PER_REFRESH = 5;
+    private static final long REFRESH_OVERLAP_MILLIS = 10 * 60 * 1000;
+
+    private static final Map<String, UploadSchema> SYNAPSE_TO_SCHEMA_MAP = ImmutableMap.<String, UploadSchema>builder()
+            .put("foo-table", makeSchema("foo", 1)).put("foo-v2-table", makeSchema("foo", 2))
+            .put("bar-table", makeSchema("bar", 1)).put("baz-table", makeSchema("baz", 1))
+            .put("qux-table", makeSchema("qux", 1)).build();
+
+    private DataPresenceIndex index;
+
+    @BeforeMethod
+    public void setup() {
+        index = spy(new DataPresenceIndex());
+        index.setConfig(mockConfig(true));
+    }
+
+    @Test
+    public void disabled() {
+        Index mockDdbIndex = mock(Index.class);
+        index.setConfig(mockConfig(false));
+        index.setDdbHealthDataRecordIndex(mockDdbIndex);
+
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+        verifyZeroInteractions(mockDdbIndex);
+    }
+
+    @Test
+    public void noTables() {
+        Map<String, UploadSchema> emptyMap = ImmutableMap.of();
+        Map<String, UploadSchema> result = index.filterTablesWithData(emptyMap, HEALTH_CODE, START_DATE, END_DATE);
+        assertSame(result, emptyMap);
+    }
+
+    @Test
+    public void filtersByDateRangeAndSchemaId() {
+        doReturn(ImmutableList.of(
+                // Data for foo in range. Both foo tables are kept, since presence doesn't track revisions.
+                makeRecord("foo", "2015-03-09", 1000),
+                // Data for bar, but only outside the range.
+                makeRecord("bar", "2015-03-08", 2000), makeRecord("bar", "2015-04-01", 3000),
+                // Data for baz on the end date.
+                makeRecord("baz", "2015-03-31", 4000))).when(index).queryRecords(HEALTH_CODE, 0);
+
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "baz-table"));
+        assertSame(result.get("foo-table"), SYNAPSE_TO_SCHEMA_MAP.get("foo-table"));
+
+        // End date is inclusive too.
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                LocalDate.parse("2015-04-01"));
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "bar-table", "baz-table"));
+    }
+
+    @Test
+    public void missingSchemaIdQueriesAllTables() {
+        // If the DDB index doesn't project schemaId, we can't tell which tables have data.
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", 1000), makeRecord(null, "2015-03-15", 2000)))
+                .when(index).queryRecords(HEALTH_CODE, 0);
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+    }
+
+    @Test
+    public void missingUploadDateQueriesAllTables() {
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", 1000), makeRecord("bar", null, 2000)))
+                .when(index).queryRecords(HEALTH_CODE, 0);
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+
+        // This sticks, even after later refreshes read only complete records.
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-11", 3000))).when(index).queryRecords(HEALTH_CODE, 0);
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+    }
+
+    @Test
+    public void refreshIsCappedAndPagesAcrossRequests() {
+        // The first refresh reads the max records and stops, so it can't prune yet.
+        long createdOn = 1426000000000L;
+        ImmutableList.Builder<Item> recordListBuilder = ImmutableList.builder();
+        for (int i = 0; i < MAX_RECORDS_PER_REFRESH; i++) {
+            recordListBuilder.add(makeRecord("foo", "2015-03-10", createdOn + i));
+        }
+        recordListBuilder.add(makeRecord("bar", "2015-03-10", createdOn + MAX_RECORDS_PER_REFRESH));
+        doReturn(recordListBuilder.build()).when(index).queryRecords(HEALTH_CODE, 0);
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+
+        // The next refresh continues from the last record read (re-reading records with the same createdOn, not the
+        // whole overlap), catches up, and prunes.
+        long lastCreatedOn = createdOn + MAX_RECORDS_PER_REFRESH - 1;
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", lastCreatedOn),
+                makeRecord("bar", "2015-03-10", createdOn + MAX_RECORDS_PER_REFRESH))).when(index)
+                .queryRecords(HEALTH_CODE, lastCreatedOn - 1);
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "bar-table"));
+    }
+
+    @Test
+    public void refreshMakesProgressWhenOverlapHoldsMaxRecords() {
+        // The first refresh catches up.
+        long createdOn = 1426000000000L;
+        long latestCreatedOn = createdOn + MAX_RECORDS_PER_REFRESH - 1;
+        ImmutableList.Builder<Item> overlapListBuilder = ImmutableList.builder();
+        for (int i = 0; i < MAX_RECORDS_PER_REFRESH; i++) {
+            overlapListBuilder.add(makeRecord("foo", "2015-03-10", createdOn + i));
+        }
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", latestCreatedOn))).when(index)
+                .queryRecords(HEALTH_CODE, 0);
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table"));
+
+        // The overlap holds the max records, all of them already seen, so the next refresh doesn't get past them.
+        doReturn(overlapListBuilder.build()).when(index).queryRecords(HEALTH_CODE,
+                latestCreatedOn - REFRESH_OVERLAP_MILLIS);
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+
+        // Instead of re-reading the overlap, the next refresh continues from the last record read, and picks up the
+        // new record.
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", latestCreatedOn),
+                makeRecord("qux", "2015-03-11", latestCreatedOn + 1))).when(index).queryRecords(HEALTH_CODE,
+                latestCreatedOn - 1);
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "qux-table"));
+        verify(index).queryRecords(HEALTH_CODE, latestCreatedOn - REFRESH_OVERLAP_MILLIS);
+    }
+
+    @Test
+    public void cappedPageWithSameCreatedOnMakesProgress() {
+        // Every record in the page has the same createdOn.
+        long createdOn = 1426000000000L;
+        ImmutableList.Builder<Item> recordListBuilder = ImmutableList.builder();
+        for (int i = 0; i < MAX_RECORDS_PER_REFRESH; i++) {
+            recordListBuilder.add(makeRecord("foo", "2015-03-10", createdOn));
+        }
+        doReturn(recordListBuilder.build()).when(index).queryRecords(HEALTH_CODE, 0);
+        doReturn(recordListBuilder.build()).when(index).queryRecords(HEALTH_CODE, createdOn - 1);
+        doReturn(ImmutableList.of(makeRecord("bar", "2015-03-10", createdOn + 1))).when(index)
+                .queryRecords(HEALTH_CODE, createdOn);
+
+        // The second refresh re-reads records with that createdOn, in case the first page ended partway through
+        // them. It reads the same page again, so the third refresh continues strictly after that createdOn.
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "bar-table"));
+
+        verify(index).queryRecords(HEALTH_CODE, 0);
+        verify(index).queryRecords(HEALTH_CODE, createdOn - 1);
+        verify(index).queryRecords(HEALTH_CODE, createdOn);
+    }
+
+    @Test
+    public void incrementalRefresh() {
+        long firstCreatedOn = 1426000000000L;
+        long secondCreatedOn = firstCreatedOn + 60000;
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", firstCreatedOn))).when(index).queryRecords(
+                HEALTH_CODE, 0);
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", firstCreatedOn),
+                makeRecord("qux", "2015-03-11", secondCreatedOn))).when(index).queryRecords(HEALTH_CODE,
+                firstCreatedOn - REFRESH_OVERLAP_MILLIS);
+        doReturn(ImmutableList.of()).when(index).queryRecords(HEALTH_CODE, secondCreatedOn - REFRESH_OVERLAP_MILLIS);
+
+        // First request reads everything.
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table"));
+
+        // Second request only reads records after the first one (minus overlap), and picks up the new record.
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "qux-table"));
+
+        // Third request reads from the new watermark. Earlier data is still there.
+        result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        assertEquals(result.keySet(), ImmutableSet.of("foo-table", "foo-v2-table", "qux-table"));
+
+        verify(index).queryRecords(HEALTH_CODE, 0);
+        verify(index).queryRecords(HEALTH_CODE, firstCreatedOn - REFRESH_OVERLAP_MILLIS);
+        verify(index).queryRecords(HEALTH_CODE, secondCreatedOn - REFRESH_OVERLAP_MILLIS);
+    }
+
+    @Test
+    public void invalidateAll() {
+        doReturn(ImmutableList.of(makeRecord("foo", "2015-03-10", 1000))).when(index).queryRecords(HEALTH_CODE, 0);
+        index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+
+        // After invalidating, the user is read from scratch.
+        index.invalidateAll();
+        index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE, END_DATE);
+        verify(index, times(2)).queryRecords(HEALTH_CODE, 0);
+    }
+
+    @Test
+    public void errorQueriesAllTables() {
+        doThrow(RuntimeException.class).when(index).queryRecords(anyString(), anyLong());
+        Map<String, UploadSchema> result = index.filterTablesWithData(SYNAPSE_TO_SCHEMA_MAP, HEALTH_CODE, START_DATE,
+                END_DATE);
+        assertSame(result, SYNAPSE_TO_SCHEMA_MAP);
+    }
+
+    private static Config mockConfig(boolean enabled) {
+        Config config = mock(Config.class);
+        when(config.get(DataPresenceIndex.CONFIG_KEY_ENABLED)).thenReturn(String.valueOf(enabled));
+        when(config.getInt(DataPresenceIndex.CONFIG_KEY_MAX_RECORDS_PER_REFRESH)).thenReturn(MAX_RECORDS_PER_REFRESH);
+        when(config.getInt(DataPresenceIndex.CONFIG_KEY_MAX_USERS)).thenReturn(100);
+        when(config.getInt(DataPresenceIndex.CONFIG_KEY_REFRESH_OVERLAP_MINUTES)).thenReturn(10);
+        return config;
+    }
+
+    private static Item makeRecord(String schemaId, String uploadDate, long createdOn) {
+        Item record = new Item().withLong("createdOn", createdOn);
+        if (schemaId != null) {
+            record.withString("schemaId", schemaId);
+        }
+        if (uploadDate != null) {
+            record.withString("uploadDate", uploadDate);
+        }
+        return record;
+    }
+
+    private static UploadSchema makeSchema(String schemaId, int revision) {
+        return new UploadSchema.Builder().withKey(new UploadSchemaKey.Builder().withAppId("test-study")
+                .withSchemaId(schemaId).withRevision(revision).build()).addField("dummy-field", "STRING").build();
+    }
+}
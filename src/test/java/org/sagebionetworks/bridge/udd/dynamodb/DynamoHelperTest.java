@@ -1,20 +1,46 @@
 package org.sagebionetworks.bridge.udd.dynamodb;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.internal.InternalUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 
@@ -26,6 +52,9 @@ public class DynamoHelperTest {
             "   }\n" +
             "]";
 
+    private static final String SYNAPSE_MAP_TABLE_NAME = "test-synapse-map-table";
+    private static final String UPLOAD_SCHEMA_TABLE_NAME = "test-upload-schema-table";
+
     @Test
     public void testGetStudy() {
         // mock study table
@@ -98,12 +127,11 @@ public class DynamoHelperTest {
 
     @Test
     public void testGetSynapseTablesAndSchemas() throws Exception {
-        // There are 3 sub-cases to test here
+        // There are 4 sub-cases to test here
         // * foo schema has no table
         // * bar schema has a table
         // * qwerty and asdf schemas both point to the same table
-
-        DynamoHelper dynamoHelper = new DynamoHelper();
+        // * baz v1 and v2 point to different tables (schema was incompatibly changed)
 
         // Mock Schema table Study index. This involves stubbing out queryHelper() because indices can't be mocked
         // directly.
@@ -112,42 +140,204 @@ public class DynamoHelperTest {
         mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", "bar", 2, null));
         mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", "qwerty", 3, null));
         mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", "asdf", 4, null));
+        mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", "baz", 1, null));
+        mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", "baz", 2, null));
 
-        Index mockSchemaStudyIndex = mock(Index.class);
-        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
-        when(mockQueryHelper.query(mockSchemaStudyIndex, "studyId", "test-study"))
-                .thenReturn(mockSchemaStudyIndexResult);
-        dynamoHelper.setDdbUploadSchemaStudyIndex(mockSchemaStudyIndex);
-        dynamoHelper.setQueryHelper(mockQueryHelper);
-
-        // mock schema table
-        Table mockSchemaTable = mock(Table.class);
-        when(mockSchemaTable.getItem("key", "test-study:foo", "revision", 1)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "foo", 1, DUMMY_FIELD_DEF_LIST_JSON));
-        when(mockSchemaTable.getItem("key", "test-study:bar", "revision", 2)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "bar", 2, DUMMY_FIELD_DEF_LIST_JSON));
-        when(mockSchemaTable.getItem("key", "test-study:qwerty", "revision", 3)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "qwerty", 3, DUMMY_FIELD_DEF_LIST_JSON));
-        when(mockSchemaTable.getItem("key", "test-study:asdf", "revision", 4)).thenReturn(makeUploadSchemaDdbItem(
-                "test-study", "asdf", 4, DUMMY_FIELD_DEF_LIST_JSON));
-        dynamoHelper.setDdbUploadSchemaTable(mockSchemaTable);
-
-        // mock synapse map table
-        Table mockSynapseMapTable = mock(Table.class);
-        when(mockSynapseMapTable.getItem("schemaKey", "test-study-bar-v2")).thenReturn(makeSynapseMapDdbItem(
-                "test-study-bar-v2", "bar-table-id"));
-        when(mockSynapseMapTable.getItem("schemaKey", "test-study-qwerty-v3")).thenReturn(makeSynapseMapDdbItem(
-                "test-study-qwerty-v3", "qwerty-asdf-table-id"));
-        when(mockSynapseMapTable.getItem("schemaKey", "test-study-asdf-v4")).thenReturn(makeSynapseMapDdbItem(
-                "test-study-asdf-v4", "qwerty-asdf-table-id"));
-        dynamoHelper.setDdbSynapseMapTable(mockSynapseMapTable);
+        FakeBatchDdb fakeDdb = new FakeBatchDdb();
+        for (Item oneIndexItem : mockSchemaStudyIndexResult) {
+            fakeDdb.addSchema(makeUploadSchemaDdbItem("test-study", oneIndexItem.getString("key").split(":")[1],
+                    oneIndexItem.getInt("revision"), DUMMY_FIELD_DEF_LIST_JSON));
+        }
+        fakeDdb.addSynapseMapping("test-study-bar-v2", "bar-table-id");
+        fakeDdb.addSynapseMapping("test-study-qwerty-v3", "qwerty-asdf-table-id");
+        fakeDdb.addSynapseMapping("test-study-asdf-v4", "qwerty-asdf-table-id");
+        fakeDdb.addSynapseMapping("test-study-baz-v1", "baz-v1-table-id");
+        fakeDdb.addSynapseMapping("test-study-baz-v2", "baz-v2-table-id");
+        DynamoHelper dynamoHelper = fakeDdb.makeDynamoHelper("test-study", mockSchemaStudyIndexResult);
 
         // execute and validate - Just check the key equals the schema we expect. Deep validation of schemas is done
         // in the schema tests
         Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy("test-study");
-        assertEquals(synapseToSchemaMap.size(), 2);
+        assertEquals(synapseToSchemaMap.size(), 4);
         assertEquals(synapseToSchemaMap.get("bar-table-id").getKey().toString(), "test-study-bar-v2");
         assertEquals(synapseToSchemaMap.get("qwerty-asdf-table-id").getKey().toString(), "test-study-asdf-v4");
+        assertEquals(synapseToSchemaMap.get("baz-v1-table-id").getKey().toString(), "test-study-baz-v1");
+        assertEquals(synapseToSchemaMap.get("baz-v2-table-id").getKey().toString(), "test-study-baz-v2");
+
+        // One batch for the Synapse map, with projection. One batch for the 4 canonical schemas (not the qwerty one,
+        // which lost the dedupe, or the foo one, which has no table).
+        assertEquals(fakeDdb.batchGetCount.get(), 2);
+        assertEquals(fakeDdb.synapseMapProjection, "schemaKey, tableId");
+        assertEquals(fakeDdb.schemaKeysRequested, 4);
+    }
+
+    @Test
+    public void testGetSynapseTablesManyRevisions() throws Exception {
+        // 250 revisions of one schema, all in one Synapse table. Previously, this was 500 GetItems.
+        List<Item> mockSchemaStudyIndexResult = new ArrayList<>();
+        FakeBatchDdb fakeDdb = new FakeBatchDdb();
+        for (int rev = 1; rev <= 250; rev++) {
+            mockSchemaStudyIndexResult.add(makeUploadSchemaDdbItem("test-study", "foo", rev, null));
+            fakeDdb.addSchema(makeUploadSchemaDdbItem("test-study", "foo", rev, DUMMY_FIELD_DEF_LIST_JSON));
+            fakeDdb.addSynapseMapping("test-study-foo-v" + rev, "foo-table-id");
+        }
+        DynamoHelper dynamoHelper = fakeDdb.makeDynamoHelper("test-study", mockSchemaStudyIndexResult);
+
+        Map<String, UploadSchema> synapseToSchemaMap = dynamoHelper.getSynapseTableIdsForStudy("test-study");
+        assertEquals(synapseToSchemaMap.size(), 1);
+        assertEquals(synapseToSchemaMap.get("foo-table-id").getKey().toString(), "test-study-foo-v250");
+
+        // 3 Synapse map chunks (100 + 100 + 50), plus 1 schema batch.
+        assertEquals(fakeDdb.batchGetCount.get(), 4);
+        assertEquals(fakeDdb.schemaKeysRequested, 1);
+    }
+
+    @Test
+    public void testGetSynapseTablesNoSchemas() throws Exception {
+        FakeBatchDdb fakeDdb = new FakeBatchDdb();
+        DynamoHelper dynamoHelper = fakeDdb.makeDynamoHelper("test-study", new ArrayList<>());
+        assertTrue(dynamoHelper.getSynapseTableIdsForStudy("test-study").isEmpty());
+        assertEquals(fakeDdb.batchGetCount.get(), 0);
+    }
+
+    @Test
+    public void testBatchGetRetriesUnprocessedKeys() throws Exception {
+        Item fooItem = makeSynapseMapDdbItem("foo-schema", "foo-table-id");
+        Item barItem = makeSynapseMapDdbItem("bar-schema", "bar-table-id");
+
+        // First call returns foo, with bar unprocessed. Retry returns bar.
+        Map<String, KeysAndAttributes> unprocessedKeys = ImmutableMap.of(SYNAPSE_MAP_TABLE_NAME,
+                new KeysAndAttributes().withKeys(ImmutableMap.of("schemaKey", new AttributeValue("bar-schema"))));
+        DynamoDB mockDdb = mock(DynamoDB.class);
+        when(mockDdb.batchGetItem(any(TableKeysAndAttributes.class))).thenReturn(makeOutcome(fooItem,
+                unprocessedKeys));
+        when(mockDdb.batchGetItemUnprocessed(unprocessedKeys)).thenReturn(makeOutcome(barItem, null));
+
+        DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbBatchExecutorService(MoreExecutors.newDirectExecutorService());
+        dynamoHelper.setDdbClient(mockDdb);
+        doNothing().when(dynamoHelper).sleepBeforeRetry(anyInt());
+
+        List<Item> itemList = dynamoHelper.batchGetItems(SYNAPSE_MAP_TABLE_NAME, ImmutableList.of(
+                new PrimaryKey("schemaKey", "foo-schema"), new PrimaryKey("schemaKey", "bar-schema")), null);
+        assertEquals(itemList, ImmutableList.of(fooItem, barItem));
+        verify(dynamoHelper).sleepBeforeRetry(1);
+    }
+
+    @Test
+    public void testBatchGetGivesUpOnUnprocessedKeys() throws Exception {
+        // Always unprocessed.
+        Map<String, KeysAndAttributes> unprocessedKeys = ImmutableMap.of(SYNAPSE_MAP_TABLE_NAME,
+                new KeysAndAttributes().withKeys(ImmutableMap.of("schemaKey", new AttributeValue("foo-schema"))));
+        DynamoDB mockDdb = mock(DynamoDB.class);
+        when(mockDdb.batchGetItem(any(TableKeysAndAttributes.class))).thenReturn(makeOutcome(null,
+                unprocessedKeys));
+        when(mockDdb.batchGetItemUnprocessed(unprocessedKeys)).thenReturn(makeOutcome(null, unprocessedKeys));
+
+        DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbBatchExecutorService(MoreExecutors.newDirectExecutorService());
+        dynamoHelper.setDdbClient(mockDdb);
+        doNothing().when(dynamoHelper).sleepBeforeRetry(anyInt());
+
+        try {
+            dynamoHelper.batchGetItems(SYNAPSE_MAP_TABLE_NAME, ImmutableList.of(new PrimaryKey("schemaKey",
+                    "foo-schema")), null);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("unprocessed keys"));
+        }
+        verify(mockDdb, times(DynamoHelper.BATCH_GET_MAX_ATTEMPTS - 1)).batchGetItemUnprocessed(unprocessedKeys);
+    }
+
+    @Test
+    public void testGetStudyExportPlan() throws Exception {
+        // mock study, survey, and schema lookups
+        Table mockStudyTable = mock(Table.class);
+        when(mockStudyTable.getItem("identifier", "test-study")).thenReturn(new Item().withString("name",
+                "Test Study").withString("shortName", "Test").withString("supportEmail", "support@sagebase.org"));
+
+        Table mockSynapseSurveyTable = mock(Table.class);
+        when(mockSynapseSurveyTable.getItem("studyId", "test-study")).thenReturn(new Item()
+                .withString("studyId", "test-study").withStringSet("tableIdSet", "survey-table"));
+
+        Index mockSchemaStudyIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(mockSchemaStudyIndex, "studyId", "test-study")).thenReturn(new ArrayList<>());
+
+        DynamoHelper dynamoHelper = new DynamoHelper();
+        dynamoHelper.setConfig(makeConfig());
+        dynamoHelper.setDdbStudyTable(mockStudyTable);
+        dynamoHelper.setDdbSynapseSurveyTablesTable(mockSynapseSurveyTable);
+        dynamoHelper.setDdbUploadSchemaStudyIndex(mockSchemaStudyIndex);
+        dynamoHelper.setQueryHelper(mockQueryHelper);
+
+        // execute and validate
+        StudyExportPlan plan = dynamoHelper.getStudyExportPlan("test-study");
+        assertEquals(plan.getStudyInfo().getStudyId(), "test-study");
+        assertEquals(plan.getSurveyTableIdSet(), ImmutableSet.of("survey-table"));
+        assertTrue(plan.getSynapseToSchemaMap().isEmpty());
+
+        // Second call is cached and makes no DynamoDB calls.
+        assertSame(dynamoHelper.getStudyExportPlan("test-study"), plan);
+        verify(mockStudyTable, times(1)).getItem("identifier", "test-study");
+        verify(mockSynapseSurveyTable, times(1)).getItem("studyId", "test-study");
+        verify(mockQueryHelper, times(1)).query(mockSchemaStudyIndex, "studyId", "test-study");
+    }
+
+    @Test
+    public void testStudyExportPlanInvalidation() throws Exception {
+        DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setConfig(makeConfig());
+        doReturn(makePlan("foo-study")).when(dynamoHelper).loadStudyExportPlan("foo-study");
+        doReturn(makePlan("bar-study")).when(dynamoHelper).loadStudyExportPlan("bar-study");
+
+        // Load both studies, then invalidate one.
+        dynamoHelper.getStudyExportPlan("foo-study");
+        dynamoHelper.getStudyExportPlan("bar-study");
+        dynamoHelper.invalidateStudyExportPlan("foo-study");
+        dynamoHelper.getStudyExportPlan("foo-study");
+        dynamoHelper.getStudyExportPlan("bar-study");
+        verify(dynamoHelper, times(2)).loadStudyExportPlan("foo-study");
+        verify(dynamoHelper, times(1)).loadStudyExportPlan("bar-study");
+
+        // Invalidate all.
+        dynamoHelper.invalidateAllStudyExportPlans();
+        dynamoHelper.getStudyExportPlan("foo-study");
+        dynamoHelper.getStudyExportPlan("bar-study");
+        verify(dynamoHelper, times(3)).loadStudyExportPlan("foo-study");
+        verify(dynamoHelper, times(2)).loadStudyExportPlan("bar-study");
+    }
+
+    @Test
+    public void testStudyExportPlanErrorNotCached() throws Exception {
+        DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setConfig(makeConfig());
+        doThrow(IOException.class).doReturn(makePlan("test-study")).when(dynamoHelper)
+                .loadStudyExportPlan("test-study");
+
+        try {
+            dynamoHelper.getStudyExportPlan("test-study");
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+
+        // Next call retries the load.
+        assertEquals(dynamoHelper.getStudyExportPlan("test-study").getStudyInfo().getStudyId(), "test-study");
+    }
+
+    private static Config makeConfig() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(DynamoHelper.CONFIG_KEY_PLAN_CACHE_MAX_SIZE)).thenReturn(10);
+        when(mockConfig.getInt(DynamoHelper.CONFIG_KEY_PLAN_CACHE_TTL_MINUTES)).thenReturn(15);
+        return mockConfig;
+    }
+
+    private static StudyExportPlan makePlan(String studyId) {
+        StudyInfo studyInfo = new StudyInfo.Builder().withName("Test Study").withStudyId(studyId)
+                .withSupportEmail("support@sagebase.org").build();
+        return new StudyExportPlan.Builder().withStudyInfo(studyInfo).withSynapseToSchemaMap(ImmutableMap.of())
+                .withSurveyTableIdSet(ImmutableSet.of()).build();
     }
 
     private static Item makeUploadSchemaDdbItem(String studyId, String schemaId, int rev, String fieldDefListJson) {
@@ -162,4 +352,78 @@ public class DynamoHelperTest {
     private static Item makeSynapseMapDdbItem(String schemaKey, String synapseTableId) {
         return new Item().withString("schemaKey", schemaKey).withString("tableId", synapseTableId);
     }
+
+    private static BatchGetItemOutcome makeOutcome(Item item, Map<String, KeysAndAttributes> unprocessedKeys) {
+        List<Map<String, AttributeValue>> responseList = new ArrayList<>();
+        if (item != null) {
+            responseList.add(InternalUtils.toAttributeValues(item));
+        }
+        return new BatchGetItemOutcome(new BatchGetItemResult().withResponses(ImmutableMap.of(SYNAPSE_MAP_TABLE_NAME,
+                responseList)).withUnprocessedKeys(unprocessedKeys));
+    }
+
+    // Stands in for DynamoDB Local. Serves BatchGetItems for the UploadSchema and SynapseTables tables and counts
+    // round trips.
+    private static class FakeBatchDdb {
+        private final AtomicInteger batchGetCount = new AtomicInteger();
+        private final Map<PrimaryKey, Item> schemaItemsByKey = new HashMap<>();
+        private final Map<PrimaryKey, Item> synapseMapItemsByKey = new HashMap<>();
+        private int schemaKeysRequested;
+        private String synapseMapProjection;
+
+        void addSchema(Item schemaItem) {
+            schemaItemsByKey.put(new PrimaryKey("key", schemaItem.getString("key"), "revision",
+                    schemaItem.getInt("revision")), schemaItem);
+        }
+
+        void addSynapseMapping(String schemaKey, String synapseTableId) {
+            synapseMapItemsByKey.put(new PrimaryKey("schemaKey", schemaKey), makeSynapseMapDdbItem(schemaKey,
+                    synapseTableId));
+        }
+
+        DynamoHelper makeDynamoHelper(String studyId, List<Item> schemaStudyIndexResult) {
+            DynamoDB mockDdb = mock(DynamoDB.class);
+            when(mockDdb.batchGetItem(any(TableKeysAndAttributes.class))).thenAnswer(invocation -> {
+                batchGetCount.incrementAndGet();
+                TableKeysAndAttributes keysAndAttributes = invocation.getArgumentAt(0, TableKeysAndAttributes.class);
+                String tableName = keysAndAttributes.getTableName();
+                assertTrue(keysAndAttributes.getPrimaryKeys().size() <= DynamoHelper.BATCH_GET_MAX_KEYS);
+
+                List<Map<String, AttributeValue>> responseList = new ArrayList<>();
+                for (PrimaryKey onePrimaryKey : keysAndAttributes.getPrimaryKeys()) {
+                    Item item;
+                    if (UPLOAD_SCHEMA_TABLE_NAME.equals(tableName)) {
+                        schemaKeysRequested++;
+                        item = schemaItemsByKey.get(onePrimaryKey);
+                    } else {
+                        synapseMapProjection = keysAndAttributes.getProjectionExpression();
+                        item = synapseMapItemsByKey.get(onePrimaryKey);
+                    }
+                    if (item != null) {
+                        responseList.add(InternalUtils.toAttributeValues(item));
+                    }
+                }
+                return new BatchGetItemOutcome(new BatchGetItemResult().withResponses(ImmutableMap.of(tableName,
+                        responseList)));
+            });
+
+            Index mockSchemaStudyIndex = mock(Index.class);
+            DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+            when(mockQueryHelper.query(mockSchemaStudyIndex, "studyId", studyId)).thenReturn(schemaStudyIndexResult);
+
+            Table mockSchemaTable = mock(Table.class);
+            when(mockSchemaTable.getTableName()).thenReturn(UPLOAD_SCHEMA_TABLE_NAME);
+            Table mockSynapseMapTable = mock(Table.class);
+            when(mockSynapseMapTable.getTableName()).thenReturn(SYNAPSE_MAP_TABLE_NAME);
+
+            DynamoHelper dynamoHelper = new DynamoHelper();
+            dynamoHelper.setDdbBatchExecutorService(MoreExecutors.newDirectExecutorService());
+            dynamoHelper.setDdbClient(mockDdb);
+            dynamoHelper.setDdbSynapseMapTable(mockSynapseMapTable);
+            dynamoHelper.setDdbUploadSchemaStudyIndex(mockSchemaStudyIndex);
+            dynamoHelper.setDdbUploadSchemaTable(mockSchemaTable);
+            dynamoHelper.setQueryHelper(mockQueryHelper);
+            return dynamoHelper;
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package org.sagebionetworks.bridge.udd.dynamodb;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class StudyExportPlanTest {
+    private static final StudyInfo STUDY_INFO = new StudyInfo.Builder().withName("Test Study")
+            .withStudyId("test-study").withSupportEmail("support@sagebase.org").build();
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*studyInfo.*")
+    public void nullStudyInfo() {
+        new StudyExportPlan.Builder().withSynapseToSchemaMap(ImmutableMap.of())
+                .withSurveyTableIdSet(ImmutableSet.of()).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*surveyTableIdSet.*")
+    public void nullSurveyTableIdSet() {
+        new StudyExportPlan.Builder().withStudyInfo(STUDY_INFO).withSynapseToSchemaMap(ImmutableMap.of()).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class,
+            expectedExceptionsMessageRegExp = ".*synapseToSchemaMap.*")
+    public void nullSynapseToSchemaMap() {
+        new StudyExportPlan.Builder().withStudyInfo(STUDY_INFO).withSurveyTableIdSet(ImmutableSet.of()).build();
+    }
+
+    @Test
+    public void happyCase() {
+        UploadSchema fooSchema = new UploadSchema.Builder().withKey(makeSchemaKey("foo")).addField("a", "INT")
+                .addField("b", "ATTACHMENT_BLOB").addField("c", "ATTACHMENT_V2").build();
+        UploadSchema barSchema = new UploadSchema.Builder().withKey(makeSchemaKey("bar")).addField("d", "STRING")
+                .build();
+
+        // Use mutable inputs, to test that the plan makes copies.
+        Map<String, UploadSchema> synapseToSchemaMap = new HashMap<>();
+        synapseToSchemaMap.put("foo-table", fooSchema);
+        synapseToSchemaMap.put("bar-table", barSchema);
+        Set<String> surveyTableIdSet = new HashSet<>();
+        surveyTableIdSet.add("survey-table");
+
+        StudyExportPlan plan = new StudyExportPlan.Builder().withStudyInfo(STUDY_INFO)
+                .withSynapseToSchemaMap(synapseToSchemaMap).withSurveyTableIdSet(surveyTableIdSet).build();
+        synapseToSchemaMap.clear();
+        surveyTableIdSet.clear();
+
+        assertSame(plan.getStudyInfo(), STUDY_INFO);
+        assertEquals(plan.getSurveyTableIdSet(), ImmutableSet.of("survey-table"));
+        assertEquals(plan.getSynapseToSchemaMap().size(), 2);
+        assertSame(plan.getSynapseToSchemaMap().get("foo-table"), fooSchema);
+        assertSame(plan.getSynapseToSchemaMap().get("bar-table"), barSchema);
+
+        // Attachment fields are precomputed per table.
+        assertEquals(plan.getAttachmentFieldNameSet("foo-table"), ImmutableSet.of("b", "c"));
+        assertTrue(plan.getAttachmentFieldNameSet("bar-table").isEmpty());
+        assertTrue(plan.getAttachmentFieldNameSet("unknown-table").isEmpty());
+    }
+
+    private static UploadSchemaKey makeSchemaKey(String schemaId) {
+        return new UploadSchemaKey.Builder().withAppId("test-study").withSchemaId(schemaId).withRevision(1).build();
+    }
+}
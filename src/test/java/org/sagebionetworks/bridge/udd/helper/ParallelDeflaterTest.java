@@ -0,0 +1,205 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class ParallelDeflaterTest {
+    private static final int BLOCK_SIZE = ParallelDeflater.DICTIONARY_SIZE;
+
+    private ExecutorService executorService;
+    private InMemoryFileHelper inMemoryFileHelper;
+    private File tmpDir;
+
+    @BeforeClass
+    public void beforeClass() {
+        executorService = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+    }
+
+    @BeforeMethod
+    public void setup() {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+    }
+
+    @Test
+    public void deflateFiles() throws Exception {
+        // Cover empty files, files smaller than a block, files that are an exact multiple of the block size, and files
+        // that span several blocks with a partial last block.
+        List<byte[]> contentList = ImmutableList.of(new byte[0], makeContent(100), makeContent(BLOCK_SIZE * 2),
+                makeContent(BLOCK_SIZE * 5 + 123));
+        List<File> fileList = new ArrayList<>();
+        for (int i = 0; i < contentList.size(); i++) {
+            fileList.add(createFile("file-" + i, contentList.get(i)));
+        }
+
+        // Small window, so the pipeline has to drain while reading.
+        ParallelDeflater deflater = new ParallelDeflater(executorService, inMemoryFileHelper, BLOCK_SIZE, 2);
+        List<File> callbackFileList = new ArrayList<>();
+        deflater.deflateFiles(fileList, Deflater.DEFAULT_COMPRESSION, (file, crc, size, compressedSize,
+                spoolFile) -> {
+            byte[] compressed = inMemoryFileHelper.getBytes(spoolFile);
+            assertEquals(compressed.length, compressedSize);
+
+            byte[] expected = contentList.get(callbackFileList.size());
+            assertEquals(size, expected.length);
+            assertEquals(crc, crc(expected));
+            assertEquals(inflate(compressed, expected.length), expected);
+
+            callbackFileList.add(file);
+        });
+
+        // Callbacks are in file order.
+        assertEquals(callbackFileList, fileList);
+
+        // Only the input files are left.
+        for (File oneFile : fileList) {
+            inMemoryFileHelper.deleteFile(oneFile);
+        }
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void dictionaryPrimingKeepsRatio() throws Exception {
+        // Content that repeats every half block. Without priming, each block has to see the first half in full before
+        // it can match anything.
+        byte[] period = makeContent(BLOCK_SIZE / 2);
+        byte[] content = new byte[BLOCK_SIZE * 8];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = period[i % period.length];
+        }
+
+        byte[] primed = deflateChain(content, true);
+        byte[] unprimed = deflateChain(content, false);
+        assertEquals(inflate(primed, content.length), content);
+        assertTrue(primed.length < unprimed.length, "primed=" + primed.length + ", unprimed=" + unprimed.length);
+    }
+
+    @Test
+    public void callbackErrorCleansUpSpoolFiles() throws Exception {
+        List<File> fileList = ImmutableList.of(createFile("foo", makeContent(BLOCK_SIZE * 3)),
+                createFile("bar", makeContent(100)));
+
+        ParallelDeflater deflater = new ParallelDeflater(executorService, inMemoryFileHelper, BLOCK_SIZE, 8);
+        try {
+            deflater.deflateFiles(fileList, Deflater.DEFAULT_COMPRESSION, (file, crc, size, compressedSize,
+                    spoolFile) -> {
+                throw new IOException("test exception");
+            });
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        for (File oneFile : fileList) {
+            inMemoryFileHelper.deleteFile(oneFile);
+        }
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void blockSizeTooSmall() {
+        new ParallelDeflater(executorService, inMemoryFileHelper, BLOCK_SIZE - 1, 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void zeroInFlightBlocks() {
+        new ParallelDeflater(executorService, inMemoryFileHelper, BLOCK_SIZE, 0);
+    }
+
+    // Deflates the content block by block, the same way the ParallelDeflater does, with or without dictionaries.
+    private static byte[] deflateChain(byte[] content, boolean primeDictionary) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int offset = 0; offset < content.length; offset += BLOCK_SIZE) {
+            byte[] block = new byte[BLOCK_SIZE];
+            System.arraycopy(content, offset, block, 0, BLOCK_SIZE);
+            byte[] dictionary = null;
+            if (primeDictionary && offset > 0) {
+                dictionary = new byte[BLOCK_SIZE];
+                System.arraycopy(content, offset - BLOCK_SIZE, dictionary, 0, BLOCK_SIZE);
+            }
+            boolean isLast = offset + BLOCK_SIZE >= content.length;
+            out.write(ParallelDeflater.deflateBlock(block, BLOCK_SIZE, dictionary, isLast,
+                    Deflater.DEFAULT_COMPRESSION));
+        }
+        return out.toByteArray();
+    }
+
+    // Inflates raw deflate data, and checks that the stream is properly terminated.
+    private static byte[] inflate(byte[] compressed, int expectedSize) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] output = new byte[expectedSize + 1];
+            int numBytes = 0;
+            while (!inflater.finished()) {
+                int n = inflater.inflate(output, numBytes, output.length - numBytes);
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    fail("truncated deflate stream");
+                }
+                numBytes += n;
+            }
+            assertEquals(numBytes, expectedSize);
+            byte[] result = new byte[numBytes];
+            System.arraycopy(output, 0, result, 0, numBytes);
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    // Semi-compressible content: random letters from a small alphabet.
+    private static byte[] makeContent(int size) {
+        Random random = new Random(size);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return content;
+    }
+
+    private File createFile(String name, byte[] content) throws IOException {
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,97 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class ZipCompressionPolicyTest {
+    private static final ZipCompressionPolicy POLICY = new ZipCompressionPolicy(true, 4, 90);
+    private static final byte[] TEXT_SAMPLE = Strings.repeat("recordId,healthCode,value\n", 1000).getBytes(
+            Charsets.UTF_8);
+
+    @DataProvider(name = "compressedExtensionProvider")
+    public Object[][] compressedExtensionProvider() {
+        return new Object[][] { { "foo.zip" }, { "foo.ZIP" }, { "dir/foo.gz" }, { "foo.m4a" }, { "foo.jpg" },
+                { "foo.mp4" }, { "foo.png" } };
+    }
+
+    @Test(dataProvider = "compressedExtensionProvider")
+    public void compressedExtension(String entryName) {
+        // Extension wins, even if the content looks compressible.
+        ZipCompressionPolicy.Decision decision = POLICY.decide(entryName, TEXT_SAMPLE, TEXT_SAMPLE.length);
+        assertEquals(decision.getMethod(), ZipEntry.STORED);
+        assertEquals(decision.getReason(), "extension");
+    }
+
+    @DataProvider(name = "magicBytesProvider")
+    public Object[][] magicBytesProvider() {
+        return new Object[][] { { new byte[] { 'P', 'K', 3, 4 } }, { new byte[] { 0x1f, (byte) 0x8b, 8 } },
+                { new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n' } },
+                { new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0 } },
+                { new byte[] { 0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'M', '4', 'A' } },
+                { new byte[] { 'O', 'g', 'g', 'S' } }, { new byte[] { 'I', 'D', '3', 4 } } };
+    }
+
+    @Test(dataProvider = "magicBytesProvider")
+    public void magicBytes(byte[] header) {
+        // Put the header at the start of an otherwise compressible sample, with an extension that tells us nothing.
+        byte[] sample = TEXT_SAMPLE.clone();
+        System.arraycopy(header, 0, sample, 0, header.length);
+
+        ZipCompressionPolicy.Decision decision = POLICY.decide("attachment.bin", sample, sample.length);
+        assertEquals(decision.getMethod(), ZipEntry.STORED);
+        assertEquals(decision.getReason(), "magic");
+    }
+
+    @Test
+    public void magicBytesLongerThanSample() {
+        // Sample is too short to match the mp4 signature at offset 4. Falls through to deflate.
+        byte[] sample = { 0, 0, 0, 0x20, 'f', 't' };
+        ZipCompressionPolicy.Decision decision = POLICY.decide("attachment", sample, sample.length);
+        assertEquals(decision.getMethod(), ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void incompressibleProbe() {
+        byte[] sample = new byte[ZipCompressionPolicy.SAMPLE_SIZE];
+        new Random(42).nextBytes(sample);
+
+        ZipCompressionPolicy.Decision decision = POLICY.decide("attachment.bin", sample, sample.length);
+        assertEquals(decision.getMethod(), ZipEntry.STORED);
+        assertEquals(decision.getReason(), "probe");
+    }
+
+    @Test
+    public void compressibleProbe() {
+        ZipCompressionPolicy.Decision decision = POLICY.decide("table.csv", TEXT_SAMPLE, TEXT_SAMPLE.length);
+        assertEquals(decision.getMethod(), ZipEntry.DEFLATED);
+        assertEquals(decision.getLevel(), 4);
+        assertEquals(decision.getReason(), "deflate");
+    }
+
+    @Test
+    public void sampleTooSmallToProbe() {
+        // Random bytes, but too few to judge. Deflate.
+        byte[] sample = new byte[ZipCompressionPolicy.MIN_PROBE_SIZE - 1];
+        new Random(42).nextBytes(sample);
+
+        ZipCompressionPolicy.Decision decision = POLICY.decide("attachment.bin", sample, sample.length);
+        assertEquals(decision.getMethod(), ZipEntry.DEFLATED);
+    }
+
+    @Test
+    public void deflateAll() {
+        // Not content-aware. Even a zip gets deflated, and the sample isn't needed.
+        ZipCompressionPolicy.Decision decision = ZipCompressionPolicy.DEFLATE_ALL.decide("foo.zip", new byte[0], 0);
+        assertEquals(decision.getMethod(), ZipEntry.DEFLATED);
+        assertEquals(decision.getLevel(), Deflater.DEFAULT_COMPRESSION);
+        assertEquals(decision.getReason(), "default");
+    }
+}
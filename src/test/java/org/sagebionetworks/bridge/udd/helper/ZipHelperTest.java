@@ -4,23 +4,42 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.FileHelper;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
 public class ZipHelperTest {
     @Test
@@ -75,6 +94,359 @@ public class ZipHelperTest {
         assertEquals(unzippedMap.get("baz-file"), "baz content");
     }
 
+    @Test
+    public void testZipToStream() throws Exception {
+        // mock input file
+        FileHelper mockFileHelper = mock(FileHelper.class);
+        File mockFooFile = mock(File.class);
+        when(mockFooFile.getName()).thenReturn("foo-file");
+        when(mockFileHelper.getInputStream(mockFooFile)).thenReturn(new ByteArrayInputStream(
+                "foo content".getBytes(Charsets.UTF_8)));
+
+        // Output stream tracks whether it's been closed. The zip helper should leave that to the caller.
+        boolean[] closed = { false };
+        ByteArrayOutputStream zipOutputStream = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        // set up zip helper and execute
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(mockFileHelper);
+        zipHelper.zip(ImmutableList.of(mockFooFile), zipOutputStream);
+        assertFalse(closed[0]);
+
+        // validate
+        Map<String, String> unzippedMap = unzipHelper(zipOutputStream.toByteArray());
+        assertEquals(unzippedMap.size(), 1);
+        assertEquals(unzippedMap.get("foo-file"), "foo content");
+    }
+
+    @Test
+    public void testStreamWriter() throws Exception {
+        // mock input file
+        FileHelper mockFileHelper = mock(FileHelper.class);
+        File mockFooFile = mock(File.class);
+        when(mockFooFile.getName()).thenReturn("foo-file");
+        when(mockFileHelper.getInputStream(mockFooFile)).thenReturn(new ByteArrayInputStream(
+                "foo content".getBytes(Charsets.UTF_8)));
+
+        // This file is added under a different entry name.
+        File mockBarFile = mock(File.class);
+        when(mockBarFile.getName()).thenReturn("bar-spool-file");
+        when(mockFileHelper.getInputStream(mockBarFile)).thenReturn(new ByteArrayInputStream(
+                "bar content".getBytes(Charsets.UTF_8)));
+
+        // Mix streamed entries and file entries.
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(mockFileHelper);
+        ByteArrayOutputStream zipOutputStream = new ByteArrayOutputStream();
+        try (ZipStreamWriter zipStreamWriter = zipHelper.newStreamWriter(zipOutputStream)) {
+            zipStreamWriter.writeEntry("streamed-entry", entryOutputStream -> entryOutputStream.write(
+                    "streamed content".getBytes(Charsets.UTF_8)));
+            zipStreamWriter.addFile(mockFooFile);
+            zipStreamWriter.addFile(mockBarFile, "attachments/bar.txt");
+            assertEquals(zipStreamWriter.getEntryCount(), 3);
+        }
+
+        // validate
+        Map<String, String> unzippedMap = unzipHelper(zipOutputStream.toByteArray());
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("streamed-entry"), "streamed content");
+        assertEquals(unzippedMap.get("foo-file"), "foo content");
+        assertEquals(unzippedMap.get("attachments/bar.txt"), "bar content");
+    }
+
+    @Test
+    public void testStreamWriterFailsAfterPartialEntry() throws Exception {
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(mock(FileHelper.class));
+        ZipStreamWriter zipStreamWriter = zipHelper.newStreamWriter(new ByteArrayOutputStream());
+        zipStreamWriter.writeEntry("good-entry", entryOutputStream -> entryOutputStream.write(
+                "good content".getBytes(Charsets.UTF_8)));
+
+        // The entry fails partway through.
+        try {
+            zipStreamWriter.writeEntry("bad-entry", entryOutputStream -> {
+                entryOutputStream.write("partial content".getBytes(Charsets.UTF_8));
+                throw new IOException("test exception");
+            });
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+
+        // The zip now has a truncated entry, so further writes and close both fail.
+        try {
+            zipStreamWriter.writeEntry("another-entry", entryOutputStream -> entryOutputStream.write(
+                    "more content".getBytes(Charsets.UTF_8)));
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+        try {
+            zipStreamWriter.close();
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void testAddRawEntriesFromZip() throws Exception {
+        // Source zip has a deflated entry, a stored entry, and a directory entry (which should be skipped).
+        String deflatedContent = Strings.repeat("deflated content ", 100);
+        byte[] sourceZipBytes = createZip(ImmutableMap.of("dir/deflated.txt", deflatedContent,
+                "stored.txt", "stored content"), "stored.txt");
+
+        // Copy the entries into a new zip, along with a normal entry.
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(mock(FileHelper.class));
+        ByteArrayOutputStream zipOutputStream = new ByteArrayOutputStream();
+        try (ZipStreamWriter zipStreamWriter = zipHelper.newStreamWriter(zipOutputStream)) {
+            zipStreamWriter.writeEntry("table.csv", entryOutputStream -> entryOutputStream.write(
+                    "csv content".getBytes(Charsets.UTF_8)));
+            int numCopied = zipStreamWriter.addRawEntriesFromZip(new SeekableInMemoryByteChannel(sourceZipBytes),
+                    "table/");
+            assertEquals(numCopied, 2);
+            assertEquals(zipStreamWriter.getEntryCount(), 3);
+        }
+        byte[] targetZipBytes = zipOutputStream.toByteArray();
+
+        // Entries are flattened under the prefix, and are readable by a plain zip reader.
+        Map<String, String> unzippedMap = unzipHelper(targetZipBytes);
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("table.csv"), "csv content");
+        assertEquals(unzippedMap.get("table/dir/deflated.txt"), deflatedContent);
+        assertEquals(unzippedMap.get("table/stored.txt"), "stored content");
+
+        // Compressed bytes are copied as-is, not recompressed.
+        try (ZipFile sourceZipFile = new ZipFile(new SeekableInMemoryByteChannel(sourceZipBytes));
+                ZipFile targetZipFile = new ZipFile(new SeekableInMemoryByteChannel(targetZipBytes))) {
+            for (String oneEntryName : ImmutableList.of("dir/deflated.txt", "stored.txt")) {
+                ZipArchiveEntry sourceEntry = sourceZipFile.getEntry(oneEntryName);
+                ZipArchiveEntry targetEntry = targetZipFile.getEntry("table/" + oneEntryName);
+                assertNotNull(targetEntry);
+                assertEquals(targetEntry.getMethod(), sourceEntry.getMethod());
+                assertEquals(targetEntry.getCrc(), sourceEntry.getCrc());
+                assertEquals(targetEntry.getCompressedSize(), sourceEntry.getCompressedSize());
+                assertEquals(readRawBytes(targetZipFile, targetEntry), readRawBytes(sourceZipFile, sourceEntry));
+            }
+            assertEquals(targetZipFile.getEntry("table/dir/deflated.txt").getMethod(), ZipEntry.DEFLATED);
+            assertEquals(targetZipFile.getEntry("table/stored.txt").getMethod(), ZipEntry.STORED);
+        }
+    }
+
+    @Test
+    public void testParallelZip() throws Exception {
+        // Use real files in memory, since the parallel deflater spools compressed data next to the input files.
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+        String largeContent = Strings.repeat("large content ", 20000);
+        File largeFile = createFile(inMemoryFileHelper, tmpDir, "large-file", largeContent);
+        File smallFile = createFile(inMemoryFileHelper, tmpDir, "small-file", "small content");
+        File emptyFile = createFile(inMemoryFileHelper, tmpDir, "empty-file", "");
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(ZipHelper.CONFIG_KEY_PARALLEL_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_PARALLEL_BLOCK_SIZE_BYTES)).thenReturn(
+                ParallelDeflater.DICTIONARY_SIZE);
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_PARALLEL_MAX_INFLIGHT_BLOCKS)).thenReturn(4);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream zipOutputStream = new ByteArrayOutputStream();
+        try {
+            ZipHelper zipHelper = new ZipHelper();
+            zipHelper.setConfig(mockConfig);
+            zipHelper.setDeflateExecutorService(executorService);
+            zipHelper.setFileHelper(inMemoryFileHelper);
+            zipHelper.zip(ImmutableList.of(largeFile, smallFile, emptyFile), zipOutputStream);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // Unzipping validates CRCs and sizes.
+        Map<String, String> unzippedMap = unzipHelper(zipOutputStream.toByteArray());
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("large-file"), largeContent);
+        assertEquals(unzippedMap.get("small-file"), "small content");
+        assertEquals(unzippedMap.get("empty-file"), "");
+
+        // Large file is split across several blocks, and is still compressed reasonably.
+        try (ZipFile zipFile = new ZipFile(new SeekableInMemoryByteChannel(zipOutputStream.toByteArray()))) {
+            ZipArchiveEntry largeEntry = zipFile.getEntry("large-file");
+            assertEquals(largeEntry.getMethod(), ZipEntry.DEFLATED);
+            assertTrue(largeEntry.getCompressedSize() < largeContent.length() / 10);
+        }
+
+        // Spool files are cleaned up.
+        for (File oneFile : ImmutableList.of(largeFile, smallFile, emptyFile)) {
+            inMemoryFileHelper.deleteFile(oneFile);
+        }
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void testCompressionPolicy() throws Exception {
+        testCompressionPolicy(false);
+    }
+
+    @Test
+    public void testCompressionPolicyWithParallelDeflate() throws Exception {
+        testCompressionPolicy(true);
+    }
+
+    private static void testCompressionPolicy(boolean parallel) throws Exception {
+        // Files: compressible text, a photo (by extension), a gzip with no extension (by magic bytes), random bytes
+        // (by probe).
+        InMemoryFileHelper inMemoryFileHelper = new InMemoryFileHelper();
+        File tmpDir = inMemoryFileHelper.createTempDir();
+
+        String textContent = Strings.repeat("recordId,healthCode,value\n", 5000);
+        byte[] photoContent = new byte[10000];
+        new Random(1).nextBytes(photoContent);
+        byte[] gzipContent = new byte[10000];
+        new Random(2).nextBytes(gzipContent);
+        gzipContent[0] = 0x1f;
+        gzipContent[1] = (byte) 0x8b;
+        byte[] randomContent = new byte[100000];
+        new Random(3).nextBytes(randomContent);
+
+        List<File> fileList = ImmutableList.of(createFile(inMemoryFileHelper, tmpDir, "table.csv", textContent),
+                createFile(inMemoryFileHelper, tmpDir, "photo.jpg", photoContent),
+                createFile(inMemoryFileHelper, tmpDir, "blob", gzipContent),
+                createFile(inMemoryFileHelper, tmpDir, "random.bin", randomContent));
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(ZipHelper.CONFIG_KEY_COMPRESSION_POLICY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_COMPRESSION_LEVEL)).thenReturn(6);
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_COMPRESSION_MAX_RATIO_PERCENT)).thenReturn(90);
+        when(mockConfig.get(ZipHelper.CONFIG_KEY_PARALLEL_ENABLED)).thenReturn(String.valueOf(parallel));
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_PARALLEL_BLOCK_SIZE_BYTES)).thenReturn(
+                ParallelDeflater.DICTIONARY_SIZE);
+        when(mockConfig.getInt(ZipHelper.CONFIG_KEY_PARALLEL_MAX_INFLIGHT_BLOCKS)).thenReturn(4);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        ByteArrayOutputStream zipOutputStream = new ByteArrayOutputStream();
+        List<ZipStreamWriter.EntryRecord> entryRecordList;
+        try {
+            ZipHelper zipHelper = new ZipHelper();
+            zipHelper.setConfig(mockConfig);
+            zipHelper.setDeflateExecutorService(executorService);
+            zipHelper.setFileHelper(inMemoryFileHelper);
+            try (ZipStreamWriter zipStreamWriter = zipHelper.newStreamWriter(zipOutputStream)) {
+                zipStreamWriter.writeEntry("streamed.csv", entryOutputStream -> entryOutputStream.write(
+                        textContent.getBytes(Charsets.UTF_8)));
+                zipStreamWriter.addFiles(fileList);
+                entryRecordList = zipStreamWriter.getEntryRecordList();
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // Unzipping validates CRCs and sizes.
+        byte[] zipBytes = zipOutputStream.toByteArray();
+        Map<String, String> unzippedMap = unzipHelper(zipBytes);
+        assertEquals(unzippedMap.size(), 5);
+        assertEquals(unzippedMap.get("streamed.csv"), textContent);
+        assertEquals(unzippedMap.get("table.csv"), textContent);
+        try (ZipFile zipFile = new ZipFile(new SeekableInMemoryByteChannel(zipBytes))) {
+            assertEquals(ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("photo.jpg"))),
+                    photoContent);
+            assertEquals(ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("blob"))), gzipContent);
+            assertEquals(ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("random.bin"))),
+                    randomContent);
+        }
+
+        // Validate per-entry records.
+        Map<String, ZipStreamWriter.EntryRecord> recordsByName = new HashMap<>();
+        for (ZipStreamWriter.EntryRecord oneRecord : entryRecordList) {
+            recordsByName.put(oneRecord.getEntryName(), oneRecord);
+        }
+        assertEquals(recordsByName.size(), 5);
+        assertRecord(recordsByName.get("streamed.csv"), ZipEntry.DEFLATED, "streamed", textContent.length());
+        assertRecord(recordsByName.get("table.csv"), ZipEntry.DEFLATED, "deflate", textContent.length());
+        assertRecord(recordsByName.get("photo.jpg"), ZipEntry.STORED, "extension", photoContent.length);
+        assertRecord(recordsByName.get("blob"), ZipEntry.STORED, "magic", gzipContent.length);
+        assertRecord(recordsByName.get("random.bin"), ZipEntry.STORED, "probe", randomContent.length);
+
+        assertTrue(recordsByName.get("table.csv").getRatio() < 0.1);
+        assertEquals(recordsByName.get("random.bin").getRatio(), 1.0);
+
+        // Spool files are cleaned up.
+        for (File oneFile : fileList) {
+            inMemoryFileHelper.deleteFile(oneFile);
+        }
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    private static void assertRecord(ZipStreamWriter.EntryRecord record, int expectedMethod, String expectedReason,
+            long expectedSize) {
+        assertEquals(record.getMethod(), expectedMethod);
+        assertEquals(record.getReason(), expectedReason);
+        assertEquals(record.getSize(), expectedSize);
+        if (expectedMethod == ZipEntry.STORED) {
+            assertEquals(record.getCompressedSize(), expectedSize);
+        } else {
+            assertTrue(record.getCompressedSize() < expectedSize);
+        }
+    }
+
+    private static File createFile(InMemoryFileHelper inMemoryFileHelper, File tmpDir, String name, byte[] content)
+            throws IOException {
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (OutputStream outputStream = inMemoryFileHelper.getOutputStream(file)) {
+            outputStream.write(content);
+        }
+        return file;
+    }
+
+    private static File createFile(InMemoryFileHelper inMemoryFileHelper, File tmpDir, String name, String content)
+            throws IOException {
+        File file = inMemoryFileHelper.newFile(tmpDir, name);
+        try (Writer writer = inMemoryFileHelper.getWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+    /**
+     * Test helper that creates a zip with the given entries. Entries are deflated, except for the named stored entry.
+     * Also includes a directory entry.
+     */
+    public static byte[] createZip(Map<String, String> entryNameToContent, String storedEntryName)
+            throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(byteArrayOutputStream)) {
+            zipOutputStream.putArchiveEntry(new ZipArchiveEntry("dir/"));
+            zipOutputStream.closeArchiveEntry();
+
+            for (Map.Entry<String, String> oneEntry : entryNameToContent.entrySet()) {
+                byte[] contentBytes = oneEntry.getValue().getBytes(Charsets.UTF_8);
+                ZipArchiveEntry zipEntry = new ZipArchiveEntry(oneEntry.getKey());
+                if (oneEntry.getKey().equals(storedEntryName)) {
+                    CRC32 crc = new CRC32();
+                    crc.update(contentBytes);
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(contentBytes.length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                zipOutputStream.putArchiveEntry(zipEntry);
+                zipOutputStream.write(contentBytes);
+                zipOutputStream.closeArchiveEntry();
+            }
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] readRawBytes(ZipFile zipFile, ZipArchiveEntry entry) throws IOException {
+        return ByteStreams.toByteArray(zipFile.getRawInputStream(entry));
+    }
+
     // Test helper for unzip.
     public static Map<String, String> unzipHelper(byte[] zipBytes) throws IOException {
         Map<String, String> unzippedMap = new HashMap<>();
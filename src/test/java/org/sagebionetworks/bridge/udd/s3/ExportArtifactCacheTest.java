@@ -0,0 +1,145 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+public class ExportArtifactCacheTest {
+    private static final String BUCKET = "test-userdata-bucket";
+    private static final String CACHE_KEY_MATERIAL = "study=test-study\nhealthCode=test-health-code";
+    private static final String INDEX_KEY = ExportArtifactCache.getIndexKey(CACHE_KEY_MATERIAL);
+    private static final DateTime MOCK_NOW = DateTime.parse("2017-06-01T12:00:00.000Z");
+    private static final String OBJECT_KEY = "userdata-2017-05-01-to-2017-05-31-test-guid.zip";
+
+    private ExportArtifactCache cache;
+    private AmazonS3Client mockS3Client;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW.getMillis());
+
+        mockS3Client = mock(AmazonS3Client.class);
+        cache = makeCache(60);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void indexKeyHasNoIdentifyingInfo() {
+        assertTrue(INDEX_KEY.startsWith(ExportArtifactCache.INDEX_KEY_PREFIX));
+        assertFalse(INDEX_KEY.contains("test-health-code"));
+        assertNotEquals(ExportArtifactCache.getIndexKey(CACHE_KEY_MATERIAL + "x"), INDEX_KEY);
+    }
+
+    @Test
+    public void put() throws Exception {
+        cache.put(CACHE_KEY_MATERIAL, OBJECT_KEY);
+
+        ArgumentCaptor<String> indexJsonCaptor = ArgumentCaptor.forClass(String.class);
+        verify(mockS3Client).putObject(eq(BUCKET), eq(INDEX_KEY), indexJsonCaptor.capture());
+        JsonNode indexNode = DefaultObjectMapper.INSTANCE.readTree(indexJsonCaptor.getValue());
+        assertEquals(indexNode.get(ExportArtifactCache.KEY_OBJECT_KEY).textValue(), OBJECT_KEY);
+        assertEquals(DateTime.parse(indexNode.get(ExportArtifactCache.KEY_CREATED_ON).textValue()).getMillis(),
+                MOCK_NOW.getMillis());
+    }
+
+    @Test
+    public void putError() {
+        // Errors are swallowed.
+        when(mockS3Client.putObject(eq(BUCKET), eq(INDEX_KEY), anyString())).thenThrow(AmazonClientException.class);
+        cache.put(CACHE_KEY_MATERIAL, OBJECT_KEY);
+    }
+
+    @Test
+    public void hit() {
+        when(mockS3Client.getObjectAsString(BUCKET, INDEX_KEY)).thenReturn(makeIndexJson(MOCK_NOW.minusMinutes(59)));
+        when(mockS3Client.doesObjectExist(BUCKET, OBJECT_KEY)).thenReturn(true);
+        assertEquals(cache.get(CACHE_KEY_MATERIAL), OBJECT_KEY);
+    }
+
+    @Test
+    public void missNoIndex() {
+        AmazonS3Exception notFoundEx = new AmazonS3Exception("not found");
+        notFoundEx.setStatusCode(404);
+        when(mockS3Client.getObjectAsString(BUCKET, INDEX_KEY)).thenThrow(notFoundEx);
+        assertNull(cache.get(CACHE_KEY_MATERIAL));
+    }
+
+    @Test
+    public void missExpired() {
+        when(mockS3Client.getObjectAsString(BUCKET, INDEX_KEY)).thenReturn(makeIndexJson(MOCK_NOW.minusMinutes(60)));
+        when(mockS3Client.doesObjectExist(BUCKET, OBJECT_KEY)).thenReturn(true);
+        assertNull(cache.get(CACHE_KEY_MATERIAL));
+    }
+
+    @Test
+    public void missObjectDeleted() {
+        when(mockS3Client.getObjectAsString(BUCKET, INDEX_KEY)).thenReturn(makeIndexJson(MOCK_NOW));
+        when(mockS3Client.doesObjectExist(BUCKET, OBJECT_KEY)).thenReturn(false);
+        assertNull(cache.get(CACHE_KEY_MATERIAL));
+    }
+
+    @Test
+    public void missOnS3Error() {
+        AmazonS3Exception s3Ex = new AmazonS3Exception("internal error");
+        s3Ex.setStatusCode(500);
+        when(mockS3Client.getObjectAsString(BUCKET, INDEX_KEY)).thenThrow(s3Ex);
+        assertNull(cache.get(CACHE_KEY_MATERIAL));
+    }
+
+    @Test
+    public void missOnMalformedIndex() {
+        when(mockS3Client.getObjectAsString(BUCKET, INDEX_KEY)).thenReturn("{\"foo\":\"bar\"}");
+        assertNull(cache.get(CACHE_KEY_MATERIAL));
+    }
+
+    @Test
+    public void disabled() {
+        cache = makeCache(0);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get(CACHE_KEY_MATERIAL));
+        cache.put(CACHE_KEY_MATERIAL, OBJECT_KEY);
+        verifyZeroInteractions(mockS3Client);
+    }
+
+    private ExportArtifactCache makeCache(int ttlMinutes) {
+        Config config = mock(Config.class);
+        when(config.getInt(ExportArtifactCache.CONFIG_KEY_TTL_MINUTES)).thenReturn(ttlMinutes);
+        when(config.get(ExportArtifactCache.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(BUCKET);
+
+        ExportArtifactCache cache = new ExportArtifactCache();
+        cache.setConfig(config);
+        cache.setS3Client(mockS3Client);
+        return cache;
+    }
+
+    private static String makeIndexJson(DateTime createdOn) {
+        return "{\"" + ExportArtifactCache.KEY_OBJECT_KEY + "\":\"" + OBJECT_KEY + "\",\"" +
+                ExportArtifactCache.KEY_CREATED_ON + "\":\"" + createdOn + "\"}";
+    }
+}
@@ -0,0 +1,261 @@
+package org.sagebionetworks.bridge.udd.s3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class S3MultipartOutputStreamTest {
+    private static final String TEST_BUCKET = "test-bucket";
+    private static final String TEST_KEY = "test-key";
+    private static final String TEST_UPLOAD_ID = "test-upload-id";
+
+    // Tiny part size, so we can test multiple parts. Real S3 would reject this, but our mock doesn't care.
+    private static final int TEST_PART_SIZE = 4;
+
+    private AmazonS3Client mockS3Client;
+    private S3MultipartUploadHelper helper;
+    private byte[] putObjectBytes;
+    private Map<Integer, String> uploadedPartMap;
+
+    @BeforeMethod
+    public void setup() {
+        // TestNG doesn't clean state between tests.
+        putObjectBytes = null;
+        uploadedPartMap = new TreeMap<>();
+
+        mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            PutObjectRequest request = invocation.getArgumentAt(0, PutObjectRequest.class);
+            putObjectBytes = ByteStreams.toByteArray(request.getInputStream());
+            assertEquals(request.getMetadata().getContentLength(), putObjectBytes.length);
+            return new PutObjectResult();
+        });
+
+        InitiateMultipartUploadResult initResult = new InitiateMultipartUploadResult();
+        initResult.setUploadId(TEST_UPLOAD_ID);
+        when(mockS3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initResult);
+
+        when(mockS3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgumentAt(0, UploadPartRequest.class);
+            assertEquals(request.getUploadId(), TEST_UPLOAD_ID);
+
+            byte[] partBytes = ByteStreams.toByteArray(request.getInputStream());
+            assertEquals(request.getPartSize(), partBytes.length);
+            uploadedPartMap.put(request.getPartNumber(), new String(partBytes, Charsets.UTF_8));
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+
+        when(mockS3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(
+                new CompleteMultipartUploadResult());
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(S3MultipartUploadHelper.CONFIG_KEY_PART_SIZE_BYTES)).thenReturn(TEST_PART_SIZE);
+        when(mockConfig.getInt(S3MultipartUploadHelper.CONFIG_KEY_MAX_IN_FLIGHT_PARTS)).thenReturn(2);
+
+        helper = new S3MultipartUploadHelper();
+        helper.setConfig(mockConfig);
+        helper.setS3Client(mockS3Client);
+        helper.setUploadExecutorService(MoreExecutors.newDirectExecutorService());
+    }
+
+    @Test
+    public void smallFileUsesSinglePut() throws Exception {
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.write("abc".getBytes(Charsets.UTF_8));
+        outputStream.close();
+
+        assertEquals(new String(putObjectBytes, Charsets.UTF_8), "abc");
+        assertNull(outputStream.getUploadId());
+        verify(mockS3Client, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.close();
+        assertEquals(putObjectBytes.length, 0);
+    }
+
+    @Test
+    public void multipleParts() throws Exception {
+        // Mix of single-byte writes and array writes that straddle part boundaries.
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.write('a');
+        outputStream.write("bcdefghij".getBytes(Charsets.UTF_8));
+        outputStream.write('k');
+        outputStream.close();
+
+        assertNull(putObjectBytes);
+        assertEquals(outputStream.getUploadId(), TEST_UPLOAD_ID);
+
+        // Parts should be in order, with the last part being smaller.
+        assertEquals(uploadedPartMap.size(), 3);
+        assertEquals(uploadedPartMap.get(1), "abcd");
+        assertEquals(uploadedPartMap.get(2), "efgh");
+        assertEquals(uploadedPartMap.get(3), "ijk");
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequestCaptor = ArgumentCaptor.forClass(
+                CompleteMultipartUploadRequest.class);
+        verify(mockS3Client).completeMultipartUpload(completeRequestCaptor.capture());
+        CompleteMultipartUploadRequest completeRequest = completeRequestCaptor.getValue();
+        assertEquals(completeRequest.getBucketName(), TEST_BUCKET);
+        assertEquals(completeRequest.getKey(), TEST_KEY);
+        assertEquals(completeRequest.getUploadId(), TEST_UPLOAD_ID);
+
+        List<PartETag> partETagList = completeRequest.getPartETags();
+        assertEquals(partETagList.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(partETagList.get(i).getPartNumber(), i + 1);
+            assertEquals(partETagList.get(i).getETag(), "etag-" + (i + 1));
+        }
+
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void exactMultipleOfPartSize() throws Exception {
+        // The last full part is uploaded on close, and there's no trailing empty part.
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.write("abcdefgh".getBytes(Charsets.UTF_8));
+        outputStream.close();
+
+        assertEquals(uploadedPartMap.size(), 2);
+        assertEquals(uploadedPartMap.get(1), "abcd");
+        assertEquals(uploadedPartMap.get(2), "efgh");
+    }
+
+    @Test
+    public void abort() throws Exception {
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.write("abcdefghij".getBytes(Charsets.UTF_8));
+        outputStream.abort();
+
+        // Abort can be called multiple times, and close after abort is a no-op.
+        outputStream.abort();
+        outputStream.close();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortRequestCaptor = ArgumentCaptor.forClass(
+                AbortMultipartUploadRequest.class);
+        verify(mockS3Client).abortMultipartUpload(abortRequestCaptor.capture());
+        assertEquals(abortRequestCaptor.getValue().getUploadId(), TEST_UPLOAD_ID);
+        verify(mockS3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+        // Writes after abort fail.
+        try {
+            outputStream.write('x');
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void abortBeforeMultipartInitiated() throws Exception {
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.write("ab".getBytes(Charsets.UTF_8));
+        outputStream.abort();
+
+        // Nothing was ever sent to S3.
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void partUploadFails() throws Exception {
+        doThrow(new AmazonClientException("test exception")).when(mockS3Client).uploadPart(
+                any(UploadPartRequest.class));
+
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.write("abcdef".getBytes(Charsets.UTF_8));
+
+        // The failure surfaces no later than close, and the upload is aborted.
+        IOException thrownEx = null;
+        try {
+            outputStream.close();
+            fail("expected exception");
+        } catch (IOException ex) {
+            thrownEx = ex;
+        }
+        assertNotNull(thrownEx);
+        verify(mockS3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+        verify(mockS3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void partUploadFailureDetectedOnWrite() throws Exception {
+        doThrow(new AmazonClientException("test exception")).when(mockS3Client).uploadPart(
+                any(UploadPartRequest.class));
+
+        // The first part fails. When the stream goes to upload the second part, it notices and fails fast.
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        try {
+            ByteStreams.copy(new ByteArrayInputStream(new byte[TEST_PART_SIZE * 3]), outputStream);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+        outputStream.abort();
+        verify(mockS3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void writeAfterClose() throws Exception {
+        S3MultipartOutputStream outputStream = helper.openStream(TEST_BUCKET, TEST_KEY);
+        outputStream.close();
+
+        // Closing twice is fine.
+        outputStream.close();
+
+        try {
+            outputStream.write(new byte[1], 0, 1);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+
+        // Abort after successful close is a no-op.
+        outputStream.abort();
+        verify(mockS3Client, never()).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+
+        // Output is a valid (empty) upload.
+        assertEquals(putObjectBytes.length, 0);
+    }
+}
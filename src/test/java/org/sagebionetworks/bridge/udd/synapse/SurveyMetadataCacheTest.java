@@ -0,0 +1,240 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.common.io.CharStreams;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class SurveyMetadataCacheTest {
+    private static final String TEST_BUCKET = "test-bucket";
+    private static final String TEST_ETAG = "test-etag";
+    private static final String TEST_TABLE_ID = "syn1234";
+
+    private File cacheDir;
+    private InMemoryFileHelper fileHelper;
+    private AmazonS3Client mockS3Client;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        // The local tier uses a real dir. Callers' files are in memory.
+        cacheDir = Files.createTempDirectory("SurveyMetadataCacheTest").toFile();
+        fileHelper = new InMemoryFileHelper();
+        tmpDir = fileHelper.createTempDir();
+        mockS3Client = mock(AmazonS3Client.class);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void localHit() throws Exception {
+        SurveyMetadataCache cache = makeCache(10, false);
+        cache.put(TEST_TABLE_ID, TEST_ETAG, writeFile("source.csv", "survey content"));
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        assertTrue(cache.get(TEST_TABLE_ID, TEST_ETAG, targetFile));
+        assertEquals(readFile(targetFile), "survey content");
+        verifyZeroInteractions(mockS3Client);
+    }
+
+    @Test
+    public void changedEtagIsMiss() throws Exception {
+        SurveyMetadataCache cache = makeCache(10, false);
+        cache.put(TEST_TABLE_ID, TEST_ETAG, writeFile("source.csv", "old content"));
+        assertFalse(cache.get(TEST_TABLE_ID, "new-etag", fileHelper.newFile(tmpDir, "target.csv")));
+
+        // Putting the new etag replaces the old entry.
+        cache.put(TEST_TABLE_ID, "new-etag", writeFile("new-source.csv", "new content"));
+        assertEquals(cache.getLocalEntryCount(), 1);
+        assertFalse(cache.get(TEST_TABLE_ID, TEST_ETAG, fileHelper.newFile(tmpDir, "old-target.csv")));
+
+        File targetFile = fileHelper.newFile(tmpDir, "new-target.csv");
+        assertTrue(cache.get(TEST_TABLE_ID, "new-etag", targetFile));
+        assertEquals(readFile(targetFile), "new content");
+    }
+
+    @Test
+    public void nullEtagIsNeverCached() throws Exception {
+        SurveyMetadataCache cache = makeCache(10, true);
+        cache.put(TEST_TABLE_ID, null, writeFile("source.csv", "survey content"));
+        assertEquals(cache.getLocalEntryCount(), 0);
+        assertFalse(cache.get(TEST_TABLE_ID, null, fileHelper.newFile(tmpDir, "target.csv")));
+        verifyZeroInteractions(mockS3Client);
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() throws Exception {
+        SurveyMetadataCache cache = makeCache(2, false);
+        cache.put("syn1", TEST_ETAG, writeFile("source1.csv", "content 1"));
+        cache.put("syn2", TEST_ETAG, writeFile("source2.csv", "content 2"));
+
+        // Touch syn1, so syn2 is least recently used.
+        assertTrue(cache.get("syn1", TEST_ETAG, fileHelper.newFile(tmpDir, "target1.csv")));
+
+        cache.put("syn3", TEST_ETAG, writeFile("source3.csv", "content 3"));
+        assertEquals(cache.getLocalEntryCount(), 2);
+        assertTrue(cache.get("syn1", TEST_ETAG, fileHelper.newFile(tmpDir, "target1b.csv")));
+        assertFalse(cache.get("syn2", TEST_ETAG, fileHelper.newFile(tmpDir, "target2.csv")));
+        assertTrue(cache.get("syn3", TEST_ETAG, fileHelper.newFile(tmpDir, "target3.csv")));
+    }
+
+    @Test
+    public void localTierSurvivesRestart() throws Exception {
+        SurveyMetadataCache cache = makeCache(10, true);
+        cache.put(TEST_TABLE_ID, TEST_ETAG, writeFile("source.csv", "survey content"));
+
+        // A new cache on the same dir, as after a restart, hits locally without going to S3.
+        mockS3Client = mock(AmazonS3Client.class);
+        SurveyMetadataCache restartedCache = makeCache(10, true);
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        assertTrue(restartedCache.get(TEST_TABLE_ID, TEST_ETAG, targetFile));
+        assertEquals(readFile(targetFile), "survey content");
+        assertEquals(restartedCache.getLocalEntryCount(), 1);
+        verifyZeroInteractions(mockS3Client);
+    }
+
+    @Test
+    public void sweepOnFirstUse() throws Exception {
+        // Files left by a previous process: two versions of syn1, two other tables, a half-written file, and junk.
+        writeCacheFile("syn1.old-etag.a.csv", "old content", 1000);
+        writeCacheFile("syn3.test-etag.b.csv", "content 3", 2000);
+        writeCacheFile("syn1.new-etag.c.csv", "new content", 3000);
+        writeCacheFile("syn4.test-etag.d.csv", "content 4", 4000);
+        writeCacheFile("syn5.test-etag.e.tmp", "partial", 5000);
+        writeCacheFile("junk.txt", "junk", 6000);
+
+        // The newest file for syn1 wins. syn3 is least recently used, so it's evicted.
+        SurveyMetadataCache cache = makeCache(2, false);
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        assertTrue(cache.get("syn1", "new-etag", targetFile));
+        assertEquals(readFile(targetFile), "new content");
+        assertEquals(cache.getLocalEntryCount(), 2);
+        assertFalse(cache.get("syn1", "old-etag", fileHelper.newFile(tmpDir, "target1.csv")));
+        assertFalse(cache.get("syn3", TEST_ETAG, fileHelper.newFile(tmpDir, "target3.csv")));
+        assertTrue(cache.get("syn4", TEST_ETAG, fileHelper.newFile(tmpDir, "target4.csv")));
+
+        // Everything else was deleted.
+        String[] fileNameArray = cacheDir.list();
+        Arrays.sort(fileNameArray);
+        assertEquals(fileNameArray, new String[] { "syn1.new-etag.c.csv", "syn4.test-etag.d.csv" });
+    }
+
+    @Test
+    public void s3HitPopulatesLocal() throws Exception {
+        when(mockS3Client.getObjectAsString(TEST_BUCKET, SurveyMetadataCache.getS3Key(TEST_TABLE_ID, TEST_ETAG)))
+                .thenReturn("shared content");
+        SurveyMetadataCache cache = makeCache(10, true);
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        assertTrue(cache.get(TEST_TABLE_ID, TEST_ETAG, targetFile));
+        assertEquals(readFile(targetFile), "shared content");
+        assertEquals(cache.getLocalEntryCount(), 1);
+    }
+
+    @Test
+    public void s3Miss() throws Exception {
+        AmazonS3Exception notFoundEx = new AmazonS3Exception("not found");
+        notFoundEx.setStatusCode(404);
+        when(mockS3Client.getObjectAsString(anyString(), anyString())).thenThrow(notFoundEx);
+        SurveyMetadataCache cache = makeCache(10, true);
+
+        File targetFile = fileHelper.newFile(tmpDir, "target.csv");
+        assertFalse(cache.get(TEST_TABLE_ID, TEST_ETAG, targetFile));
+        assertFalse(fileHelper.fileExists(targetFile));
+    }
+
+    @Test
+    public void s3ErrorIsMiss() throws Exception {
+        AmazonS3Exception s3Ex = new AmazonS3Exception("internal error");
+        s3Ex.setStatusCode(500);
+        when(mockS3Client.getObjectAsString(anyString(), anyString())).thenThrow(s3Ex);
+        SurveyMetadataCache cache = makeCache(10, true);
+        assertFalse(cache.get(TEST_TABLE_ID, TEST_ETAG, fileHelper.newFile(tmpDir, "target.csv")));
+    }
+
+    @Test
+    public void putWritesS3() throws Exception {
+        SurveyMetadataCache cache = makeCache(10, true);
+        cache.put(TEST_TABLE_ID, TEST_ETAG, writeFile("source.csv", "survey content"));
+        verify(mockS3Client).putObject(TEST_BUCKET, SurveyMetadataCache.getS3Key(TEST_TABLE_ID, TEST_ETAG),
+                "survey content");
+    }
+
+    @Test
+    public void localTierDisabled() throws Exception {
+        SurveyMetadataCache cache = makeCache(0, false);
+        cache.put(TEST_TABLE_ID, TEST_ETAG, writeFile("source.csv", "survey content"));
+        assertEquals(cache.getLocalEntryCount(), 0);
+        assertFalse(cache.get(TEST_TABLE_ID, TEST_ETAG, fileHelper.newFile(tmpDir, "target.csv")));
+        verify(mockS3Client, never()).getObjectAsString(anyString(), anyString());
+    }
+
+    private SurveyMetadataCache makeCache(int localMaxEntries, boolean s3Enabled) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(SurveyMetadataCache.CONFIG_KEY_LOCAL_DIR)).thenReturn(cacheDir.getAbsolutePath());
+        when(mockConfig.getInt(SurveyMetadataCache.CONFIG_KEY_LOCAL_MAX_ENTRIES)).thenReturn(localMaxEntries);
+        when(mockConfig.get(SurveyMetadataCache.CONFIG_KEY_S3_ENABLED)).thenReturn(String.valueOf(s3Enabled));
+        when(mockConfig.get(SurveyMetadataCache.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(TEST_BUCKET);
+
+        SurveyMetadataCache cache = new SurveyMetadataCache();
+        cache.setConfig(mockConfig);
+        cache.setFileHelper(fileHelper);
+        cache.setS3Client(mockS3Client);
+        return cache;
+    }
+
+    private File writeFile(String name, String content) throws Exception {
+        File file = fileHelper.newFile(tmpDir, name);
+        try (Writer writer = fileHelper.getWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+    private String readFile(File file) throws Exception {
+        try (Reader reader = fileHelper.getReader(file)) {
+            return CharStreams.toString(reader);
+        }
+    }
+
+    private void writeCacheFile(String name, String content, long lastModified) throws Exception {
+        File file = new File(cacheDir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] childArray = file.listFiles();
+        if (childArray != null) {
+            for (File oneChild : childArray) {
+                deleteRecursively(oneChild);
+            }
+        }
+        assertTrue(file.delete());
+    }
+}
@@ -0,0 +1,269 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.sagebionetworks.repo.model.asynch.AsynchronousJobStatus;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.synapse.SynapseAsyncPoller.PollResult;
+
+public class SynapseAsyncPollerTest {
+    private static final long MOCK_START_MILLIS = DateTime.parse("2017-06-01T12:00:00.000Z").getMillis();
+    private static final String TEST_RESULT = "test-result";
+
+    private List<Long> delayList;
+    private SynapseAsyncPoller poller;
+    private Runnable pendingPoll;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_START_MILLIS);
+
+        Config config = mock(Config.class);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_INITIAL_DELAY_MILLIS)).thenReturn(100);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_INTERVAL_MILLIS)).thenReturn(1000);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_TIMEOUT_MILLIS)).thenReturn(5000);
+
+        // Mock scheduler records the delay and holds on to the poll. Tests run polls one at a time with runNextPoll(),
+        // which also advances the clock by the delay.
+        delayList = new ArrayList<>();
+        pendingPoll = null;
+        ScheduledExecutorService mockScheduler = mock(ScheduledExecutorService.class);
+        when(mockScheduler.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS))).thenAnswer(
+                invocation -> {
+                    assertTrue(pendingPoll == null, "polls for the same job should never overlap");
+                    pendingPoll = invocation.getArgumentAt(0, Runnable.class);
+                    delayList.add(invocation.getArgumentAt(1, Long.class));
+                    return null;
+                });
+
+        poller = new SynapseAsyncPoller();
+        poller.setConfig(config);
+        poller.setPollCallExecutorService(MoreExecutors.newDirectExecutorService());
+        poller.setPollExecutorService(mockScheduler);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void readyOnFirstPoll() throws Exception {
+        CompletableFuture<String> future = poller.poll("test job", () -> PollResult.ready(TEST_RESULT));
+        assertFalse(future.isDone());
+        assertEquals(poller.getOutstandingJobCount(), 1);
+
+        // First poll is after the short initial delay, not the full interval.
+        runNextPoll();
+        assertEquals(future.get(), TEST_RESULT);
+        assertEquals(delayList, ImmutableList.of(100L));
+        assertEquals(poller.getOutstandingJobCount(), 0);
+    }
+
+    @Test
+    public void exponentialBackoffWithoutProgress() throws Exception {
+        int[] numPolls = { 0 };
+        CompletableFuture<String> future = poller.poll("test job", () -> ++numPolls[0] < 6 ?
+                PollResult.notReady(null) : PollResult.ready(TEST_RESULT));
+        for (int i = 0; i < 6; i++) {
+            runNextPoll();
+        }
+
+        assertEquals(future.get(), TEST_RESULT);
+        assertEquals(delayList, ImmutableList.of(100L, 200L, 400L, 800L, 1000L, 1000L));
+    }
+
+    @Test
+    public void progressEstimatesRemainingTime() throws Exception {
+        // After the first poll (100ms in), the job reports 1/2 done. Expect to be done in another 100ms.
+        // After the second poll (200ms in), the job reports 1/5 done. Expect 800ms more.
+        // After the third poll (1000ms in), the job reports 1/10 done. Estimate is 9 seconds, capped at 1 second.
+        List<AsynchronousJobStatus> statusList = ImmutableList.of(makeJobStatus(1, 2), makeJobStatus(1, 5),
+                makeJobStatus(1, 10));
+        int[] numPolls = { 0 };
+        CompletableFuture<String> future = poller.poll("test job", () -> {
+            int pollIdx = numPolls[0]++;
+            return pollIdx < statusList.size() ? PollResult.notReady(statusList.get(pollIdx)) :
+                    PollResult.ready(TEST_RESULT);
+        });
+        for (int i = 0; i < 4; i++) {
+            runNextPoll();
+        }
+
+        assertEquals(future.get(), TEST_RESULT);
+        assertEquals(delayList, ImmutableList.of(100L, 100L, 800L, 1000L));
+    }
+
+    @Test
+    public void progressNearlyDoneUsesInitialDelay() throws Exception {
+        // 9999/10000 done. Estimate rounds to 0, but we never poll faster than the initial delay.
+        int[] numPolls = { 0 };
+        CompletableFuture<String> future = poller.poll("test job", () -> numPolls[0]++ == 0 ?
+                PollResult.notReady(makeJobStatus(9999, 10000)) : PollResult.ready(TEST_RESULT));
+        runNextPoll();
+        runNextPoll();
+
+        assertEquals(future.get(), TEST_RESULT);
+        assertEquals(delayList, ImmutableList.of(100L, 100L));
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        CompletableFuture<String> future = poller.poll("test job", () -> PollResult.notReady(null));
+        for (int i = 0; i < 8; i++) {
+            runNextPoll();
+        }
+
+        // The last delay is cut short, so the last poll is at the deadline. Then it stops polling.
+        assertTrue(future.isDone());
+        assertSame(pendingPoll, null);
+        assertEquals(delayList, ImmutableList.of(100L, 200L, 400L, 800L, 1000L, 1000L, 1000L, 500L));
+        assertEquals(DateTimeUtils.currentTimeMillis() - MOCK_START_MILLIS, 5000);
+        assertCause(future, AsyncTimeoutException.class);
+        assertEquals(poller.getOutstandingJobCount(), 0);
+    }
+
+    @Test
+    public void timeoutIsWallClockTime() throws Exception {
+        // Job is stuck at 99%, so it's polled every 100ms. That's 50 polls before the deadline, not a handful.
+        CompletableFuture<String> future = poller.poll("test job", () -> PollResult.notReady(makeJobStatus(99,
+                100)));
+        for (int i = 0; i < 49; i++) {
+            runNextPoll();
+        }
+        assertFalse(future.isDone());
+
+        runNextPoll();
+        assertEquals(delayList.size(), 50);
+        assertEquals(DateTimeUtils.currentTimeMillis() - MOCK_START_MILLIS, 5000);
+        assertCause(future, AsyncTimeoutException.class);
+    }
+
+    @Test
+    public void pollCallsRunOnPollCallExecutor() throws Exception {
+        // The scheduler only hands the poll off. The poll call runs when the poll call executor gets to it.
+        List<Runnable> pollCallList = new ArrayList<>();
+        ExecutorService mockPollCallExecutor = mock(ExecutorService.class);
+        doAnswer(invocation -> pollCallList.add(invocation.getArgumentAt(0, Runnable.class)))
+                .when(mockPollCallExecutor).execute(any(Runnable.class));
+        poller.setPollCallExecutorService(mockPollCallExecutor);
+
+        int[] numPolls = { 0 };
+        CompletableFuture<String> future = poller.poll("test job", () -> {
+            numPolls[0]++;
+            return PollResult.ready(TEST_RESULT);
+        });
+        runNextPoll();
+        assertEquals(numPolls[0], 0);
+        assertEquals(pollCallList.size(), 1);
+
+        pollCallList.get(0).run();
+        assertEquals(future.get(), TEST_RESULT);
+    }
+
+    @Test
+    public void pollCallExecutorShutDown() throws Exception {
+        ExecutorService mockPollCallExecutor = mock(ExecutorService.class);
+        doThrow(RejectedExecutionException.class).when(mockPollCallExecutor).execute(any(Runnable.class));
+        poller.setPollCallExecutorService(mockPollCallExecutor);
+
+        CompletableFuture<String> future = poller.poll("test job", () -> PollResult.ready(TEST_RESULT));
+        runNextPoll();
+        assertCause(future, RejectedExecutionException.class);
+    }
+
+    @Test
+    public void error() throws Exception {
+        CompletableFuture<String> future = poller.poll("test job", () -> {
+            throw new TestSynapseException();
+        });
+        runNextPoll();
+
+        assertCause(future, TestSynapseException.class);
+        assertSame(pendingPoll, null);
+    }
+
+    @Test
+    public void cancelStopsPolling() throws Exception {
+        int[] numPolls = { 0 };
+        CompletableFuture<String> future = poller.poll("test job", () -> {
+            numPolls[0]++;
+            return PollResult.notReady(null);
+        });
+        runNextPoll();
+        future.cancel(false);
+        runNextPoll();
+
+        assertEquals(numPolls[0], 1);
+        assertSame(pendingPoll, null);
+        assertEquals(poller.getOutstandingJobCount(), 0);
+    }
+
+    @Test
+    public void schedulerShutDown() throws Exception {
+        ScheduledExecutorService mockScheduler = mock(ScheduledExecutorService.class);
+        when(mockScheduler.schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS))).thenThrow(
+                RejectedExecutionException.class);
+        poller.setPollExecutorService(mockScheduler);
+
+        CompletableFuture<String> future = poller.poll("test job", () -> PollResult.ready(TEST_RESULT));
+        assertCause(future, RejectedExecutionException.class);
+    }
+
+    // Runs the pending poll, after advancing the clock by its delay.
+    private void runNextPoll() {
+        Runnable poll = pendingPoll;
+        pendingPoll = null;
+        if (poll != null) {
+            DateTimeUtils.setCurrentMillisFixed(DateTimeUtils.currentTimeMillis() + delayList.get(delayList.size() -
+                    1));
+            poll.run();
+        }
+    }
+
+    private static AsynchronousJobStatus makeJobStatus(long progressCurrent, long progressTotal) {
+        AsynchronousJobStatus jobStatus = new AsynchronousJobStatus();
+        jobStatus.setProgressCurrent(progressCurrent);
+        jobStatus.setProgressTotal(progressTotal);
+        return jobStatus;
+    }
+
+    private static void assertCause(CompletableFuture<?> future, Class<? extends Throwable> expectedCauseClass)
+            throws InterruptedException {
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(expectedCauseClass.isInstance(ex.getCause()), "unexpected cause " + ex.getCause());
+        }
+    }
+}
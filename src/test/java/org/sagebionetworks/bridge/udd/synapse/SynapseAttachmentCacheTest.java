@@ -0,0 +1,304 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.sagebionetworks.repo.model.file.FileDownloadSummary;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.FileHelper;
+
+// Hard links need a real file system, so this uses real temp files.
+public class SynapseAttachmentCacheTest {
+    private static final byte[] FOO_CONTENT = "foo content".getBytes();
+    private static final byte[] BAR_CONTENT = "bar content".getBytes();
+
+    private SynapseAttachmentCache cache;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        tmpDir = Files.createTempDirectory("attachment-cache-test").toFile();
+        cache = makeCache(10);
+    }
+
+    @AfterMethod
+    public void cleanup() throws Exception {
+        deleteRecursively(tmpDir);
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        // Put a bulk download with two attachments.
+        File bulkDownloadFile = writeZip("bulk.zip", ImmutableMap.of("dir/foo.txt", FOO_CONTENT, "bar.txt",
+                BAR_CONTENT));
+        cache.putFromBulkDownload(bulkDownloadFile, ImmutableList.of(makeSummary("foo-id", "dir/foo.txt"),
+                makeSummary("bar-id", "bar.txt")));
+        assertEquals(cache.getEntryCount(), 2);
+        assertTrue(cache.getCachedBytes() > 0);
+
+        // Each hit is a zip with just that attachment, under its original entry name.
+        File fooFile = new File(tmpDir, "foo.zip");
+        assertEquals(cache.get("foo-id", fooFile), "dir/foo.txt");
+        assertEquals(readZip(fooFile), ImmutableMap.of("dir/foo.txt", FOO_CONTENT.length));
+        assertEquals(readEntry(fooFile, "dir/foo.txt"), FOO_CONTENT);
+
+        File barFile = new File(tmpDir, "bar.zip");
+        assertEquals(cache.get("bar-id", barFile), "bar.txt");
+        assertEquals(readEntry(barFile, "bar.txt"), BAR_CONTENT);
+
+        // The cache doesn't depend on the bulk download zip.
+        assertTrue(bulkDownloadFile.delete());
+        File fooFile2 = new File(tmpDir, "foo2.zip");
+        assertEquals(cache.get("foo-id", fooFile2), "dir/foo.txt");
+        assertEquals(readEntry(fooFile2, "dir/foo.txt"), FOO_CONTENT);
+
+        // Validate stats.
+        assertEquals(cache.getHitCount(), 3);
+        assertEquals(cache.getMissCount(), 0);
+        assertEquals(cache.getBytesSaved(), 2 * FOO_CONTENT.length + BAR_CONTENT.length);
+        assertEquals(cache.getHitRate(), 1.0, 0.001);
+    }
+
+    @Test
+    public void miss() {
+        File targetFile = new File(tmpDir, "target.zip");
+        assertNull(cache.get("foo-id", targetFile));
+        assertFalse(targetFile.exists());
+
+        assertEquals(cache.getHitCount(), 0);
+        assertEquals(cache.getMissCount(), 1);
+        assertEquals(cache.getBytesSaved(), 0);
+        assertEquals(cache.getHitRate(), 0.0, 0.001);
+    }
+
+    @Test
+    public void skipsFailedAndMissingAttachments() throws Exception {
+        File bulkDownloadFile = writeZip("bulk.zip", ImmutableMap.of("foo.txt", FOO_CONTENT));
+
+        FileDownloadSummary failedSummary = new FileDownloadSummary();
+        failedSummary.setFileHandleId("failed-id");
+        failedSummary.setFailureMessage("test failure");
+
+        cache.putFromBulkDownload(bulkDownloadFile, ImmutableList.of(makeSummary("foo-id", "foo.txt"), failedSummary,
+                makeSummary("missing-id", "not-in-zip.txt")));
+        assertEquals(cache.getEntryCount(), 1);
+        assertEquals(cache.get("foo-id", new File(tmpDir, "foo.zip")), "foo.txt");
+        assertNull(cache.get("failed-id", new File(tmpDir, "failed.zip")));
+        assertNull(cache.get("missing-id", new File(tmpDir, "missing.zip")));
+    }
+
+    @Test
+    public void alreadyCachedIsNotReplaced() throws Exception {
+        cache.putFromBulkDownload(writeZip("bulk1.zip", ImmutableMap.of("foo.txt", FOO_CONTENT)),
+                ImmutableList.of(makeSummary("foo-id", "foo.txt")));
+        long cachedBytes = cache.getCachedBytes();
+
+        cache.putFromBulkDownload(writeZip("bulk2.zip", ImmutableMap.of("other-name.txt", FOO_CONTENT)),
+                ImmutableList.of(makeSummary("foo-id", "other-name.txt")));
+        assertEquals(cache.getEntryCount(), 1);
+        assertEquals(cache.getCachedBytes(), cachedBytes);
+        assertEquals(cache.get("foo-id", new File(tmpDir, "foo.zip")), "foo.txt");
+    }
+
+    @Test
+    public void badBulkDownloadIsIgnored() throws Exception {
+        File bulkDownloadFile = new File(tmpDir, "bad.zip");
+        Files.write(bulkDownloadFile.toPath(), "not a zip".getBytes());
+
+        cache.putFromBulkDownload(bulkDownloadFile, ImmutableList.of(makeSummary("foo-id", "foo.txt")));
+        assertEquals(cache.getEntryCount(), 0);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        // 1 MB cache. Random content doesn't compress, so each attachment is about 400 KB on disk.
+        cache = makeCache(1);
+        byte[] aContent = makeContent(400 * 1024);
+        byte[] bContent = makeContent(400 * 1024);
+        byte[] cContent = makeContent(400 * 1024);
+        cache.putFromBulkDownload(writeZip("a.zip", ImmutableMap.of("a.bin", aContent)),
+                ImmutableList.of(makeSummary("a-id", "a.bin")));
+        cache.putFromBulkDownload(writeZip("b.zip", ImmutableMap.of("b.bin", bContent)),
+                ImmutableList.of(makeSummary("b-id", "b.bin")));
+
+        // Use A, so B is the least recently used.
+        File aFile = new File(tmpDir, "a-linked.zip");
+        assertEquals(cache.get("a-id", aFile), "a.bin");
+
+        // Adding C puts the cache over its max size, so B is evicted.
+        cache.putFromBulkDownload(writeZip("c.zip", ImmutableMap.of("c.bin", cContent)),
+                ImmutableList.of(makeSummary("c-id", "c.bin")));
+        assertEquals(cache.getEntryCount(), 2);
+        assertTrue(cache.getCachedBytes() <= 1024 * 1024);
+        assertNull(cache.get("b-id", new File(tmpDir, "b-linked.zip")));
+        assertEquals(cache.get("c-id", new File(tmpDir, "c-linked.zip")), "c.bin");
+
+        // Adding D evicts A, but the file we linked before is still intact.
+        cache.putFromBulkDownload(writeZip("d.zip", ImmutableMap.of("d.bin", makeContent(400 * 1024))),
+                ImmutableList.of(makeSummary("d-id", "d.bin")));
+        assertNull(cache.get("a-id", new File(tmpDir, "a-linked-2.zip")));
+        assertEquals(readEntry(aFile, "a.bin"), aContent);
+    }
+
+    @Test
+    public void copiesIfLinkFails() throws Exception {
+        cache.putFromBulkDownload(writeZip("bulk.zip", ImmutableMap.of("foo.txt", FOO_CONTENT)),
+                ImmutableList.of(makeSummary("foo-id", "foo.txt")));
+
+        // The target already exists, so it can't be linked. It's copied over instead.
+        File fooFile = new File(tmpDir, "foo.zip");
+        Files.write(fooFile.toPath(), "old content".getBytes());
+        assertEquals(cache.get("foo-id", fooFile), "foo.txt");
+        assertEquals(readEntry(fooFile, "foo.txt"), FOO_CONTENT);
+        assertEquals(cache.getHitCount(), 1);
+    }
+
+    @Test
+    public void reindexesAfterRestart() throws Exception {
+        cache.putFromBulkDownload(writeZip("bulk.zip", ImmutableMap.of("dir/foo.txt", FOO_CONTENT, "bar.txt",
+                BAR_CONTENT)), ImmutableList.of(makeSummary("foo-id", "dir/foo.txt"),
+                makeSummary("bar-id", "bar.txt")));
+        long cachedBytes = cache.getCachedBytes();
+
+        // Leave some junk in the cache dir.
+        File junkFile = new File(getCacheDir(), "junk-123.zip");
+        Files.write(junkFile.toPath(), "not a zip".getBytes());
+        File strayFile = new File(getCacheDir(), "stray.txt");
+        Files.write(strayFile.toPath(), "stray".getBytes());
+
+        // A new process's cache picks up the old files, and deletes the junk.
+        SynapseAttachmentCache restartedCache = makeCache(10);
+        File fooFile = new File(tmpDir, "foo.zip");
+        assertEquals(restartedCache.get("foo-id", fooFile), "dir/foo.txt");
+        assertEquals(readEntry(fooFile, "dir/foo.txt"), FOO_CONTENT);
+        assertEquals(restartedCache.getEntryCount(), 2);
+        assertEquals(restartedCache.getCachedBytes(), cachedBytes);
+        assertFalse(junkFile.exists());
+        assertFalse(strayFile.exists());
+    }
+
+    @Test
+    public void sweepEvictsOverMax() throws Exception {
+        // 2 MB cache, with 3 attachments of about 400 KB each.
+        cache = makeCache(2);
+        for (String oneName : ImmutableList.of("a", "b", "c")) {
+            cache.putFromBulkDownload(writeZip(oneName + ".zip", ImmutableMap.of(oneName + ".bin",
+                    makeContent(400 * 1024))), ImmutableList.of(makeSummary(oneName + "-id", oneName + ".bin")));
+        }
+        assertEquals(cache.getEntryCount(), 3);
+
+        // Make the file ages deterministic. A is the oldest.
+        long now = System.currentTimeMillis();
+        for (File oneFile : getCacheDir().listFiles()) {
+            long ageMillis = oneFile.getName().startsWith("a-") ? 3000 : oneFile.getName().startsWith("b-") ? 2000 :
+                    1000;
+            assertTrue(oneFile.setLastModified(now - ageMillis));
+        }
+
+        // Restart with a 1 MB cache. The oldest file is evicted.
+        SynapseAttachmentCache restartedCache = makeCache(1);
+        assertNull(restartedCache.get("a-id", new File(tmpDir, "a-linked.zip")));
+        assertEquals(restartedCache.getEntryCount(), 2);
+        assertTrue(restartedCache.getCachedBytes() <= 1024 * 1024);
+        assertEquals(getCacheDir().listFiles().length, 2);
+        assertEquals(restartedCache.get("c-id", new File(tmpDir, "c-linked.zip")), "c.bin");
+    }
+
+    @Test
+    public void config() {
+        assertTrue(cache.isEnabled());
+        assertFalse(makeCache(0).isEnabled());
+        assertFalse(new SynapseAttachmentCache().isEnabled());
+    }
+
+    private SynapseAttachmentCache makeCache(int maxMb) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(SynapseAttachmentCache.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(SynapseAttachmentCache.CONFIG_KEY_MAX_MB)).thenReturn(maxMb);
+
+        when(mockConfig.get(SynapseAttachmentCache.CONFIG_KEY_DIR)).thenReturn(getCacheDir().getPath());
+
+        SynapseAttachmentCache attachmentCache = new SynapseAttachmentCache();
+        attachmentCache.setConfig(mockConfig);
+        attachmentCache.setFileHelper(new FileHelper());
+        return attachmentCache;
+    }
+
+    private File getCacheDir() {
+        return new File(tmpDir, "cache");
+    }
+
+    private File writeZip(String filename, Map<String, byte[]> contentByEntryName) throws Exception {
+        File zipFile = new File(tmpDir, filename);
+        try (ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(zipFile)) {
+            for (Map.Entry<String, byte[]> oneEntry : contentByEntryName.entrySet()) {
+                zipOutputStream.putArchiveEntry(new ZipArchiveEntry(oneEntry.getKey()));
+                zipOutputStream.write(oneEntry.getValue());
+                zipOutputStream.closeArchiveEntry();
+            }
+        }
+        return zipFile;
+    }
+
+    // Map of entry name to size, for every entry in the zip.
+    private static Map<String, Integer> readZip(File zipFile) throws Exception {
+        ImmutableMap.Builder<String, Integer> sizeByEntryNameBuilder = ImmutableMap.builder();
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            List<ZipArchiveEntry> entryList = Collections.list(zip.getEntries());
+            for (ZipArchiveEntry oneEntry : entryList) {
+                sizeByEntryNameBuilder.put(oneEntry.getName(), (int) oneEntry.getSize());
+            }
+        }
+        return sizeByEntryNameBuilder.build();
+    }
+
+    private static byte[] readEntry(File zipFile, String entryName) throws Exception {
+        try (ZipFile zip = new ZipFile(zipFile)) {
+            return ByteStreams.toByteArray(zip.getInputStream(zip.getEntry(entryName)));
+        }
+    }
+
+    private static FileDownloadSummary makeSummary(String fileHandleId, String zipEntryName) {
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId(fileHandleId);
+        fileSummary.setZipEntryName(zipEntryName);
+        return fileSummary;
+    }
+
+    private static byte[] makeContent(int size) {
+        byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] childArray = file.listFiles();
+        if (childArray != null) {
+            for (File oneChild : childArray) {
+                deleteRecursively(oneChild);
+            }
+        }
+        assertTrue(file.delete());
+    }
+}
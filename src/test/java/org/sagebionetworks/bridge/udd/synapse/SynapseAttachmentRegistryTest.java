@@ -0,0 +1,61 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+public class SynapseAttachmentRegistryTest {
+    @Test
+    public void claimAndPublish() {
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+
+        // First table claims foo and bar. Second table only gets baz, since foo is already claimed.
+        assertEquals(registry.claim(ImmutableSet.of("foo-id", "bar-id")), ImmutableSet.of("foo-id", "bar-id"));
+        assertEquals(registry.claim(ImmutableSet.of("foo-id", "baz-id")), ImmutableSet.of("baz-id"));
+        assertEquals(registry.getClaimCount(), 3);
+        assertEquals(registry.getSharedCount(), 1);
+
+        // Second table waits on foo, which isn't published yet.
+        CompletableFuture<Map<String, String>> replacementFuture = registry.getReplacements(ImmutableSet.of(
+                "foo-id"));
+        assertFalse(replacementFuture.isDone());
+
+        // First table publishes. bar failed to download, so it has no replacement.
+        registry.publish(ImmutableSet.of("foo-id", "bar-id"), ImmutableMap.of("foo-id", "schema-v1/foo-id/foo.txt",
+                "baz-id", "not claimed by this table"));
+        assertTrue(replacementFuture.isDone());
+        assertEquals(replacementFuture.join(), ImmutableMap.of("foo-id", "schema-v1/foo-id/foo.txt"));
+
+        // bar is published with no replacement, and publishing doesn't touch baz, which belongs to another table.
+        assertEquals(registry.getReplacements(ImmutableSet.of("bar-id")).join(), ImmutableMap.of());
+        assertFalse(registry.getReplacements(ImmutableSet.of("baz-id")).isDone());
+    }
+
+    @Test
+    public void noFileHandles() {
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+        assertTrue(registry.claim(ImmutableSet.of()).isEmpty());
+        assertEquals(registry.getReplacements(ImmutableSet.of()).join(), ImmutableMap.of());
+    }
+
+    @Test
+    public void orphanedZips() {
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+        assertTrue(registry.getOrphanedZipToPrefixMap().isEmpty());
+
+        File fooFile = new File("foo.zip");
+        File barFile = new File("bar.zip");
+        registry.addOrphanedZips(ImmutableList.of(fooFile, barFile), "schema-v1/");
+        assertEquals(registry.getOrphanedZipToPrefixMap(), ImmutableMap.of(fooFile, "schema-v1/", barFile,
+                "schema-v1/"));
+    }
+}
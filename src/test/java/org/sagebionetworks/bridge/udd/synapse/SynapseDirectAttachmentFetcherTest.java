@@ -0,0 +1,359 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.mockito.ArgumentCaptor;
+import org.sagebionetworks.repo.model.file.FileDownloadSummary;
+import org.sagebionetworks.repo.model.file.FileResult;
+import org.sagebionetworks.repo.model.file.FileResultFailureCode;
+import org.sagebionetworks.repo.model.file.S3FileHandle;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipHelperTest;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
+
+@SuppressWarnings({ "unchecked", "rawtypes" })
+public class SynapseDirectAttachmentFetcherTest {
+    private static final String ENTRY_PREFIX = "test-schema-v1/";
+    private static final String TABLE_ID = "test-table-id";
+
+    private ExecutorService executorService;
+    private SynapseDirectAttachmentFetcher fetcher;
+    private InMemoryFileHelper inMemoryFileHelper;
+    private SynapseSegmentedDownloader mockSegmentedDownloader;
+    private SynapseHelper mockSynapseHelper;
+    private File tmpDir;
+    private ByteArrayOutputStream zipOutputStream;
+    private ZipStreamWriter zipStreamWriter;
+
+    // Content served by the mock downloader, keyed by URL.
+    private Map<String, String> contentByUrl;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        executorService = Executors.newFixedThreadPool(4);
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+
+        mockSynapseHelper = mock(SynapseHelper.class);
+
+        // Mock downloader writes the content for the resolved URL, or fails if there isn't any.
+        contentByUrl = new HashMap<>();
+        mockSegmentedDownloader = mock(SynapseSegmentedDownloader.class);
+        doAnswer(invocation -> {
+            SynapseSegmentedDownloader.UrlResolver urlResolver = invocation.getArgumentAt(0,
+                    SynapseSegmentedDownloader.UrlResolver.class);
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            String content = contentByUrl.get(urlResolver.resolve().toString());
+            if (content == null) {
+                throw new IOException("test download failure");
+            }
+            try (OutputStream targetOutputStream = inMemoryFileHelper.getOutputStream(targetFile)) {
+                targetOutputStream.write(content.getBytes(Charsets.UTF_8));
+            }
+            return null;
+        }).when(mockSegmentedDownloader).download(any(SynapseSegmentedDownloader.UrlResolver.class),
+                any(File.class));
+
+        fetcher = makeFetcher(true, 50, 4);
+
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(inMemoryFileHelper);
+        zipOutputStream = new ByteArrayOutputStream();
+        zipStreamWriter = zipHelper.newStreamWriter(zipOutputStream);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void fetch() throws Exception {
+        // foo and bar download. baz has a URL, but the download fails. qux is refused by Synapse.
+        contentByUrl.put("http://example.com/foo", "foo content");
+        contentByUrl.put("http://example.com/bar", "bar content");
+        when(mockSynapseHelper.getFileHandleUrlBatch(eq(TABLE_ID), anyCollection())).thenReturn(ImmutableList.of(
+                makeFileResult("foo-id", "foo.txt", "http://example.com/foo"),
+                makeFileResult("bar-id", null, "http://example.com/bar"),
+                makeFileResult("baz-id", "baz.txt", "http://example.com/baz"),
+                makeFailedFileResult("qux-id", FileResultFailureCode.UNAUTHORIZED)));
+
+        // execute
+        List<FileDownloadSummary> fileSummaryList = fetcher.fetch(TABLE_ID, ImmutableSet.of("foo-id", "bar-id",
+                "baz-id", "qux-id"), tmpDir, zipStreamWriter, ENTRY_PREFIX);
+        zipStreamWriter.close();
+
+        // validate summaries - Entry names are relative to the prefix. Attachments with no file name use their ID.
+        Map<String, FileDownloadSummary> summaryById = new HashMap<>();
+        for (FileDownloadSummary oneFileSummary : fileSummaryList) {
+            summaryById.put(oneFileSummary.getFileHandleId(), oneFileSummary);
+        }
+        assertEquals(summaryById.size(), 4);
+        assertEquals(summaryById.get("foo-id").getZipEntryName(), "foo-id/foo.txt");
+        assertEquals(summaryById.get("bar-id").getZipEntryName(), "bar-id/bar-id");
+        assertNull(summaryById.get("baz-id").getZipEntryName());
+        assertNull(summaryById.get("baz-id").getFailureMessage());
+        assertNull(summaryById.get("qux-id").getZipEntryName());
+        assertEquals(summaryById.get("qux-id").getFailureMessage(), "Error downloading attachment: UNAUTHORIZED");
+
+        // validate zip
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipOutputStream.toByteArray());
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get(ENTRY_PREFIX + "foo-id/foo.txt"), "foo content");
+        assertEquals(unzippedMap.get(ENTRY_PREFIX + "bar-id/bar-id"), "bar content");
+
+        // Spool files are cleaned up.
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void urlsAreBatched() throws Exception {
+        // 150 file handles, which Synapse doesn't return URLs for.
+        Set<String> fileHandleIdSet = new TreeSet<>();
+        for (int i = 0; i < 150; i++) {
+            fileHandleIdSet.add(String.format("fh-%03d", i));
+        }
+        when(mockSynapseHelper.getFileHandleUrlBatch(eq(TABLE_ID), anyCollection())).thenReturn(ImmutableList.of());
+
+        // execute
+        fetcher = makeFetcher(true, 200, 4);
+        List<FileDownloadSummary> fileSummaryList = fetcher.fetch(TABLE_ID, fileHandleIdSet, tmpDir,
+                zipStreamWriter, ENTRY_PREFIX);
+
+        // validate - 2 batches, in sorted order.
+        ArgumentCaptor<Collection> batchCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(mockSynapseHelper, times(2)).getFileHandleUrlBatch(eq(TABLE_ID), batchCaptor.capture());
+        List<Collection> batchList = batchCaptor.getAllValues();
+        assertEquals(batchList.get(0).size(), SynapseHelper.MAX_FILE_HANDLE_URL_BATCH_SIZE);
+        assertEquals(batchList.get(0).iterator().next(), "fh-000");
+        assertEquals(batchList.get(1).size(), 50);
+        assertEquals(batchList.get(1).iterator().next(), "fh-100");
+
+        // Nothing to download, so every attachment is an error.
+        assertEquals(fileSummaryList.size(), 150);
+        for (FileDownloadSummary oneFileSummary : fileSummaryList) {
+            assertEquals(oneFileSummary.getFailureMessage(), "Error downloading attachment: no URL");
+        }
+        verifyZeroInteractions(mockSegmentedDownloader);
+        assertEquals(zipStreamWriter.getEntryCount(), 0);
+    }
+
+    @Test
+    public void retryRoundResolvesFreshUrl() throws Exception {
+        // The first URL has expired. The mock downloader resolves twice, and the second time gets a fresh URL.
+        when(mockSynapseHelper.getFileHandleUrlBatch(TABLE_ID, ImmutableList.of("foo-id"))).thenReturn(
+                ImmutableList.of(makeFileResult("foo-id", "foo.txt", "http://example.com/expired")),
+                ImmutableList.of(makeFileResult("foo-id", "foo.txt", "http://example.com/fresh")));
+        contentByUrl.put("http://example.com/fresh", "foo content");
+        doAnswer(invocation -> {
+            SynapseSegmentedDownloader.UrlResolver urlResolver = invocation.getArgumentAt(0,
+                    SynapseSegmentedDownloader.UrlResolver.class);
+            assertEquals(urlResolver.resolve(), new URL("http://example.com/expired"));
+            URL freshUrl = urlResolver.resolve();
+            try (OutputStream targetOutputStream = inMemoryFileHelper.getOutputStream(invocation.getArgumentAt(1,
+                    File.class))) {
+                targetOutputStream.write(contentByUrl.get(freshUrl.toString()).getBytes(Charsets.UTF_8));
+            }
+            return null;
+        }).when(mockSegmentedDownloader).download(any(SynapseSegmentedDownloader.UrlResolver.class),
+                any(File.class));
+
+        // execute
+        List<FileDownloadSummary> fileSummaryList = fetcher.fetch(TABLE_ID, ImmutableSet.of("foo-id"), tmpDir,
+                zipStreamWriter, ENTRY_PREFIX);
+        zipStreamWriter.close();
+
+        // validate
+        assertEquals(fileSummaryList.size(), 1);
+        assertEquals(fileSummaryList.get(0).getZipEntryName(), "foo-id/foo.txt");
+        verify(mockSynapseHelper, times(2)).getFileHandleUrlBatch(TABLE_ID, ImmutableList.of("foo-id"));
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipOutputStream.toByteArray());
+        assertEquals(unzippedMap.get(ENTRY_PREFIX + "foo-id/foo.txt"), "foo content");
+    }
+
+    @Test
+    public void fileNameIsStrippedToBaseName() throws Exception {
+        contentByUrl.put("http://example.com/foo", "foo content");
+        contentByUrl.put("http://example.com/bar", "bar content");
+        when(mockSynapseHelper.getFileHandleUrlBatch(eq(TABLE_ID), anyCollection())).thenReturn(ImmutableList.of(
+                makeFileResult("foo-id", "../../etc/foo.txt", "http://example.com/foo"),
+                makeFileResult("bar-id", "..", "http://example.com/bar")));
+
+        // execute
+        List<FileDownloadSummary> fileSummaryList = fetcher.fetch(TABLE_ID, ImmutableSet.of("foo-id", "bar-id"),
+                tmpDir, zipStreamWriter, ENTRY_PREFIX);
+        zipStreamWriter.close();
+
+        // validate
+        assertEquals(fileSummaryList.size(), 2);
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipOutputStream.toByteArray());
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get(ENTRY_PREFIX + "foo-id/foo.txt"), "foo content");
+        assertEquals(unzippedMap.get(ENTRY_PREFIX + "bar-id/bar-id"), "bar content");
+    }
+
+    @Test
+    public void sanitizeFileName() {
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName(null, "fh"), "fh");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("", "fh"), "fh");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("foo.txt", "fh"), "foo.txt");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("/abs/path/foo.txt", "fh"), "foo.txt");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("..\\..\\foo.txt", "fh"), "foo.txt");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("dir/", "fh"), "fh");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("..", "fh"), "fh");
+        assertEquals(SynapseDirectAttachmentFetcher.sanitizeFileName("../.", "fh"), "fh");
+    }
+
+    @Test
+    public void failedFetchWritesNothing() throws Exception {
+        // foo downloads, but bar's download blows up outright (not a normal download failure), failing the fetch.
+        contentByUrl.put("http://example.com/foo", "foo content");
+        when(mockSynapseHelper.getFileHandleUrlBatch(eq(TABLE_ID), anyCollection())).thenReturn(ImmutableList.of(
+                makeFileResult("foo-id", "foo.txt", "http://example.com/foo"),
+                makeFileResult("bar-id", "bar.txt", "http://example.com/bar")));
+        doAnswer(invocation -> {
+            SynapseSegmentedDownloader.UrlResolver urlResolver = invocation.getArgumentAt(0,
+                    SynapseSegmentedDownloader.UrlResolver.class);
+            String content = contentByUrl.get(urlResolver.resolve().toString());
+            if (content == null) {
+                throw new AssertionError("test error");
+            }
+            try (OutputStream targetOutputStream = inMemoryFileHelper.getOutputStream(invocation.getArgumentAt(1,
+                    File.class))) {
+                targetOutputStream.write(content.getBytes(Charsets.UTF_8));
+            }
+            return null;
+        }).when(mockSegmentedDownloader).download(any(SynapseSegmentedDownloader.UrlResolver.class),
+                any(File.class));
+
+        // execute - One fetch at a time, so the error comes straight from the calling thread.
+        fetcher = makeFetcher(true, 50, 1);
+        try {
+            fetcher.fetch(TABLE_ID, ImmutableSet.of("foo-id", "bar-id"), tmpDir, zipStreamWriter, ENTRY_PREFIX);
+            fail("expected exception");
+        } catch (AssertionError ex) {
+            assertEquals(ex.getMessage(), "test error");
+        }
+
+        // Nothing was written to the zip, and the zip is still usable.
+        assertEquals(zipStreamWriter.getEntryCount(), 0);
+        zipStreamWriter.close();
+
+        // Spool files are cleaned up.
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void zipWriteFailureFailsZip() throws Exception {
+        contentByUrl.put("http://example.com/bar", "bar content");
+        contentByUrl.put("http://example.com/foo", "foo content");
+        when(mockSynapseHelper.getFileHandleUrlBatch(eq(TABLE_ID), anyCollection())).thenReturn(ImmutableList.of(
+                makeFileResult("bar-id", "bar.txt", "http://example.com/bar"),
+                makeFileResult("foo-id", "foo.txt", "http://example.com/foo")));
+
+        // bar is written to the zip first. Then foo's spool can't be read.
+        ZipStreamWriter mockZipStreamWriter = mock(ZipStreamWriter.class);
+        doThrow(IOException.class).when(mockZipStreamWriter).addFile(any(File.class),
+                eq(ENTRY_PREFIX + "foo-id/foo.txt"));
+
+        // execute
+        try {
+            fetcher.fetch(TABLE_ID, ImmutableSet.of("foo-id", "bar-id"), tmpDir, mockZipStreamWriter, ENTRY_PREFIX);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+
+        // Part of the table is in the zip, so the zip is failed.
+        verify(mockZipStreamWriter).addFile(any(File.class), eq(ENTRY_PREFIX + "bar-id/bar.txt"));
+        verify(mockZipStreamWriter).fail();
+    }
+
+    @Test
+    public void shouldFetchDirect() {
+        assertTrue(fetcher.isEnabled());
+        assertFalse(fetcher.shouldFetchDirect(0));
+        assertTrue(fetcher.shouldFetchDirect(1));
+        assertTrue(fetcher.shouldFetchDirect(50));
+        assertFalse(fetcher.shouldFetchDirect(51));
+
+        SynapseDirectAttachmentFetcher disabledFetcher = makeFetcher(false, 50, 4);
+        assertFalse(disabledFetcher.isEnabled());
+        assertFalse(disabledFetcher.shouldFetchDirect(1));
+    }
+
+    private SynapseDirectAttachmentFetcher makeFetcher(boolean enabled, int maxAttachments, int parallelFetches) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(SynapseDirectAttachmentFetcher.CONFIG_KEY_ENABLED)).thenReturn(String.valueOf(enabled));
+        when(mockConfig.getInt(SynapseDirectAttachmentFetcher.CONFIG_KEY_MAX_ATTACHMENTS)).thenReturn(
+                maxAttachments);
+        when(mockConfig.getInt(SynapseDirectAttachmentFetcher.CONFIG_KEY_PARALLEL_FETCHES)).thenReturn(
+                parallelFetches);
+
+        SynapseDirectAttachmentFetcher directAttachmentFetcher = new SynapseDirectAttachmentFetcher();
+        directAttachmentFetcher.setConfig(mockConfig);
+        directAttachmentFetcher.setFetchExecutorService(executorService);
+        directAttachmentFetcher.setFileHelper(inMemoryFileHelper);
+        directAttachmentFetcher.setSegmentedDownloader(mockSegmentedDownloader);
+        directAttachmentFetcher.setSynapseHelper(mockSynapseHelper);
+        return directAttachmentFetcher;
+    }
+
+    private static FileResult makeFileResult(String fileHandleId, String fileName, String url) {
+        S3FileHandle fileHandle = new S3FileHandle();
+        fileHandle.setId(fileHandleId);
+        fileHandle.setFileName(fileName);
+
+        FileResult fileResult = new FileResult();
+        fileResult.setFileHandleId(fileHandleId);
+        fileResult.setFileHandle(fileHandle);
+        fileResult.setPreSignedURL(url);
+        return fileResult;
+    }
+
+    private static FileResult makeFailedFileResult(String fileHandleId, FileResultFailureCode failureCode) {
+        FileResult fileResult = new FileResult();
+        fileResult.setFileHandleId(fileHandleId);
+        fileResult.setFailureCode(failureCode);
+        return fileResult;
+    }
+}
@@ -11,6 +11,7 @@ import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
 
 public class SynapseDownloadFromTableParametersTest {
     private static final File DUMMY_FILE = mock(File.class);
@@ -85,6 +86,46 @@ public class SynapseDownloadFromTableParametersTest {
                 .withTempDir(DUMMY_FILE).build();
     }
 
+    @Test(expectedExceptions = IllegalStateException.class,
+            expectedExceptionsMessageRegExp = ".*attachmentEntryPrefix.*")
+    public void attachmentZipStreamWriterWithoutPrefix() {
+        new SynapseDownloadFromTableParameters.Builder().withSynapseTableId("test-table-id")
+                .withHealthCode("test-health-code").withStartDate(TEST_START_DATE).withEndDate(TEST_END_DATE)
+                .withTempDir(DUMMY_FILE).withSchema(TEST_SCHEMA)
+                .withAttachmentZipStreamWriter(mock(ZipStreamWriter.class)).build();
+    }
+
+    @Test
+    public void withAttachmentZipStreamWriter() {
+        ZipStreamWriter mockZipStreamWriter = mock(ZipStreamWriter.class);
+        SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
+                .withSynapseTableId("test-table-id").withHealthCode("test-health-code").withStartDate(TEST_START_DATE)
+                .withEndDate(TEST_END_DATE).withTempDir(DUMMY_FILE).withSchema(TEST_SCHEMA)
+                .withAttachmentEntryPrefix("test-prefix/").withAttachmentZipStreamWriter(mockZipStreamWriter)
+                .build();
+        assertEquals(param.getAttachmentEntryPrefix(), "test-prefix/");
+        assertSame(param.getAttachmentZipStreamWriter(), mockZipStreamWriter);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class,
+            expectedExceptionsMessageRegExp = ".*attachmentEntryPrefix.*")
+    public void attachmentRegistryWithoutPrefix() {
+        new SynapseDownloadFromTableParameters.Builder().withSynapseTableId("test-table-id")
+                .withHealthCode("test-health-code").withStartDate(TEST_START_DATE).withEndDate(TEST_END_DATE)
+                .withTempDir(DUMMY_FILE).withSchema(TEST_SCHEMA)
+                .withAttachmentRegistry(new SynapseAttachmentRegistry()).build();
+    }
+
+    @Test
+    public void withAttachmentRegistry() {
+        SynapseAttachmentRegistry attachmentRegistry = new SynapseAttachmentRegistry();
+        SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
+                .withSynapseTableId("test-table-id").withHealthCode("test-health-code").withStartDate(TEST_START_DATE)
+                .withEndDate(TEST_END_DATE).withTempDir(DUMMY_FILE).withSchema(TEST_SCHEMA)
+                .withAttachmentEntryPrefix("test-prefix/").withAttachmentRegistry(attachmentRegistry).build();
+        assertSame(param.getAttachmentRegistry(), attachmentRegistry);
+    }
+
     @Test
     public void startDateBeforeEndDate() {
         SynapseDownloadFromTableParameters param = new SynapseDownloadFromTableParameters.Builder()
@@ -54,7 +54,7 @@ public class SynapseDownloadFromTableTaskCleanupFilesTest {
     @Test
     public void csvAndBulkDownload() throws Exception {
         task.getContext().setCsvFile(createEmptyFile("csv.csv"));
-        task.getContext().setBulkDownloadFile(createEmptyFile("download.zip"));
+        task.getContext().addBulkDownload(createEmptyFile("download.zip"), null);
         executeTest();
     }
 
@@ -68,7 +68,7 @@ public class SynapseDownloadFromTableTaskCleanupFilesTest {
     @Test
     public void all3Files() throws Exception {
         task.getContext().setCsvFile(createEmptyFile("csv.csv"));
-        task.getContext().setBulkDownloadFile(createEmptyFile("download.zip"));
+        task.getContext().addBulkDownload(createEmptyFile("download.zip"), null);
         task.getContext().setEditedCsvFile(createEmptyFile("csv-edited.csv"));
         executeTest();
     }
@@ -78,7 +78,7 @@ public class SynapseDownloadFromTableTaskCleanupFilesTest {
     public void nonNullFilesButDontExist() throws Exception {
         // Create the files, but don't write any content to them, so they won't exist.
         task.getContext().setCsvFile(inMemoryFileHelper.newFile(tmpDir, "csv.csv"));
-        task.getContext().setBulkDownloadFile(inMemoryFileHelper.newFile(tmpDir, "download.zip"));
+        task.getContext().addBulkDownload(inMemoryFileHelper.newFile(tmpDir, "download.zip"), null);
         task.getContext().setEditedCsvFile(inMemoryFileHelper.newFile(tmpDir, "csv-edited.csv"));
         executeTest();
     }
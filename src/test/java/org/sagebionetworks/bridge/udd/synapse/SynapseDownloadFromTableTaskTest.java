@@ -1,11 +1,17 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anySet;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -15,28 +21,53 @@ import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 
 import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.base.Charsets;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
 import com.google.common.io.CharStreams;
 import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
+import org.mockito.stubbing.Answer;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
 import org.sagebionetworks.repo.model.file.FileDownloadSummary;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 import org.sagebionetworks.bridge.udd.exceptions.AsyncTaskExecutionException;
+import org.sagebionetworks.bridge.udd.exceptions.AsyncTimeoutException;
+import org.sagebionetworks.bridge.udd.helper.ZipHelper;
+import org.sagebionetworks.bridge.udd.helper.ZipHelperTest;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class SynapseDownloadFromTableTaskTest {
@@ -48,11 +79,33 @@ public class SynapseDownloadFromTableTaskTest {
     private static final UploadSchema DEFAULT_TEST_SCHEMA = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY)
             .addField("foo", "INT").addField("bar", "ATTACHMENT_BLOB").addField("baz", "ATTACHMENT_JSON_BLOB").build();
 
+    // Two rows, each with a different file handle.
+    private static final String CHUNKED_CSV_CONTENT = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+            "\"record-1\",\"test-health-code\",\"1\",\"file-handle-1\",\n" +
+            "\"record-2\",\"test-health-code\",\"2\",\"file-handle-2\",";
+
+    private ExecutorService cpuExecutorService;
     private InMemoryFileHelper inMemoryFileHelper;
+    private SynapseHelper mockSynapseHelper;
+    private ExecutorService networkExecutorService;
     private ArgumentCaptor<String> synapseQueryCaptor;
     private ArgumentCaptor<Set> synapseFileHandleIdSetCaptor;
     private SynapseDownloadFromTableTask task;
     private File tmpDir;
+    private ByteArrayOutputStream zipByteArrayOutputStream;
+    private ZipStreamWriter zipStreamWriter;
+
+    @BeforeClass
+    public void beforeClass() {
+        cpuExecutorService = Executors.newFixedThreadPool(2);
+        networkExecutorService = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterClass
+    public void afterClass() {
+        cpuExecutorService.shutdownNow();
+        networkExecutorService.shutdownNow();
+    }
 
     @Test
     public void csvHasNoUserRows() throws Exception {
@@ -63,7 +116,7 @@ public class SynapseDownloadFromTableTaskTest {
         // execute and validate
         SynapseDownloadFromTableResult result = task.call();
         assertNull(result.getCsvFile());
-        assertNull(result.getBulkDownloadFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
         postValidation(result);
     }
 
@@ -98,7 +151,7 @@ public class SynapseDownloadFromTableTaskTest {
 
         // execute and validate
         SynapseDownloadFromTableResult result = task.call();
-        assertNull(result.getBulkDownloadFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
         List<String[]> parsedCsv = parseCsv(result.getCsvFile());
         assertEquals(parsedCsv.size(), 2);
 
@@ -126,7 +179,7 @@ public class SynapseDownloadFromTableTaskTest {
 
         // execute and validate
         SynapseDownloadFromTableResult result = task.call();
-        assertNull(result.getBulkDownloadFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
         List<String[]> parsedCsv = parseCsv(result.getCsvFile());
         assertEquals(parsedCsv.size(), 2);
 
@@ -272,7 +325,7 @@ public class SynapseDownloadFromTableTaskTest {
         assertTrue(Strings.isNullOrEmpty(parsedCsv.get(5)[4]));
 
         // validate bulk download file - It's just "dummy zip content"
-        try (Reader bulkDownloadFileReader = inMemoryFileHelper.getReader(result.getBulkDownloadFile())) {
+        try (Reader bulkDownloadFileReader = inMemoryFileHelper.getReader(result.getBulkDownloadFileList().get(0))) {
             assertEquals(CharStreams.toString(bulkDownloadFileReader), "dummy zip content");
         }
 
@@ -290,149 +343,1236 @@ public class SynapseDownloadFromTableTaskTest {
     }
 
     @Test
-    public void firstErrorCase() throws Exception {
-        // Test getting an error on the first step (download CSV). This allows us to test that cleanup works even when
-        // almost everything is null.
+    public void multiLineRowsAroundAttachmentRows() throws Exception {
+        // Only rows with file handles are re-parsed when editing the CSV. Make sure that the rows in between (and the
+        // attachment rows themselves) survive intact even with embedded newlines, quotes, and commas.
 
         // setup
-        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, new TestSynapseException(), null);
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"line 1\nline 2\",,\n" +
+                "\"record-2\",\"test-health-code\",\"a \"\"quoted\"\", value\",\"file-handle-2a\",\n" +
+                "\"record-3\",\"test-health-code\",\"multi\nline\nvalue\",,\n" +
+                "\"record-4\",\"test-health-code\",\"x\ny\",,\"file-handle-4b\"\n" +
+                "\"record-5\",\"test-health-code\",\"tail\",,";
+
+        FileDownloadSummary fileSummary2a = new FileDownloadSummary();
+        fileSummary2a.setFileHandleId("file-handle-2a");
+        fileSummary2a.setZipEntryName("zip-entry-2a");
+
+        FileDownloadSummary fileSummary4b = new FileDownloadSummary();
+        fileSummary4b.setFileHandleId("file-handle-4b");
+        fileSummary4b.setZipEntryName("zip-entry-4b");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary2a, fileSummary4b));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate - Only 2 rows should have been flagged for re-writing.
+        assertEquals(task.getContext().getAttachmentRowSpanList().size(), 2);
+
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 6);
+
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "line 1\nline 2", "", "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "a \"quoted\", value", "zip-entry-2a", "" });
+        assertEquals(parsedCsv.get(3), new String[] { "record-3", "", "multi\nline\nvalue", "", "" });
+        assertEquals(parsedCsv.get(4), new String[] { "record-4", "", "x\ny", "", "zip-entry-4b" });
+        assertEquals(parsedCsv.get(5), new String[] { "record-5", "", "tail", "", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void chunkedBulkDownload() throws Exception {
+        // setup - One file handle per chunk.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null);
+        task.setBulkDownloadChunkSize(1);
+        mockBulkDownloadChunk("file-handle-1", null);
+        mockBulkDownloadChunk("file-handle-2", null);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate - One zip per chunk. Since there's more than one zip, the CSV says which zip each attachment is in.
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-1.zip", TEST_SCHEMA_KEY.toString() + "-2.zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", TEST_SCHEMA_KEY.toString() +
+                "-1.zip/zip-entry-file-handle-1", "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", TEST_SCHEMA_KEY.toString() +
+                "-2.zip/zip-entry-file-handle-2", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphChunkedBulkDownloadPartialFailure() throws Exception {
+        // setup - Second chunk fails. With flattening, the CSV uses the attachment prefix for every chunk.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/");
+        task.setBulkDownloadChunkSize(1);
+        mockBulkDownloadChunk("file-handle-1", null);
+        mockBulkDownloadChunk("file-handle-2", new TestSynapseException());
+
+        // execute
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+
+        // validate - Only the failed chunk's attachment is marked as an error.
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-1.zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "Unknown error downloading attachment",
+                "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void chunkedBulkDownloadAllFail() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null);
+        task.setBulkDownloadChunkSize(1);
+        mockBulkDownloadChunk("file-handle-1", new TestSynapseException());
+        mockBulkDownloadChunk("file-handle-2", new TestSynapseException());
 
         // execute
-        Exception thrownEx = null;
         try {
             task.call();
             fail("expected exception");
         } catch (AsyncTaskExecutionException ex) {
-            thrownEx = ex;
+            assertTrue(ex.getCause() instanceof TestSynapseException);
         }
-        assertNotNull(thrownEx);
         postValidation(null);
     }
 
     @Test
-    public void lastErrorCase() throws Exception {
-        // Test getting an error on the last step (editing CSV). This allows us to test full cleanup, including the
-        // bulk download file. Since the editCsv() step has no mock dependencies, we'll use a spy to get it to throw an
-        // exception.
+    public void attachmentCacheHit() throws Exception {
+        // setup - file-handle-1 is cached, file-handle-2 isn't.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/");
+        SynapseAttachmentCache mockAttachmentCache = mockAttachmentCache("file-handle-1");
+        task.setAttachmentCache(mockAttachmentCache);
+        mockBulkDownloadChunk("file-handle-2", null);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
 
+        // validate - The bulk download only asks for file-handle-2, and both attachments are in the CSV.
+        verify(mockSynapseHelper).generateBulkDownloadFileHandleAsync("test-table-id",
+                ImmutableSet.of("file-handle-2"), "test-health-code");
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-cached-file-handle-1.zip", TEST_SCHEMA_KEY.toString() + ".zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "test-prefix/zip-entry-file-handle-2",
+                "" });
+
+        // The downloaded attachment is added to the cache.
+        ArgumentCaptor<List> fileSummaryListCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockAttachmentCache).putFromBulkDownload(eq(result.getBulkDownloadFileList().get(1)),
+                fileSummaryListCaptor.capture());
+        List<FileDownloadSummary> fileSummaryList = fileSummaryListCaptor.getValue();
+        assertEquals(fileSummaryList.size(), 1);
+        assertEquals(fileSummaryList.get(0).getFileHandleId(), "file-handle-2");
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphAllAttachmentsCached() throws Exception {
         // setup
-        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
-                "\"record-1\",\"test-health-code\",\"1337\",\"test-file-handle\",";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/");
+        task.setAttachmentCache(mockAttachmentCache("file-handle-1", "file-handle-2"));
 
-        FileDownloadSummary fileSummary = new FileDownloadSummary();
-        fileSummary.setFileHandleId("test-file-handle");
-        fileSummary.setZipEntryName("test-zip-entry");
+        // execute
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
 
-        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary));
+        // validate - No bulk download at all.
+        verify(mockSynapseHelper, never()).generateBulkDownloadFileHandleAsync(anyString(), anySet(), anyString());
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-cached-file-handle-1.zip",
+                TEST_SCHEMA_KEY.toString() + "-cached-file-handle-2.zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "test-prefix/zip-entry-file-handle-2",
+                "" });
 
-        task = spy(task);
-        doThrow(new AsyncTaskExecutionException()).when(task).editCsv();
+        postValidation(result);
+    }
+
+    @Test
+    public void attachmentCacheHitWithFailedBulkDownload() throws Exception {
+        // setup - The only bulk download fails, but there's still a cached attachment to salvage.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/");
+        task.setAttachmentCache(mockAttachmentCache("file-handle-1"));
+        mockBulkDownloadChunk("file-handle-2", new TestSynapseException());
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-cached-file-handle-1.zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "Unknown error downloading attachment",
+                "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void directAttachmentFetch() throws Exception {
+        // setup - file-handle-1 is fetched, file-handle-2 is refused by Synapse.
+        ZipStreamWriter mockAttachmentZipStreamWriter = mock(ZipStreamWriter.class);
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/",
+                mockAttachmentZipStreamWriter);
+        SynapseDirectAttachmentFetcher mockFetcher = mockDirectAttachmentFetcher(
+                ImmutableSet.of("file-handle-1", "file-handle-2"), mockAttachmentZipStreamWriter, null);
+        task.setDirectAttachmentFetcher(mockFetcher);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate - No bulk download. The CSV points at the entries the fetcher wrote into the master zip.
+        verify(mockSynapseHelper, never()).generateBulkDownloadFileHandleAsync(anyString(), anySet(), anyString());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1",
+                "test-prefix/file-handle-1/attachment.txt", "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2",
+                "Error downloading attachment: NOT_FOUND", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphDirectAttachmentFetchWithCache() throws Exception {
+        // setup - file-handle-1 is cached, so only file-handle-2 is fetched.
+        ZipStreamWriter mockAttachmentZipStreamWriter = mock(ZipStreamWriter.class);
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/",
+                mockAttachmentZipStreamWriter);
+        task.setAttachmentCache(mockAttachmentCache("file-handle-1"));
+        SynapseDirectAttachmentFetcher mockFetcher = mockDirectAttachmentFetcher(
+                ImmutableSet.of("file-handle-2"), mockAttachmentZipStreamWriter, null);
+        task.setDirectAttachmentFetcher(mockFetcher);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+
+        // validate
+        verify(mockFetcher).shouldFetchDirect(1);
+        verify(mockSynapseHelper, never()).generateBulkDownloadFileHandleAsync(anyString(), anySet(), anyString());
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-cached-file-handle-1.zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2",
+                "test-prefix/file-handle-2/attachment.txt", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void directAttachmentFetchError() throws Exception {
+        // setup - Getting the URLs fails, and there are no cached attachments to salvage.
+        ZipStreamWriter mockAttachmentZipStreamWriter = mock(ZipStreamWriter.class);
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/",
+                mockAttachmentZipStreamWriter);
+        task.setDirectAttachmentFetcher(mockDirectAttachmentFetcher(ImmutableSet.of("file-handle-1",
+                "file-handle-2"), mockAttachmentZipStreamWriter, new TestSynapseException()));
 
         // execute
-        Exception thrownEx = null;
         try {
             task.call();
             fail("expected exception");
         } catch (AsyncTaskExecutionException ex) {
-            thrownEx = ex;
+            assertTrue(ex.getCause() instanceof TestSynapseException);
         }
-        assertNotNull(thrownEx);
+        postValidation(null);
+    }
 
-        // validate the file handles we sent to Synapse for the bulk download
-        Set<String> fileHandleIdSet = synapseFileHandleIdSetCaptor.getValue();
-        assertEquals(fileHandleIdSet.size(), 1);
-        assertTrue(fileHandleIdSet.contains("test-file-handle"));
+    @Test
+    public void tooManyAttachmentsToFetchDirect() throws Exception {
+        // setup - The fetcher says the table has too many attachments, so they're bulk downloaded.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/",
+                mock(ZipStreamWriter.class));
+        SynapseDirectAttachmentFetcher mockFetcher = mock(SynapseDirectAttachmentFetcher.class);
+        when(mockFetcher.shouldFetchDirect(2)).thenReturn(false);
+        task.setDirectAttachmentFetcher(mockFetcher);
+        task.setBulkDownloadChunkSize(1);
+        mockBulkDownloadChunk("file-handle-1", null);
+        mockBulkDownloadChunk("file-handle-2", null);
 
-        postValidation(null);
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate
+        verify(mockFetcher, never()).fetch(anyString(), anySet(), any(File.class), any(ZipStreamWriter.class),
+                anyString());
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + "-1.zip", TEST_SCHEMA_KEY.toString() + "-2.zip"));
+
+        postValidation(result);
     }
 
-    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
-            List<FileDownloadSummary> fileSummaryList) throws Exception {
-        // mock file helper and temp dir
-        inMemoryFileHelper = new InMemoryFileHelper();
-        tmpDir = inMemoryFileHelper.createTempDir();
+    @Test
+    public void sharedAttachment() throws Exception {
+        // setup - Another table already has file-handle-2.
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+        registry.claim(ImmutableSet.of("file-handle-2"));
+        registry.publish(ImmutableSet.of("file-handle-2"), ImmutableMap.of("file-handle-2",
+                "other-prefix/zip-entry-file-handle-2"));
 
-        // set up params and task
-        SynapseDownloadFromTableParameters params = new SynapseDownloadFromTableParameters.Builder()
-                .withSynapseTableId("test-table-id").withHealthCode("test-health-code")
-                .withStartDate(LocalDate.parse("2015-03-09")).withEndDate(LocalDate.parse("2015-09-16"))
-                .withTempDir(tmpDir).withSchema(schema).build();
-        task = new SynapseDownloadFromTableTask(params);
-        task.setFileHelper(inMemoryFileHelper);
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/", null,
+                registry);
+        mockBulkDownloadChunk("file-handle-1", null);
 
-        // mock Synapse CSV content
-        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
-        synapseQueryCaptor = ArgumentCaptor.forClass(String.class);
-        when(mockSynapseHelper.generateFileHandleFromTableQuery(synapseQueryCaptor.capture(), eq("test-table-id")))
-                .thenReturn("query-csv-file-handle-id");
-        doAnswer(invocation -> {
-            if (csvException != null) {
-                throw csvException;
-            }
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
 
-            File targetFile = invocation.getArgumentAt(1, File.class);
-            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
-                targetFileWriter.write(csvContent);
+        // validate - Only file-handle-1 is downloaded, and the CSV points at the other table's file-handle-2.
+        verify(mockSynapseHelper).generateBulkDownloadFileHandleAsync("test-table-id",
+                ImmutableSet.of("file-handle-1"), "test-health-code");
+        assertEquals(getFileNames(result.getBulkDownloadFileList()), ImmutableList.of(
+                TEST_SCHEMA_KEY.toString() + ".zip"));
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "other-prefix/zip-entry-file-handle-2",
+                "" });
+
+        // file-handle-1 is published for other tables.
+        assertEquals(registry.getReplacements(ImmutableSet.of("file-handle-1")).join(), ImmutableMap.of(
+                "file-handle-1", "test-prefix/zip-entry-file-handle-1"));
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphWaitsForSharedAttachment() throws Exception {
+        // setup - Another table has claimed file-handle-2, but hasn't downloaded it yet.
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+        registry.claim(ImmutableSet.of("file-handle-2"));
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/", null,
+                registry);
+        mockBulkDownloadChunk("file-handle-1", null);
+
+        // execute - The task publishes its own attachment, then waits for the other table.
+        CompletableFuture<SynapseDownloadFromTableResult> resultFuture = task.executeAsync(networkExecutorService,
+                cpuExecutorService);
+
+        // Wait for the task to claim file-handle-1. Asking for its replacement any earlier would claim it first.
+        Stopwatch claimStopwatch = Stopwatch.createStarted();
+        while (registry.getClaimCount() < 2) {
+            assertTrue(claimStopwatch.elapsed(TimeUnit.SECONDS) < 10, "Timed out waiting for claim");
+            Thread.sleep(10);
+        }
+        assertEquals(registry.getReplacements(ImmutableSet.of("file-handle-1")).get(10, TimeUnit.SECONDS),
+                ImmutableMap.of("file-handle-1", "test-prefix/zip-entry-file-handle-1"));
+        assertFalse(resultFuture.isDone());
+
+        // The other table failed to download file-handle-2.
+        registry.publish(ImmutableSet.of("file-handle-2"), ImmutableMap.of());
+        SynapseDownloadFromTableResult result = resultFuture.get();
+
+        // validate
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "test-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "Unknown error downloading attachment",
+                "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void allAttachmentsShared() throws Exception {
+        // setup - Another table has both attachments.
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+        registry.claim(ImmutableSet.of("file-handle-1", "file-handle-2"));
+        registry.publish(ImmutableSet.of("file-handle-1", "file-handle-2"), ImmutableMap.of(
+                "file-handle-1", "other-prefix/zip-entry-file-handle-1",
+                "file-handle-2", "other-prefix/zip-entry-file-handle-2"));
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/", null,
+                registry);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+
+        // validate - No bulk download at all.
+        verify(mockSynapseHelper, never()).generateBulkDownloadFileHandleAsync(anyString(), anySet(), anyString());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "other-prefix/zip-entry-file-handle-1",
+                "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "other-prefix/zip-entry-file-handle-2",
+                "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void failedOwnerOrphansBulkDownload() throws Exception {
+        // setup - The task downloaded and published its attachments, then failed.
+        SynapseAttachmentRegistry registry = new SynapseAttachmentRegistry();
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, CHUNKED_CSV_CONTENT, null, null, false, "test-prefix/", null,
+                registry);
+
+        File bulkDownloadFile = inMemoryFileHelper.newFile(tmpDir, "bulk.zip");
+        try (Writer bulkDownloadFileWriter = inMemoryFileHelper.getWriter(bulkDownloadFile)) {
+            bulkDownloadFileWriter.write("dummy zip content");
+        }
+        task.getContext().addBulkDownload(bulkDownloadFile, ImmutableList.of());
+        task.getContext().addAttachmentClaim(registry.claim(ImmutableSet.of("file-handle-1")), ImmutableSet.of());
+
+        // execute
+        task.cleanupFiles();
+
+        // validate - The zip goes to the registry instead of being deleted.
+        assertEquals(registry.getOrphanedZipToPrefixMap(), ImmutableMap.of(bulkDownloadFile, "test-prefix/"));
+        assertTrue(inMemoryFileHelper.fileExists(bulkDownloadFile));
+        inMemoryFileHelper.deleteFile(bulkDownloadFile);
+        validateFilesCleanedUp(null);
+    }
+
+    // Mocks a direct attachment fetcher that expects the given file handles. Each file handle is fetched as
+    // "attachment.txt", except file-handle-2 when there's more than one, which Synapse refuses. If a fetch exception
+    // is specified, the fetch fails with it.
+    private SynapseDirectAttachmentFetcher mockDirectAttachmentFetcher(Set<String> fileHandleIdSet,
+            ZipStreamWriter attachmentZipStreamWriter, Exception fetchException) throws Exception {
+        SynapseDirectAttachmentFetcher mockFetcher = mock(SynapseDirectAttachmentFetcher.class);
+        when(mockFetcher.shouldFetchDirect(fileHandleIdSet.size())).thenReturn(true);
+        if (fetchException != null) {
+            when(mockFetcher.fetch("test-table-id", fileHandleIdSet, tmpDir, attachmentZipStreamWriter,
+                    "test-prefix/")).thenThrow(fetchException);
+            return mockFetcher;
+        }
+
+        List<FileDownloadSummary> fileSummaryList = new ArrayList<>();
+        for (String oneFileHandleId : fileHandleIdSet) {
+            FileDownloadSummary fileSummary = new FileDownloadSummary();
+            fileSummary.setFileHandleId(oneFileHandleId);
+            if (fileHandleIdSet.size() > 1 && oneFileHandleId.equals("file-handle-2")) {
+                fileSummary.setFailureMessage("Error downloading attachment: NOT_FOUND");
+            } else {
+                fileSummary.setZipEntryName(oneFileHandleId + "/attachment.txt");
             }
+            fileSummaryList.add(fileSummary);
+        }
+        when(mockFetcher.fetch("test-table-id", fileHandleIdSet, tmpDir, attachmentZipStreamWriter,
+                "test-prefix/")).thenReturn(fileSummaryList);
+        return mockFetcher;
+    }
 
-            // Needed because Answer declares a return type, even if it's null.
-            return null;
-        }).when(mockSynapseHelper).downloadFileHandle(eq("query-csv-file-handle-id"), any(File.class));
+    // Mocks an attachment cache that has the given file handles. Hits write a dummy zip to the target file.
+    private SynapseAttachmentCache mockAttachmentCache(String... cachedFileHandleIds) {
+        SynapseAttachmentCache mockAttachmentCache = mock(SynapseAttachmentCache.class);
+        for (String oneFileHandleId : cachedFileHandleIds) {
+            when(mockAttachmentCache.get(eq(oneFileHandleId), any(File.class))).thenAnswer(invocation -> {
+                File targetFile = invocation.getArgumentAt(1, File.class);
+                try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                    targetFileWriter.write("dummy cached zip content");
+                }
+                return "zip-entry-" + oneFileHandleId;
+            });
+        }
+        return mockAttachmentCache;
+    }
 
-        if (fileSummaryList != null) {
-            // mock Synapse bulk download
-            BulkFileDownloadResponse bulkDownloadResponse = new BulkFileDownloadResponse();
-            bulkDownloadResponse.setResultZipFileHandleId("bulk-download-file-handle-id");
-            bulkDownloadResponse.setFileSummary(fileSummaryList);
+    // Mocks the bulk download for a chunk with a single file handle. If a chunk exception is specified, the bulk
+    // download fails with it.
+    private void mockBulkDownloadChunk(String fileHandleId, Exception chunkException) throws Exception {
+        CompletableFuture<BulkFileDownloadResponse> responseFuture = new CompletableFuture<>();
+        if (chunkException != null) {
+            responseFuture.completeExceptionally(chunkException);
+        } else {
+            FileDownloadSummary fileSummary = new FileDownloadSummary();
+            fileSummary.setFileHandleId(fileHandleId);
+            fileSummary.setZipEntryName("zip-entry-" + fileHandleId);
 
-            synapseFileHandleIdSetCaptor = ArgumentCaptor.forClass(Set.class);
-            when(mockSynapseHelper.generateBulkDownloadFileHandle(eq("test-table-id"),
-                    synapseFileHandleIdSetCaptor.capture())).thenReturn(bulkDownloadResponse);
+            BulkFileDownloadResponse bulkDownloadResponse = new BulkFileDownloadResponse();
+            bulkDownloadResponse.setResultZipFileHandleId("bulk-" + fileHandleId);
+            bulkDownloadResponse.setFileSummary(ImmutableList.of(fileSummary));
+            responseFuture.complete(bulkDownloadResponse);
 
             doAnswer(invocation -> {
                 File targetFile = invocation.getArgumentAt(1, File.class);
                 try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
                     targetFileWriter.write("dummy zip content");
                 }
-
-                // Needed because Answer declares a return type, even if it's null.
                 return null;
-            }).when(mockSynapseHelper).downloadFileHandle(eq("bulk-download-file-handle-id"), any(File.class));
+            }).when(mockSynapseHelper).downloadFileHandle(eq("bulk-" + fileHandleId), any(File.class));
         }
-
-        task.setSynapseHelper(mockSynapseHelper);
+        when(mockSynapseHelper.generateBulkDownloadFileHandleAsync("test-table-id", ImmutableSet.of(fileHandleId),
+                "test-health-code")).thenReturn(responseFuture);
     }
 
-    // Direct string matching means we tightly couple to the CSV writer implementation. Instead, re-parse the file as a
-    // CSV and check the values are what we expect.
-    private List<String[]> parseCsv(File csvFile) throws Exception {
-        try (CSVReader csvFileReader = new CSVReader(inMemoryFileHelper.getReader(csvFile))) {
-            return csvFileReader.readAll();
+    private static List<String> getFileNames(List<File> fileList) {
+        List<String> fileNameList = new ArrayList<>();
+        for (File oneFile : fileList) {
+            fileNameList.add(oneFile.getName());
         }
+        return fileNameList;
     }
 
-    private void postValidation(SynapseDownloadFromTableResult result) throws Exception {
-        // SynapseDownloadFromTableTask should only leave behind the files it returned and the temp dir. Clean these
-        // files up (which is what the packager would do) and then verify that the mock file system is now empty.
-        if (result != null) {
-            if (result.getCsvFile() != null) {
-                inMemoryFileHelper.deleteFile(result.getCsvFile());
-            }
+    @Test
+    public void streamCsvWithNoFileHandleColumns() throws Exception {
+        // setup
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"asdf\"\n" +
+                "\"record-1\",\"test-health-code\",\"7\"\n" +
+                "\"record-2\",\"test-health-code\",\"8\"";
+        setupTestWithArgs(schema, csvContent, null, null, true);
+        task.setMaxCsvBufferChars(1024);
 
-            if (result.getBulkDownloadFile() != null) {
-                inMemoryFileHelper.deleteFile(result.getBulkDownloadFile());
-            }
-        }
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        assertNull(result.getCsvFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+        assertEquals(result.getStreamedCsvEntryName(), TEST_SCHEMA_KEY.toString() + ".csv");
 
-        inMemoryFileHelper.deleteDir(tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
+        // The CSV fit in the buffer, so it never hit disk.
+        assertNull(task.getContext().getEditedCsvFile());
+        assertNull(task.getContext().getEditedCsvChars());
 
-        // Validate the Synapse query contains the expected values. Don't string match the entire string. Just validate
-        // that table ID, health code, start date, and end date were used.
-        String query = synapseQueryCaptor.getValue();
-        assertTrue(query.contains("test-table-id"));
-        assertTrue(query.contains("test-health-code"));
-        assertTrue(query.contains("2015-03-09"));
-        assertTrue(query.contains("2015-09-16"));
+        // validate zip entry
+        List<String[]> parsedCsv = parseStreamedCsv(result.getStreamedCsvEntryName());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(0), new String[] { "recordId", "healthCode", "asdf" });
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "7" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "8" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void streamCsvSpillsOverMaxBuffer() throws Exception {
+        // setup - The header fits in the buffer, but the first row doesn't.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"asdf\"\n" +
+                "\"record-1\",\"test-health-code\",\"7\"\n" +
+                "\"record-2\",\"test-health-code\",\"8\"";
+        setupTestWithArgs(schema, csvContent, null, null, true);
+        task.setMaxCsvBufferChars(40);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        assertEquals(result.getStreamedCsvEntryName(), TEST_SCHEMA_KEY.toString() + ".csv");
+
+        // The CSV was spooled before being written to the zip, and the spool was cleaned up.
+        assertNotNull(task.getContext().getEditedCsvFile());
+        assertFalse(inMemoryFileHelper.fileExists(task.getContext().getEditedCsvFile()));
+
+        // validate zip entry
+        List<String[]> parsedCsv = parseStreamedCsv(result.getStreamedCsvEntryName());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(0), new String[] { "recordId", "healthCode", "asdf" });
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "7" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "8" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void streamCsvWithAttachments() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"4\",,\n" +
+                "\"record-2\",\"test-health-code\",\"8\",\"file-handle-2a\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("file-handle-2a");
+        fileSummary.setZipEntryName("zip-entry-2a");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary), true);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        assertNull(result.getCsvFile());
+        assertEquals(result.getStreamedCsvEntryName(), TEST_SCHEMA_KEY.toString() + ".csv");
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+
+        // validate zip entry
+        List<String[]> parsedCsv = parseStreamedCsv(result.getStreamedCsvEntryName());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "4", "", "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "8", "zip-entry-2a", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void attachmentEntryPrefix() throws Exception {
+        // When attachments are flattened into the master zip, the CSV points at the prefixed entry names. Failure
+        // messages are left alone.
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"4\",\"file-handle-1a\",\"file-handle-1b\"";
+
+        FileDownloadSummary fileSummary1a = new FileDownloadSummary();
+        fileSummary1a.setFileHandleId("file-handle-1a");
+        fileSummary1a.setZipEntryName("zip-entry-1a");
+
+        FileDownloadSummary fileSummary1b = new FileDownloadSummary();
+        fileSummary1b.setFileHandleId("file-handle-1b");
+        fileSummary1b.setFailureMessage("test failure message");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary1a, fileSummary1b),
+                true, "test-prefix/");
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+        assertEquals(result.getAttachmentEntryPrefix(), "test-prefix/");
+
+        // validate zip entry
+        List<String[]> parsedCsv = parseStreamedCsv(result.getStreamedCsvEntryName());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "4", "test-prefix/zip-entry-1a",
+                "test failure message" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void streamCsvWithAttachmentColumnsButNoFileHandles() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"13\",,";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null, true);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+
+        // validate zip entry
+        List<String[]> parsedCsv = parseStreamedCsv(result.getStreamedCsvEntryName());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "13", "", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void streamCsvHasNoUserRows() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null, true);
+
+        // execute and validate - Nothing should be written to the zip.
+        SynapseDownloadFromTableResult result = task.call();
+        assertNull(result.getCsvFile());
+        assertNull(result.getStreamedCsvEntryName());
+        assertEquals(zipStreamWriter.getEntryCount(), 0);
+
+        postValidation(result);
+    }
+
+    @Test
+    public void streamCsvError() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, new TestSynapseException(), null, true);
+
+        // execute
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            // expected exception
+        }
+        assertEquals(zipStreamWriter.getEntryCount(), 0);
+        postValidation(null);
+    }
+
+    @Test
+    public void streamCsvFailsMidStream() throws Exception {
+        // setup - The stream fails after the first row. Nothing should be written to the zip.
+        UploadSchema schema = new UploadSchema.Builder().withKey(TEST_SCHEMA_KEY).addField("asdf", "INT").build();
+        String csvContent = "\"recordId\",\"healthCode\",\"asdf\"\n" +
+                "\"record-1\",\"test-health-code\",\"7\"\n" +
+                "\"record-2\",\"test-health-code\",\"8\"\n";
+        setupTestWithArgs(schema, csvContent, null, null, true);
+
+        byte[] csvBytes = csvContent.getBytes(Charsets.UTF_8);
+        int failAfterBytes = csvContent.indexOf("\"record-2\"");
+        when(mockSynapseHelper.openFileHandleStream("query-csv-file-handle-id")).thenAnswer(invocation ->
+                new SequenceInputStream(new ByteArrayInputStream(csvBytes, 0, failAfterBytes), new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        throw new IOException("test connection reset");
+                    }
+                }));
+
+        // execute
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            // expected exception
+        }
+        assertEquals(zipStreamWriter.getEntryCount(), 0);
+        postValidation(null);
+    }
+
+    @Test
+    public void firstErrorCase() throws Exception {
+        // Test getting an error on the first step (download CSV). This allows us to test that cleanup works even when
+        // almost everything is null.
+
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, new TestSynapseException(), null);
+
+        // execute
+        Exception thrownEx = null;
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            thrownEx = ex;
+        }
+        assertNotNull(thrownEx);
+        postValidation(null);
+    }
+
+    @Test
+    public void lastErrorCase() throws Exception {
+        // Test getting an error on the last step (editing CSV). This allows us to test full cleanup, including the
+        // bulk download file. Since the editCsv() step has no mock dependencies, we'll use a spy to get it to throw an
+        // exception.
+
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"1337\",\"test-file-handle\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("test-file-handle");
+        fileSummary.setZipEntryName("test-zip-entry");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary));
+
+        task = spy(task);
+        doThrow(new AsyncTaskExecutionException()).when(task).editCsv();
+
+        // execute
+        Exception thrownEx = null;
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            thrownEx = ex;
+        }
+        assertNotNull(thrownEx);
+
+        // validate the file handles we sent to Synapse for the bulk download
+        Set<String> fileHandleIdSet = synapseFileHandleIdSetCaptor.getValue();
+        assertEquals(fileHandleIdSet.size(), 1);
+        assertTrue(fileHandleIdSet.contains("test-file-handle"));
+
+        postValidation(null);
+    }
+
+    @Test
+    public void stageGraphCsvAndBulkDownload() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"4\",,\n" +
+                "\"record-2\",\"test-health-code\",\"8\",\"file-handle-2a\",\"file-handle-2b\"";
+
+        FileDownloadSummary fileSummary2a = new FileDownloadSummary();
+        fileSummary2a.setFileHandleId("file-handle-2a");
+        fileSummary2a.setZipEntryName("zip-entry-2a");
+
+        FileDownloadSummary fileSummary2b = new FileDownloadSummary();
+        fileSummary2b.setFileHandleId("file-handle-2b");
+        fileSummary2b.setFailureMessage("test failure message");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary2a, fileSummary2b));
+
+        // execute
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+
+        // validate CSV
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "4", "", "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "8", "zip-entry-2a",
+                "test failure message" });
+
+        // validate the file handles we sent to Synapse for the bulk download
+        Set<String> fileHandleIdSet = synapseFileHandleIdSetCaptor.getValue();
+        assertEquals(fileHandleIdSet.size(), 2);
+        assertTrue(fileHandleIdSet.contains("file-handle-2a"));
+        assertTrue(fileHandleIdSet.contains("file-handle-2b"));
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphStreamCsvWithAttachments() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"8\",\"file-handle-1a\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("file-handle-1a");
+        fileSummary.setZipEntryName("zip-entry-1a");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary), true);
+        task.setMaxCsvBufferChars(1024);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+        assertNull(result.getCsvFile());
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+
+        // The CSV waited for the bulk download in memory.
+        assertNull(task.getContext().getEditedCsvFile());
+
+        // validate zip entry
+        List<String[]> parsedCsv = parseStreamedCsv(result.getStreamedCsvEntryName());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "8", "zip-entry-1a", "" });
+
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphNoUserRows() throws Exception {
+        // setup
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null);
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+        assertNull(result.getCsvFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+        postValidation(result);
+    }
+
+    @Test
+    public void stageGraphQueryTimeout() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+
+        CompletableFuture<String> queryFuture = new CompletableFuture<>();
+        queryFuture.completeExceptionally(new AsyncTimeoutException("test timeout"));
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(synapseQueryCaptor.capture(),
+                eq("test-table-id"), eq("test-health-code"), any())).thenReturn(queryFuture);
+
+        // execute
+        try {
+            task.executeAsync(networkExecutorService, cpuExecutorService).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof AsyncTaskExecutionException);
+            assertTrue(ex.getCause().getCause() instanceof AsyncTimeoutException);
+        }
+        postValidation(null);
+    }
+
+    @Test
+    public void stageGraphLastErrorCase() throws Exception {
+        // Same as lastErrorCase, but with the stage graph. Files from earlier stages are still cleaned up.
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"1337\",\"test-file-handle\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("test-file-handle");
+        fileSummary.setZipEntryName("test-zip-entry");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, ImmutableList.of(fileSummary));
+
+        task = spy(task);
+        doThrow(new AsyncTaskExecutionException()).when(task).editCsv();
+
+        // execute
+        try {
+            task.executeAsync(networkExecutorService, cpuExecutorService).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof AsyncTaskExecutionException);
+        }
+        postValidation(null);
+    }
+
+    @Test
+    public void batchedQueryWithAttachments() throws Exception {
+        // setup - Batched results are written to a file, even if streaming.
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n" +
+                "\"record-1\",\"test-health-code\",\"8\",\"file-handle-1a\",";
+
+        FileDownloadSummary fileSummary = new FileDownloadSummary();
+        fileSummary.setFileHandleId("file-handle-1a");
+        fileSummary.setZipEntryName("zip-entry-1a");
+
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, ImmutableList.of(fileSummary), true);
+        SynapseQueryBatcher mockQueryBatcher = mockQueryBatcher(csvContent, null);
+
+        // execute
+        SynapseDownloadFromTableResult result = task.call();
+        assertNull(result.getStreamedCsvEntryName());
+        assertEquals(result.getBulkDownloadFileList().size(), 1);
+
+        // validate
+        verify(mockQueryBatcher).queryUserCsv(eq("test-table-id"), eq("test-health-code"),
+                eq(LocalDate.parse("2015-03-09")), eq(LocalDate.parse("2015-09-16")), any(File.class));
+        verify(mockSynapseHelper, never()).generateFileHandleFromTableQuery(any(), any(), any(), any());
+
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 2);
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "8", "zip-entry-1a", "" });
+
+        validateFilesCleanedUp(result);
+    }
+
+    @Test
+    public void stageGraphBatchedQueryNoUserRows() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+        mockQueryBatcher("\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"", null);
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+        assertNull(result.getCsvFile());
+        assertTrue(result.getBulkDownloadFileList().isEmpty());
+        validateFilesCleanedUp(result);
+    }
+
+    @Test
+    public void batchedQueryError() throws Exception {
+        // setup - The batcher fails after writing part of the file. The partial file is still cleaned up.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+        mockQueryBatcher("\"recordId\",\"healthCode\"", new TestSynapseException());
+
+        // execute
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (AsyncTaskExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TestSynapseException);
+        }
+        validateFilesCleanedUp(null);
+    }
+
+    @Test
+    public void stageGraphBatchedQueryError() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+        mockQueryBatcher("\"recordId\",\"healthCode\"", new TestSynapseException());
+
+        // execute
+        try {
+            task.executeAsync(networkExecutorService, cpuExecutorService).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof AsyncTaskExecutionException);
+            assertTrue(ex.getCause().getCause() instanceof TestSynapseException);
+        }
+        validateFilesCleanedUp(null);
+    }
+
+    @Test
+    public void shardedQuery() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+        SynapseQueryShardPlanner mockShardPlanner = mockShardedQuery(null);
+
+        // execute and validate - One header, then both shards' rows in shard order.
+        SynapseDownloadFromTableResult result = task.call();
+        validateShardedResult(result, mockShardPlanner);
+    }
+
+    @Test
+    public void stageGraphShardedQuery() throws Exception {
+        // setup
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+        SynapseQueryShardPlanner mockShardPlanner = mockShardedQuery(null);
+
+        // execute and validate
+        SynapseDownloadFromTableResult result = task.executeAsync(networkExecutorService, cpuExecutorService).get();
+        validateShardedResult(result, mockShardPlanner);
+    }
+
+    @Test
+    public void shardedQueryError() throws Exception {
+        // setup - Second shard times out.
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, null, null, null);
+        mockShardedQuery(new AsyncTimeoutException("test timeout"));
+
+        // execute
+        try {
+            task.executeAsync(networkExecutorService, cpuExecutorService).get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof AsyncTaskExecutionException);
+            assertTrue(ex.getCause().getCause() instanceof AsyncTimeoutException);
+            assertTrue(ex.getCause().getMessage().contains("2015-06-01"));
+        }
+        validateFilesCleanedUp(null);
+    }
+
+    @Test
+    public void unshardedQueryRecordsTime() throws Exception {
+        // setup - Planner has no reason to shard.
+        String csvContent = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"";
+        setupTestWithArgs(DEFAULT_TEST_SCHEMA, csvContent, null, null);
+        SynapseQueryShardPlanner mockShardPlanner = mock(SynapseQueryShardPlanner.class);
+        when(mockShardPlanner.planShards(any(), any(), any())).thenAnswer(invocation -> ImmutableList.of(
+                Range.closed(invocation.getArgumentAt(1, LocalDate.class),
+                        invocation.getArgumentAt(2, LocalDate.class))));
+        task.setShardPlanner(mockShardPlanner);
+
+        // execute and validate
+        task.call();
+        verify(mockShardPlanner).recordQueryTime("test-table-id", LocalDate.parse("2015-03-09"),
+                LocalDate.parse("2015-09-16"), 1000);
+        postValidation(null);
+    }
+
+    // Answer for the Synapse helper's query methods, which reports the given job time to the job millis listener (if
+    // any), like the real helper does when the job completes, then returns the given future.
+    private static Answer<CompletableFuture<String>> reportJobMillis(long jobMillis,
+            CompletableFuture<String> future) {
+        return invocation -> {
+            LongConsumer jobMillisListener = invocation.getArgumentAt(3, LongConsumer.class);
+            if (jobMillisListener != null) {
+                jobMillisListener.accept(jobMillis);
+            }
+            return future;
+        };
+    }
+
+    // Mocks a shard planner that splits the range into 2 shards, and Synapse results for each shard. If a shard
+    // exception is specified, the second shard's query fails with it.
+    private SynapseQueryShardPlanner mockShardedQuery(Exception shardException) throws Exception {
+        SynapseQueryShardPlanner mockShardPlanner = mock(SynapseQueryShardPlanner.class);
+        when(mockShardPlanner.planShards("test-table-id", LocalDate.parse("2015-03-09"),
+                LocalDate.parse("2015-09-16"))).thenReturn(ImmutableList.of(
+                Range.closed(LocalDate.parse("2015-03-09"), LocalDate.parse("2015-05-31")),
+                Range.closed(LocalDate.parse("2015-06-01"), LocalDate.parse("2015-09-16"))));
+        task.setShardPlanner(mockShardPlanner);
+
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(contains("2015-03-09"), eq("test-table-id"),
+                eq("test-health-code"), any())).thenAnswer(reportJobMillis(1000,
+                CompletableFuture.completedFuture("shard-1")));
+        CompletableFuture<String> secondShardFuture = new CompletableFuture<>();
+        if (shardException != null) {
+            secondShardFuture.completeExceptionally(shardException);
+        } else {
+            secondShardFuture.complete("shard-2");
+        }
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(contains("2015-06-01"), eq("test-table-id"),
+                eq("test-health-code"), any())).thenAnswer(reportJobMillis(2000, secondShardFuture));
+
+        String header = "\"recordId\",\"healthCode\",\"foo\",\"bar\",\"baz\"\n";
+        when(mockSynapseHelper.openFileHandleStream("shard-1")).thenAnswer(invocation -> new ByteArrayInputStream(
+                (header + "\"record-1\",\"test-health-code\",\"1\",,").getBytes(Charsets.UTF_8)));
+        when(mockSynapseHelper.openFileHandleStream("shard-2")).thenAnswer(invocation -> new ByteArrayInputStream(
+                (header + "\"record-2\",\"test-health-code\",\"2\",,").getBytes(Charsets.UTF_8)));
+        return mockShardPlanner;
+    }
+
+    private void validateShardedResult(SynapseDownloadFromTableResult result,
+            SynapseQueryShardPlanner mockShardPlanner) throws Exception {
+        List<String[]> parsedCsv = parseCsv(result.getCsvFile());
+        assertEquals(parsedCsv.size(), 3);
+        assertEquals(parsedCsv.get(0), new String[] { "recordId", "healthCode", "foo", "bar", "baz" });
+        assertEquals(parsedCsv.get(1), new String[] { "record-1", "", "1", "", "" });
+        assertEquals(parsedCsv.get(2), new String[] { "record-2", "", "2", "", "" });
+
+        // Each shard's time is recorded. The whole range was never queried.
+        verify(mockShardPlanner).recordQueryTime("test-table-id", LocalDate.parse("2015-03-09"),
+                LocalDate.parse("2015-05-31"), 1000);
+        verify(mockShardPlanner).recordQueryTime("test-table-id", LocalDate.parse("2015-06-01"),
+                LocalDate.parse("2015-09-16"), 2000);
+        verify(mockSynapseHelper, never()).generateFileHandleFromTableQuery(any(), any(), any(), any());
+        verify(mockSynapseHelper, times(2)).generateFileHandleFromTableQueryAsync(any(), any(), any(), any());
+
+        validateFilesCleanedUp(result);
+    }
+
+    // Mocks a query batcher that writes the given CSV content to the target file, then completes with the given
+    // exception, if any.
+    private SynapseQueryBatcher mockQueryBatcher(String csvContent, Exception batchException) {
+        SynapseQueryBatcher mockQueryBatcher = mock(SynapseQueryBatcher.class);
+        when(mockQueryBatcher.queryUserCsv(any(), any(), any(), any(), any())).thenAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(4, File.class);
+            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                targetFileWriter.write(csvContent);
+            }
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (batchException != null) {
+                future.completeExceptionally(batchException);
+            } else {
+                future.complete(null);
+            }
+            return future;
+        });
+        task.setQueryBatcher(mockQueryBatcher);
+        return mockQueryBatcher;
+    }
+
+    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
+            List<FileDownloadSummary> fileSummaryList) throws Exception {
+        setupTestWithArgs(schema, csvContent, csvException, fileSummaryList, false);
+    }
+
+    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
+            List<FileDownloadSummary> fileSummaryList, boolean streamToZip) throws Exception {
+        setupTestWithArgs(schema, csvContent, csvException, fileSummaryList, streamToZip, null);
+    }
+
+    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
+            List<FileDownloadSummary> fileSummaryList, boolean streamToZip, String attachmentEntryPrefix)
+            throws Exception {
+        setupTestWithArgs(schema, csvContent, csvException, fileSummaryList, streamToZip, attachmentEntryPrefix,
+                null);
+    }
+
+    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
+            List<FileDownloadSummary> fileSummaryList, boolean streamToZip, String attachmentEntryPrefix,
+            ZipStreamWriter attachmentZipStreamWriter) throws Exception {
+        setupTestWithArgs(schema, csvContent, csvException, fileSummaryList, streamToZip, attachmentEntryPrefix,
+                attachmentZipStreamWriter, null);
+    }
+
+    private void setupTestWithArgs(UploadSchema schema, String csvContent, SynapseException csvException,
+            List<FileDownloadSummary> fileSummaryList, boolean streamToZip, String attachmentEntryPrefix,
+            ZipStreamWriter attachmentZipStreamWriter, SynapseAttachmentRegistry attachmentRegistry)
+            throws Exception {
+        // mock file helper and temp dir
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+
+        // If streaming, set up a zip writer that writes to memory.
+        zipByteArrayOutputStream = null;
+        zipStreamWriter = null;
+        if (streamToZip) {
+            ZipHelper zipHelper = new ZipHelper();
+            zipHelper.setFileHelper(inMemoryFileHelper);
+            zipByteArrayOutputStream = new ByteArrayOutputStream();
+            zipStreamWriter = zipHelper.newStreamWriter(zipByteArrayOutputStream);
+        }
+
+        // set up params and task
+        SynapseDownloadFromTableParameters params = new SynapseDownloadFromTableParameters.Builder()
+                .withSynapseTableId("test-table-id").withHealthCode("test-health-code")
+                .withStartDate(LocalDate.parse("2015-03-09")).withEndDate(LocalDate.parse("2015-09-16"))
+                .withTempDir(tmpDir).withSchema(schema).withZipStreamWriter(zipStreamWriter)
+                .withAttachmentEntryPrefix(attachmentEntryPrefix)
+                .withAttachmentZipStreamWriter(attachmentZipStreamWriter)
+                .withAttachmentRegistry(attachmentRegistry).build();
+        task = new SynapseDownloadFromTableTask(params);
+        task.setFileHelper(inMemoryFileHelper);
+
+        // mock Synapse CSV content
+        mockSynapseHelper = mock(SynapseHelper.class);
+        synapseQueryCaptor = ArgumentCaptor.forClass(String.class);
+        when(mockSynapseHelper.generateFileHandleFromTableQuery(synapseQueryCaptor.capture(), eq("test-table-id"),
+                eq("test-health-code"), any())).thenAnswer(invocation -> reportJobMillis(1000,
+                CompletableFuture.completedFuture("query-csv-file-handle-id")).answer(invocation).join());
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(synapseQueryCaptor.capture(),
+                eq("test-table-id"), eq("test-health-code"), any())).thenAnswer(reportJobMillis(1000,
+                CompletableFuture.completedFuture("query-csv-file-handle-id")));
+        doAnswer(invocation -> {
+            if (csvException != null) {
+                throw csvException;
+            }
+
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                targetFileWriter.write(csvContent);
+            }
+
+            // Needed because Answer declares a return type, even if it's null.
+            return null;
+        }).when(mockSynapseHelper).downloadFileHandle(eq("query-csv-file-handle-id"), any(File.class));
+        when(mockSynapseHelper.openFileHandleStream("query-csv-file-handle-id")).thenAnswer(invocation -> {
+            if (csvException != null) {
+                throw csvException;
+            }
+            return new ByteArrayInputStream(csvContent.getBytes(Charsets.UTF_8));
+        });
+
+        if (fileSummaryList != null) {
+            // mock Synapse bulk download
+            BulkFileDownloadResponse bulkDownloadResponse = new BulkFileDownloadResponse();
+            bulkDownloadResponse.setResultZipFileHandleId("bulk-download-file-handle-id");
+            bulkDownloadResponse.setFileSummary(fileSummaryList);
+
+            synapseFileHandleIdSetCaptor = ArgumentCaptor.forClass(Set.class);
+            when(mockSynapseHelper.generateBulkDownloadFileHandle(eq("test-table-id"),
+                    synapseFileHandleIdSetCaptor.capture(), eq("test-health-code"))).thenReturn(bulkDownloadResponse);
+            when(mockSynapseHelper.generateBulkDownloadFileHandleAsync(eq("test-table-id"),
+                    synapseFileHandleIdSetCaptor.capture(), eq("test-health-code"))).thenReturn(CompletableFuture.completedFuture(
+                    bulkDownloadResponse));
+
+            doAnswer(invocation -> {
+                File targetFile = invocation.getArgumentAt(1, File.class);
+                try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                    targetFileWriter.write("dummy zip content");
+                }
+
+                // Needed because Answer declares a return type, even if it's null.
+                return null;
+            }).when(mockSynapseHelper).downloadFileHandle(eq("bulk-download-file-handle-id"), any(File.class));
+        }
+
+        task.setSynapseHelper(mockSynapseHelper);
+    }
+
+    // Direct string matching means we tightly couple to the CSV writer implementation. Instead, re-parse the file as a
+    // CSV and check the values are what we expect.
+    private List<String[]> parseCsv(File csvFile) throws Exception {
+        try (CSVReader csvFileReader = new CSVReader(inMemoryFileHelper.getReader(csvFile))) {
+            return csvFileReader.readAll();
+        }
+    }
+
+    // Finishes the zip and parses the given entry as a CSV.
+    private List<String[]> parseStreamedCsv(String entryName) throws Exception {
+        zipStreamWriter.close();
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(zipByteArrayOutputStream.toByteArray());
+        try (CSVReader csvReader = new CSVReader(new StringReader(unzippedMap.get(entryName)))) {
+            return csvReader.readAll();
+        }
+    }
+
+    private void postValidation(SynapseDownloadFromTableResult result) throws Exception {
+        validateFilesCleanedUp(result);
+
+        // Validate the Synapse query contains the expected values. Don't string match the entire string. Just validate
+        // that table ID, health code, start date, and end date were used.
+        String query = synapseQueryCaptor.getValue();
+        assertTrue(query.contains("test-table-id"));
+        assertTrue(query.contains("test-health-code"));
+        assertTrue(query.contains("2015-03-09"));
+        assertTrue(query.contains("2015-09-16"));
+    }
+
+    private void validateFilesCleanedUp(SynapseDownloadFromTableResult result) throws Exception {
+        // SynapseDownloadFromTableTask should only leave behind the files it returned and the temp dir. Clean these
+        // files up (which is what the packager would do) and then verify that the mock file system is now empty.
+        if (result != null) {
+            if (result.getCsvFile() != null) {
+                inMemoryFileHelper.deleteFile(result.getCsvFile());
+            }
+
+            for (File oneBulkDownloadFile : result.getBulkDownloadFileList()) {
+                inMemoryFileHelper.deleteFile(oneBulkDownloadFile);
+            }
+        }
+
+        inMemoryFileHelper.deleteDir(tmpDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
     }
 }
@@ -1,10 +1,14 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
@@ -14,7 +18,9 @@ import static org.testng.Assert.fail;
 import java.io.File;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.concurrent.CancellationException;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.CharStreams;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.table.TableEntity;
@@ -24,11 +30,13 @@ import org.testng.annotations.Test;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
 public class SynapseDownloadSurveyTaskTest {
+    private static final String TEST_ETAG = "test-etag";
     private static final String TEST_FILE_HANDLE = "test-file-handle";
     private static final String TEST_SYNAPSE_TABLE_ID = "test-table";
     private static final String TEST_SYNAPSE_TABLE_NAME = "Test Table";
 
     private InMemoryFileHelper fileHelper;
+    private SurveyMetadataCache surveyMetadataCache;
     private SynapseHelper synapseHelper;
     private SynapseDownloadSurveyTask task;
     private File tmpDir;
@@ -41,11 +49,15 @@ public class SynapseDownloadSurveyTaskTest {
         TableEntity table = new TableEntity();
         table.setId(TEST_SYNAPSE_TABLE_ID);
         table.setName(TEST_SYNAPSE_TABLE_NAME);
+        table.setEtag(TEST_ETAG);
         when(synapseHelper.getTable(TEST_SYNAPSE_TABLE_ID)).thenReturn(table);
 
         when(synapseHelper.generateFileHandleFromTableQuery("SELECT * FROM " + TEST_SYNAPSE_TABLE_ID,
                 TEST_SYNAPSE_TABLE_ID)).thenReturn(TEST_FILE_HANDLE);
 
+        // Survey cache misses by default.
+        surveyMetadataCache = mock(SurveyMetadataCache.class);
+
         // create in-memory file helper
         fileHelper = new InMemoryFileHelper();
         tmpDir = fileHelper.createTempDir();
@@ -57,9 +69,77 @@ public class SynapseDownloadSurveyTaskTest {
         // create task
         task = new SynapseDownloadSurveyTask(params);
         task.setFileHelper(fileHelper);
+        task.setSurveyMetadataCache(surveyMetadataCache);
         task.setSynapseHelper(synapseHelper);
     }
 
+    @Test
+    public void cacheHit() throws Exception {
+        // Cache writes the survey file.
+        when(surveyMetadataCache.get(eq(TEST_SYNAPSE_TABLE_ID), eq(TEST_ETAG), notNull(File.class))).thenAnswer(
+                invocation -> {
+                    File targetFile = invocation.getArgumentAt(2, File.class);
+                    try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                        targetFileWriter.write("cached survey content");
+                    }
+                    return true;
+                });
+
+        // execute and validate
+        File file = task.call();
+        try (Reader reader = fileHelper.getReader(file)) {
+            assertEquals(CharStreams.toString(reader), "cached survey content");
+        }
+
+        // We never query Synapse or re-cache the file.
+        verify(synapseHelper, never()).generateFileHandleFromTableQuery(anyString(), anyString());
+        verify(synapseHelper, never()).downloadFileHandle(anyString(), any(File.class));
+        verify(surveyMetadataCache, never()).put(anyString(), anyString(), any(File.class));
+
+        // cleanup/post-validation
+        fileHelper.deleteFile(file);
+        postValidation();
+    }
+
+    @Test
+    public void discardedPrefetchSkipsTask() throws Exception {
+        // The prefetch was discarded before the task started. (This also deletes the temp dir.)
+        SynapseSurveyPrefetch surveyPrefetch = new SynapseSurveyPrefetch(fileHelper,
+                ImmutableSet.of(TEST_SYNAPSE_TABLE_ID), tmpDir);
+        surveyPrefetch.discard();
+        task.setSurveyPrefetch(surveyPrefetch);
+
+        try {
+            task.call();
+            fail("expected exception");
+        } catch (CancellationException ex) {
+            // expected exception
+        }
+        verify(synapseHelper, never()).getTable(anyString());
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void prefetchCleansUpAfterTask() throws Exception {
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = fileHelper.getWriter(targetFile)) {
+                targetFileWriter.write("dummy survey content");
+            }
+            return null;
+        }).when(synapseHelper).downloadFileHandle(eq(TEST_FILE_HANDLE), notNull(File.class));
+
+        SynapseSurveyPrefetch surveyPrefetch = new SynapseSurveyPrefetch(fileHelper,
+                ImmutableSet.of(TEST_SYNAPSE_TABLE_ID), tmpDir);
+        task.setSurveyPrefetch(surveyPrefetch);
+
+        // The task's file is tracked by the prefetch, which deletes it and the dir on discard.
+        File file = task.call();
+        assertTrue(fileHelper.fileExists(file));
+        surveyPrefetch.discard();
+        assertTrue(fileHelper.isEmpty());
+    }
+
     @Test
     public void errorDownloadingFile() throws Exception {
         // set up error
@@ -75,6 +155,7 @@ public class SynapseDownloadSurveyTaskTest {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
+        verify(surveyMetadataCache, never()).put(anyString(), anyString(), any(File.class));
 
         postValidation();
     }
@@ -100,6 +181,7 @@ public class SynapseDownloadSurveyTaskTest {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
+        verify(surveyMetadataCache, never()).put(anyString(), anyString(), any(File.class));
 
         postValidation();
     }
@@ -123,6 +205,9 @@ public class SynapseDownloadSurveyTaskTest {
             assertEquals(CharStreams.toString(reader), "dummy survey content");
         }
 
+        // The downloaded file is cached.
+        verify(surveyMetadataCache).put(TEST_SYNAPSE_TABLE_ID, TEST_ETAG, file);
+
         // cleanup/post-validation
         fileHelper.deleteFile(file);
         postValidation();
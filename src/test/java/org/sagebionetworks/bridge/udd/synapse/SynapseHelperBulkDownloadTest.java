@@ -13,8 +13,11 @@ import static org.testng.Assert.fail;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
@@ -22,6 +25,8 @@ import org.sagebionetworks.repo.model.file.BulkFileDownloadRequest;
 import org.sagebionetworks.repo.model.file.BulkFileDownloadResponse;
 import org.sagebionetworks.repo.model.file.FileHandleAssociateType;
 import org.sagebionetworks.repo.model.file.FileHandleAssociation;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -38,12 +43,37 @@ public class SynapseHelperBulkDownloadTest {
     private SynapseHelper helper;
     private ArgumentCaptor<BulkFileDownloadRequest> requestCaptor;
 
+    private Config config;
+    private SynapseJobAdmission jobAdmission;
+    private SynapseAsyncPoller poller;
+    private ScheduledExecutorService pollExecutorService;
+
+    @BeforeClass
+    public void beforeClass() {
+        pollExecutorService = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        pollExecutorService.shutdownNow();
+    }
+
     @BeforeMethod
     public void setup() throws Exception {
-        // set configs - zero poll interval and 2 tries
-        Config config = mock(Config.class);
-        when(config.getInt(SynapseHelper.CONFIG_KEY_POLL_INTERVAL_MILLIS)).thenReturn(0);
-        when(config.getInt(SynapseHelper.CONFIG_KEY_POLL_MAX_TRIES)).thenReturn(2);
+        // set configs - zero poll interval, and a timeout long enough for a few polls
+        config = mock(Config.class);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_INTERVAL_MILLIS)).thenReturn(0);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_TIMEOUT_MILLIS)).thenReturn(10000);
+        when(config.getInt(SynapseJobAdmission.CONFIG_KEY_BULK_DOWNLOAD_PERMITS)).thenReturn(1);
+        when(config.getInt(SynapseJobAdmission.CONFIG_KEY_QUERY_PERMITS)).thenReturn(1);
+
+        poller = new SynapseAsyncPoller();
+        poller.setConfig(config);
+        poller.setPollCallExecutorService(MoreExecutors.newDirectExecutorService());
+        poller.setPollExecutorService(pollExecutorService);
+
+        jobAdmission = new SynapseJobAdmission();
+        jobAdmission.setConfig(config);
 
         // mock Synapse client
         mockClient = mock(SynapseClient.class);
@@ -52,7 +82,9 @@ public class SynapseHelperBulkDownloadTest {
 
         // set up Synapse helper
         helper = new SynapseHelper();
-        helper.setConfig(config);
+        helper.setAsyncPoller(poller);
+        helper.setJobAdmission(jobAdmission);
+        helper.setNetworkExecutorService(MoreExecutors.newDirectExecutorService());
         helper.setSynapseClient(mockClient);
     }
 
@@ -93,6 +125,10 @@ public class SynapseHelperBulkDownloadTest {
         when(mockClient.getBulkFileDownloadResults(TEST_ASYNC_JOB_TOKEN)).thenThrow(
                 SynapseResultNotReadyException.class);
 
+        // Zero timeout, so the first poll is the last.
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_TIMEOUT_MILLIS)).thenReturn(0);
+        poller.setConfig(config);
+
         // execute and validate
         Exception thrownEx = null;
         try {
@@ -102,8 +138,9 @@ public class SynapseHelperBulkDownloadTest {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
+        assertEquals(jobAdmission.getAvailablePermits(SynapseJobAdmission.JobType.BULK_DOWNLOAD), 1);
 
-        verify(mockClient, times(2)).getBulkFileDownloadResults(anyString());
+        verify(mockClient, times(1)).getBulkFileDownloadResults(anyString());
         postValidation();
     }
 
@@ -121,6 +158,7 @@ public class SynapseHelperBulkDownloadTest {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
+        assertEquals(jobAdmission.getAvailablePermits(SynapseJobAdmission.JobType.BULK_DOWNLOAD), 1);
 
         // Because of retries, we call this 5 times.
         verify(mockClient, times(5)).getBulkFileDownloadResults(anyString());
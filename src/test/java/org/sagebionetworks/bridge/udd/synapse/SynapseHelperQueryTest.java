@@ -1,17 +1,36 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
 import org.sagebionetworks.repo.model.table.DownloadFromTableResult;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -28,12 +47,41 @@ public class SynapseHelperQueryTest {
     private SynapseClient mockClient;
     private SynapseHelper helper;
 
+    private Config config;
+    private SynapseJobAdmission jobAdmission;
+    private SynapseAsyncPoller poller;
+    private ExecutorService networkExecutorService;
+    private ScheduledExecutorService pollExecutorService;
+
+    @BeforeClass
+    public void beforeClass() {
+        networkExecutorService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("test-network-thread").build());
+        pollExecutorService = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        networkExecutorService.shutdownNow();
+        pollExecutorService.shutdownNow();
+    }
+
     @BeforeMethod
     public void setup() throws Exception {
-        // set configs - zero poll interval and 2 tries
-        Config config = mock(Config.class);
-        when(config.getInt(SynapseHelper.CONFIG_KEY_POLL_INTERVAL_MILLIS)).thenReturn(0);
-        when(config.getInt(SynapseHelper.CONFIG_KEY_POLL_MAX_TRIES)).thenReturn(2);
+        // set configs - zero poll interval, and a timeout long enough for a few polls
+        config = mock(Config.class);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_INTERVAL_MILLIS)).thenReturn(0);
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_TIMEOUT_MILLIS)).thenReturn(10000);
+        when(config.getInt(SynapseJobAdmission.CONFIG_KEY_BULK_DOWNLOAD_PERMITS)).thenReturn(1);
+        when(config.getInt(SynapseJobAdmission.CONFIG_KEY_QUERY_PERMITS)).thenReturn(1);
+
+        poller = new SynapseAsyncPoller();
+        poller.setConfig(config);
+        poller.setPollCallExecutorService(MoreExecutors.newDirectExecutorService());
+        poller.setPollExecutorService(pollExecutorService);
+
+        jobAdmission = new SynapseJobAdmission();
+        jobAdmission.setConfig(config);
 
         // mock Synapse client
         mockClient = mock(SynapseClient.class);
@@ -43,7 +91,9 @@ public class SynapseHelperQueryTest {
 
         // set up Synapse helper
         helper = new SynapseHelper();
-        helper.setConfig(config);
+        helper.setAsyncPoller(poller);
+        helper.setJobAdmission(jobAdmission);
+        helper.setNetworkExecutorService(networkExecutorService);
         helper.setSynapseClient(mockClient);
     }
 
@@ -76,12 +126,123 @@ public class SynapseHelperQueryTest {
         verify(mockClient, times(2)).downloadCsvFromTableAsyncGet(anyString(), anyString());
     }
 
+    @Test
+    public void queryAsync() throws Exception {
+        // set up get call
+        DownloadFromTableResult result = new DownloadFromTableResult();
+        result.setResultsFileHandleId(TEST_RESULT_FILE_HANDLE_ID);
+        when(mockClient.downloadCsvFromTableAsyncGet(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID))
+                .thenThrow(SynapseResultNotReadyException.class).thenReturn(result);
+
+        // execute and validate
+        CompletableFuture<String> future = helper.generateFileHandleFromTableQueryAsync(DUMMY_QUERY,
+                TEST_SYNAPSE_TABLE_ID, null);
+        assertEquals(future.get(), TEST_RESULT_FILE_HANDLE_ID);
+
+        verify(mockClient, times(2)).downloadCsvFromTableAsyncGet(anyString(), anyString());
+    }
+
+    @Test
+    public void queryWaitsForPermit() throws Exception {
+        // set up get call
+        DownloadFromTableResult result = new DownloadFromTableResult();
+        result.setResultsFileHandleId(TEST_RESULT_FILE_HANDLE_ID);
+        when(mockClient.downloadCsvFromTableAsyncGet(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID)).thenReturn(result);
+
+        // Someone else holds the only query permit. The query isn't started until they release it.
+        SynapseJobAdmission.Permit otherPermit = jobAdmission.acquire(SynapseJobAdmission.JobType.QUERY,
+                "other-health-code").get();
+        CompletableFuture<String> future = helper.generateFileHandleFromTableQueryAsync(DUMMY_QUERY,
+                TEST_SYNAPSE_TABLE_ID, "test-health-code");
+        verify(mockClient, never()).downloadCsvFromTableAsyncStart(anyString(), anyBoolean(), anyBoolean(), any(),
+                anyString());
+
+        otherPermit.release();
+        assertEquals(future.get(), TEST_RESULT_FILE_HANDLE_ID);
+        assertEquals(jobAdmission.getAvailablePermits(SynapseJobAdmission.JobType.QUERY), 1);
+    }
+
+    @Test
+    public void queuedQueryStartsOnNetworkExecutor() throws Exception {
+        // set up get call
+        DownloadFromTableResult result = new DownloadFromTableResult();
+        result.setResultsFileHandleId(TEST_RESULT_FILE_HANDLE_ID);
+        when(mockClient.downloadCsvFromTableAsyncGet(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID)).thenReturn(result);
+
+        // Record which thread starts the query.
+        List<String> startThreadNameList = new ArrayList<>();
+        when(mockClient.downloadCsvFromTableAsyncStart(DUMMY_QUERY, /*writeHeader*/true,
+                /*includeRowIdAndRowVersion*/false, /*csvDescriptor*/null, TEST_SYNAPSE_TABLE_ID))
+                .thenAnswer(invocation -> {
+                    startThreadNameList.add(Thread.currentThread().getName());
+                    return TEST_ASYNC_JOB_TOKEN;
+                });
+
+        // The query waits for a permit, so it's started on the network executor, not the thread that released it.
+        SynapseJobAdmission.Permit otherPermit = jobAdmission.acquire(SynapseJobAdmission.JobType.QUERY,
+                "other-health-code").get();
+        CompletableFuture<String> future = helper.generateFileHandleFromTableQueryAsync(DUMMY_QUERY,
+                TEST_SYNAPSE_TABLE_ID, "test-health-code");
+        otherPermit.release();
+        assertEquals(future.get(), TEST_RESULT_FILE_HANDLE_ID);
+        assertEquals(startThreadNameList, ImmutableList.of("test-network-thread"));
+    }
+
+    @Test
+    public void networkExecutorShutDown() throws Exception {
+        ExecutorService shutDownExecutorService = Executors.newSingleThreadExecutor();
+        shutDownExecutorService.shutdown();
+        helper.setNetworkExecutorService(shutDownExecutorService);
+
+        // The queued query can't be started, so it fails, and the permit is given back.
+        SynapseJobAdmission.Permit otherPermit = jobAdmission.acquire(SynapseJobAdmission.JobType.QUERY,
+                "other-health-code").get();
+        CompletableFuture<String> future = helper.generateFileHandleFromTableQueryAsync(DUMMY_QUERY,
+                TEST_SYNAPSE_TABLE_ID, "test-health-code");
+        otherPermit.release();
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertSame(ex.getCause().getClass(), RejectedExecutionException.class);
+        }
+        assertEquals(jobAdmission.getAvailablePermits(SynapseJobAdmission.JobType.QUERY), 1);
+        verify(mockClient, never()).downloadCsvFromTableAsyncStart(anyString(), anyBoolean(), anyBoolean(), any(),
+                anyString());
+    }
+
+    @Test
+    public void jobMillisExcludesPermitWait() throws Exception {
+        // set up get call
+        DownloadFromTableResult result = new DownloadFromTableResult();
+        result.setResultsFileHandleId(TEST_RESULT_FILE_HANDLE_ID);
+        when(mockClient.downloadCsvFromTableAsyncGet(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID)).thenReturn(result);
+
+        // Someone else holds the only query permit for a while.
+        SynapseJobAdmission.Permit otherPermit = jobAdmission.acquire(SynapseJobAdmission.JobType.QUERY,
+                "other-health-code").get();
+        List<Long> jobMillisList = new ArrayList<>();
+        CompletableFuture<String> future = helper.generateFileHandleFromTableQueryAsync(DUMMY_QUERY,
+                TEST_SYNAPSE_TABLE_ID, "test-health-code", jobMillisList::add);
+        Thread.sleep(500);
+        otherPermit.release();
+        assertEquals(future.get(), TEST_RESULT_FILE_HANDLE_ID);
+
+        // The job itself is fast. The time waiting for the permit isn't counted.
+        assertEquals(jobMillisList.size(), 1);
+        assertTrue(jobMillisList.get(0) < 500, "job millis " + jobMillisList.get(0));
+    }
+
     @Test
     public void timeout() throws Exception {
         // set up get call
         when(mockClient.downloadCsvFromTableAsyncGet(TEST_ASYNC_JOB_TOKEN, TEST_SYNAPSE_TABLE_ID))
                 .thenThrow(SynapseResultNotReadyException.class);
 
+        // Zero timeout, so the first poll is the last.
+        when(config.getInt(SynapseAsyncPoller.CONFIG_KEY_POLL_TIMEOUT_MILLIS)).thenReturn(0);
+        poller.setConfig(config);
+
         // execute and validate
         Exception thrownEx = null;
         try {
@@ -91,8 +252,9 @@ public class SynapseHelperQueryTest {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
+        assertEquals(jobAdmission.getAvailablePermits(SynapseJobAdmission.JobType.QUERY), 1);
 
-        verify(mockClient, times(2)).downloadCsvFromTableAsyncGet(anyString(), anyString());
+        verify(mockClient, times(1)).downloadCsvFromTableAsyncGet(anyString(), anyString());
     }
 
     @Test
@@ -110,6 +272,7 @@ public class SynapseHelperQueryTest {
             thrownEx = ex;
         }
         assertNotNull(thrownEx);
+        assertEquals(jobAdmission.getAvailablePermits(SynapseJobAdmission.JobType.QUERY), 1);
 
         // Because of retries, we call this 5 times.
         verify(mockClient, times(5)).downloadCsvFromTableAsyncGet(anyString(), anyString());
@@ -1,13 +1,39 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.List;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+import org.mockito.ArgumentCaptor;
 import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.file.BatchFileRequest;
+import org.sagebionetworks.repo.model.file.BatchFileResult;
+import org.sagebionetworks.repo.model.file.FileHandleAssociateType;
+import org.sagebionetworks.repo.model.file.FileHandleAssociation;
+import org.sagebionetworks.repo.model.file.FileResult;
 import org.sagebionetworks.repo.model.table.TableEntity;
 import org.testng.annotations.Test;
 
@@ -19,6 +45,7 @@ public class SynapseHelperTest {
         // set up helper and mock client
         SynapseClient mockClient = mock(SynapseClient.class);
         SynapseHelper helper = new SynapseHelper();
+        helper.setSegmentedDownloader(mock(SynapseSegmentedDownloader.class));
         helper.setSynapseClient(mockClient);
 
         // execute and verify
@@ -28,6 +55,121 @@ public class SynapseHelperTest {
         verify(mockClient).downloadFromFileHandleTemporaryUrl("test-file-handle", mockTargetFile);
     }
 
+    @Test
+    public void downloadFileHandleSegmented() throws Exception {
+        // set up helper, mock client, and mock downloader
+        URL testUrl = new URL("http://example.com/test-file-handle");
+        SynapseClient mockClient = mock(SynapseClient.class);
+        when(mockClient.getFileHandleTemporaryUrl("test-file-handle")).thenReturn(testUrl);
+
+        SynapseSegmentedDownloader mockDownloader = mock(SynapseSegmentedDownloader.class);
+        when(mockDownloader.isEnabled()).thenReturn(true);
+
+        SynapseHelper helper = new SynapseHelper();
+        helper.setSegmentedDownloader(mockDownloader);
+        helper.setSynapseClient(mockClient);
+
+        // execute
+        File mockTargetFile = mock(File.class);
+        helper.downloadFileHandle("test-file-handle", mockTargetFile);
+
+        // verify the downloader was called instead of the client, and that its resolver gets the temporary URL
+        ArgumentCaptor<SynapseSegmentedDownloader.UrlResolver> resolverCaptor = ArgumentCaptor.forClass(
+                SynapseSegmentedDownloader.UrlResolver.class);
+        verify(mockDownloader).download(resolverCaptor.capture(), same(mockTargetFile));
+        assertSame(resolverCaptor.getValue().resolve(), testUrl);
+        verify(mockClient, never()).downloadFromFileHandleTemporaryUrl(any(String.class), any(File.class));
+    }
+
+    @Test
+    public void downloadFileHandleSegmentedError() throws Exception {
+        // set up helper and mock downloader, which throws
+        SynapseSegmentedDownloader mockDownloader = mock(SynapseSegmentedDownloader.class);
+        when(mockDownloader.isEnabled()).thenReturn(true);
+        IOException testException = new IOException("test exception");
+        doThrow(testException).when(mockDownloader).download(any(SynapseSegmentedDownloader.UrlResolver.class),
+                any(File.class));
+
+        SynapseHelper helper = new SynapseHelper();
+        helper.setSegmentedDownloader(mockDownloader);
+        helper.setSynapseClient(mock(SynapseClient.class));
+
+        // execute and validate
+        try {
+            helper.downloadFileHandle("test-file-handle", mock(File.class));
+            fail("expected exception");
+        } catch (SynapseException ex) {
+            assertSame(ex.getCause(), testException);
+        }
+    }
+
+    @Test
+    public void openFileHandleStream() throws Exception {
+        // Mock a URL that returns fixed content, so we don't hit the network.
+        URL testUrl = new URL(null, "test://file-handle", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL url) {
+                return new URLConnection(url) {
+                    @Override
+                    public void connect() {
+                        // no-op
+                    }
+
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream("test content".getBytes(Charsets.UTF_8));
+                    }
+                };
+            }
+        });
+
+        SynapseClient mockClient = mock(SynapseClient.class);
+        when(mockClient.getFileHandleTemporaryUrl("test-file-handle")).thenReturn(testUrl);
+
+        SynapseHelper helper = new SynapseHelper();
+        helper.setSynapseClient(mockClient);
+
+        // execute and validate
+        try (InputStream inputStream = helper.openFileHandleStream("test-file-handle")) {
+            assertEquals(new String(ByteStreams.toByteArray(inputStream), Charsets.UTF_8), "test content");
+        }
+    }
+
+    @Test
+    public void getFileHandleUrlBatch() throws Exception {
+        // mock client
+        List<FileResult> fileResultList = ImmutableList.of(new FileResult(), new FileResult());
+        BatchFileResult batchFileResult = new BatchFileResult();
+        batchFileResult.setRequestedFiles(fileResultList);
+
+        SynapseClient mockClient = mock(SynapseClient.class);
+        when(mockClient.getFileHandleAndUrlBatch(any(BatchFileRequest.class))).thenReturn(batchFileResult);
+
+        SynapseHelper helper = new SynapseHelper();
+        helper.setSynapseClient(mockClient);
+
+        // execute and validate
+        List<FileResult> retval = helper.getFileHandleUrlBatch("test-table", ImmutableList.of("foo-id", "bar-id"));
+        assertSame(retval, fileResultList);
+
+        // validate request - File handles are associated with the table, and we want URLs but not previews.
+        ArgumentCaptor<BatchFileRequest> requestCaptor = ArgumentCaptor.forClass(BatchFileRequest.class);
+        verify(mockClient).getFileHandleAndUrlBatch(requestCaptor.capture());
+        BatchFileRequest request = requestCaptor.getValue();
+        assertTrue(request.getIncludeFileHandles());
+        assertTrue(request.getIncludePreSignedURLs());
+        assertFalse(request.getIncludePreviewPreSignedURLs());
+
+        List<FileHandleAssociation> associationList = request.getRequestedFiles();
+        assertEquals(associationList.size(), 2);
+        assertEquals(associationList.get(0).getFileHandleId(), "foo-id");
+        assertEquals(associationList.get(1).getFileHandleId(), "bar-id");
+        for (FileHandleAssociation oneAssociation : associationList) {
+            assertEquals(oneAssociation.getAssociateObjectId(), "test-table");
+            assertEquals(oneAssociation.getAssociateObjectType(), FileHandleAssociateType.TableEntity);
+        }
+    }
+
     @Test
     public void getTable() throws Exception {
         // This is a pass through. Just test that we pass through the args correctly.
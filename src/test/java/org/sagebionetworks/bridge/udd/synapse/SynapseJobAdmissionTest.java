@@ -0,0 +1,137 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.udd.synapse.SynapseJobAdmission.JobType;
+import org.sagebionetworks.bridge.udd.synapse.SynapseJobAdmission.Permit;
+
+public class SynapseJobAdmissionTest {
+    private SynapseJobAdmission admission;
+
+    @BeforeMethod
+    public void setup() {
+        admission = makeAdmission(1, 2);
+    }
+
+    @Test
+    public void immediateGrant() throws Exception {
+        CompletableFuture<Permit> future = admission.acquire(JobType.QUERY, "key-a");
+        assertTrue(future.isDone());
+        assertEquals(admission.getAvailablePermits(JobType.QUERY), 1);
+
+        future.get().release();
+        assertEquals(admission.getAvailablePermits(JobType.QUERY), 2);
+    }
+
+    @Test
+    public void waitForRelease() throws Exception {
+        Permit permit = admission.acquire(JobType.BULK_DOWNLOAD, "key-a").get();
+        CompletableFuture<Permit> waiter = admission.acquire(JobType.BULK_DOWNLOAD, "key-b");
+        assertFalse(waiter.isDone());
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 0);
+        assertEquals(admission.getWaitingCount(JobType.BULK_DOWNLOAD), 1);
+
+        // Permit is handed straight to the waiter, not returned to the pool.
+        permit.release();
+        assertTrue(waiter.isDone());
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 0);
+        assertEquals(admission.getWaitingCount(JobType.BULK_DOWNLOAD), 0);
+
+        waiter.get().release();
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 1);
+    }
+
+    @Test
+    public void roundRobinAcrossKeys() throws Exception {
+        // Key A queues up 3 jobs before key B and key C queue up 1 each. B and C shouldn't wait behind all of A.
+        Permit permit = admission.acquire(JobType.BULK_DOWNLOAD, "key-a").get();
+        List<String> grantOrder = new ArrayList<>();
+        for (String oneKey : ImmutableList.of("key-a", "key-a", "key-a", "key-b", "key-c")) {
+            admission.acquire(JobType.BULK_DOWNLOAD, oneKey).thenAccept(nextPermit -> {
+                grantOrder.add(oneKey);
+                nextPermit.release();
+            });
+        }
+
+        permit.release();
+        assertEquals(grantOrder, ImmutableList.of("key-a", "key-b", "key-c", "key-a", "key-a"));
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 1);
+    }
+
+    @Test
+    public void separateBudgets() throws Exception {
+        // Using up the bulk download permit doesn't affect queries.
+        admission.acquire(JobType.BULK_DOWNLOAD, "key-a").get();
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 0);
+        assertTrue(admission.acquire(JobType.QUERY, "key-a").isDone());
+        assertTrue(admission.acquire(JobType.QUERY, "key-a").isDone());
+        assertFalse(admission.acquire(JobType.QUERY, "key-a").isDone());
+    }
+
+    @Test
+    public void cancelledWaiterSkipped() throws Exception {
+        Permit permit = admission.acquire(JobType.BULK_DOWNLOAD, "key-a").get();
+        CompletableFuture<Permit> cancelledWaiter = admission.acquire(JobType.BULK_DOWNLOAD, "key-b");
+        CompletableFuture<Permit> waiter = admission.acquire(JobType.BULK_DOWNLOAD, "key-c");
+        cancelledWaiter.cancel(false);
+        assertEquals(admission.getWaitingCount(JobType.BULK_DOWNLOAD), 1);
+
+        permit.release();
+        assertTrue(waiter.isDone());
+        assertFalse(waiter.isCompletedExceptionally());
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 0);
+    }
+
+    @Test
+    public void cancelledLastWaiterReturnsPermit() throws Exception {
+        Permit permit = admission.acquire(JobType.BULK_DOWNLOAD, "key-a").get();
+        admission.acquire(JobType.BULK_DOWNLOAD, "key-b").cancel(false);
+
+        permit.release();
+        assertEquals(admission.getAvailablePermits(JobType.BULK_DOWNLOAD), 1);
+    }
+
+    @Test
+    public void releaseIsIdempotent() throws Exception {
+        Permit permit = admission.acquire(JobType.QUERY, "key-a").get();
+        permit.release();
+        permit.release();
+        assertEquals(admission.getAvailablePermits(JobType.QUERY), 2);
+    }
+
+    @Test
+    public void nullKey() throws Exception {
+        Permit permit = admission.acquire(JobType.BULK_DOWNLOAD, null).get();
+        CompletableFuture<Permit> waiter = admission.acquire(JobType.BULK_DOWNLOAD, null);
+        permit.release();
+        assertTrue(waiter.isDone());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidPermits() {
+        makeAdmission(0, 2);
+    }
+
+    private static SynapseJobAdmission makeAdmission(int bulkDownloadPermits, int queryPermits) {
+        Config config = mock(Config.class);
+        when(config.getInt(SynapseJobAdmission.CONFIG_KEY_BULK_DOWNLOAD_PERMITS)).thenReturn(bulkDownloadPermits);
+        when(config.getInt(SynapseJobAdmission.CONFIG_KEY_QUERY_PERMITS)).thenReturn(queryPermits);
+
+        SynapseJobAdmission admission = new SynapseJobAdmission();
+        admission.setConfig(config);
+        return admission;
+    }
+}
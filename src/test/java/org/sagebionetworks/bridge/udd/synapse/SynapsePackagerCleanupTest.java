@@ -32,36 +32,20 @@ public class SynapsePackagerCleanupTest {
 
     @Test
     public void nullFileList() {
-        packager.cleanupFiles(null, null, tmpDir);
+        packager.cleanupFiles(null, tmpDir);
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
     @Test
     public void emptyFileList() {
-        packager.cleanupFiles(ImmutableList.of(), null, tmpDir);
+        packager.cleanupFiles(ImmutableList.of(), tmpDir);
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
     @Test
-    public void fileListWithNoMasterZip() throws Exception {
+    public void fileList() throws Exception {
         List<File> fileList = ImmutableList.of(createEmptyFile("foo"), createEmptyFile("bar"), createEmptyFile("baz"));
-        packager.cleanupFiles(fileList, null, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
-    }
-
-    @Test
-    public void masterZipDoesntExist() throws Exception {
-        List<File> fileList = ImmutableList.of(createEmptyFile("foo"), createEmptyFile("bar"), createEmptyFile("baz"));
-        File masterZipFile = inMemoryFileHelper.newFile(tmpDir, "master.zip");
-        packager.cleanupFiles(fileList, masterZipFile, tmpDir);
-        assertTrue(inMemoryFileHelper.isEmpty());
-    }
-
-    @Test
-    public void fileListAndMasterZip() throws Exception {
-        List<File> fileList = ImmutableList.of(createEmptyFile("foo"), createEmptyFile("bar"), createEmptyFile("baz"));
-        File masterZipFile = createEmptyFile("master.zip");
-        packager.cleanupFiles(fileList, masterZipFile, tmpDir);
+        packager.cleanupFiles(fileList, tmpDir);
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
@@ -70,8 +54,7 @@ public class SynapsePackagerCleanupTest {
     public void someFilesDontExist() throws Exception {
         List<File> fileList = ImmutableList.of(inMemoryFileHelper.newFile(tmpDir, "foo"),
                 inMemoryFileHelper.newFile(tmpDir, "baz"), inMemoryFileHelper.newFile(tmpDir, "baz"));
-        File masterZipFile = inMemoryFileHelper.newFile(tmpDir, "master.zip");
-        packager.cleanupFiles(fileList, masterZipFile, tmpDir);
+        packager.cleanupFiles(fileList, tmpDir);
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
@@ -1,13 +1,17 @@
 package org.sagebionetworks.bridge.udd.synapse;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -21,18 +25,28 @@ import static org.testng.Assert.fail;
 import java.io.File;
 import java.io.Writer;
 import java.net.URL;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.HttpMethod;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 import org.joda.time.LocalDate;
@@ -43,9 +57,13 @@ import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.schema.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
 import org.sagebionetworks.bridge.udd.helper.ZipHelperTest;
+import org.sagebionetworks.bridge.udd.helper.ZipStreamWriter;
+import org.sagebionetworks.bridge.udd.s3.ExportArtifactCache;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
+import org.sagebionetworks.bridge.udd.s3.S3MultipartUploadHelper;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddRequest;
 
 @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -64,9 +82,12 @@ public class SynapsePackagerTest {
             .withUserId("dummy-user").withStartDate(LocalDate.parse(TEST_START_DATE))
             .withEndDate(LocalDate.parse(TEST_END_DATE)).build();
 
+    private ExportArtifactCache mockExportArtifactCache;
+    private AmazonS3Client mockS3Client;
     private S3Helper mockS3Helper;
     private InMemoryFileHelper inMemoryFileHelper;
     private SynapsePackager packager;
+    private SynapseTableStatsStore mockTableStatsStore;
     private byte[] s3FileBytes;
 
     @Test
@@ -84,7 +105,7 @@ public class SynapsePackagerTest {
         assertNull(presignedUrlInfo);
 
         // validate S3 not called
-        verifyZeroInteractions(mockS3Helper);
+        verifyZeroInteractions(mockS3Client, mockS3Helper);
         assertNull(s3FileBytes);
 
         // validate mock file helper is clean
@@ -108,7 +129,7 @@ public class SynapsePackagerTest {
         assertNull(presignedUrlInfo);
 
         // validate S3 not called
-        verifyZeroInteractions(mockS3Helper);
+        verifyZeroInteractions(mockS3Client, mockS3Helper);
         assertNull(s3FileBytes);
 
         // validate mock file helper is clean
@@ -198,6 +219,9 @@ public class SynapsePackagerTest {
         DateTime expirationTime = expirationTimeCaptor.getValue();
         assertEquals(expirationTime.getMillis(), expectedExpirationTimeMillis);
 
+        // Export with errors isn't cached.
+        verify(mockExportArtifactCache, never()).put(anyString(), anyString());
+
         // validate mock file helper is clean
         assertTrue(inMemoryFileHelper.isEmpty());
     }
@@ -236,6 +260,368 @@ public class SynapsePackagerTest {
         DateTime expirationTime = expirationTimeCaptor.getValue();
         assertEquals(expirationTime.getMillis(), expectedExpirationTimeMillis);
 
+        // Complete export is cached.
+        verify(mockExportArtifactCache).put(anyString(), startsWith(TEST_MASTER_ZIP_FILE_PREFIX));
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void cachedExport() throws Exception {
+        // setup test
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, surveyTableToResultContent, null);
+
+        ArgumentCaptor<String> cacheKeyMaterialCaptor = ArgumentCaptor.forClass(String.class);
+        when(mockExportArtifactCache.get(cacheKeyMaterialCaptor.capture())).thenReturn("cached-export.zip");
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), eq("cached-export.zip"), any(),
+                eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/cached"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet);
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/cached");
+        assertEquals(presignedUrlInfo.getExpirationTime().getMillis(),
+                MOCK_NOW.plusHours(URL_EXPIRATION_HOURS).getMillis());
+
+        // Cache key covers the request, the tables, the surveys, and the zip layout settings.
+        String cacheKeyMaterial = cacheKeyMaterialCaptor.getValue();
+        assertTrue(cacheKeyMaterial.contains(TEST_HEALTH_CODE));
+        assertTrue(cacheKeyMaterial.contains(TEST_START_DATE));
+        assertTrue(cacheKeyMaterial.contains(TEST_END_DATE));
+        assertTrue(cacheKeyMaterial.contains("test-table-id"));
+        assertTrue(cacheKeyMaterial.contains("test-survey"));
+        assertTrue(cacheKeyMaterial.contains("flattenAttachments="));
+        assertTrue(cacheKeyMaterial.contains("dedupeAttachments="));
+        assertTrue(cacheKeyMaterial.contains("directAttachments="));
+
+        // Nothing is exported, and the surveys were never started, so there are no temp dirs.
+        verifyZeroInteractions(mockS3Client);
+        verify(mockExportArtifactCache, never()).put(anyString(), anyString());
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void streamCsv() throws Exception {
+        // setup test
+        // We don't care about data inside the schema. Use mock schemas.
+        Map<String, UploadSchema> synapseTableToSchema = new ImmutableMap.Builder()
+                .put("csv-only-table", mock(UploadSchema.class))
+                .put("csv-and-bulk-download-table", mock(UploadSchema.class))
+                .build();
+
+        Map<String, SynapseTaskResultContent> synapseTableToResult = new ImmutableMap.Builder()
+                .put("csv-only-table", new SynapseTaskResultContent("csv-only.csv", "csv-only dummy csv", null, null))
+                .put("csv-and-bulk-download-table", new SynapseTaskResultContent("csv-and-bulk-download.csv",
+                        "csv-and-bulk-download dummy csv", "csv-and-bulk-download.zip",
+                        "csv-and-bulk-download dummy zip"))
+                .build();
+
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+        setupConfig(true);
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet);
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        // Streamed entries and file entries all end up in the same zip.
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 4);
+        assertEquals(unzippedMap.get("csv-only.csv"), "csv-only dummy csv");
+        assertEquals(unzippedMap.get("csv-and-bulk-download.csv"), "csv-and-bulk-download dummy csv");
+        assertEquals(unzippedMap.get("csv-and-bulk-download.zip"), "csv-and-bulk-download dummy zip");
+        assertEquals(unzippedMap.get("test-survey.csv"), "dummy survey content");
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void streamCsvNoData() throws Exception {
+        // setup test
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent(null, null, null, null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+        setupConfig(true);
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet);
+        assertNull(presignedUrlInfo);
+
+        // validate S3 not called
+        verifyZeroInteractions(mockS3Client, mockS3Helper);
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void flattenAttachments() throws Exception {
+        // setup test - Schema key is used to name the attachment folder.
+        UploadSchemaKey schemaKey = new UploadSchemaKey.Builder().withAppId("test-study")
+                .withSchemaId("test-schema").withRevision(3).build();
+        UploadSchema mockSchema = mock(UploadSchema.class);
+        when(mockSchema.getKey()).thenReturn(schemaKey);
+
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mockSchema);
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("test-table-id",
+                new SynapseTaskResultContent("test-table.csv", "dummy csv content", "test-table.zip",
+                        "dummy zip content"));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+        setupConfig(false, true);
+
+        // In-memory files can't hold binary content, so spy the packager to read the bulk download from a real zip.
+        byte[] bulkDownloadZipBytes = ZipHelperTest.createZip(ImmutableMap.of("dir/foo.txt", "foo content",
+                "bar.txt", "bar content"), "bar.txt");
+        packager = spy(packager);
+        doAnswer(invocation -> {
+            File zipFile = invocation.getArgumentAt(0, File.class);
+            assertEquals(zipFile.getName(), "test-table.zip");
+            return new SeekableInMemoryByteChannel(bulkDownloadZipBytes);
+        }).when(packager).openZipChannel(any(File.class));
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableToResultContent.keySet());
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        // Bulk download entries are flattened into a folder named after the schema, with no nested zip.
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 3);
+        assertEquals(unzippedMap.get("test-table.csv"), "dummy csv content");
+        assertEquals(unzippedMap.get("test-study-test-schema-v3/dir/foo.txt"), "foo content");
+        assertEquals(unzippedMap.get("test-study-test-schema-v3/bar.txt"), "bar content");
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void directAttachmentFetch() throws Exception {
+        // setup test - We only care about the task params, so capture the tasks instead of running them.
+        UploadSchemaKey schemaKey = new UploadSchemaKey.Builder().withAppId("test-study")
+                .withSchemaId("test-schema").withRevision(3).build();
+        UploadSchema mockSchema = mock(UploadSchema.class);
+        when(mockSchema.getKey()).thenReturn(schemaKey);
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", mockSchema);
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, ImmutableMap.of(), null);
+
+        SynapseDirectAttachmentFetcher mockFetcher = mock(SynapseDirectAttachmentFetcher.class);
+        when(mockFetcher.isEnabled()).thenReturn(true);
+        packager.setDirectAttachmentFetcher(mockFetcher);
+
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        packager.setAuxiliaryExecutorService(mockExecutorService);
+        ZipStreamWriter mockZipStreamWriter = mock(ZipStreamWriter.class);
+
+        // Attachments flattened - Tasks get the master zip for attachments, but not for CSVs.
+        setupConfig(false, true);
+        packager.initAsyncQueryTasks(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, new File("tmp"),
+                mockZipStreamWriter, null);
+
+        // Attachments not flattened - Direct fetch is skipped.
+        setupConfig(false, false);
+        packager.initAsyncQueryTasks(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, new File("tmp"),
+                mockZipStreamWriter, null);
+
+        // validate
+        ArgumentCaptor<Callable> taskCaptor = ArgumentCaptor.forClass(Callable.class);
+        verify(mockExecutorService, times(2)).submit(taskCaptor.capture());
+        List<Callable> taskList = taskCaptor.getAllValues();
+
+        SynapseDownloadFromTableParameters flattenedParams = ((SynapseDownloadFromTableTask) taskList.get(0))
+                .getParameters();
+        assertNull(flattenedParams.getZipStreamWriter());
+        assertEquals(flattenedParams.getAttachmentEntryPrefix(), "test-study-test-schema-v3/");
+        assertSame(flattenedParams.getAttachmentZipStreamWriter(), mockZipStreamWriter);
+
+        SynapseDownloadFromTableParameters nestedParams = ((SynapseDownloadFromTableTask) taskList.get(1))
+                .getParameters();
+        assertNull(nestedParams.getAttachmentEntryPrefix());
+        assertNull(nestedParams.getAttachmentZipStreamWriter());
+    }
+
+    @Test
+    public void dedupeAttachments() throws Exception {
+        // setup test - Two revisions of the same schema, which can share attachments.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("table-v1", mockSchemaWithRevision(1),
+                "table-v2", mockSchemaWithRevision(2));
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, ImmutableMap.of(), null);
+        setupConfig(false, true, false, true);
+
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        packager.setAuxiliaryExecutorService(mockExecutorService);
+
+        // execute - The packager creates the registry, one per export.
+        SynapseAttachmentRegistry attachmentRegistry = new SynapseAttachmentRegistry();
+        packager.initAsyncQueryTasks(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST, new File("tmp"),
+                null, attachmentRegistry);
+
+        // validate - Both tables share the registry.
+        ArgumentCaptor<Callable> taskCaptor = ArgumentCaptor.forClass(Callable.class);
+        verify(mockExecutorService, times(2)).submit(taskCaptor.capture());
+        for (Callable oneTask : taskCaptor.getAllValues()) {
+            assertSame(((SynapseDownloadFromTableTask) oneTask).getParameters().getAttachmentRegistry(),
+                    attachmentRegistry);
+        }
+    }
+
+    @Test
+    public void dedupeAttachmentsOrphanedZip() throws Exception {
+        // setup test - One table, whose task is mocked out. The task fails after publishing its attachments, so its
+        // bulk download is orphaned in the registry, and its CSV is missing from the master zip.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id",
+                mockSchemaWithRevision(3));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of();
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, surveyTableToResultContent, null);
+        setupConfig(false, true, false, true);
+
+        byte[] bulkDownloadZipBytes = ZipHelperTest.createZip(ImmutableMap.of("foo.txt", "foo content"), null);
+        packager = spy(packager);
+        doAnswer(invocation -> {
+            File tmpDir = invocation.getArgumentAt(3, File.class);
+            SynapseAttachmentRegistry attachmentRegistry = invocation.getArgumentAt(5,
+                    SynapseAttachmentRegistry.class);
+            assertNotNull(attachmentRegistry);
+
+            File bulkDownloadFile = inMemoryFileHelper.newFile(tmpDir, "test-table.zip");
+            try (Writer bulkDownloadFileWriter = inMemoryFileHelper.getWriter(bulkDownloadFile)) {
+                bulkDownloadFileWriter.write("dummy zip content");
+            }
+            attachmentRegistry.addOrphanedZips(ImmutableList.of(bulkDownloadFile), "test-study-test-schema-v3/");
+
+            Future<SynapseDownloadFromTableResult> mockFuture = mock(Future.class);
+            when(mockFuture.get()).thenThrow(new ExecutionException(new TestSynapseException()));
+            return ImmutableList.of(mockFuture);
+        }).when(packager).initAsyncQueryTasks(any(), any(), any(), any(), any(), any());
+        doAnswer(invocation -> new SeekableInMemoryByteChannel(bulkDownloadZipBytes)).when(packager)
+                .openZipChannel(any(File.class));
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute
+        packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE, TEST_UDD_REQUEST,
+                surveyTableToResultContent.keySet());
+
+        // validate - The orphaned attachments are still flattened into the master zip.
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.get("test-study-test-schema-v3/foo.txt"), "foo content");
+        assertTrue(unzippedMap.containsKey(SynapsePackager.ERROR_LOG_FILE_NAME));
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void stageGraph() throws Exception {
+        // setup test - Stage graph runs the real task, so use a real schema and a mock Synapse helper.
+        UploadSchemaKey schemaKey = new UploadSchemaKey.Builder().withAppId("test-study")
+                .withSchemaId("test-schema").withRevision(3).build();
+        UploadSchema schema = new UploadSchema.Builder().withKey(schemaKey).addField("foo", "INT").build();
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("test-table-id", schema);
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        setupPackager(synapseTableToSchema, ImmutableMap.of(), null, surveyTableToResultContent, null);
+        setupConfig(false, false, true);
+        packager.setNetworkExecutorService(MoreExecutors.newDirectExecutorService());
+        packager.setCsvProcessingExecutorService(MoreExecutors.newDirectExecutorService());
+
+        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(anyString(), eq("test-table-id"),
+                eq(TEST_HEALTH_CODE), any())).thenReturn(CompletableFuture.completedFuture("csv-file-handle-id"));
+        doAnswer(invocation -> {
+            File targetFile = invocation.getArgumentAt(1, File.class);
+            try (Writer targetFileWriter = inMemoryFileHelper.getWriter(targetFile)) {
+                targetFileWriter.write("\"recordId\",\"healthCode\",\"foo\"\n" +
+                        "\"record-1\",\"test-health-code\",\"42\"");
+            }
+            return null;
+        }).when(mockSynapseHelper).downloadFileHandle(eq("csv-file-handle-id"), any(File.class));
+        packager.setSynapseHelper(mockSynapseHelper);
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableToResultContent.keySet());
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        // Health code is scrubbed. Table tasks never go through the aux executor's submit.
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("test-study-test-schema-v3.csv"), "\"recordId\",\"healthCode\",\"foo\"\n" +
+                "\"record-1\",,\"42\"\n");
+        assertEquals(unzippedMap.get("test-survey.csv"), "dummy survey content");
+        verify(mockSynapseHelper, never()).generateFileHandleFromTableQuery(anyString(), anyString(),
+                anyString(), any());
+
+        // validate mock file helper is clean
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void skipsTablesOutsideDateRange() throws Exception {
+        // setup test
+        // We don't care about data inside the schema. Use mock schemas.
+        Map<String, UploadSchema> synapseTableToSchema = ImmutableMap.of("retired-table", mock(UploadSchema.class),
+                "stale-stats-table", mock(UploadSchema.class), "current-table", mock(UploadSchema.class),
+                "no-stats-table", mock(UploadSchema.class));
+        Map<String, SynapseTaskResultContent> synapseTableToResult = ImmutableMap.of("stale-stats-table",
+                new SynapseTaskResultContent("stale-stats.csv", "stale-stats dummy csv", null, null), "current-table",
+                new SynapseTaskResultContent("current.csv", "current dummy csv", null, null), "no-stats-table",
+                new SynapseTaskResultContent("no-stats.csv", "no-stats dummy csv", null, null));
+        Map<String, String> surveyTableToResultContent = ImmutableMap.of("test-survey", "dummy survey content");
+        Set<String> surveyTableIdSet = surveyTableToResultContent.keySet();
+        setupPackager(synapseTableToSchema, synapseTableToResult, null, surveyTableToResultContent, null);
+
+        // Retired table's rows all predate the request, and its stats were computed after the request's range ended.
+        // (If the retired table were queried, the executor would fail on the missing result.)
+        when(mockTableStatsStore.getStats("retired-table")).thenReturn(new SynapseTableStats.Builder()
+                .withComputedOnMillis(MOCK_NOW.plusDays(3).getMillis()).withMinUploadDate(LocalDate.parse("2014-01-01"))
+                .withMaxUploadDate(LocalDate.parse("2014-06-30")).withRowCount(1000).build());
+
+        // Same, but the stats were computed before the request's range ended, so rows may have been added since.
+        when(mockTableStatsStore.getStats("stale-stats-table")).thenReturn(new SynapseTableStats.Builder()
+                .withComputedOnMillis(MOCK_NOW.getMillis()).withMinUploadDate(LocalDate.parse("2014-01-01"))
+                .withMaxUploadDate(LocalDate.parse("2014-06-30")).withRowCount(1000).build());
+        when(mockTableStatsStore.getStats("current-table")).thenReturn(new SynapseTableStats.Builder()
+                .withActive(true).withComputedOnMillis(MOCK_NOW.getMillis())
+                .withMinUploadDate(LocalDate.parse("2015-01-01")).withMaxUploadDate(LocalDate.parse("2015-09-16"))
+                .withRowCount(1000).build());
+
+        when(mockS3Helper.generatePresignedUrl(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
+                any(DateTime.class), eq(HttpMethod.GET))).thenReturn(new URL("http://example.com/"));
+
+        // execute and validate
+        PresignedUrlInfo presignedUrlInfo = packager.packageSynapseData(synapseTableToSchema, TEST_HEALTH_CODE,
+                TEST_UDD_REQUEST, surveyTableIdSet);
+        assertEquals(presignedUrlInfo.getUrl().toString(), "http://example.com/");
+
+        Map<String, String> unzippedMap = ZipHelperTest.unzipHelper(s3FileBytes);
+        assertEquals(unzippedMap.size(), 4);
+        assertEquals(unzippedMap.get("stale-stats.csv"), "stale-stats dummy csv");
+        assertEquals(unzippedMap.get("current.csv"), "current dummy csv");
+        assertEquals(unzippedMap.get("no-stats.csv"), "no-stats dummy csv");
+        assertEquals(unzippedMap.get("test-survey.csv"), "dummy survey content");
+
         // validate mock file helper is clean
         assertTrue(inMemoryFileHelper.isEmpty());
     }
@@ -252,11 +638,22 @@ public class SynapsePackagerTest {
         // set up mocks - We bypass most of the stuff in setupPackager()
         packager = spy(new SynapsePackager());
         doThrow(RuntimeException.class).when(packager).initAsyncQueryTasks(same(synapseTableToSchema),
-                eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST), any(File.class));
+                eq(TEST_HEALTH_CODE), same(TEST_UDD_REQUEST), any(File.class), any(ZipStreamWriter.class),
+                any(SynapseAttachmentRegistry.class));
 
         inMemoryFileHelper = new InMemoryFileHelper();
         packager.setFileHelper(inMemoryFileHelper);
 
+        // Survey tasks are started before the query tasks, so they need an executor.
+        packager.setAuxiliaryExecutorService(mock(ExecutorService.class));
+
+        ZipHelper zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(inMemoryFileHelper);
+        packager.setZipHelper(zipHelper);
+
+        mockS3Client = mock(AmazonS3Client.class);
+        packager.setS3MultipartUploadHelper(createS3MultipartUploadHelper());
+
         // execute
         Exception thrownEx = null;
         try {
@@ -268,6 +665,9 @@ public class SynapsePackagerTest {
         }
         assertNotNull(thrownEx);
 
+        // validate nothing was sent to S3
+        verifyZeroInteractions(mockS3Client);
+
         // validate mock file helper is clean
         assertTrue(inMemoryFileHelper.isEmpty());
     }
@@ -329,6 +729,26 @@ public class SynapsePackagerTest {
         // branch coverage: noop synapse helper
         packager.setSynapseHelper(mock(SynapseHelper.class));
 
+        // No table stats by default, so all tables are queried.
+        mockTableStatsStore = mock(SynapseTableStatsStore.class);
+        packager.setTableStatsStore(mockTableStatsStore);
+
+        // Query batching is disabled by default.
+        packager.setQueryBatcher(mock(SynapseQueryBatcher.class));
+
+        // Shard planner has no history, so queries are never sharded.
+        packager.setShardPlanner(new SynapseQueryShardPlanner());
+
+        // Attachment cache is disabled by default.
+        packager.setAttachmentCache(mock(SynapseAttachmentCache.class));
+
+        // Direct attachment fetch is disabled by default.
+        packager.setDirectAttachmentFetcher(mock(SynapseDirectAttachmentFetcher.class));
+
+        // Export cache misses by default.
+        mockExportArtifactCache = mock(ExportArtifactCache.class);
+        packager.setExportArtifactCache(mockExportArtifactCache);
+
         // mock file helper
         inMemoryFileHelper = new InMemoryFileHelper();
         packager.setFileHelper(inMemoryFileHelper);
@@ -370,14 +790,24 @@ public class SynapsePackagerTest {
                 SynapseDownloadFromTableResult.Builder taskResultBuilder =
                         new SynapseDownloadFromTableResult.Builder();
                 if (taskResultContent.getCsvFileContent() != null) {
-                    File csvFile = createFileWithContent(tmpDir, taskResultContent.getCsvFileName(),
-                            taskResultContent.getCsvFileContent());
-                    taskResultBuilder.withCsvFile(csvFile);
+                    ZipStreamWriter zipStreamWriter = params.getZipStreamWriter();
+                    if (zipStreamWriter != null) {
+                        // Streaming mode. Write the CSV directly into the zip.
+                        zipStreamWriter.writeEntry(taskResultContent.getCsvFileName(), entryOutputStream ->
+                                entryOutputStream.write(taskResultContent.getCsvFileContent().getBytes(
+                                        Charsets.UTF_8)));
+                        taskResultBuilder.withStreamedCsvEntryName(taskResultContent.getCsvFileName());
+                    } else {
+                        File csvFile = createFileWithContent(tmpDir, taskResultContent.getCsvFileName(),
+                                taskResultContent.getCsvFileContent());
+                        taskResultBuilder.withCsvFile(csvFile);
+                    }
                 }
                 if (taskResultContent.getBulkDownloadFileContent() != null) {
                     File bulkDownloadFile = createFileWithContent(tmpDir, taskResultContent.getBulkDownloadFileName(),
                             taskResultContent.getBulkDownloadFileContent());
-                    taskResultBuilder.withBulkDownloadFile(bulkDownloadFile);
+                    taskResultBuilder.withBulkDownloadFileList(ImmutableList.of(bulkDownloadFile))
+                            .withAttachmentEntryPrefix(params.getAttachmentEntryPrefix());
                 }
 
                 when(mockFuture.get()).thenReturn(taskResultBuilder.build());
@@ -402,9 +832,14 @@ public class SynapsePackagerTest {
                     }
                 }
 
-                // create a mock Future that returns the result from the surveyTableToResultContent map
+                // create a mock Future that returns the result from the surveyTableToResultContent map. Check in with
+                // the survey prefetch, like the real task does, so the prefetch can clean up the file.
+                SynapseSurveyPrefetch surveyPrefetch = task.getSurveyPrefetch();
+                assertNotNull(surveyPrefetch);
+                assertTrue(surveyPrefetch.taskStarted());
                 String resultContent = surveyTableToResultContent.get(synapseTableId);
                 File resultFile = createFileWithContent(tmpDir, synapseTableId + ".csv", resultContent);
+                surveyPrefetch.taskFinished(resultFile);
                 when(mockFuture.get()).thenReturn(resultFile);
                 return mockFuture;
             } else {
@@ -421,29 +856,78 @@ public class SynapsePackagerTest {
         packager.setZipHelper(zipHelper);
 
         // mock config
-        Config mockConfig = mock(Config.class);
-        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_EXPIRATION_HOURS)).thenReturn(URL_EXPIRATION_HOURS);
-        when(mockConfig.get(SynapsePackager.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
-        packager.setConfig(mockConfig);
+        setupConfig(false);
 
         // Clean up s3FileBytes. Apparently, TestNG doesn't clean state between each test.
         s3FileBytes = null;
 
+        // Mock S3 client for the multipart upload helper. The files are small enough that this will always be a single
+        // PUT. Multipart behavior is tested in S3MultipartOutputStreamTest.
+        mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            PutObjectRequest request = invocation.getArgumentAt(0, PutObjectRequest.class);
+            assertEquals(request.getBucketName(), DUMMY_USER_DATA_BUCKET);
+            assertTrue(request.getKey().startsWith(TEST_MASTER_ZIP_FILE_PREFIX));
+            s3FileBytes = ByteStreams.toByteArray(request.getInputStream());
+            return new PutObjectResult();
+        });
+
+        packager.setS3MultipartUploadHelper(createS3MultipartUploadHelper());
+
         // mock S3 helper
         // Different tests do different things with pre-signed URL, so leave that one alone.
         mockS3Helper = mock(S3Helper.class);
-        doAnswer(invocation -> {
-            // on cleanup, the file is destroyed, so we need to intercept that file now
-            File s3File = invocation.getArgumentAt(2, File.class);
-            s3FileBytes = inMemoryFileHelper.getBytes(s3File);
-
-            // needed because Answer declares a return type, even if it's Void
-            return null;
-        }).when(mockS3Helper).writeFileToS3(eq(DUMMY_USER_DATA_BUCKET), startsWith(TEST_MASTER_ZIP_FILE_PREFIX),
-                any(File.class));
         packager.setS3Helper(mockS3Helper);
     }
 
+    private void setupConfig(boolean streamCsv) {
+        setupConfig(streamCsv, false);
+    }
+
+    private void setupConfig(boolean streamCsv, boolean flattenAttachments) {
+        setupConfig(streamCsv, flattenAttachments, false);
+    }
+
+    private void setupConfig(boolean streamCsv, boolean flattenAttachments, boolean stageGraph) {
+        setupConfig(streamCsv, flattenAttachments, stageGraph, false);
+    }
+
+    private void setupConfig(boolean streamCsv, boolean flattenAttachments, boolean stageGraph,
+            boolean dedupeAttachments) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_EXPIRATION_HOURS)).thenReturn(URL_EXPIRATION_HOURS);
+        when(mockConfig.get(SynapsePackager.CONFIG_KEY_USERDATA_BUCKET)).thenReturn(DUMMY_USER_DATA_BUCKET);
+        when(mockConfig.get(SynapsePackager.CONFIG_KEY_STREAM_CSV)).thenReturn(String.valueOf(streamCsv));
+        when(mockConfig.getInt(SynapsePackager.CONFIG_KEY_STREAM_CSV_MAX_BUFFER_CHARS)).thenReturn(1024);
+        when(mockConfig.get(SynapsePackager.CONFIG_KEY_FLATTEN_ATTACHMENTS)).thenReturn(String.valueOf(
+                flattenAttachments));
+        when(mockConfig.get(SynapsePackager.CONFIG_KEY_STAGE_GRAPH)).thenReturn(String.valueOf(stageGraph));
+        when(mockConfig.get(SynapsePackager.CONFIG_KEY_DEDUPE_ATTACHMENTS)).thenReturn(String.valueOf(
+                dedupeAttachments));
+        packager.setConfig(mockConfig);
+    }
+
+    private static UploadSchema mockSchemaWithRevision(int revision) {
+        UploadSchemaKey schemaKey = new UploadSchemaKey.Builder().withAppId("test-study")
+                .withSchemaId("test-schema").withRevision(revision).build();
+        UploadSchema mockSchema = mock(UploadSchema.class);
+        when(mockSchema.getKey()).thenReturn(schemaKey);
+        return mockSchema;
+    }
+
+    private S3MultipartUploadHelper createS3MultipartUploadHelper() {
+        Config mockMultipartConfig = mock(Config.class);
+        when(mockMultipartConfig.getInt(S3MultipartUploadHelper.CONFIG_KEY_PART_SIZE_BYTES)).thenReturn(
+                5 * 1024 * 1024);
+        when(mockMultipartConfig.getInt(S3MultipartUploadHelper.CONFIG_KEY_MAX_IN_FLIGHT_PARTS)).thenReturn(2);
+
+        S3MultipartUploadHelper s3MultipartUploadHelper = new S3MultipartUploadHelper();
+        s3MultipartUploadHelper.setConfig(mockMultipartConfig);
+        s3MultipartUploadHelper.setS3Client(mockS3Client);
+        s3MultipartUploadHelper.setUploadExecutorService(MoreExecutors.newDirectExecutorService());
+        return s3MultipartUploadHelper;
+    }
+
     private File createFileWithContent(File tmpDir, String filename, String content) throws Exception {
         File file = inMemoryFileHelper.newFile(tmpDir, filename);
         try (Writer fileWriter = inMemoryFileHelper.getWriter(file)) {
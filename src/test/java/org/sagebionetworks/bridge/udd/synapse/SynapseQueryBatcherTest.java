@@ -0,0 +1,254 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import au.com.bytecode.opencsv.CSVReader;
+import com.google.common.base.Charsets;
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class SynapseQueryBatcherTest {
+    private static final String TEST_FILE_HANDLE_ID = "test-file-handle";
+    private static final String TEST_TABLE_ID = "syn1234";
+    private static final String CSV_HEADER = "\"recordId\",\"healthCode\",\"uploadDate\",\"foo\"";
+
+    private InMemoryFileHelper inMemoryFileHelper;
+    private SynapseHelper mockSynapseHelper;
+    private SynapseQueryBatcher batcher;
+    private List<Runnable> scheduledFlushList;
+    private File tmpDir;
+
+    @BeforeMethod
+    public void setup() {
+        inMemoryFileHelper = new InMemoryFileHelper();
+        tmpDir = inMemoryFileHelper.createTempDir();
+
+        // Network executor runs splits on the calling thread.
+        ExecutorService mockNetworkExecutorService = mock(ExecutorService.class);
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(0, Runnable.class).run();
+            return null;
+        }).when(mockNetworkExecutorService).execute(any(Runnable.class));
+
+        // Queue window flushes, so tests control when windows close.
+        scheduledFlushList = new ArrayList<>();
+        ScheduledExecutorService mockScheduledExecutorService = mock(ScheduledExecutorService.class);
+        when(mockScheduledExecutorService.schedule(any(Runnable.class), eq(200L), eq(TimeUnit.MILLISECONDS)))
+                .thenAnswer(invocation -> {
+                    scheduledFlushList.add(invocation.getArgumentAt(0, Runnable.class));
+                    return null;
+                });
+
+        mockSynapseHelper = mock(SynapseHelper.class);
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(anyString(), eq(TEST_TABLE_ID),
+                eq("batch-" + TEST_TABLE_ID))).thenReturn(CompletableFuture.completedFuture(TEST_FILE_HANDLE_ID));
+
+        batcher = new SynapseQueryBatcher();
+        batcher.setConfig(mockConfig(3));
+        batcher.setFileHelper(inMemoryFileHelper);
+        batcher.setNetworkExecutorService(mockNetworkExecutorService);
+        batcher.setScheduledExecutorService(mockScheduledExecutorService);
+        batcher.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @Test
+    public void enabled() {
+        assertTrue(batcher.isEnabled());
+    }
+
+    @Test
+    public void splitsByHealthCodeAndDateRange() throws Exception {
+        mockCsvResult(CSV_HEADER + "\n" +
+                "\"record-1\",\"hc-1\",\"2015-03-01\",\"1\"\n" +
+                "\"record-2\",\"hc-1\",\"2015-03-15\",\"2\"\n" +
+                "\"record-3\",\"hc-2\",\"2015-03-15\",\"3\"\n" +
+                "\"record-4\",\"hc-2\",\"2015-04-15\",\"4\"\n" +
+                "\"record-5\",\"hc-1\",\"2015-04-15\",\"5\"");
+
+        // Two requests for hc-1 with different ranges, and one for hc-2.
+        File file1 = inMemoryFileHelper.newFile(tmpDir, "1.csv");
+        File file2 = inMemoryFileHelper.newFile(tmpDir, "2.csv");
+        File file3 = inMemoryFileHelper.newFile(tmpDir, "3.csv");
+        CompletableFuture<Void> future1 = batcher.queryUserCsv(TEST_TABLE_ID, "hc-1", LocalDate.parse("2015-03-01"),
+                LocalDate.parse("2015-03-31"), file1);
+        CompletableFuture<Void> future2 = batcher.queryUserCsv(TEST_TABLE_ID, "hc-2", LocalDate.parse("2015-03-10"),
+                LocalDate.parse("2015-03-20"), file2);
+        CompletableFuture<Void> future3 = batcher.queryUserCsv(TEST_TABLE_ID, "hc-1", LocalDate.parse("2015-04-01"),
+                LocalDate.parse("2015-04-30"), file3);
+
+        // Nothing is sent until the window closes.
+        assertFalse(future1.isDone());
+        verify(mockSynapseHelper, never()).generateFileHandleFromTableQueryAsync(anyString(), anyString(),
+                anyString());
+        assertEquals(scheduledFlushList.size(), 1);
+        scheduledFlushList.get(0).run();
+
+        // One query for both health codes, over the union date range.
+        verify(mockSynapseHelper).generateFileHandleFromTableQueryAsync("SELECT * FROM syn1234 WHERE healthCode IN " +
+                "('hc-1', 'hc-2') AND uploadDate >= '2015-03-01' AND uploadDate <= '2015-04-30'", TEST_TABLE_ID,
+                "batch-" + TEST_TABLE_ID);
+        verify(mockSynapseHelper, times(1)).openFileHandleStream(TEST_FILE_HANDLE_ID);
+
+        // Each caller only gets their own rows in their own range.
+        future1.get();
+        future2.get();
+        future3.get();
+        assertRecordIds(file1, "record-1", "record-2");
+        assertRecordIds(file2, "record-3");
+        assertRecordIds(file3, "record-5");
+    }
+
+    @Test
+    public void fullBatchSentImmediately() throws Exception {
+        mockCsvResult(CSV_HEADER);
+
+        // Max is 3 health codes. The 3rd sends the batch without waiting for the window.
+        List<CompletableFuture<Void>> futureList = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futureList.add(batcher.queryUserCsv(TEST_TABLE_ID, "hc-" + i, LocalDate.parse("2015-03-01"),
+                    LocalDate.parse("2015-03-31"), inMemoryFileHelper.newFile(tmpDir, i + ".csv")));
+        }
+        for (CompletableFuture<Void> oneFuture : futureList) {
+            assertTrue(oneFuture.isDone());
+        }
+
+        // The window closing later doesn't send the batch again.
+        scheduledFlushList.get(0).run();
+        verify(mockSynapseHelper, times(1)).generateFileHandleFromTableQueryAsync(anyString(), anyString(),
+                anyString());
+
+        // The next request starts a new batch.
+        batcher.queryUserCsv(TEST_TABLE_ID, "hc-3", LocalDate.parse("2015-03-01"), LocalDate.parse("2015-03-31"),
+                inMemoryFileHelper.newFile(tmpDir, "3.csv"));
+        assertEquals(scheduledFlushList.size(), 2);
+    }
+
+    @Test
+    public void noHeaderWritesEmptyFiles() throws Exception {
+        mockCsvResult("");
+
+        File file = inMemoryFileHelper.newFile(tmpDir, "1.csv");
+        CompletableFuture<Void> future = batcher.queryUserCsv(TEST_TABLE_ID, "hc-1", LocalDate.parse("2015-03-01"),
+                LocalDate.parse("2015-03-31"), file);
+        scheduledFlushList.get(0).run();
+        future.get();
+
+        try (CSVReader csvReader = new CSVReader(inMemoryFileHelper.getReader(file))) {
+            assertTrue(csvReader.readAll().isEmpty());
+        }
+    }
+
+    @Test
+    public void missingColumnFailsBatch() throws Exception {
+        mockCsvResult("\"recordId\",\"foo\"\n\"record-1\",\"1\"");
+        CompletableFuture<Void> future = queryAndFlush();
+        assertFailedWith(future, IOException.class);
+    }
+
+    @Test
+    public void queryErrorFailsAllCallers() throws Exception {
+        CompletableFuture<String> queryFuture = new CompletableFuture<>();
+        queryFuture.completeExceptionally(new TestSynapseException());
+        when(mockSynapseHelper.generateFileHandleFromTableQueryAsync(anyString(), eq(TEST_TABLE_ID),
+                eq("batch-" + TEST_TABLE_ID))).thenReturn(queryFuture);
+
+        CompletableFuture<Void> future1 = batcher.queryUserCsv(TEST_TABLE_ID, "hc-1", LocalDate.parse("2015-03-01"),
+                LocalDate.parse("2015-03-31"), inMemoryFileHelper.newFile(tmpDir, "1.csv"));
+        CompletableFuture<Void> future2 = batcher.queryUserCsv(TEST_TABLE_ID, "hc-2", LocalDate.parse("2015-03-01"),
+                LocalDate.parse("2015-03-31"), inMemoryFileHelper.newFile(tmpDir, "2.csv"));
+        scheduledFlushList.get(0).run();
+
+        assertFailedWith(future1, TestSynapseException.class);
+        assertFailedWith(future2, TestSynapseException.class);
+    }
+
+    @Test
+    public void streamErrorFailsBatch() throws Exception {
+        when(mockSynapseHelper.openFileHandleStream(TEST_FILE_HANDLE_ID)).thenThrow(TestSynapseException.class);
+        CompletableFuture<Void> future = queryAndFlush();
+        assertFailedWith(future, TestSynapseException.class);
+    }
+
+    @Test
+    public void scheduleErrorSendsImmediately() throws Exception {
+        ScheduledExecutorService mockScheduledExecutorService = mock(ScheduledExecutorService.class);
+        when(mockScheduledExecutorService.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+                .thenThrow(IllegalStateException.class);
+        batcher.setScheduledExecutorService(mockScheduledExecutorService);
+        mockCsvResult(CSV_HEADER);
+
+        CompletableFuture<Void> future = batcher.queryUserCsv(TEST_TABLE_ID, "hc-1", LocalDate.parse("2015-03-01"),
+                LocalDate.parse("2015-03-31"), inMemoryFileHelper.newFile(tmpDir, "1.csv"));
+        future.get();
+    }
+
+    private CompletableFuture<Void> queryAndFlush() {
+        CompletableFuture<Void> future = batcher.queryUserCsv(TEST_TABLE_ID, "hc-1", LocalDate.parse("2015-03-01"),
+                LocalDate.parse("2015-03-31"), inMemoryFileHelper.newFile(tmpDir, "1.csv"));
+        scheduledFlushList.get(0).run();
+        return future;
+    }
+
+    private void mockCsvResult(String csvContent) throws Exception {
+        when(mockSynapseHelper.openFileHandleStream(TEST_FILE_HANDLE_ID)).thenAnswer(invocation ->
+                new ByteArrayInputStream(csvContent.getBytes(Charsets.UTF_8)));
+    }
+
+    private void assertRecordIds(File file, String... expectedRecordIds) throws Exception {
+        List<String[]> rowList;
+        try (CSVReader csvReader = new CSVReader(inMemoryFileHelper.getReader(file))) {
+            rowList = csvReader.readAll();
+        }
+        assertEquals(rowList.get(0), new String[] { "recordId", "healthCode", "uploadDate", "foo" });
+        assertEquals(rowList.size(), expectedRecordIds.length + 1);
+        for (int i = 0; i < expectedRecordIds.length; i++) {
+            assertEquals(rowList.get(i + 1)[0], expectedRecordIds[i]);
+        }
+    }
+
+    private static void assertFailedWith(CompletableFuture<Void> future, Class<? extends Throwable> expectedClass)
+            throws Exception {
+        try {
+            future.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(expectedClass.isInstance(ex.getCause()), "Unexpected cause " + ex.getCause());
+        }
+    }
+
+    private static Config mockConfig(int maxHealthCodes) {
+        Config config = mock(Config.class);
+        when(config.get(SynapseQueryBatcher.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(config.getInt(SynapseQueryBatcher.CONFIG_KEY_MAX_HEALTH_CODES)).thenReturn(maxHealthCodes);
+        when(config.getInt(SynapseQueryBatcher.CONFIG_KEY_WINDOW_MILLIS)).thenReturn(200);
+        return config;
+    }
+}
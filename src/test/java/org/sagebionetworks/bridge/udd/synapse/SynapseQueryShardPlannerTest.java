@@ -0,0 +1,132 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class SynapseQueryShardPlannerTest {
+    private static final String TEST_TABLE_ID = "syn1234";
+    private static final LocalDate START_DATE = LocalDate.parse("2015-01-01");
+    private static final LocalDate END_DATE = LocalDate.parse("2015-03-31");
+    private static final Range<LocalDate> WHOLE_RANGE = Range.closed(START_DATE, END_DATE);
+
+    private SynapseQueryShardPlanner planner;
+
+    @BeforeMethod
+    public void setup() {
+        planner = new SynapseQueryShardPlanner();
+        planner.setConfig(mockConfig(true));
+    }
+
+    @Test
+    public void noHistory() {
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE), ImmutableList.of(WHOLE_RANGE));
+    }
+
+    @Test
+    public void disabled() {
+        planner.setConfig(mockConfig(false));
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 1000000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE), ImmutableList.of(WHOLE_RANGE));
+    }
+
+    @Test
+    public void fastTableNotSharded() {
+        // 90 days in 9 seconds is 100 ms/day, well under the 60 second target.
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 9000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE), ImmutableList.of(WHOLE_RANGE));
+    }
+
+    @Test
+    public void slowTableSharded() {
+        // 90 days in 150 seconds is an estimated 2.5x the target, so 3 shards of 30 days.
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 150000);
+        List<Range<LocalDate>> shardList = planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE);
+        assertEquals(shardList, ImmutableList.of(
+                Range.closed(START_DATE, LocalDate.parse("2015-01-30")),
+                Range.closed(LocalDate.parse("2015-01-31"), LocalDate.parse("2015-03-01")),
+                Range.closed(LocalDate.parse("2015-03-02"), END_DATE)));
+
+        // Other tables aren't affected.
+        assertEquals(planner.planShards("other-table", START_DATE, END_DATE), ImmutableList.of(WHOLE_RANGE));
+    }
+
+    @Test
+    public void lastShardShorter() {
+        // 10 days, min 7 days per shard, so only 1 shard no matter how slow.
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, START_DATE, 1000000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, LocalDate.parse("2015-01-10")),
+                ImmutableList.of(Range.closed(START_DATE, LocalDate.parse("2015-01-10"))));
+
+        // 17 days makes 2 shards of 9 and 8 days.
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, LocalDate.parse("2015-01-17")), ImmutableList.of(
+                Range.closed(START_DATE, LocalDate.parse("2015-01-09")),
+                Range.closed(LocalDate.parse("2015-01-10"), LocalDate.parse("2015-01-17"))));
+    }
+
+    @Test
+    public void maxShards() {
+        // Way over the target, but capped at 4 shards.
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 100000000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE).size(), 4);
+    }
+
+    @Test
+    public void costAdapts() {
+        // Start slow, then observe fast queries. The moving average comes back down under the target.
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 150000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE).size(), 3);
+
+        for (int i = 0; i < 10; i++) {
+            planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 9000);
+        }
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE), ImmutableList.of(WHOLE_RANGE));
+    }
+
+    @Test
+    public void overheadIsNotPerDay() {
+        // 30 second overhead. A 10 day shard took 35 seconds, so 0.5 seconds per day. 90 days is estimated at 75
+        // seconds, but each shard pays the overhead, so it's 2 shards, not the max.
+        planner.setConfig(mockConfig(true, 30000));
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, LocalDate.parse("2015-01-10"), 35000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE).size(), 2);
+
+        // Without the overhead, the same observation is 3.5 seconds per day, which caps out at the max shards.
+        planner = new SynapseQueryShardPlanner();
+        planner.setConfig(mockConfig(true));
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, LocalDate.parse("2015-01-10"), 35000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE).size(), 4);
+    }
+
+    @Test
+    public void overheadOverTargetNotSharded() {
+        // If the overhead alone is over the target, more shards can't help.
+        planner.setConfig(mockConfig(true, 60000));
+        planner.recordQueryTime(TEST_TABLE_ID, START_DATE, END_DATE, 1000000);
+        assertEquals(planner.planShards(TEST_TABLE_ID, START_DATE, END_DATE), ImmutableList.of(WHOLE_RANGE));
+    }
+
+    private static Config mockConfig(boolean enabled) {
+        return mockConfig(enabled, 0);
+    }
+
+    private static Config mockConfig(boolean enabled, int overheadMillis) {
+        Config config = mock(Config.class);
+        when(config.get(SynapseQueryShardPlanner.CONFIG_KEY_ENABLED)).thenReturn(String.valueOf(enabled));
+        when(config.getInt(SynapseQueryShardPlanner.CONFIG_KEY_MAX_SHARDS)).thenReturn(4);
+        when(config.getInt(SynapseQueryShardPlanner.CONFIG_KEY_MIN_SHARD_DAYS)).thenReturn(7);
+        when(config.getInt(SynapseQueryShardPlanner.CONFIG_KEY_OVERHEAD_MILLIS)).thenReturn(overheadMillis);
+        when(config.getInt(SynapseQueryShardPlanner.CONFIG_KEY_TARGET_MILLIS)).thenReturn(60000);
+        return config;
+    }
+}
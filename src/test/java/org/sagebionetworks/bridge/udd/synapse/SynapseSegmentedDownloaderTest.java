@@ -0,0 +1,312 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class SynapseSegmentedDownloaderTest {
+    private static final int MAX_ROUNDS = 3;
+    private static final int SEGMENT_SIZE = 100;
+
+    // Local stand-in for the temporary URL's server. Serves the content with range support, and can be told to drop
+    // the connection partway through.
+    private byte[] content;
+    private AtomicInteger failCount;
+    private long failOffset;
+    private boolean ignoreRange;
+    private List<String> rangeList;
+    private int status;
+
+    private ExecutorService segmentExecutorService;
+    private HttpServer server;
+    private ExecutorService serverExecutorService;
+    private File targetFile;
+    private AtomicInteger resolveCount;
+    private URL url;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        content = makeContent(1000);
+        failCount = new AtomicInteger();
+        failOffset = -1;
+        ignoreRange = false;
+        rangeList = Collections.synchronizedList(new ArrayList<>());
+        status = 0;
+
+        serverExecutorService = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file", this::handle);
+        server.setExecutor(serverExecutorService);
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/file");
+
+        segmentExecutorService = Executors.newFixedThreadPool(4);
+        resolveCount = new AtomicInteger();
+        targetFile = Files.createTempFile("segmented-download", ".bin").toFile();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        server.stop(0);
+        serverExecutorService.shutdownNow();
+        segmentExecutorService.shutdownNow();
+        if (targetFile.exists()) {
+            assertTrue(targetFile.delete());
+        }
+    }
+
+    @Test
+    public void rangedTransfer() throws Exception {
+        makeDownloader(4).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+        assertEquals(resolveCount.get(), 1);
+        assertEquals(rangeList.size(), 10);
+        ImmutableSet.Builder<String> expectedRangeSetBuilder = ImmutableSet.builder();
+        for (int start = 0; start < 1000; start += SEGMENT_SIZE) {
+            expectedRangeSetBuilder.add("bytes=" + start + "-" + (start + SEGMENT_SIZE - 1));
+        }
+        assertEquals(ImmutableSet.copyOf(rangeList), expectedRangeSetBuilder.build());
+    }
+
+    @Test
+    public void unevenLastSegment() throws Exception {
+        content = makeContent(250);
+        makeDownloader(1).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+        assertEquals(rangeList, ImmutableList.of("bytes=0-99", "bytes=100-199", "bytes=200-249"));
+    }
+
+    @Test
+    public void smallFileSingleRequest() throws Exception {
+        content = makeContent(50);
+        makeDownloader(4).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+        assertEquals(rangeList, ImmutableList.of("bytes=0-99"));
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        content = new byte[0];
+        makeDownloader(4).download(this::resolve, targetFile);
+
+        assertEquals(targetFile.length(), 0);
+        assertEquals(rangeList, ImmutableList.of("bytes=0-99"));
+    }
+
+    @Test
+    public void serverIgnoresRange() throws Exception {
+        ignoreRange = true;
+        makeDownloader(4).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+        assertEquals(rangeList, ImmutableList.of("bytes=0-99"));
+    }
+
+    @Test
+    public void serverIgnoresRangeAndDrops() throws Exception {
+        // The whole-file response drops partway through, once. There's nothing to resume, so the whole file is
+        // fetched again, from a fresh URL.
+        ignoreRange = true;
+        failOffset = 500;
+        failCount.set(1);
+        makeDownloader(4).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+        assertEquals(rangeList.size(), 2);
+        assertEquals(resolveCount.get(), 2);
+    }
+
+    @Test
+    public void serverIgnoresRangeAndKeepsDropping() throws Exception {
+        ignoreRange = true;
+        failOffset = 500;
+        failCount.set(Integer.MAX_VALUE);
+        try {
+            makeDownloader(4).download(this::resolve, targetFile);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("still incomplete"), ex.getMessage());
+        }
+
+        // Each round fetches the whole file, and the partial file is deleted.
+        assertEquals(rangeList.size(), MAX_ROUNDS);
+        assertEquals(resolveCount.get(), MAX_ROUNDS);
+        assertFalse(targetFile.exists());
+    }
+
+    @Test
+    public void resumesOnlyMissingBytes() throws Exception {
+        // Drop the connection halfway through the segment starting at 300, once.
+        failOffset = 350;
+        failCount.set(1);
+        makeDownloader(4).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+
+        // Every segment is fetched once, and the second round fetches only the missing half, from a fresh URL.
+        assertEquals(rangeList.size(), 11);
+        assertEquals(rangeList.get(10), "bytes=350-399");
+        assertEquals(resolveCount.get(), 2);
+    }
+
+    @Test
+    public void resumesFirstSegment() throws Exception {
+        failOffset = 50;
+        failCount.set(1);
+        makeDownloader(1).download(this::resolve, targetFile);
+
+        assertEquals(Files.readAllBytes(targetFile.toPath()), content);
+        assertEquals(rangeList.size(), 11);
+        assertEquals(rangeList.get(0), "bytes=0-99");
+        assertEquals(rangeList.get(1), "bytes=50-99");
+        assertEquals(resolveCount.get(), 2);
+    }
+
+    @Test
+    public void failsAfterMaxRounds() throws Exception {
+        failOffset = 350;
+        failCount.set(Integer.MAX_VALUE);
+        try {
+            makeDownloader(4).download(this::resolve, targetFile);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("still missing 50 bytes"), ex.getMessage());
+        }
+
+        // The first round and each retry round fetch the segment, and the partial file is deleted.
+        assertEquals(rangeList.size(), 10 + MAX_ROUNDS - 1);
+        assertEquals(resolveCount.get(), MAX_ROUNDS);
+        assertFalse(targetFile.exists());
+    }
+
+    @Test
+    public void serverError() throws Exception {
+        status = 500;
+        try {
+            makeDownloader(4).download(this::resolve, targetFile);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("500"), ex.getMessage());
+        }
+
+        // Nothing to resume if we never learned the size.
+        assertEquals(rangeList.size(), 1);
+        assertEquals(resolveCount.get(), 1);
+        assertFalse(targetFile.exists());
+    }
+
+    @Test
+    public void config() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(SynapseSegmentedDownloader.CONFIG_KEY_ENABLED)).thenReturn("true");
+
+        SynapseSegmentedDownloader downloader = new SynapseSegmentedDownloader();
+        downloader.setConfig(mockConfig);
+        assertTrue(downloader.isEnabled());
+
+        assertFalse(new SynapseSegmentedDownloader().isEnabled());
+    }
+
+    private SynapseSegmentedDownloader makeDownloader(int parallelSegments) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(SynapseSegmentedDownloader.CONFIG_KEY_ENABLED)).thenReturn("true");
+        when(mockConfig.getInt(SynapseSegmentedDownloader.CONFIG_KEY_MAX_ROUNDS)).thenReturn(MAX_ROUNDS);
+        when(mockConfig.getInt(SynapseSegmentedDownloader.CONFIG_KEY_PARALLEL_SEGMENTS)).thenReturn(
+                parallelSegments);
+        when(mockConfig.getInt(SynapseSegmentedDownloader.CONFIG_KEY_SEGMENT_SIZE_BYTES)).thenReturn(SEGMENT_SIZE);
+
+        SynapseSegmentedDownloader downloader = new SynapseSegmentedDownloader();
+        downloader.setConfig(mockConfig);
+        downloader.setSegmentExecutorService(segmentExecutorService);
+        return downloader;
+    }
+
+    private URL resolve() {
+        resolveCount.incrementAndGet();
+        return url;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            rangeList.add(range);
+            if (status != 0) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            if (ignoreRange) {
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream outputStream = exchange.getResponseBody();
+                if (failOffset >= 0 && failCount.getAndDecrement() > 0) {
+                    // Send the bytes before the fail offset, then drop the connection.
+                    outputStream.write(content, 0, (int) failOffset);
+                    outputStream.flush();
+                    return;
+                }
+                outputStream.write(content);
+                outputStream.close();
+                return;
+            }
+
+            // Range is "bytes=start-end", inclusive.
+            String[] rangeParts = range.substring("bytes=".length()).split("-");
+            int start = Integer.parseInt(rangeParts[0]);
+            if (start >= content.length) {
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            int end = Math.min(Integer.parseInt(rangeParts[1]), content.length - 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" +
+                    content.length);
+            exchange.sendResponseHeaders(206, end + 1 - start);
+
+            OutputStream outputStream = exchange.getResponseBody();
+            if (start <= failOffset && failOffset <= end && failCount.getAndDecrement() > 0) {
+                // Send the bytes before the fail offset, then drop the connection.
+                outputStream.write(content, start, (int) failOffset - start);
+                outputStream.flush();
+                return;
+            }
+            outputStream.write(content, start, end + 1 - start);
+            outputStream.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] makeContent(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
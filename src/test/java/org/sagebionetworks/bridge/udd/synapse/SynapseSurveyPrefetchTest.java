@@ -0,0 +1,84 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Writer;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+
+public class SynapseSurveyPrefetchTest {
+    private InMemoryFileHelper fileHelper;
+    private SynapseSurveyPrefetch prefetch;
+
+    @BeforeMethod
+    public void setup() {
+        fileHelper = new InMemoryFileHelper();
+        prefetch = new SynapseSurveyPrefetch(fileHelper, ImmutableSet.of("test-survey"), fileHelper.createTempDir());
+    }
+
+    @Test
+    public void discardWithNoTasksCleansUpNow() {
+        prefetch.discard();
+        assertTrue(fileHelper.isEmpty());
+
+        // Tasks that haven't started are skipped.
+        assertFalse(prefetch.taskStarted());
+
+        // Discard is idempotent.
+        prefetch.discard();
+    }
+
+    @Test
+    public void discardWaitsForRunningTask() throws Exception {
+        assertTrue(prefetch.taskStarted());
+        prefetch.discard();
+
+        // The running task still has its dir.
+        assertTrue(fileHelper.fileExists(prefetch.getTempDir()));
+        File surveyFile = writeSurveyFile();
+
+        // The running task finishing cleans up its file and the dir.
+        prefetch.taskFinished(surveyFile);
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void discardAfterTasksFinish() throws Exception {
+        assertTrue(prefetch.taskStarted());
+        prefetch.taskFinished(writeSurveyFile());
+
+        // Failed task, no file.
+        assertTrue(prefetch.taskStarted());
+        prefetch.taskFinished(null);
+
+        assertFalse(fileHelper.isEmpty());
+        prefetch.discard();
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    @Test
+    public void discardAfterFilesAlreadyDeleted() throws Exception {
+        // The packager deletes the survey files it zipped. The prefetch only deletes the dir.
+        assertTrue(prefetch.taskStarted());
+        File surveyFile = writeSurveyFile();
+        prefetch.taskFinished(surveyFile);
+        fileHelper.deleteFile(surveyFile);
+
+        prefetch.discard();
+        assertTrue(fileHelper.isEmpty());
+    }
+
+    private File writeSurveyFile() throws Exception {
+        File surveyFile = fileHelper.newFile(prefetch.getTempDir(), "test-survey.csv");
+        try (Writer writer = fileHelper.getWriter(surveyFile)) {
+            writer.write("dummy survey content");
+        }
+        return surveyFile;
+    }
+}
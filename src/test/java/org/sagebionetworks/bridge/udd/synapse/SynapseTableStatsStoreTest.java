@@ -0,0 +1,182 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+
+public class SynapseTableStatsStoreTest {
+    private static final DateTime MOCK_NOW = DateTime.parse("2015-09-17T12:43:41-07:00");
+    private static final String TEST_FILE_HANDLE_ID = "test-file-handle";
+    private static final String TEST_TABLE_ID = "syn1234";
+    private static final String TEST_QUERY = "SELECT MIN(uploadDate), MAX(uploadDate), COUNT(*) FROM syn1234";
+
+    private List<Runnable> queuedRefreshList;
+    private SynapseHelper mockSynapseHelper;
+    private SynapseTableStatsStore store;
+
+    @BeforeMethod
+    public void setup() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW.getMillis());
+
+        // Queue refreshes, so tests control when they run.
+        queuedRefreshList = new ArrayList<>();
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        doAnswer(invocation -> {
+            queuedRefreshList.add(invocation.getArgumentAt(0, Runnable.class));
+            return null;
+        }).when(mockExecutorService).execute(any(Runnable.class));
+
+        mockSynapseHelper = mock(SynapseHelper.class);
+
+        store = new SynapseTableStatsStore();
+        store.setConfig(mockConfig(true));
+        store.setStatsExecutorService(mockExecutorService);
+        store.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void disabled() {
+        store.setConfig(mockConfig(false));
+        assertNull(store.getStats(TEST_TABLE_ID));
+        assertTrue(queuedRefreshList.isEmpty());
+    }
+
+    @Test
+    public void refreshInBackground() throws Exception {
+        mockStatsResult("\"2015-03-01\",\"2015-06-30\",\"42\"");
+
+        // First call has no stats, and queues one refresh, even if called twice.
+        assertNull(store.getStats(TEST_TABLE_ID));
+        assertNull(store.getStats(TEST_TABLE_ID));
+        assertEquals(queuedRefreshList.size(), 1);
+        verifyZeroInteractions(mockSynapseHelper);
+
+        // Run the refresh. Now we have stats, and don't refresh them again until they're stale.
+        queuedRefreshList.remove(0).run();
+        SynapseTableStats stats = store.getStats(TEST_TABLE_ID);
+        assertEquals(stats.getMinUploadDate(), LocalDate.parse("2015-03-01"));
+        assertEquals(stats.getMaxUploadDate(), LocalDate.parse("2015-06-30"));
+        assertEquals(stats.getRowCount(), 42);
+        assertEquals(stats.getComputedOnMillis(), MOCK_NOW.getMillis());
+        assertFalse(stats.isActive());
+        assertTrue(queuedRefreshList.isEmpty());
+        verify(mockSynapseHelper).generateFileHandleFromTableQuery(TEST_QUERY, TEST_TABLE_ID,
+                SynapseTableStatsStore.ADMISSION_KEY);
+
+        // Once stale, the old stats are returned, and a refresh is queued.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW.plusHours(6).getMillis());
+        assertSame(store.getStats(TEST_TABLE_ID), stats);
+        assertEquals(queuedRefreshList.size(), 1);
+    }
+
+    @Test
+    public void activeTable() throws Exception {
+        // Rows within 7 days of now.
+        mockStatsResult("\"2015-03-01\",\"2015-09-10\",\"42\"");
+        SynapseTableStats stats = store.computeStats(TEST_TABLE_ID);
+        assertTrue(stats.isActive());
+    }
+
+    @Test
+    public void emptyTable() throws Exception {
+        mockStatsResult(",,\"0\"");
+        SynapseTableStats stats = store.computeStats(TEST_TABLE_ID);
+        assertNull(stats.getMinUploadDate());
+        assertNull(stats.getMaxUploadDate());
+        assertEquals(stats.getRowCount(), 0);
+    }
+
+    @Test
+    public void errorKeepsOldStatsAndRetries() throws Exception {
+        mockStatsResult("\"2015-03-01\",\"2015-06-30\",\"42\"");
+        store.getStats(TEST_TABLE_ID);
+        queuedRefreshList.remove(0).run();
+        SynapseTableStats stats = store.getStats(TEST_TABLE_ID);
+
+        // Stale stats. Refresh fails.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW.plusHours(6).getMillis());
+        when(mockSynapseHelper.generateFileHandleFromTableQuery(anyString(), anyString(), anyString())).thenThrow(
+                new TestSynapseException());
+        store.getStats(TEST_TABLE_ID);
+        queuedRefreshList.remove(0).run();
+
+        // Old stats are kept, and the next call retries.
+        assertSame(store.getStats(TEST_TABLE_ID), stats);
+        assertEquals(queuedRefreshList.size(), 1);
+        verify(mockSynapseHelper, times(2)).generateFileHandleFromTableQuery(TEST_QUERY, TEST_TABLE_ID,
+                SynapseTableStatsStore.ADMISSION_KEY);
+    }
+
+    @Test
+    public void malformedResult() throws Exception {
+        mockStatsResult(null);
+        store.getStats(TEST_TABLE_ID);
+        queuedRefreshList.remove(0).run();
+
+        // No stats. Next call retries.
+        assertNull(store.getStats(TEST_TABLE_ID));
+        assertEquals(queuedRefreshList.size(), 1);
+    }
+
+    @Test
+    public void executorRejectsRefresh() {
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        doThrow(RuntimeException.class).when(mockExecutorService).execute(any(Runnable.class));
+        store.setStatsExecutorService(mockExecutorService);
+
+        // Rejected refreshes are retried on the next call.
+        assertNull(store.getStats(TEST_TABLE_ID));
+        assertNull(store.getStats(TEST_TABLE_ID));
+        verify(mockExecutorService, times(2)).execute(any(Runnable.class));
+        verifyZeroInteractions(mockSynapseHelper);
+    }
+
+    private void mockStatsResult(String row) throws Exception {
+        String csv = "\"MIN(uploadDate)\",\"MAX(uploadDate)\",\"COUNT(*)\"\n" + (row != null ? row + "\n" : "");
+        when(mockSynapseHelper.generateFileHandleFromTableQuery(TEST_QUERY, TEST_TABLE_ID,
+                SynapseTableStatsStore.ADMISSION_KEY)).thenReturn(TEST_FILE_HANDLE_ID);
+        when(mockSynapseHelper.openFileHandleStream(TEST_FILE_HANDLE_ID)).thenAnswer(invocation ->
+                new ByteArrayInputStream(csv.getBytes(Charsets.UTF_8)));
+    }
+
+    private static Config mockConfig(boolean enabled) {
+        Config config = mock(Config.class);
+        when(config.getInt(SynapseTableStatsStore.CONFIG_KEY_ACTIVE_DAYS)).thenReturn(7);
+        when(config.get(SynapseTableStatsStore.CONFIG_KEY_ENABLED)).thenReturn(String.valueOf(enabled));
+        when(config.getInt(SynapseTableStatsStore.CONFIG_KEY_REFRESH_MINUTES)).thenReturn(
+                (int) TimeUnit.HOURS.toMinutes(6));
+        return config;
+    }
+}
@@ -0,0 +1,101 @@
+package org.sagebionetworks.bridge.udd.synapse;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.LocalDate;
+import org.testng.annotations.Test;
+
+public class SynapseTableStatsTest {
+    // 2015-09-17T19:43:41Z
+    private static final long COMPUTED_ON_MILLIS = 1442519021000L;
+    private static final LocalDate MIN_UPLOAD_DATE = LocalDate.parse("2015-03-01");
+    private static final LocalDate MAX_UPLOAD_DATE = LocalDate.parse("2015-06-30");
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*computedOnMillis.*")
+    public void noComputedOn() {
+        new SynapseTableStats.Builder().withRowCount(0).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*rowCount.*")
+    public void noRowCount() {
+        new SynapseTableStats.Builder().withComputedOnMillis(COMPUTED_ON_MILLIS).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*rowCount.*")
+    public void negativeRowCount() {
+        new SynapseTableStats.Builder().withComputedOnMillis(COMPUTED_ON_MILLIS).withRowCount(-1).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp = ".*minUploadDate.*")
+    public void minAfterMax() {
+        new SynapseTableStats.Builder().withComputedOnMillis(COMPUTED_ON_MILLIS).withRowCount(10)
+                .withMinUploadDate(MAX_UPLOAD_DATE).withMaxUploadDate(MIN_UPLOAD_DATE).build();
+    }
+
+    @Test
+    public void emptyTable() {
+        SynapseTableStats stats = new SynapseTableStats.Builder().withComputedOnMillis(COMPUTED_ON_MILLIS)
+                .withRowCount(0).build();
+        assertFalse(stats.isActive());
+        assertEquals(stats.getComputedOnMillis(), COMPUTED_ON_MILLIS);
+        assertNull(stats.getMinUploadDate());
+        assertNull(stats.getMaxUploadDate());
+        assertEquals(stats.getRowCount(), 0);
+
+        // Empty tables might be new, so they're never skipped.
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-09-01"), LocalDate.parse("2015-09-30")));
+    }
+
+    @Test
+    public void inactiveTable() {
+        SynapseTableStats stats = makeStats(false);
+        assertFalse(stats.isActive());
+        assertEquals(stats.getMinUploadDate(), MIN_UPLOAD_DATE);
+        assertEquals(stats.getMaxUploadDate(), MAX_UPLOAD_DATE);
+        assertEquals(stats.getRowCount(), 42);
+
+        // After the max, and the stats were computed after the range ended. The start date is inclusive.
+        assertFalse(stats.mightHaveData(LocalDate.parse("2015-07-01"), LocalDate.parse("2015-08-31")));
+        assertTrue(stats.mightHaveData(MAX_UPLOAD_DATE, LocalDate.parse("2015-08-31")));
+
+        // Overlapping the table's range.
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-04-01"), LocalDate.parse("2015-04-30")));
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-01-01"), MIN_UPLOAD_DATE));
+    }
+
+    @Test
+    public void backfillBeforeMin() {
+        // Backfills can add rows before the min, so ranges before the min are never skipped.
+        SynapseTableStats stats = makeStats(false);
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-01-01"), LocalDate.parse("2015-02-28")));
+    }
+
+    @Test
+    public void staleStats() {
+        // Rows could have been added after the stats were computed, so ranges that hadn't ended yet are never
+        // skipped. Upload dates can be up to a day off from UTC, so the range must have ended two days before.
+        SynapseTableStats stats = makeStats(false);
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-07-01"), LocalDate.parse("2015-09-30")));
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-07-01"), LocalDate.parse("2015-09-17")));
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-07-01"), LocalDate.parse("2015-09-16")));
+        assertFalse(stats.mightHaveData(LocalDate.parse("2015-07-01"), LocalDate.parse("2015-09-15")));
+    }
+
+    @Test
+    public void activeTable() {
+        SynapseTableStats stats = makeStats(true);
+        assertTrue(stats.isActive());
+
+        // Active tables might have gotten rows anywhere since the stats were computed, so they're never skipped.
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-01-01"), LocalDate.parse("2015-02-28")));
+        assertTrue(stats.mightHaveData(LocalDate.parse("2015-07-01"), LocalDate.parse("2015-08-31")));
+    }
+
+    private static SynapseTableStats makeStats(boolean active) {
+        return new SynapseTableStats.Builder().withActive(active).withComputedOnMillis(COMPUTED_ON_MILLIS)
+                .withMinUploadDate(MIN_UPLOAD_DATE).withMaxUploadDate(MAX_UPLOAD_DATE).withRowCount(42).build();
+    }
+}
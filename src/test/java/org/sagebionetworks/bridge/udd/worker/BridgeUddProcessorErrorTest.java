@@ -14,6 +14,7 @@ import org.testng.annotations.Test;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.DataPresenceIndex;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
@@ -30,14 +31,17 @@ public class BridgeUddProcessorErrorTest {
     public void noHealthCode() throws Exception {
         // mock dynamo helper
         DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
-        when(mockDynamoHelper.getStudy(BridgeUddProcessorTest.STUDY_ID)).thenReturn(
-                BridgeUddProcessorTest.MOCK_STUDY_INFO);
+        when(mockDynamoHelper.getStudyExportPlan(BridgeUddProcessorTest.STUDY_ID)).thenReturn(
+                BridgeUddProcessorTest.STUDY_EXPORT_PLAN);
 
         // mock bridge helper
         BridgeHelper mockBridgeHelper = mock(BridgeHelper.class);
         when(mockBridgeHelper.getAccountInfo(BridgeUddProcessorTest.STUDY_ID, BridgeUddProcessorTest.USER_ID))
                 .thenReturn(BridgeUddProcessorTest.ACCOUNT_INFO_NO_HEALTH_CODE);
 
+        // mock data presence index
+        DataPresenceIndex mockDataPresenceIndex = mock(DataPresenceIndex.class);
+
         // mock SES helper
         SesHelper mockSesHelper = mock(SesHelper.class);
 
@@ -46,10 +50,12 @@ public class BridgeUddProcessorErrorTest {
 
         // set up callback
         BridgeUddProcessor callback = new BridgeUddProcessor();
-        callback.setBridgeHelper(mockBridgeHelper);
-        callback.setDynamoHelper(mockDynamoHelper);
+        callback.setDataPresenceIndex(mockDataPresenceIndex);
+        callback.setRequestPlanner(BridgeUddProcessorTest.makePlanner(mockBridgeHelper, mockDynamoHelper));
         callback.setSesHelper(mockSesHelper);
         callback.setSynapsePackager(mockPackager);
+        callback.setRequestCoalescer(new BridgeUddRequestCoalescer());
+        callback.setRequestPipeline(BridgeUddProcessorTest.makeInlinePipeline());
 
         // execute
         try {
@@ -59,7 +65,7 @@ public class BridgeUddProcessorErrorTest {
             // expected exception
         }
 
-        // verify SesHelper calls
-        verifyZeroInteractions(mockPackager, mockSesHelper);
+        // Nothing is downloaded, packaged, or sent.
+        verifyZeroInteractions(mockDataPresenceIndex, mockPackager, mockSesHelper);
     }
 }
@@ -4,9 +4,14 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
 import java.util.Map;
@@ -15,11 +20,14 @@ import java.util.Set;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.LocalDate;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.Phone;
@@ -27,12 +35,15 @@ import org.sagebionetworks.bridge.schema.UploadSchema;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.udd.accounts.AccountInfo;
 import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.DataPresenceIndex;
 import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.StudyExportPlan;
 import org.sagebionetworks.bridge.udd.dynamodb.StudyInfo;
 import org.sagebionetworks.bridge.udd.helper.SesHelper;
 import org.sagebionetworks.bridge.udd.helper.SnsHelper;
 import org.sagebionetworks.bridge.udd.s3.PresignedUrlInfo;
 import org.sagebionetworks.bridge.udd.synapse.SynapsePackager;
+import org.sagebionetworks.bridge.udd.synapse.SynapseSurveyPrefetch;
 
 @SuppressWarnings("unchecked")
 public class BridgeUddProcessorTest {
@@ -40,8 +51,14 @@ public class BridgeUddProcessorTest {
     // of instantiating all the fields.
     public static final StudyInfo MOCK_STUDY_INFO = mock(StudyInfo.class);
     public static final Map<String, UploadSchema> MOCK_SYNAPSE_TO_SCHEMA = ImmutableMap.of();
+    public static final Map<String, UploadSchema> PRUNED_SYNAPSE_TO_SCHEMA = ImmutableMap.of("pruned-table",
+            mock(UploadSchema.class));
     public static final Set<String> MOCK_SURVEY_TABLE_ID_SET = ImmutableSet.of();
+    public static final StudyExportPlan STUDY_EXPORT_PLAN = new StudyExportPlan.Builder()
+            .withStudyInfo(MOCK_STUDY_INFO).withSynapseToSchemaMap(MOCK_SYNAPSE_TO_SCHEMA)
+            .withSurveyTableIdSet(MOCK_SURVEY_TABLE_ID_SET).build();
     public static final PresignedUrlInfo MOCK_PRESIGNED_URL_INFO = mock(PresignedUrlInfo.class);
+    public static final String CACHE_KEY_MATERIAL = "test-cache-key-material";
 
     // simple strings for test
     public static final String EMAIL = "test@example.com";
@@ -76,7 +93,10 @@ public class BridgeUddProcessorTest {
     // test members
     private BridgeUddProcessor callback;
     private BridgeHelper mockBridgeHelper;
+    private BridgeUddRequestCoalescer requestCoalescer;
+    private DataPresenceIndex mockDataPresenceIndex;
     private SynapsePackager mockPackager;
+    private SynapseSurveyPrefetch mockSurveyPrefetch;
     private SesHelper mockSesHelper;
     private SnsHelper mockSnsHelper;
 
@@ -94,9 +114,12 @@ public class BridgeUddProcessorTest {
 
         // mock dynamo helper
         DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
-        when(mockDynamoHelper.getStudy(STUDY_ID)).thenReturn(MOCK_STUDY_INFO);
-        when(mockDynamoHelper.getSynapseTableIdsForStudy(STUDY_ID)).thenReturn(MOCK_SYNAPSE_TO_SCHEMA);
-        when(mockDynamoHelper.getSynapseSurveyTablesForStudy(STUDY_ID)).thenReturn(MOCK_SURVEY_TABLE_ID_SET);
+        when(mockDynamoHelper.getStudyExportPlan(STUDY_ID)).thenReturn(STUDY_EXPORT_PLAN);
+
+        // mock data presence index
+        mockDataPresenceIndex = mock(DataPresenceIndex.class);
+        when(mockDataPresenceIndex.filterTablesWithData(MOCK_SYNAPSE_TO_SCHEMA, HEALTH_CODE,
+                LocalDate.parse("2015-03-09"), LocalDate.parse("2015-03-31"))).thenReturn(PRUNED_SYNAPSE_TO_SCHEMA);
 
         // mock SES helper
         mockSesHelper = mock(SesHelper.class);
@@ -105,15 +128,43 @@ public class BridgeUddProcessorTest {
         mockSnsHelper = mock(SnsHelper.class);
         
         // mock Synapse packager
+        mockSurveyPrefetch = mock(SynapseSurveyPrefetch.class);
         mockPackager = mock(SynapsePackager.class);
+        when(mockPackager.prefetchSurveys(MOCK_SURVEY_TABLE_ID_SET)).thenReturn(mockSurveyPrefetch);
+
+        // Cache key covers all of the study's tables, not just the ones with data. Cache misses by default.
+        when(mockPackager.getCacheKeyMaterial(same(MOCK_SYNAPSE_TO_SCHEMA), eq(HEALTH_CODE),
+                any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET))).thenReturn(CACHE_KEY_MATERIAL);
 
         // set up callback
         callback = new BridgeUddProcessor();
-        callback.setBridgeHelper(mockBridgeHelper);
-        callback.setDynamoHelper(mockDynamoHelper);
+        callback.setDataPresenceIndex(mockDataPresenceIndex);
+        callback.setRequestPlanner(makePlanner(mockBridgeHelper, mockDynamoHelper));
         callback.setSesHelper(mockSesHelper);
         callback.setSnsHelper(mockSnsHelper);
         callback.setSynapsePackager(mockPackager);
+        requestCoalescer = new BridgeUddRequestCoalescer();
+        callback.setRequestCoalescer(requestCoalescer);
+        callback.setRequestPipeline(makeInlinePipeline());
+    }
+
+    // Planner that runs the export plan lookup on the calling thread.
+    public static BridgeUddRequestPlanner makePlanner(BridgeHelper bridgeHelper, DynamoHelper dynamoHelper) {
+        BridgeUddRequestPlanner planner = new BridgeUddRequestPlanner();
+        planner.setBridgeHelper(bridgeHelper);
+        planner.setDynamoHelper(dynamoHelper);
+        planner.setPlanningExecutorService(MoreExecutors.newDirectExecutorService());
+        return planner;
+    }
+
+    // Pipeline with max concurrency 1 runs requests inline, so tests can check results and exceptions.
+    public static BridgeUddRequestPipeline makeInlinePipeline() {
+        Config config = mock(Config.class);
+        when(config.getInt(BridgeUddRequestPipeline.CONFIG_KEY_MAX_CONCURRENCY)).thenReturn(1);
+
+        BridgeUddRequestPipeline pipeline = new BridgeUddRequestPipeline();
+        pipeline.setConfig(config);
+        return pipeline;
     }
 
     @Test
@@ -122,6 +173,7 @@ public class BridgeUddProcessorTest {
         callback.process(userIdRequestJson);
         verifySesNoData();
         verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
+        verify(mockPackager).prefetchSurveys(MOCK_SURVEY_TABLE_ID_SET);
     }
 
     @Test
@@ -132,13 +184,81 @@ public class BridgeUddProcessorTest {
         verify(mockBridgeHelper).getAccountInfo(STUDY_ID, USER_ID);
     }
 
+    @Test
+    public void duplicateOfInFlightRequest() throws Exception {
+        // An identical request is already in flight.
+        BridgeUddRequest request = DefaultObjectMapper.INSTANCE.treeToValue(userIdRequestJson,
+                BridgeUddRequest.class);
+        assertNotNull(requestCoalescer.start(request));
+
+        // The duplicate is done right away, without planning, exporting, or sending anything.
+        callback.process(userIdRequestJson);
+        verifyZeroInteractions(mockBridgeHelper, mockDataPresenceIndex, mockPackager, mockSesHelper);
+        assertEquals(requestCoalescer.getAttachedDuplicateCount(), 1);
+    }
+
+    @Test
+    public void finishedRequestLeavesCoalescer() throws Exception {
+        mockPackagerWithResult(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        assertEquals(requestCoalescer.getInFlightCount(), 0);
+    }
+
+    @Test
+    public void failedRequestLeavesCoalescer() throws Exception {
+        when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenThrow(new BridgeSDKException("test exception",
+                null));
+        try {
+            callback.process(userIdRequestJson);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+        assertEquals(requestCoalescer.getInFlightCount(), 0);
+    }
+
+    @Test
+    public void cachedExport() throws Exception {
+        when(mockPackager.getCachedExport(CACHE_KEY_MATERIAL)).thenReturn(MOCK_PRESIGNED_URL_INFO);
+        callback.process(userIdRequestJson);
+        verifySesSendsData();
+
+        // Cache hit doesn't start the surveys, check the data presence index, or export.
+        verify(mockPackager, never()).prefetchSurveys(any());
+        verify(mockPackager, never()).packageSynapseData(any(), any(), any(), any(SynapseSurveyPrefetch.class),
+                any());
+        verifyZeroInteractions(mockDataPresenceIndex);
+    }
+
+    @Test
+    public void dataPresenceIndexError() throws Exception {
+        when(mockDataPresenceIndex.filterTablesWithData(MOCK_SYNAPSE_TO_SCHEMA, HEALTH_CODE,
+                LocalDate.parse("2015-03-09"), LocalDate.parse("2015-03-31"))).thenThrow(new RuntimeException(
+                "test exception"));
+        try {
+            callback.process(userIdRequestJson);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+
+        // The surveys were already started, so they're discarded.
+        verify(mockSurveyPrefetch).discard();
+        verifyZeroInteractions(mockSesHelper);
+    }
+
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class)
     public void byUserIdBadRequest() throws Exception {
         // Note: We need to manuall instantiate the exception. Otherwise, mock does something funky and bypasses the
         // constructor that sets the status code.
         when(mockBridgeHelper.getAccountInfo(STUDY_ID, USER_ID)).thenThrow(new EntityNotFoundException(
                 "text exception", null));
-        callback.process(userIdRequestJson);
+        try {
+            callback.process(userIdRequestJson);
+        } finally {
+            // Survey downloads are never started.
+            verify(mockPackager, never()).prefetchSurveys(any());
+        }
     }
 
     @Test(expectedExceptions = RuntimeException.class)
@@ -190,8 +310,10 @@ public class BridgeUddProcessorTest {
     }
 
     private void mockPackagerWithResult(PresignedUrlInfo presignedUrlInfo) throws Exception {
-        when(mockPackager.packageSynapseData(same(MOCK_SYNAPSE_TO_SCHEMA), eq(HEALTH_CODE),
-                any(BridgeUddRequest.class), same(MOCK_SURVEY_TABLE_ID_SET))).thenReturn(presignedUrlInfo);
+        // Only the tables the user has data in are packaged.
+        when(mockPackager.packageSynapseData(same(PRUNED_SYNAPSE_TO_SCHEMA), eq(HEALTH_CODE),
+                any(BridgeUddRequest.class), same(mockSurveyPrefetch), eq(CACHE_KEY_MATERIAL))).thenReturn(
+                presignedUrlInfo);
     }
 
     private void verifySesNoData() {
@@ -0,0 +1,75 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BridgeUddRequestCoalescerTest {
+    private static final BridgeUddRequest REQUEST = makeRequest("test-user-id");
+
+    private BridgeUddRequestCoalescer coalescer;
+
+    @BeforeMethod
+    public void setup() {
+        coalescer = new BridgeUddRequestCoalescer();
+    }
+
+    @Test
+    public void duplicateAttachesToInFlightRequest() {
+        CompletableFuture<Void> inFlightFuture = coalescer.start(REQUEST);
+        assertNotNull(inFlightFuture);
+
+        // Duplicate request, built separately, attaches to the first request without blocking.
+        assertNull(coalescer.start(makeRequest("test-user-id")));
+        assertNull(coalescer.start(makeRequest("test-user-id")));
+        assertEquals(coalescer.getInFlightCount(), 1);
+        assertEquals(coalescer.getAttachedDuplicateCount(), 2);
+
+        // Once the first request finishes, the duplicates are done too.
+        coalescer.finish(REQUEST, inFlightFuture);
+        assertTrue(inFlightFuture.isDone());
+        assertEquals(coalescer.getInFlightCount(), 0);
+        assertEquals(coalescer.getAttachedDuplicateCount(), 0);
+    }
+
+    @Test
+    public void finishedRequestIsNotShared() {
+        CompletableFuture<Void> inFlightFuture = coalescer.start(REQUEST);
+        coalescer.finish(REQUEST, inFlightFuture);
+
+        // The next identical request runs on its own.
+        CompletableFuture<Void> nextFuture = coalescer.start(REQUEST);
+        assertNotNull(nextFuture);
+        assertEquals(coalescer.getInFlightCount(), 1);
+
+        // Finishing the first request again doesn't remove the next one.
+        coalescer.finish(REQUEST, inFlightFuture);
+        assertEquals(coalescer.getInFlightCount(), 1);
+        assertNull(coalescer.start(REQUEST));
+    }
+
+    @Test
+    public void differentRequestsNotShared() {
+        CompletableFuture<Void> inFlightFuture = coalescer.start(REQUEST);
+        CompletableFuture<Void> otherFuture = coalescer.start(makeRequest("other-user-id"));
+        assertNotNull(otherFuture);
+        assertEquals(coalescer.getInFlightCount(), 2);
+        assertEquals(coalescer.getAttachedDuplicateCount(), 0);
+
+        coalescer.finish(REQUEST, inFlightFuture);
+        coalescer.finish(makeRequest("other-user-id"), otherFuture);
+        assertEquals(coalescer.getInFlightCount(), 0);
+    }
+
+    private static BridgeUddRequest makeRequest(String userId) {
+        return new BridgeUddRequest.Builder().withStudyId("test-study").withUserId(userId)
+                .withStartDate(LocalDate.parse("2015-03-09")).withEndDate(LocalDate.parse("2015-03-31")).build();
+    }
+}
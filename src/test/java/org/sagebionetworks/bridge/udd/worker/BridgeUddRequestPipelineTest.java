@@ -0,0 +1,239 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+public class BridgeUddRequestPipelineTest {
+    private static final long TEST_TIMEOUT_SECONDS = 5;
+
+    private ExecutorService auxExecutorService;
+    private ExecutorService requestExecutorService;
+    private ExecutorService submitterExecutorService;
+    private BridgeUddRequestPipeline pipeline;
+
+    @BeforeMethod
+    public void setup() {
+        auxExecutorService = Executors.newFixedThreadPool(1);
+        requestExecutorService = Executors.newFixedThreadPool(2);
+        submitterExecutorService = Executors.newSingleThreadExecutor();
+
+        // Spy so tests can control free temp disk. Default is plenty.
+        pipeline = spy(new BridgeUddRequestPipeline());
+        pipeline.setAuxiliaryExecutorService(auxExecutorService);
+        pipeline.setConfig(makeConfig(2));
+        pipeline.setRequestExecutorService(requestExecutorService);
+        doReturn(Long.MAX_VALUE).when(pipeline).getFreeTempDiskBytes();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        auxExecutorService.shutdownNow();
+        requestExecutorService.shutdownNow();
+        submitterExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void inlineWhenMaxConcurrencyIsOne() throws Exception {
+        pipeline.setConfig(makeConfig(1));
+
+        // Runs on the calling thread.
+        Thread callingThread = Thread.currentThread();
+        Thread[] taskThread = new Thread[1];
+        pipeline.submit("test request", () -> taskThread[0] = Thread.currentThread());
+        assertSame(taskThread[0], callingThread);
+
+        // Errors propagate.
+        try {
+            pipeline.submit("bad request", () -> {
+                throw new PollSqsWorkerBadRequestException("test exception");
+            });
+            fail("expected exception");
+        } catch (PollSqsWorkerBadRequestException ex) {
+            assertEquals(ex.getMessage(), "test exception");
+        }
+    }
+
+    @Test
+    public void blocksAtMaxConcurrency() throws Exception {
+        // Fill the pipeline with 2 requests that block until released.
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        CountDownLatch startedLatch = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            pipeline.submit("blocking request " + i, () -> {
+                startedLatch.countDown();
+                awaitLatch(releaseLatch);
+            });
+        }
+        assertTrue(startedLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(pipeline.getInFlightCount(), 2);
+
+        // Third submit blocks until one of the first two finishes.
+        CountDownLatch thirdLatch = new CountDownLatch(1);
+        Future<?> thirdSubmitFuture = submitterExecutorService.submit(() -> {
+            pipeline.submit("third request", thirdLatch::countDown);
+            return null;
+        });
+        assertFalse(thirdLatch.await(100, TimeUnit.MILLISECONDS));
+        assertFalse(thirdSubmitFuture.isDone());
+
+        releaseLatch.countDown();
+        thirdSubmitFuture.get(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(thirdLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedRequestIsIsolated() throws Exception {
+        CountDownLatch failedLatch = new CountDownLatch(1);
+        pipeline.submit("failed request", () -> {
+            failedLatch.countDown();
+            throw new RuntimeException("test exception");
+        });
+        assertTrue(failedLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The failed request's slot is freed, and later requests still run.
+        CountDownLatch nextLatch = new CountDownLatch(2);
+        pipeline.submit("next request 1", nextLatch::countDown);
+        pipeline.submit("next request 2", nextLatch::countDown);
+        assertTrue(nextLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedRequestCallsFailureHandler() throws Exception {
+        CountDownLatch handledLatch = new CountDownLatch(1);
+        Exception[] handledException = new Exception[1];
+        RuntimeException testException = new RuntimeException("test exception");
+        pipeline.submit("failed request", () -> {
+            throw testException;
+        }, ex -> {
+            handledException[0] = ex;
+            handledLatch.countDown();
+        });
+        assertTrue(handledLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertSame(handledException[0], testException);
+    }
+
+    @Test
+    public void badRequestSkipsFailureHandler() throws Exception {
+        AtomicBoolean handled = new AtomicBoolean(false);
+        pipeline.submit("bad request", () -> {
+            throw new PollSqsWorkerBadRequestException("test exception");
+        }, ex -> handled.set(true));
+
+        // Once the bad request's slot is freed, it's done.
+        CountDownLatch nextLatch = new CountDownLatch(2);
+        pipeline.submit("next request 1", nextLatch::countDown);
+        pipeline.submit("next request 2", nextLatch::countDown);
+        assertTrue(nextLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse(handled.get());
+    }
+
+    @Test
+    public void saturationHoldsBackNewRequests() throws Exception {
+        AtomicBoolean saturated = new AtomicBoolean(true);
+        doAnswer(invocation -> saturated.get()).when(pipeline).isSaturated();
+
+        // Nothing in flight, so saturation doesn't hold back the first request.
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        CountDownLatch firstLatch = new CountDownLatch(1);
+        pipeline.submit("first request", () -> {
+            firstLatch.countDown();
+            awaitLatch(releaseLatch);
+        });
+        assertTrue(firstLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // Second request is held back, even though there's a free slot.
+        CountDownLatch secondLatch = new CountDownLatch(1);
+        Future<?> secondSubmitFuture = submitterExecutorService.submit(() -> {
+            pipeline.submit("second request", secondLatch::countDown);
+            return null;
+        });
+        assertFalse(secondLatch.await(100, TimeUnit.MILLISECONDS));
+
+        // Once the node is no longer saturated, the second request goes through.
+        saturated.set(false);
+        secondSubmitFuture.get(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(secondLatch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        releaseLatch.countDown();
+    }
+
+    @Test
+    public void saturatedByAuxQueue() throws Exception {
+        assertFalse(pipeline.isSaturated());
+
+        // Block the aux pool's only thread, then queue up to the max queue size.
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        auxExecutorService.execute(() -> {
+            try {
+                releaseLatch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            auxExecutorService.execute(() -> {});
+        }
+        assertTrue(pipeline.isSaturated());
+        releaseLatch.countDown();
+    }
+
+    @Test
+    public void saturatedByTempDisk() {
+        doReturn(10L * 1024 * 1024 - 1).when(pipeline).getFreeTempDiskBytes();
+        assertTrue(pipeline.isSaturated());
+
+        doReturn(10L * 1024 * 1024).when(pipeline).getFreeTempDiskBytes();
+        assertFalse(pipeline.isSaturated());
+    }
+
+    @Test
+    public void rejectedRequestFreesSlot() throws Exception {
+        requestExecutorService.shutdown();
+        try {
+            pipeline.submit("rejected request", () -> {});
+            fail("expected exception");
+        } catch (RejectedExecutionException ex) {
+            // expected exception
+        }
+        assertEquals(pipeline.getInFlightCount(), 0);
+    }
+
+    private static Config makeConfig(int maxConcurrency) {
+        Config config = mock(Config.class);
+        when(config.getInt(BridgeUddRequestPipeline.CONFIG_KEY_BACKPRESSURE_SLEEP_MILLIS)).thenReturn(10);
+        when(config.getInt(BridgeUddRequestPipeline.CONFIG_KEY_MAX_AUX_QUEUE_SIZE)).thenReturn(3);
+        when(config.getInt(BridgeUddRequestPipeline.CONFIG_KEY_MAX_CONCURRENCY)).thenReturn(maxConcurrency);
+        when(config.getInt(BridgeUddRequestPipeline.CONFIG_KEY_MIN_FREE_TEMP_DISK_MB)).thenReturn(10);
+        return config;
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            latch.await(TEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
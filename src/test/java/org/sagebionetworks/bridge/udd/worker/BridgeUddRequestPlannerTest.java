@@ -0,0 +1,123 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.LocalDate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.udd.accounts.BridgeHelper;
+import org.sagebionetworks.bridge.udd.dynamodb.DynamoHelper;
+
+public class BridgeUddRequestPlannerTest {
+    private static final BridgeUddRequest REQUEST = new BridgeUddRequest.Builder()
+            .withStudyId(BridgeUddProcessorTest.STUDY_ID).withUserId(BridgeUddProcessorTest.USER_ID)
+            .withStartDate(LocalDate.parse("2015-03-09")).withEndDate(LocalDate.parse("2015-03-31")).build();
+
+    private BridgeHelper mockBridgeHelper;
+    private DynamoHelper mockDynamoHelper;
+    private BridgeUddRequestPlanner planner;
+    private ExecutorService executorService;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        mockBridgeHelper = mock(BridgeHelper.class);
+        when(mockBridgeHelper.getAccountInfo(BridgeUddProcessorTest.STUDY_ID, BridgeUddProcessorTest.USER_ID))
+                .thenReturn(BridgeUddProcessorTest.USER_ID_ACCOUNT_INFO);
+
+        mockDynamoHelper = mock(DynamoHelper.class);
+        when(mockDynamoHelper.getStudyExportPlan(BridgeUddProcessorTest.STUDY_ID)).thenReturn(
+                BridgeUddProcessorTest.STUDY_EXPORT_PLAN);
+
+        planner = BridgeUddProcessorTest.makePlanner(mockBridgeHelper, mockDynamoHelper);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+
+    @Test
+    public void happyCase() throws Exception {
+        BridgeUddRequestPlan plan = planner.plan(REQUEST);
+        assertSame(plan.getAccountInfo(), BridgeUddProcessorTest.USER_ID_ACCOUNT_INFO);
+        assertSame(plan.getStudyExportPlan(), BridgeUddProcessorTest.STUDY_EXPORT_PLAN);
+    }
+
+    @Test
+    public void lookupsRunConcurrently() throws Exception {
+        executorService = Executors.newSingleThreadExecutor();
+        planner.setPlanningExecutorService(executorService);
+
+        // Each lookup waits for the other to start. If the lookups ran one after the other, this would time out.
+        CountDownLatch accountLookupStarted = new CountDownLatch(1);
+        CountDownLatch exportPlanLookupStarted = new CountDownLatch(1);
+        when(mockDynamoHelper.getStudyExportPlan(BridgeUddProcessorTest.STUDY_ID)).thenAnswer(invocation -> {
+            exportPlanLookupStarted.countDown();
+            assertTrue(accountLookupStarted.await(5, TimeUnit.SECONDS));
+            return BridgeUddProcessorTest.STUDY_EXPORT_PLAN;
+        });
+        when(mockBridgeHelper.getAccountInfo(BridgeUddProcessorTest.STUDY_ID, BridgeUddProcessorTest.USER_ID))
+                .thenAnswer(invocation -> {
+                    accountLookupStarted.countDown();
+                    assertTrue(exportPlanLookupStarted.await(5, TimeUnit.SECONDS));
+                    return BridgeUddProcessorTest.USER_ID_ACCOUNT_INFO;
+                });
+
+        BridgeUddRequestPlan plan = planner.plan(REQUEST);
+        assertSame(plan.getAccountInfo(), BridgeUddProcessorTest.USER_ID_ACCOUNT_INFO);
+        assertSame(plan.getStudyExportPlan(), BridgeUddProcessorTest.STUDY_EXPORT_PLAN);
+    }
+
+    @Test
+    public void accountNotFound() throws Exception {
+        when(mockBridgeHelper.getAccountInfo(BridgeUddProcessorTest.STUDY_ID, BridgeUddProcessorTest.USER_ID))
+                .thenThrow(new EntityNotFoundException("test exception", null));
+        try {
+            planner.plan(REQUEST);
+            fail("expected exception");
+        } catch (EntityNotFoundException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void noHealthCode() throws Exception {
+        when(mockBridgeHelper.getAccountInfo(BridgeUddProcessorTest.STUDY_ID, BridgeUddProcessorTest.USER_ID))
+                .thenReturn(BridgeUddProcessorTest.ACCOUNT_INFO_NO_HEALTH_CODE);
+        try {
+            planner.plan(REQUEST);
+            fail("expected exception");
+        } catch (PollSqsWorkerBadRequestException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void studyExportPlanError() throws Exception {
+        IOException planException = new IOException("test exception");
+        when(mockDynamoHelper.getStudyExportPlan(BridgeUddProcessorTest.STUDY_ID)).thenThrow(planException);
+        try {
+            planner.plan(REQUEST);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertSame(ex, planException);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.sagebionetworks.bridge.udd.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+public class BridgeUddRequestRequeuerTest {
+    private static final String QUEUE_URL = "https://sqs.example.com/test-queue";
+    private static final LocalDate START_DATE = LocalDate.parse("2015-08-15");
+    private static final LocalDate END_DATE = LocalDate.parse("2015-08-19");
+
+    private AmazonSQSClient mockSqsClient;
+    private BridgeUddRequestRequeuer requeuer;
+
+    @BeforeMethod
+    public void setup() {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(BridgeUddRequestRequeuer.CONFIG_KEY_MAX_RETRIES)).thenReturn(2);
+        when(mockConfig.get(BridgeUddRequestRequeuer.CONFIG_KEY_QUEUE_URL)).thenReturn(QUEUE_URL);
+        when(mockConfig.getInt(BridgeUddRequestRequeuer.CONFIG_KEY_REQUEUE_DELAY_SECONDS)).thenReturn(300);
+
+        mockSqsClient = mock(AmazonSQSClient.class);
+
+        requeuer = new BridgeUddRequestRequeuer();
+        requeuer.setConfig(mockConfig);
+        requeuer.setSqsClient(mockSqsClient);
+    }
+
+    @Test
+    public void requeue() throws Exception {
+        assertTrue(requeuer.requeue(makeRequest(1)));
+
+        ArgumentCaptor<SendMessageRequest> sendMessageRequestCaptor = ArgumentCaptor.forClass(
+                SendMessageRequest.class);
+        verify(mockSqsClient).sendMessage(sendMessageRequestCaptor.capture());
+        SendMessageRequest sendMessageRequest = sendMessageRequestCaptor.getValue();
+        assertEquals(sendMessageRequest.getQueueUrl(), QUEUE_URL);
+        assertEquals(sendMessageRequest.getDelaySeconds().intValue(), 300);
+
+        // Same request, with the retry count incremented.
+        BridgeUddRequest retryRequest = DefaultObjectMapper.INSTANCE.readValue(sendMessageRequest.getMessageBody(),
+                BridgeUddRequest.class);
+        assertEquals(retryRequest, makeRequest(1));
+        assertEquals(retryRequest.getRetryCount(), 2);
+    }
+
+    @Test
+    public void outOfRetries() {
+        assertFalse(requeuer.requeue(makeRequest(2)));
+        verifyZeroInteractions(mockSqsClient);
+    }
+
+    @Test
+    public void sendError() {
+        when(mockSqsClient.sendMessage(any(SendMessageRequest.class))).thenThrow(new AmazonClientException(
+                "test exception"));
+        assertFalse(requeuer.requeue(makeRequest(0)));
+    }
+
+    private static BridgeUddRequest makeRequest(int retryCount) {
+        return new BridgeUddRequest.Builder().withStudyId("test-study").withUserId("test-user-id")
+                .withStartDate(START_DATE).withEndDate(END_DATE).withRetryCount(retryCount).build();
+    }
+}
@@ -1,6 +1,7 @@
 package org.sagebionetworks.bridge.udd.worker;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import org.joda.time.LocalDate;
@@ -82,6 +83,37 @@ public class BridgeUddRequestTest {
                 .withEndDate(START_DATE).build();
     }
 
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "retryCount can't be negative")
+    public void negativeRetryCount() {
+        new BridgeUddRequest.Builder().withStudyId(STUDY_ID).withUserId(USER_ID).withStartDate(START_DATE)
+                .withEndDate(END_DATE).withRetryCount(-1).build();
+    }
+
+    @Test
+    public void equalsAndHashCode() {
+        BridgeUddRequest request = new BridgeUddRequest.Builder().withStudyId(STUDY_ID).withUserId(USER_ID)
+                .withStartDate(START_DATE).withEndDate(END_DATE).build();
+        BridgeUddRequest sameRequest = new BridgeUddRequest.Builder().withStudyId(STUDY_ID).withUserId(USER_ID)
+                .withStartDate(START_DATE).withEndDate(END_DATE).build();
+        assertEquals(sameRequest, request);
+        assertEquals(sameRequest.hashCode(), request.hashCode());
+
+        BridgeUddRequest otherDatesRequest = new BridgeUddRequest.Builder().withStudyId(STUDY_ID).withUserId(USER_ID)
+                .withStartDate(START_DATE).withEndDate(START_DATE).build();
+        assertNotEquals(otherDatesRequest, request);
+
+        // Retries ask for the same data.
+        BridgeUddRequest retryRequest = new BridgeUddRequest.Builder().withStudyId(STUDY_ID).withUserId(USER_ID)
+                .withStartDate(START_DATE).withEndDate(END_DATE).withRetryCount(1).build();
+        assertEquals(retryRequest, request);
+        assertEquals(retryRequest.hashCode(), request.hashCode());
+
+        BridgeUddRequest otherUserRequest = new BridgeUddRequest.Builder().withStudyId(STUDY_ID)
+                .withUserId("other-user-id").withStartDate(START_DATE).withEndDate(END_DATE).build();
+        assertNotEquals(otherUserRequest, request);
+    }
+
     @Test
     public void jsonSerializationWithUserId() throws Exception {
         // start with JSON
@@ -107,4 +139,22 @@ public class BridgeUddRequestTest {
         assertEquals(jsonNode.get("startDate").textValue(), "2015-08-03");
         assertEquals(jsonNode.get("endDate").textValue(), "2015-08-07");
     }
+
+    @Test
+    public void jsonSerializationWithRetryCount() throws Exception {
+        String jsonText = "{\n" +
+                "   \"studyId\":\"json-study\",\n" +
+                "   \"userId\":\"json-user-id\",\n" +
+                "   \"startDate\":\"2015-08-03\",\n" +
+                "   \"endDate\":\"2015-08-07\",\n" +
+                "   \"retryCount\":2\n" +
+                "}";
+
+        BridgeUddRequest request = DefaultObjectMapper.INSTANCE.readValue(jsonText, BridgeUddRequest.class);
+        assertEquals(request.getRetryCount(), 2);
+
+        JsonNode jsonNode = DefaultObjectMapper.INSTANCE.convertValue(request, JsonNode.class);
+        assertEquals(5, jsonNode.size());
+        assertEquals(jsonNode.get("retryCount").intValue(), 2);
+    }
 }